@@ -12,18 +12,28 @@
 package com.rmn.qa;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
 import org.apache.commons.lang3.StringUtils;
+import org.openqa.grid.common.RegistrationRequest;
 import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
+import org.openqa.selenium.remote.CapabilityType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Custom CapabilityMatcher which will not match a node that is marked as Expired/Terminated, which will happen
- * via any running {@link com.rmn.qa.task.AutomationNodeCleanupTask AutomationNodeCleanupTasks}
+ * via any running {@link com.rmn.qa.task.AutomationNodeCleanupTask AutomationNodeCleanupTasks}.  Whether a node's
+ * capabilities satisfy a request never changes for the life of a test slot, so that part of the decision is memoized per
+ * slot capabilities and requested capabilities, while the node status is checked on every call
  * @author mhardin
  */
 public class AutomationCapabilityMatcher extends DefaultCapabilityMatcher {
@@ -34,6 +44,14 @@ public class AutomationCapabilityMatcher extends DefaultCapabilityMatcher {
     @VisibleForTesting
     final Set<String> additionalConsiderations = new HashSet<>();
 
+    // Requested capabilities considered by DefaultCapabilityMatcher, along with any key starting with '_'
+    private static final List<String> DEFAULT_CONSIDERATIONS = Arrays.asList(CapabilityType.PLATFORM,
+            CapabilityType.BROWSER_NAME, CapabilityType.VERSION, RegistrationRequest.APP);
+    private static final int MAX_CACHED_REQUESTS_PER_SLOT = 256;
+
+    // Keyed by identity of the slot capabilities, which are weakly held so results go away along with their slot
+    private final ConcurrentMap<Map<String,Object>,ConcurrentMap<Map<String,Object>,Boolean>> decisions = new MapMaker().weakKeys().makeMap();
+
     public AutomationCapabilityMatcher() {
         super();
         String propertyValue = System.getProperty(AutomationConstants.EXTRA_CAPABILITIES_PROPERTY_NAME);
@@ -53,6 +71,47 @@ public class AutomationCapabilityMatcher extends DefaultCapabilityMatcher {
 
     @Override
     public boolean matches(Map<String, Object> nodeCapability,Map<String, Object> requestedCapability) {
+        // If neither expected config value exists, go ahead and default to the default matching behavior
+        // as this node is most likely not a dynamically started node
+        if(nodeCapability.containsKey(AutomationConstants.INSTANCE_ID)) {
+            String instanceId = (String)nodeCapability.get(AutomationConstants.INSTANCE_ID);
+            AutomationRunContext context = AutomationContext.getContext();
+            // If the run that spun up these hubs is still happening, just perform the default matching behavior
+            // as that run is the one that requested these nodes.
+            AutomationDynamicNode node = context.getNode(instanceId);
+            if(node != null && (node.getStatus() == AutomationDynamicNode.STATUS.EXPIRED || node.getStatus() == AutomationDynamicNode.STATUS.TERMINATED) ) {
+                log.debug(String.format("Node [%s] will not be used to match a request as it is expired/terminated",instanceId));
+                // If the run that spun these hubs up is not in progress AND this node has been flagged to shutdown,
+                // do not match this node up to fulfill a test request
+                return false;
+            }
+        }
+        // If the node couldn't be retrieved or was not expired/terminated, then we should just use the default matching behavior
+        ConcurrentMap<Map<String,Object>,Boolean> slotDecisions = decisions.get(nodeCapability);
+        if(slotDecisions == null) {
+            ConcurrentMap<Map<String,Object>,Boolean> newDecisions = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_REQUESTS_PER_SLOT).<Map<String,Object>,Boolean>build().asMap();
+            slotDecisions = decisions.putIfAbsent(nodeCapability, newDecisions);
+            if(slotDecisions == null) {
+                slotDecisions = newDecisions;
+            }
+        }
+        Map<String,Object> fingerprint = getFingerprint(requestedCapability);
+        Boolean decision = slotDecisions.get(fingerprint);
+        if(decision == null) {
+            decision = capabilitiesMatch(nodeCapability, requestedCapability);
+            slotDecisions.put(fingerprint, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Returns true if the node capabilities satisfy the requested capabilities, regardless of the status of the node
+     * @param nodeCapability
+     * @param requestedCapability
+     * @return
+     */
+    @VisibleForTesting
+    boolean capabilitiesMatch(Map<String, Object> nodeCapability,Map<String, Object> requestedCapability) {
         // First we need to check any additional capabilities that may exist in the requested set.  We're iterating over
         // additionalConsiderations as its likely to be a smaller collection for now than the requestedCapabilities
         for(String s : additionalConsiderations) {
@@ -63,24 +122,23 @@ public class AutomationCapabilityMatcher extends DefaultCapabilityMatcher {
                 }
             }
         }
-        // If neither expected config value exists, go ahead and default to the default matching behavior
-        // as this node is most likely not a dynamically started node
-        if(!nodeCapability.containsKey(AutomationConstants.INSTANCE_ID)) {
-            return super.matches(nodeCapability,requestedCapability);
-        }
-        String instanceId = (String)nodeCapability.get(AutomationConstants.INSTANCE_ID);
-        AutomationRunContext context = AutomationContext.getContext();
-        // If the run that spun up these hubs is still happening, just perform the default matching behavior
-        // as that run is the one that requested these nodes.
-        AutomationDynamicNode node = context.getNode(instanceId);
-        if(node != null && (node.getStatus() == AutomationDynamicNode.STATUS.EXPIRED || node.getStatus() == AutomationDynamicNode.STATUS.TERMINATED) ) {
-            log.debug(String.format("Node [%s] will not be used to match a request as it is expired/terminated",instanceId));
-            // If the run that spun these hubs up is not in progress AND this node has been flagged to shutdown,
-            // do not match this node up to fulfill a test request
-            return false;
-        } else {
-            // If the node couldn't be retrieved or was not expired/terminated, then we should just use the default matching behavior
-            return super.matches(nodeCapability,requestedCapability);
+        return super.matches(nodeCapability,requestedCapability);
+    }
+
+    /**
+     * Returns the requested capabilities which can affect the match, so that requests which only differ in other
+     * capabilities (e.g. the test run UUID) share a decision
+     * @param requestedCapability
+     * @return
+     */
+    private Map<String,Object> getFingerprint(Map<String, Object> requestedCapability) {
+        Map<String,Object> fingerprint = new HashMap<>();
+        for(Map.Entry<String,Object> entry : requestedCapability.entrySet()) {
+            String key = entry.getKey();
+            if(DEFAULT_CONSIDERATIONS.contains(key) || (key != null && key.startsWith("_")) || additionalConsiderations.contains(key)) {
+                fingerprint.put(key, entry.getValue());
+            }
         }
+        return fingerprint;
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+/**
+ * Capacity of the grid (or a single node) for a given browser, browser version, and OS
+ * @author mhardin
+ */
+public final class AutomationCapacity {
+
+    public static final AutomationCapacity EMPTY = new AutomationCapacity(0,0,0);
+
+    private final int freeThreads;
+    private final int capableThreads;
+    private final int runningThreads;
+
+    /**
+     * Constructs a capacity object
+     * @param freeThreads Number of threads which can accept a new test
+     * @param capableThreads Number of slots which can run the browser, whether or not they are in use
+     * @param runningThreads Number of tests in progress which requested the browser
+     */
+    public AutomationCapacity(int freeThreads, int capableThreads, int runningThreads) {
+        this.freeThreads = freeThreads;
+        this.capableThreads = capableThreads;
+        this.runningThreads = runningThreads;
+    }
+
+    /**
+     * Returns the number of threads which can accept a new test
+     * @return
+     */
+    public int getFreeThreads() {
+        return freeThreads;
+    }
+
+    /**
+     * Returns the number of slots which can run the browser, whether or not they are in use
+     * @return
+     */
+    public int getCapableThreads() {
+        return capableThreads;
+    }
+
+    /**
+     * Returns the number of tests in progress which requested the browser
+     * @return
+     */
+    public int getRunningThreads() {
+        return runningThreads;
+    }
+
+    /**
+     * Returns a new capacity object with the counts of both objects added together
+     * @param other Capacity to add
+     * @return
+     */
+    public AutomationCapacity add(AutomationCapacity other) {
+        return new AutomationCapacity(freeThreads + other.freeThreads, capableThreads + other.capableThreads, runningThreads + other.runningThreads);
+    }
+
+    /**
+     * Returns a new capacity object with the counts of the other object subtracted
+     * @param other Capacity to subtract
+     * @return
+     */
+    public AutomationCapacity subtract(AutomationCapacity other) {
+        return new AutomationCapacity(freeThreads - other.freeThreads, capableThreads - other.capableThreads, runningThreads - other.runningThreads);
+    }
+
+    /**
+     * Returns a new capacity object with the specified free thread count
+     * @param freeThreads Number of threads which can accept a new test
+     * @return
+     */
+    public AutomationCapacity withFreeThreads(int freeThreads) {
+        return new AutomationCapacity(freeThreads, capableThreads, runningThreads);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        AutomationCapacity that = (AutomationCapacity) o;
+
+        if (freeThreads != that.freeThreads) return false;
+        if (capableThreads != that.capableThreads) return false;
+        if (runningThreads != that.runningThreads) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = freeThreads;
+        result = 31 * result + capableThreads;
+        result = 31 * result + runningThreads;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Capacity - Free: %d Capable: %d Running: %d", freeThreads, capableThreads, runningThreads);
+    }
+}
@@ -36,4 +36,27 @@ public interface AutomationConstants {
     String AWS_PRIVATE_KEY="awsSecretKey";
     String AWS_DEFAULT_RESOURCE_NAME= "aws.properties.default";
     String REAPER_THREAD_CONFIG = "useReaperThread";
+    // System property to choose how free capacity is computed (index, scan or verify)
+    String CAPACITY_INDEX_MODE = "capacityIndexMode";
+    // System properties to size the background executor which starts nodes for new runs
+    String PROVISIONING_THREADS = "provisioningThreads";
+    String PROVISIONING_QUEUE_SIZE = "provisioningQueueSize";
+    // System property for how long node demand from new runs is held so runs registered together share a launch
+    String LAUNCH_COALESCING_WINDOW_MILLIS = "launchCoalescingWindowMillis";
+    // System property listing the warm pool target for each browser and OS (e.g. 'chrome:linux=2,firefox:linux=1')
+    String WARM_POOL = "warmPool";
+    // System property for the minutes a warm pool may go unused before it is allowed to shrink
+    String WARM_POOL_IDLE_MINUTES = "warmPoolIdleMinutes";
+    // UUID used in place of a test run UUID for nodes started for the warm pool
+    String WARM_POOL_UUID = "warm-pool";
+    // System property for the file registered runs are recorded to, which the demand forecast is built from
+    String RUN_HISTORY_FILE = "runHistoryFile";
+    // System property for the minutes each run is assumed to hold its threads for when forecasting demand
+    String FORECAST_RUN_DURATION_MINUTES = "forecastRunDurationMinutes";
+    // System property for the number of hub tasks which can run at the same time
+    String TASK_SCHEDULER_THREADS = "taskSchedulerThreads";
+    // Prefix of the system properties which override the interval of a hub task (e.g. 'taskIntervalSeconds.AutomationNodeCleanupTask=30')
+    String TASK_INTERVAL_SECONDS = "taskIntervalSeconds";
+    // System property for the directory the registered runs and nodes are journaled to, so they survive a restart of the hub
+    String CONTEXT_JOURNAL_DIR = "contextJournalDir";
 }
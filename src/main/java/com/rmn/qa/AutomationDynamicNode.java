@@ -12,7 +12,9 @@
 package com.rmn.qa;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Represents a dynamically started node that is used to run tests
@@ -37,6 +39,8 @@ public final class AutomationDynamicNode implements Comparable<AutomationDynamic
     private Date startDate,endDate;
     private final int nodeCapacity;
     private STATUS status;
+    private volatile String spotInstanceRequestId;
+    private volatile List<String> runUuids;
 
     /**
      * Constructor to create a new node representing instance
@@ -49,6 +53,7 @@ public final class AutomationDynamicNode implements Comparable<AutomationDynamic
      */
     public AutomationDynamicNode(String uuid,String instanceId,String browser, String os,Date startDate,int nodeCapacity){
         this.uuid = uuid;
+        this.runUuids = Collections.singletonList(uuid);
         this.instanceId = instanceId;
         this.browser = browser;
         this.os = os;
@@ -64,6 +69,9 @@ public final class AutomationDynamicNode implements Comparable<AutomationDynamic
      */
     public void updateStatus(STATUS status) {
         this.status = status;
+        // Nodes which are not running no longer contribute free capacity, so let the index know
+        AutomationContext.getContext().getCapacityIndex().nodeChanged(instanceId);
+        AutomationContext.getContext().getContextJournal().nodeChanged(this);
     }
 
     /**
@@ -137,6 +145,9 @@ public final class AutomationDynamicNode implements Comparable<AutomationDynamic
      */
     public void setEndDate(Date endDate) {
         this.endDate = endDate;
+        // Move the timers waiting on the end date along with it
+        AutomationContext.getContext().getNodeLifecycleEvents().endDateChanged(this);
+        AutomationContext.getContext().getContextJournal().nodeChanged(this);
     }
 
     /**
@@ -156,6 +167,39 @@ public final class AutomationDynamicNode implements Comparable<AutomationDynamic
         return nodeCapacity;
     }
 
+    /**
+     * Returns the ID of the spot request this node was started for, or null if it was started on demand
+     * @return
+     */
+    public String getSpotInstanceRequestId() {
+        return spotInstanceRequestId;
+    }
+
+    /**
+     * Sets the ID of the spot request this node was started for
+     * @param spotInstanceRequestId Spot request ID, or null if the node was started on demand
+     */
+    public void setSpotInstanceRequestId(String spotInstanceRequestId) {
+        this.spotInstanceRequestId = spotInstanceRequestId;
+    }
+
+    /**
+     * Returns the UUIDs of every run this node was started for.  This is only the run returned by {@link #getUuid()}
+     * unless the node was started for a group of runs whose launches were coalesced
+     * @return
+     */
+    public List<String> getRunUuids() {
+        return runUuids;
+    }
+
+    /**
+     * Sets the UUIDs of every run this node was started for
+     * @param runUuids UUIDs of the runs, starting with the run returned by {@link #getUuid()}
+     */
+    public void setRunUuids(List<String> runUuids) {
+        this.runUuids = Collections.unmodifiableList(runUuids);
+    }
+
     /**
      * Returns the current status of this node.
      * @return
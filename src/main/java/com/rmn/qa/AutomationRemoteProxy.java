@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.Map;
+
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.grid.internal.listeners.RegistrationListener;
+import org.openqa.grid.selenium.proxy.DefaultRemoteProxy;
+
+/**
+ * Proxy which reports its registration and session lifecycle to the {@link com.rmn.qa.CapacityIndex CapacityIndex}
+ * so free capacity can be computed without scanning the whole grid.  New sessions also release the reserved thread of
+ * the {@link com.rmn.qa.AutomationRunRequest run} they belong to, and slot capabilities are registered as
+ * {@link com.rmn.qa.CapabilityKey capability keys} so matching does not normalize them on every check.  Ended sessions
+ * are reported as {@link com.rmn.qa.NodeLifecycleEvents node lifecycle events} so idle nodes are evaluated right away.
+ * Nodes opt in by setting this class as the <code>proxy</code> in their node config.
+ * @author mhardin
+ */
+public class AutomationRemoteProxy extends DefaultRemoteProxy implements RegistrationListener {
+
+    public AutomationRemoteProxy(RegistrationRequest request, Registry registry) {
+        super(request, registry);
+    }
+
+    @Override
+    public void beforeRegistration() {
+        // Normalize the capabilities of each slot once so matching against them doesn't have to
+        for(TestSlot testSlot : getTestSlots()) {
+            CapabilityKey.register(testSlot);
+        }
+        AutomationContext.getContext().getCapacityIndex().proxyRegistered(this);
+    }
+
+    @Override
+    public TestSession getNewSession(Map<String, Object> requestedCapability) {
+        TestSession session = super.getNewSession(requestedCapability);
+        if(session != null) {
+            AutomationContext.getContext().sessionStarted(requestedCapability);
+            AutomationContext.getContext().getCapacityIndex().sessionStarted(this);
+        }
+        return session;
+    }
+
+    @Override
+    public void afterSession(TestSession session) {
+        try {
+            super.afterSession(session);
+        } finally {
+            AutomationContext.getContext().getCapacityIndex().sessionEnded(this, session);
+            Object instanceId = getConfig().get(AutomationConstants.INSTANCE_ID);
+            if(instanceId instanceof String) {
+                // The node may be waiting on its last session to end before it can be terminated
+                AutomationContext.getContext().getNodeLifecycleEvents().sessionEnded((String) instanceId);
+            }
+        }
+    }
+
+    @Override
+    public void teardown() {
+        try {
+            super.teardown();
+        } finally {
+            AutomationContext.getContext().getCapacityIndex().proxyUnregistered(this);
+        }
+    }
+}
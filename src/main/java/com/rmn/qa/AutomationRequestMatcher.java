@@ -18,9 +18,11 @@ import org.openqa.grid.internal.TestSlot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Computes how many free/available resources there are for a given browser, browser version, and OS
@@ -30,131 +32,258 @@ public class AutomationRequestMatcher implements RequestMatcher {
 
     private static final Logger log = LoggerFactory.getLogger(AutomationRequestMatcher.class);
 
+    /** <pre>
+     *  INDEX  - free slots are read from the {@link com.rmn.qa.CapacityIndex CapacityIndex} whenever every registered
+     *           proxy is tracked by it, falling back to a full scan otherwise
+     *  SCAN   - free slots are always computed by scanning every slot of every registered proxy
+     *  VERIFY - both values are computed, any mismatch is logged and the scanned value is returned
+     * </pre>
+     **/
+    public enum MODE { INDEX,SCAN,VERIFY };
+
+    private final MODE mode;
+
+    /**
+     * Constructs a request matcher using the mode from the {@link AutomationConstants#CAPACITY_INDEX_MODE} system
+     * property, defaulting to {@link MODE#INDEX}
+     */
+    public AutomationRequestMatcher() {
+        this(getModeFromProperty());
+    }
+
+    /**
+     * Constructs a request matcher with the specified mode
+     * @param mode Mode used to compute free slots
+     */
+    public AutomationRequestMatcher(MODE mode) {
+        this.mode = mode;
+    }
+
+    private static MODE getModeFromProperty() {
+        String propertyValue = System.getProperty(AutomationConstants.CAPACITY_INDEX_MODE);
+        if(propertyValue == null) {
+            return MODE.INDEX;
+        }
+        try {
+            return MODE.valueOf(propertyValue.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            log.warn(String.format("Unknown capacity index mode [%s].  Defaulting to %s.",propertyValue,MODE.INDEX));
+            return MODE.INDEX;
+        }
+    }
+
+    /**
+     * Returns the mode used to compute free slots
+     * @return
+     */
+    public MODE getMode() {
+        return mode;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public int getNumFreeThreadsForParameters(ProxySet proxySet, AutomationRunRequest runRequest) {
-        // This will keep a count of the number of instances that can run our requested test
-        int totalFreeSlots = 0;
-        // Current runs registered with the hub.  Make a copy of the set so we don't muck with the original set of registered runs
-        Map<String,Integer> currentRuns = new HashMap<>();
-        // Add them all into our map so we can keep track of both the runs we need to delete from our free count as well as
-        // tests that are in progress for the run.
-        for(String key : AutomationContext.getContext().getRunUuids()) {
-            currentRuns.put(key,0);
+        int totalFreeSlots = getCapacityForParameters(proxySet,Collections.singletonList(runRequest)).get(runRequest).getFreeThreads();
+        log.info(String.format("Returning %s free slots for request %s",totalFreeSlots,runRequest));
+        return totalFreeSlots;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<AutomationRunRequest,AutomationCapacity> getCapacityForParameters(ProxySet proxySet, Collection<AutomationRunRequest> runRequests) {
+        CapacityIndex index = AutomationContext.getContext().getCapacityIndex();
+        if(mode == MODE.SCAN || !index.isComplete(proxySet)) {
+            return getCapacityFromScan(proxySet, runRequests);
+        }
+        Map<AutomationRunRequest,AutomationCapacity> capacities = getCapacityFromIndex(index, runRequests);
+        if(mode == MODE.VERIFY) {
+            Map<AutomationRunRequest,AutomationCapacity> scannedCapacities = getCapacityFromScan(proxySet, runRequests);
+            for(AutomationRunRequest runRequest : runRequests) {
+                if(!capacities.get(runRequest).equals(scannedCapacities.get(runRequest))) {
+                    log.warn(String.format("Capacity index returned [%s] but a scan returned [%s] for request %s",capacities.get(runRequest),scannedCapacities.get(runRequest),runRequest));
+                }
+            }
+            return scannedCapacities;
+        }
+        return capacities;
+    }
+
+    /**
+     * Computes the capacity for the requests from the capacity index
+     * @param index Index which is tracking every registered proxy
+     * @param runRequests Requests used to match against
+     * @return
+     */
+    private Map<AutomationRunRequest,AutomationCapacity> getCapacityFromIndex(CapacityIndex index, Collection<AutomationRunRequest> runRequests) {
+        Map<AutomationRunRequest,AutomationCapacity> capacities = new HashMap<>();
+        for(AutomationRunRequest runRequest : runRequests) {
+            AutomationCapacity capacity = index.getCapacity(runRequest);
+            capacities.put(runRequest,capacity.withFreeThreads(subtractPendingRuns(capacity.getFreeThreads(),runRequest)));
+        }
+        return capacities;
+    }
+
+    /**
+     * Computes the capacity for the requests with a single pass over every proxy
+     * @param proxySet Set of current registered proxy objects
+     * @param runRequests Requests used to match against
+     * @return
+     */
+    private Map<AutomationRunRequest,AutomationCapacity> getCapacityFromScan(ProxySet proxySet, Collection<AutomationRunRequest> runRequests) {
+        Set<TestSession> endedSessions = Collections.emptySet();
+        Map<AutomationRunRequest,AutomationCapacity> capacities = new HashMap<>();
+        for(AutomationRunRequest runRequest : runRequests) {
+            capacities.put(runRequest,AutomationCapacity.EMPTY);
         }
         for(RemoteProxy proxy : proxySet) {
-            int matchingCapableSlots = 0;
-            int runningSessions = 0;
-            int matchingRunningSessions = 0;
-            int maxNodeThreadsAvailable = proxy.getMaxNumberOfConcurrentTestSessions();
-            Map<String,Object> config = proxy.getConfig();
-            String instanceId = null;
-            if(config.containsKey(AutomationConstants.INSTANCE_ID)) {
-                instanceId = (String)config.get(AutomationConstants.INSTANCE_ID);
+            for(Map.Entry<AutomationRunRequest,AutomationCapacity> entry : capacities.entrySet()) {
+                entry.setValue(entry.getValue().add(getNodeCapacity(proxy,entry.getKey(),endedSessions)));
             }
-            boolean nodeMarkedForTermination = false;
-            if(instanceId != null) {
-                AutomationDynamicNode node = AutomationContext.getContext().getNode(instanceId);
-                // If this node has been spun up and it is no longer in the running state, go to the next test slot
-                // as we cannot consider this node to be a free resource
-                if(node != null) {// There really shouldn't ever be a null node here but adding the check regardless
-                    if(node.getStatus() != AutomationDynamicNode.STATUS.RUNNING) {
-                        // If this is a dynamic node and its not in the running state, we should not be calculating its resources as available
-                        nodeMarkedForTermination = true;
-                    }
+        }
+        for(Map.Entry<AutomationRunRequest,AutomationCapacity> entry : capacities.entrySet()) {
+            AutomationCapacity capacity = entry.getValue();
+            entry.setValue(capacity.withFreeThreads(subtractPendingRuns(capacity.getFreeThreads(),entry.getKey())));
+        }
+        return capacities;
+    }
+
+    /**
+     * Returns the capacity the specified node contributes for the request.  The free thread count will be negative if the
+     * node is marked for termination and still has matching sessions running on it
+     * @param proxy Proxy to compute capacity for
+     * @param runRequest Request used to match against
+     * @param endedSessions Sessions which have ended but may still be attached to their slot
+     * @return
+     */
+    static AutomationCapacity getNodeCapacity(RemoteProxy proxy, AutomationRunRequest runRequest, Set<TestSession> endedSessions) {
+        int matchingCapableSlots = 0;
+        int runningSessions = 0;
+        int matchingRunningSessions = 0;
+        int matchingInProgressTests = 0;
+        int maxNodeThreadsAvailable = proxy.getMaxNumberOfConcurrentTestSessions();
+        Map<String,Object> config = proxy.getConfig();
+        String instanceId = null;
+        if(config != null && config.containsKey(AutomationConstants.INSTANCE_ID)) {
+            instanceId = (String)config.get(AutomationConstants.INSTANCE_ID);
+        }
+        boolean nodeMarkedForTermination = false;
+        if(instanceId != null) {
+            AutomationDynamicNode node = AutomationContext.getContext().getNode(instanceId);
+            // If this node has been spun up and it is no longer in the running state, go to the next test slot
+            // as we cannot consider this node to be a free resource
+            if(node != null) {// There really shouldn't ever be a null node here but adding the check regardless
+                if(node.getStatus() != AutomationDynamicNode.STATUS.RUNNING) {
+                    // If this is a dynamic node and its not in the running state, we should not be calculating its resources as available
+                    nodeMarkedForTermination = true;
                 }
             }
-            if(instanceId != null) {
-                log.info(String.format("Analyzing node %s...",instanceId));
-            } else {
-                log.info("Analyzing node...");
-            }
-            for (TestSlot testSlot : proxy.getTestSlots()) {
-                //TODO Do selenium flavor of browsers to match here from RMN
-                //TODO Better property matching
-                TestSession session = testSlot.getSession();
-                Map<String,Object> testSlotCapabilities = testSlot.getCapabilities();
-                if(session != null) {
-                    Map<String,Object> sessionCapabilities = session.getRequestedCapabilities();
-                    Object uuid = sessionCapabilities.get(AutomationConstants.UUID);
-                    // If the session has a UUID, go ahead and remove it from our runs that we're going to subtract from our available
-                    // node count as this means the run is under way
-                    if(uuid != null && currentRuns.containsKey(uuid)) {
-                        int previousCount = currentRuns.get(uuid);
-                        currentRuns.put((String)uuid,previousCount + 1);
-                    }
-                    if(runRequest.matchesCapabilities(testSlotCapabilities)) {
-                        matchingRunningSessions++;
-                    }
-                    runningSessions++;
+        }
+        if(instanceId != null) {
+            log.debug(String.format("Analyzing node %s...",instanceId));
+        } else {
+            log.debug("Analyzing node...");
+        }
+        for (TestSlot testSlot : proxy.getTestSlots()) {
+            //TODO Do selenium flavor of browsers to match here from RMN
+            //TODO Better property matching
+            TestSession session = testSlot.getSession();
+            boolean matches = runRequest.matchesCapabilities(testSlot);
+            if(session != null && !endedSessions.contains(session)) {
+                if(matches) {
+                    matchingRunningSessions++;
                 }
-                if(runRequest.matchesCapabilities(testSlotCapabilities)) {
-                    matchingCapableSlots++;
+                if(runRequest.matchesCapabilities(session.getRequestedCapabilities())) {
+                    matchingInProgressTests++;
                 }
+                runningSessions++;
             }
-            log.info(String.format("Node had %d matching running sessions and %d matching capable slots",matchingRunningSessions,matchingCapableSlots));
-            int nodeFreeSlots;
-            // If the node is marked for termination, we need to subtract matching running sessions from our free count, and make sure to not add
-            // any capable slots, as they're really not even 'capable' since the node will be shutdown
-            if(nodeMarkedForTermination) {
-                log.info(String.format("Node marked for termination.  Subtracting %d sessions from %d total free slots",matchingRunningSessions,totalFreeSlots));
-                totalFreeSlots -= matchingRunningSessions;
+            if(matches) {
+                matchingCapableSlots++;
+            }
+        }
+        log.debug(String.format("Node had %d matching running sessions and %d matching capable slots",matchingRunningSessions,matchingCapableSlots));
+        // If the node is marked for termination, we need to subtract matching running sessions from our free count, and make sure to not add
+        // any capable slots, as they're really not even 'capable' since the node will be shutdown
+        if(nodeMarkedForTermination) {
+            log.debug(String.format("Node marked for termination.  Subtracting %d sessions from total free slots",matchingRunningSessions));
+            return new AutomationCapacity(-matchingRunningSessions,matchingCapableSlots,matchingInProgressTests);
+        }
+        int nodeFreeSlots;
+        // Decrement the running sessions only if running + free is more than the total threads the node can handle. This will handle
+        // load from a capacity standpoint of a node
+        if((runningSessions + matchingCapableSlots) > maxNodeThreadsAvailable ) {
+            if(matchingCapableSlots < maxNodeThreadsAvailable) {
+                log.debug(String.format("Subtracting %d running sessions from %d capable sessions",runningSessions,matchingCapableSlots));
+                nodeFreeSlots = matchingCapableSlots - runningSessions;
             } else {
-                // Decrement the running sessions only if running + free is more than the total threads the node can handle. This will handle
-                // load from a capacity standpoint of a node
-                if((runningSessions + matchingCapableSlots) > maxNodeThreadsAvailable ) {
-                    if(matchingCapableSlots < maxNodeThreadsAvailable) {
-                        log.debug(String.format("Subtracting %d running sessions from %d capable sessions",runningSessions,matchingCapableSlots));
-                        nodeFreeSlots = matchingCapableSlots - runningSessions;
-                    } else {
-                        log.debug(String.format("Subtracting %d running sessions from %d maximum node thread limit",matchingCapableSlots,maxNodeThreadsAvailable));
-                        nodeFreeSlots = maxNodeThreadsAvailable - runningSessions;
-                    }
-                } else {
-                    log.debug(String.format("%d free node slots derived from matching capable slots",matchingCapableSlots));
-                    nodeFreeSlots = matchingCapableSlots;
-                    // If there were any running sessions that match this browser, we need to subtract them from the capable sessions
-                    if(matchingRunningSessions != 0) {
-                        log.debug(String.format("%d matching running sessions will be subtracted from %d node free slots",matchingRunningSessions,nodeFreeSlots));
-                        nodeFreeSlots -= matchingRunningSessions;
-                    }
-                }
-                // If nodeFreeSlots is negative, go ahead and subtract the capable sessions instead
-                if(nodeFreeSlots < 0) {
-                    log.warn("The number of free node slots was less than 0.  Resetting to 0.");
-                    nodeFreeSlots = 0;
-                }
-                totalFreeSlots += nodeFreeSlots;
+                log.debug(String.format("Subtracting %d running sessions from %d maximum node thread limit",matchingCapableSlots,maxNodeThreadsAvailable));
+                nodeFreeSlots = maxNodeThreadsAvailable - runningSessions;
+            }
+        } else {
+            log.debug(String.format("%d free node slots derived from matching capable slots",matchingCapableSlots));
+            nodeFreeSlots = matchingCapableSlots;
+            // If there were any running sessions that match this browser, we need to subtract them from the capable sessions
+            if(matchingRunningSessions != 0) {
+                log.debug(String.format("%d matching running sessions will be subtracted from %d node free slots",matchingRunningSessions,nodeFreeSlots));
+                nodeFreeSlots -= matchingRunningSessions;
             }
         }
-        // Any runs still in this set means that run has not started yet, so we should consider this in our math
-        for(String uuid : currentRuns.keySet()) {
+        // If nodeFreeSlots is negative, go ahead and subtract the capable sessions instead
+        if(nodeFreeSlots < 0) {
+            log.warn("The number of free node slots was less than 0.  Resetting to 0.");
+            nodeFreeSlots = 0;
+        }
+        return new AutomationCapacity(nodeFreeSlots,matchingCapableSlots,matchingInProgressTests);
+    }
+
+    /**
+     * Adds the running sessions on the specified node to the per test run UUID counts
+     * @param proxy Proxy to count sessions for
+     * @param endedSessions Sessions which have ended but may still be attached to their slot
+     * @param sessionsByRun Map of test run UUID to session count which will be added to
+     */
+    static void countSessionsByRun(RemoteProxy proxy, Set<TestSession> endedSessions, Map<String,Integer> sessionsByRun) {
+        for (TestSlot testSlot : proxy.getTestSlots()) {
+            TestSession session = testSlot.getSession();
+            if(session == null || endedSessions.contains(session)) {
+                continue;
+            }
+            Object uuid = session.getRequestedCapabilities().get(AutomationConstants.UUID);
+            if(uuid instanceof String) {
+                Integer previousCount = sessionsByRun.get(uuid);
+                sessionsByRun.put((String)uuid,previousCount == null ? 1 : previousCount + 1);
+            }
+        }
+    }
+
+    /**
+     * Subtracts the reserved threads of registered runs that have not started all of their tests yet from the free slot count
+     * @param totalFreeSlots Free slots across all nodes
+     * @param runRequest Request used to match against
+     * @return
+     */
+    private int subtractPendingRuns(int totalFreeSlots, AutomationRunRequest runRequest) {
+        for(String uuid : AutomationContext.getContext().getRunUuids()) {
             AutomationRunRequest request = AutomationContext.getContext().getRunRequest(uuid);
-            // If we're not dealing with an old run request that just never started, go ahead and decrement
-            // the value from available nodes on this hub
-            if(request != null && !AutomationUtils.isCurrentTimeAfterDate(request.getCreatedDate(), 90, Calendar.SECOND) ) {
-                if(!runRequest.matchesCapabilities(request)) {
-                    log.warn(String.format("Requested run %s did not match pending run %s so count will not be included",runRequest,request));
-                    continue;
-                }
-                int currentlyRunningTestsForRun = currentRuns.get(uuid);
-                // If some of the tests are underway, subtract the currently running tests from the number of total tests, and then subtract that
-                // from the number of free slots.  This way we're including tests that may not have started yet in our free resource check
-                if(currentlyRunningTestsForRun < request.getThreadCount()) {
-                    int countToSubtract = request.getThreadCount() - currentlyRunningTestsForRun;
-                    log.debug(String.format("In progress run has %d threads that will be subtracted from our total free count %d.",countToSubtract,totalFreeSlots));
-                    totalFreeSlots -= countToSubtract;
-                }
+            if(request == null || request.getReservedThreads() == 0) {
+                continue;
             }
+            if(!runRequest.matchesCapabilities(request)) {
+                log.debug(String.format("Requested run %s did not match pending run %s so count will not be included",runRequest,request));
+                continue;
+            }
+            log.debug(String.format("In progress run has %d reserved threads that will be subtracted from our total free count %d.",request.getReservedThreads(),totalFreeSlots));
+            totalFreeSlots -= request.getReservedThreads();
         }
         // Make sure we don't return a negative number to the caller
         if(totalFreeSlots < 0) {
             log.info("The number of total free node slots was less than 0.  Resetting to 0.");
             totalFreeSlots = 0;
         }
-        log.info(String.format("Returning %s free slots for request %s",totalFreeSlots,runRequest));
         return totalFreeSlots;
     }
 
@@ -11,12 +11,12 @@
  */
 package com.rmn.qa;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.openqa.grid.internal.ProxySet;
 import org.openqa.grid.internal.RemoteProxy;
@@ -29,6 +29,10 @@ import org.slf4j.LoggerFactory;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 
+import com.rmn.qa.aws.Ec2RateLimiter;
+import com.rmn.qa.aws.SubnetHealthTracker;
+import com.rmn.qa.task.AutomationTaskScheduler;
+
 /**
  * Context object used to keep track of registered runs and dynamic nodes.
  *
@@ -39,8 +43,24 @@ public final class AutomationRunContext {
     private static final Logger log = LoggerFactory.getLogger(AutomationRunContext.class);
 
     private static final int CLEANUP_LIFE_LENGTH_IN_SECONDS = 90; // 1.5 minutes
-    private Map<String, AutomationRunRequest> requests = Maps.newConcurrentMap();
+    private static final int IE_CLEANUP_LIFE_LENGTH_IN_SECONDS = 10 * 60; // 10 minutes for IE to come online
+    private static final int FAILED_RUN_RETENTION_IN_SECONDS = 10 * 60; // 10 minutes for clients to read why nodes could not be started
+    private static final long RUN_AGE_TICK_IN_MILLIS = 1000;
+    private ConcurrentMap<String, AutomationRunRequest> requests = Maps.newConcurrentMap();
+
+    // Runs become old enough to clean up when their timer fires
+    private final TimerWheel<String> runAgeTimers = new TimerWheel<>(AutomationRunContext.RUN_AGE_TICK_IN_MILLIS,
+            System.currentTimeMillis());
+    private final Set<String> oldRuns = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
     private Map<String, AutomationDynamicNode> nodes = Maps.newConcurrentMap();
+    private final CapacityIndex capacityIndex = new CapacityIndex();
+    private final DemandForecaster demandForecaster = new DemandForecaster();
+    private final SubnetHealthTracker subnetHealthTracker = new SubnetHealthTracker();
+    private final NodeLifecycleEvents nodeLifecycleEvents = new NodeLifecycleEvents();
+    private final ContextJournal contextJournal = new ContextJournal(this);
+    private final Ec2RateLimiter ec2RateLimiter = new Ec2RateLimiter();
+    private final AutomationTaskScheduler taskScheduler = new AutomationTaskScheduler(Integer.getInteger(
+                AutomationConstants.TASK_SCHEDULER_THREADS, AutomationTaskScheduler.DEFAULT_THREADS));
 
     private int totalNodeCount;
 
@@ -53,12 +73,14 @@ public final class AutomationRunContext {
      * @param  uuid  UUID of the run to delete
      */
     public boolean deleteRun(final String uuid) {
-        AutomationRunRequest request;
-        synchronized (requests) {
-            request = requests.remove(uuid);
+        if (requests.remove(uuid) != null) {
+            runAgeTimers.cancel(uuid);
+            oldRuns.remove(uuid);
+            runRemoved(uuid);
+            return true;
         }
 
-        return request != null;
+        return false;
     }
 
     /**
@@ -69,16 +91,42 @@ public final class AutomationRunContext {
      * @return  Returns false if the request already exists
      */
     public boolean addRun(final AutomationRunRequest runRequest) {
+        if (requests.putIfAbsent(runRequest.getUuid(), runRequest) != null) {
+            return false;
+        }
+
+        oldRuns.remove(runRequest.getUuid());
+        runAgeTimers.schedule(runRequest.getUuid(),
+            runRequest.getCreatedDate().getTime() + AutomationRunContext.getCleanupLifeLengthInMillis(runRequest));
+        contextJournal.runChanged(runRequest);
+        return true;
+    }
+
+    /**
+     * Restarts the age of the run once starting its nodes has finished, so the time taken to start them does not count
+     * towards it. Runs whose nodes could not all be started are kept long enough for clients to read why from the
+     * {@link com.rmn.qa.servlet.AutomationRunStatusServlet status} of the run.
+     *
+     * @param  runRequest  Run whose nodes were started, or could not be started
+     */
+    public void provisioningEnded(final AutomationRunRequest runRequest) {
         String uuid = runRequest.getUuid();
-        synchronized (requests) {
-            if (requests.containsKey(uuid)) {
-                return false;
-            }
 
-            requests.put(uuid, runRequest);
+        // Leave the run alone if it has since been removed or registered again
+        if (requests.get(uuid) != runRequest) {
+            return;
         }
 
-        return true;
+        long lifeLength = AutomationRunContext.getCleanupLifeLengthInMillis(runRequest);
+        AutomationRunRequest.PROVISIONING_STATUS status = runRequest.getProvisioningStatus();
+        if (status == AutomationRunRequest.PROVISIONING_STATUS.FAILED
+                || status == AutomationRunRequest.PROVISIONING_STATUS.PARTIAL) {
+            lifeLength = Math.max(lifeLength,
+                    TimeUnit.SECONDS.toMillis(AutomationRunContext.FAILED_RUN_RETENTION_IN_SECONDS));
+        }
+
+        oldRuns.remove(uuid);
+        runAgeTimers.schedule(uuid, System.currentTimeMillis() + lifeLength);
     }
 
     /**
@@ -100,9 +148,7 @@ public final class AutomationRunContext {
      * @return
      */
     public AutomationRunRequest getRunRequest(final String uuid) {
-        synchronized (requests) {
-            return requests.get(uuid);
-        }
+        return requests.get(uuid);
     }
 
     /**
@@ -120,13 +166,11 @@ public final class AutomationRunContext {
      * @return
      */
     public boolean isNewRunQueuedUp() {
-        synchronized (requests) {
-            Set<String> uuids = AutomationContext.getContext().getRunUuids();
-            for (String uuid : uuids) {
-                AutomationRunRequest request = AutomationContext.getContext().getRunRequest(uuid);
-                if (request.isNewRun()) {
-                    return true;
-                }
+        for (AutomationRunRequest request : requests.values()) {
+            // A run whose nodes could not be started will never start its tests
+            if (request.isNewRun()
+                    && request.getProvisioningStatus() != AutomationRunRequest.PROVISIONING_STATUS.FAILED) {
+                return true;
             }
         }
 
@@ -150,6 +194,9 @@ public final class AutomationRunContext {
      */
     public void addNode(final String instanceId, final AutomationDynamicNode node) {
         nodes.put(instanceId, node);
+        capacityIndex.nodeChanged(instanceId);
+        nodeLifecycleEvents.endDateChanged(node);
+        contextJournal.nodeChanged(node);
     }
 
     /**
@@ -193,99 +240,177 @@ public final class AutomationRunContext {
     }
 
     /**
-     * Clean up any requests with no remaining running tests.
+     * Returns the index of free slot capacity for the registered proxies.
+     *
+     * @return
+     */
+    public CapacityIndex getCapacityIndex() {
+        return capacityIndex;
+    }
+
+    /**
+     * Returns the forecaster of run demand, which is fed every registered run.
+     *
+     * @return
+     */
+    public DemandForecaster getDemandForecaster() {
+        return demandForecaster;
+    }
+
+    /**
+     * Returns the dispatcher of events which can change what should happen to a node.
+     *
+     * @return
+     */
+    public NodeLifecycleEvents getNodeLifecycleEvents() {
+        return nodeLifecycleEvents;
+    }
+
+    /**
+     * Returns the journal the registered runs and nodes are recorded to, so they survive a restart of the hub.
+     *
+     * @return
+     */
+    public ContextJournal getContextJournal() {
+        return contextJournal;
+    }
+
+    /**
+     * Returns the launch health of each subnet nodes are started in.
+     *
+     * @return
+     */
+    public SubnetHealthTracker getSubnetHealthTracker() {
+        return subnetHealthTracker;
+    }
+
+    /**
+     * Returns the rate limiter shared by every call made to EC2.
+     *
+     * @return
+     */
+    public Ec2RateLimiter getEc2RateLimiter() {
+        return ec2RateLimiter;
+    }
+
+    /**
+     * Returns the scheduler which runs every task of the hub.
+     *
+     * @return
+     */
+    public AutomationTaskScheduler getTaskScheduler() {
+        return taskScheduler;
+    }
+
+    /**
+     * Clean up any requests with no remaining running tests. Only runs which are old enough for the configured criteria
+     * are analyzed.
      *
      * @param  proxySet
      */
     public void cleanUpRunRequests(final ProxySet proxySet) {
-        AutomationRunContext context = AutomationContext.getContext();
-        Set<String> uuidsToRemove = new HashSet<String>();
-        synchronized (requests) {
-            Iterator<String> requestsIterator = requests.keySet().iterator();
-            if (requestsIterator.hasNext()) {
-
-                // Grab our current date to use on all the requests we check
-                while (requestsIterator.hasNext()) {
-                    String targetUuid = requestsIterator.next();
-                    AutomationRunRequest request = requests.get(targetUuid);
-                    if (!isRunOld(request)) {
-                        log.info(String.format("Run [%s] is not at least [%d] seconds old.  Will not analyze.",
-                                targetUuid, AutomationRunContext.CLEANUP_LIFE_LENGTH_IN_SECONDS));
-                        continue;
-                    }
+        oldRuns.addAll(runAgeTimers.advance(System.currentTimeMillis()));
 
-                    boolean uuidFound = false;
-                    for (RemoteProxy proxy : proxySet) {
-                        List<TestSlot> slots = proxy.getTestSlots();
-
-                        // Once we find at least one test run with the given UUID, we want to break out
-                        // as we are looking for runs with NO running tests with a matching UUID
-                        for (int i = 0; !uuidFound && i < slots.size(); i++) {
-                            TestSession testSession = slots.get(i).getSession();
-                            if (testSession != null) {
-
-                                // Check the session UUID instead of the node UUID as the node UUID is going to be the
-                                // test run UUID that caused
-                                // the node to be started, but will not necessarily be the run that is currently
-                                // running on the node
-                                Object sessionUuid = testSession.getRequestedCapabilities().get(
-                                        AutomationConstants.UUID);
-                                if (targetUuid.equals(sessionUuid)) {
-                                    uuidFound = true;
-                                    break;
-                                }
-                            }
-                        }
+        int newRuns = requests.size() - oldRuns.size();
+        if (newRuns > 0) {
+            log.info(String.format("%d runs are not old enough to analyze yet.", newRuns));
+        }
 
-                        // If we found the UUID on this node, we don't need to check any other nodes as we only need
-                        // to know about
-                        // at least run test still running in order to know we don't need to remove this run
-                        if (uuidFound) {
-                            break;
-                        }
-                    }
+        Map<String, Integer> sessionsByRun = getSessionsByRun(proxySet);
 
-                    // If we didn't find a test belonging to this uuid, go ahead and remove the run
-                    if (!uuidFound) {
-                        log.info(String.format(
-                                "Tracked test run [%s] found with no running tests.  Adding to set for removal.",
-                                targetUuid));
-                        uuidsToRemove.add(targetUuid);
-                    }
-                    // Otherwise go ahead and continue to look at our other registered runs
-                    else {
-                        continue;
-                    }
+        // Sessions are counted for every run here anyway, so reconcile the reservations from them in case a session
+        // start was never reported
+        for (Map.Entry<String, Integer> entry : sessionsByRun.entrySet()) {
+            AutomationRunRequest request = requests.get(entry.getKey());
+            if (request != null && request.reconcileReservedThreads(entry.getValue())) {
+                contextJournal.runChanged(request);
+            }
+        }
+
+        int runsRemoved = 0;
+        for (String targetUuid : oldRuns) {
+            AutomationRunRequest request = requests.get(targetUuid);
+            if (request == null) {
+                oldRuns.remove(targetUuid);
+                continue;
+            }
+
+            // Nodes are still being started for the run, and its age restarts once they have been
+            if (request.getProvisioningStatus() == AutomationRunRequest.PROVISIONING_STATUS.PENDING) {
+                continue;
+            }
+
+            // Check the session UUID instead of the node UUID as the node UUID is going to be the test run UUID that
+            // caused the node to be started, but will not necessarily be the run that is currently running on the node
+            if (!sessionsByRun.containsKey(targetUuid)) {
+                log.warn(String.format("Removing run because it has no more running test slots. UUID [%s]",
+                        targetUuid));
+
+                // Only remove the run we analyzed in case the UUID has since been registered again
+                if (requests.remove(targetUuid, request)) {
+                    oldRuns.remove(targetUuid);
+                    runsRemoved++;
+                    runRemoved(targetUuid);
                 }
             }
         }
 
-        if (uuidsToRemove.size() == 0) {
+        if (runsRemoved == 0) {
             log.warn("No runs found to clean up");
         }
+    }
 
-        for (String uuidToRemove : uuidsToRemove) {
-            log.warn(String.format("Removing run because it has no more running test slots. UUID [%s]", uuidToRemove));
-            context.deleteRun(uuidToRemove);
+    /**
+     * Records the removal of the run, and lets the nodes started for it be evaluated, as they may no longer be needed.
+     * Nodes started for a coalesced group of runs are evaluated when any run of the group is removed.
+     *
+     * @param  uuid  UUID of the removed run
+     */
+    private void runRemoved(final String uuid) {
+        contextJournal.runRemoved(uuid);
+        for (AutomationDynamicNode node : nodes.values()) {
+            if (node.getRunUuids().contains(uuid)) {
+                nodeLifecycleEvents.runRemoved(node.getInstanceId());
+            }
         }
     }
 
     /**
-     * Returns true if the run request is old enough for the configure criteria.
+     * Returns the number of running sessions for each test run UUID. Read from the capacity index when it tracks every
+     * proxy, otherwise computed with a single pass over the proxies.
      *
-     * @param   runRequest
+     * @param   proxySet
      *
      * @return
      */
-    private boolean isRunOld(final AutomationRunRequest runRequest) {
+    private Map<String, Integer> getSessionsByRun(final ProxySet proxySet) {
+        if (capacityIndex.isComplete(proxySet)) {
+            return capacityIndex.getSessionsByRun();
+        }
+
+        Map<String, Integer> sessionsByRun = new HashMap<>();
+        Set<TestSession> endedSessions = Collections.emptySet();
+        if (proxySet != null) {
+            for (RemoteProxy proxy : proxySet) {
+                AutomationRequestMatcher.countSessionsByRun(proxy, endedSessions, sessionsByRun);
+            }
+        }
 
-        // Get the amount of seconds passed
+        return sessionsByRun;
+    }
+
+    /**
+     * Returns how long after it was created the run request is old enough for the configured criteria.
+     *
+     * @param   runRequest
+     *
+     * @return
+     */
+    private static long getCleanupLifeLengthInMillis(final AutomationRunRequest runRequest) {
         if (AutomationUtils.lowerCaseMatch("internetexplorer", runRequest.getBrowser())) {
-            return System.currentTimeMillis() > runRequest.getCreatedDate().getTime() + (10 * 60 * 1000); // 10 minutes for IE to come online
+            return TimeUnit.SECONDS.toMillis(AutomationRunContext.IE_CLEANUP_LIFE_LENGTH_IN_SECONDS);
         } else {
-            return System.currentTimeMillis()
-                    > runRequest.getCreatedDate().getTime() + (AutomationRunContext.CLEANUP_LIFE_LENGTH_IN_SECONDS
-                        * 1000);
+            return TimeUnit.SECONDS.toMillis(AutomationRunContext.CLEANUP_LIFE_LENGTH_IN_SECONDS);
         }
     }
 
@@ -308,89 +433,63 @@ public final class AutomationRunContext {
     }
 
     /**
-     * Returns the number of additional threads this hub can support. This considers all test runs that are in progress
+     * Releases a reserved thread of the run the session belongs to, if any. Should be called whenever a new session is
+     * started on a node.
      *
-     * @return
+     * @param  requestedCapabilities  Capabilities requested by the new session
      */
-    public int getTotalThreadsAvailable(final ProxySet proxySet) {
-        int currentlyUsedNodes = 0, untrackedTests = 0;
-        Map<String, Integer> runsToSessions = new HashMap<>();
-
-        // Go ahead and iterate over all running tests and store them in a map so we can compare all UUIDs
-        if (proxySet != null) {
-            for (RemoteProxy proxy : proxySet) {
-                for (TestSlot testSlot : proxy.getTestSlots()) {
-
-                    // This means a test is running
-                    TestSession testSession = testSlot.getSession();
-                    if (testSession != null) {
-
-                        // Most test runs should have their test run UUID in the capabilities.  This makes it easy to
-                        // line up tests with their run requests
-                        if (testSession.getRequestedCapabilities().containsKey(AutomationConstants.UUID)) {
-                            String uuid = (String) testSession.getRequestedCapabilities().get(AutomationConstants.UUID);
-                            Integer existingRuns = runsToSessions.get(uuid);
-                            if (existingRuns == null) {
-                                runsToSessions.put(uuid, 1);
-                            } else {
-                                Integer newRunAmount = existingRuns + 1;
-                                runsToSessions.put(uuid, newRunAmount);
-                            }
-                        } else {
-
-                            // No UUID means we still need to count this against the total count and just not match it
-                            // up against the run requests
-                            log.info("Untracked test found.  Adding.");
-                            untrackedTests++;
-                        }
-                    }
-                }
+    public void sessionStarted(final Map<String, Object> requestedCapabilities) {
+        Object uuid = requestedCapabilities.get(AutomationConstants.UUID);
+        if (uuid instanceof String) {
+            AutomationRunRequest request = requests.get(uuid);
+            if (request != null) {
+                request.sessionStarted();
+                contextJournal.runChanged(request);
             }
         }
+    }
 
-        // Now process all registered runs to make sure there weren't any requests that just haven't had any started
-        // nodes
-        for (String uuid : runsToSessions.keySet()) {
-            AutomationRunRequest registeredRun = getRunRequest(uuid);
-
-            // If a the registered run exists AND is still new, we should count the original request amount as all
-            // tests may not be in flight yet
-            if (registeredRun != null && registeredRun.isNewRun()) {
-                log.info(String.format("Adding %d for test run [%s]", registeredRun.getThreadCount(), uuid));
-                currentlyUsedNodes += registeredRun.getThreadCount();
-            } else {
-
-                // Otherwise, count the in progress tests
-                Integer runsInProgress = runsToSessions.get(uuid);
-                log.info(String.format("Adding %d in progress tests for test run [%s]", runsInProgress, uuid));
-                currentlyUsedNodes += runsInProgress;
-            }
+    /**
+     * Returns the number of threads reserved by registered runs which have not started a session yet.
+     *
+     * @return
+     */
+    public int getReservedThreads() {
+        int reservedThreads = 0;
+        for (AutomationRunRequest request : requests.values()) {
+            reservedThreads += request.getReservedThreads();
         }
 
-        // Iterate over all runs currently running and add up their count so we can diff this from the total
-        // count this hub can support
-        for (AutomationRunRequest request : requests.values()) {
-            String uuid = request.getUuid();
+        return reservedThreads;
+    }
 
-            // If we already processed this UUID in the above for loop, go ahead and skip this run
-            if (runsToSessions.containsKey(uuid)) {
-                continue;
+    /**
+     * Returns the number of additional threads this hub can support. This considers all tests that are in progress as
+     * well as the threads reserved by registered runs that have not started yet
+     *
+     * @return
+     */
+    public int getTotalThreadsAvailable(final ProxySet proxySet) {
+        int runningSessions;
+        if (capacityIndex.isComplete(proxySet)) {
+            runningSessions = capacityIndex.getRunningSessions();
+        } else {
+            runningSessions = 0;
+            if (proxySet != null) {
+                for (RemoteProxy proxy : proxySet) {
+                    for (TestSlot testSlot : proxy.getTestSlots()) {
+                        if (testSlot.getSession() != null) {
+                            runningSessions++;
+                        }
+                    }
+                }
             }
-
-            // At this point, we're dealing with test runs that do not have any in progress tests, so count the
-            // original thread count requested
-            log.info(String.format("Adding %d tests for test run [%s]", request.getThreadCount(), uuid));
-            currentlyUsedNodes += request.getThreadCount();
-        }
-
-        if (untrackedTests != 0) {
-            log.info(String.format("Adding %d tests to the total in progress count %d", untrackedTests,
-                    currentlyUsedNodes));
-            currentlyUsedNodes = currentlyUsedNodes + untrackedTests;
         }
 
-        int threadsStillAvailable = totalNodeCount - currentlyUsedNodes;
-        log.info(String.format("Returning %d free capacity for the hub", threadsStillAvailable));
+        int reservedThreads = getReservedThreads();
+        int threadsStillAvailable = totalNodeCount - runningSessions - reservedThreads;
+        log.info(String.format("Returning %d free capacity for the hub. %d tests running and %d threads reserved",
+                threadsStillAvailable, runningSessions, reservedThreads));
         return threadsStillAvailable;
     }
 
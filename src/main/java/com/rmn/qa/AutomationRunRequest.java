@@ -14,6 +14,7 @@ package com.rmn.qa;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.lang3.StringUtils;
+import org.openqa.grid.internal.TestSlot;
 import org.openqa.selenium.remote.CapabilityType;
 
 import java.util.Calendar;
@@ -27,12 +28,28 @@ import java.util.Map;
  */
 public final class AutomationRunRequest {
 
+    /** <pre>
+     *  NOT_REQUIRED - existing nodes could fulfill the run so no nodes were started
+     *  PENDING      - nodes are being started in the background
+     *  COMPLETE     - nodes were started for the run
+     *  PARTIAL      - only some of the nodes planned for the run could be started
+     *  FAILED       - nodes could not be started for the run
+     * </pre>
+     **/
+    public enum PROVISIONING_STATUS { NOT_REQUIRED,PENDING,COMPLETE,PARTIAL,FAILED };
+
     private final String uuid;
     private final Integer threadCount;
     private final String browser;
     private final String browserVersion;
     private final String os;
     private final Date createdDate;
+    // Normalized browser, version and OS used for matching
+    private final CapabilityKey capabilityKey;
+    // Threads requested by this run which have not started a session yet
+    private int reservedThreads;
+    private PROVISIONING_STATUS provisioningStatus = PROVISIONING_STATUS.NOT_REQUIRED;
+    private String provisioningError;
 
     // Require callers to have required variables through constructor below
     private AutomationRunRequest() {
@@ -86,6 +103,8 @@ public final class AutomationRunRequest {
         this.browserVersion = browserVersion;
         this.os = os;
         this.createdDate = createdDate;
+        this.capabilityKey = CapabilityKey.of(browser, browserVersion, os);
+        this.reservedThreads = threadCount == null ? 0 : threadCount;
     }
 
     /**
@@ -146,6 +165,105 @@ public final class AutomationRunRequest {
         return createdDate;
     }
 
+    /**
+     * Returns the number of requested threads which have not started a session yet.  These threads are still reserved
+     * for this run even though no node is running them
+     * @return
+     */
+    public synchronized int getReservedThreads() {
+        return reservedThreads;
+    }
+
+    /**
+     * Releases one reserved thread as a session tagged with this run's UUID has started.  Sessions beyond the requested
+     * thread count have no reservation to release
+     */
+    public synchronized void sessionStarted() {
+        if(reservedThreads > 0) {
+            reservedThreads--;
+        }
+    }
+
+    /**
+     * Lowers the reserved threads to the threads which are not running a session tagged with this run's UUID, so that
+     * sessions whose start was not reported (e.g. on a proxy from another implementation) still release their thread.
+     * Reservations are never raised back up, as sessions which have since ended already used their thread
+     * @param runningSessions Number of sessions currently running for this run
+     * @return True if the reserved threads were lowered
+     */
+    public synchronized boolean reconcileReservedThreads(int runningSessions) {
+        int threadsNotStarted = Math.max(0, threadCount - runningSessions);
+        if(threadsNotStarted >= reservedThreads) {
+            return false;
+        }
+        reservedThreads = threadsNotStarted;
+        return true;
+    }
+
+    /**
+     * Returns the status of starting nodes for this run
+     * @return
+     */
+    public synchronized PROVISIONING_STATUS getProvisioningStatus() {
+        return provisioningStatus;
+    }
+
+    /**
+     * Returns the reason nodes could not be started for this run, or null if they have not failed
+     * @return
+     */
+    public synchronized String getProvisioningError() {
+        return provisioningError;
+    }
+
+    /**
+     * Marks this run as waiting on nodes to be started
+     */
+    public synchronized void provisioningStarted() {
+        provisioningStatus = PROVISIONING_STATUS.PENDING;
+    }
+
+    /**
+     * Marks the nodes for this run as started
+     */
+    public synchronized void provisioningComplete() {
+        provisioningStatus = PROVISIONING_STATUS.COMPLETE;
+    }
+
+    /**
+     * Records that only some of the nodes planned for this run could be started.  The threads reserved by this run are
+     * kept, as its tests can still start on the nodes which were started
+     * @param error Reason the remaining nodes could not be started
+     */
+    public synchronized void provisioningPartial(String error) {
+        provisioningStatus = PROVISIONING_STATUS.PARTIAL;
+        provisioningError = error;
+    }
+
+    /**
+     * Records that nodes could not be started for this run.  The threads reserved by this run are released as they
+     * will never be fulfilled
+     * @param error Reason the nodes could not be started
+     */
+    public void provisioningFailed(String error) {
+        synchronized (this) {
+            provisioningStatus = PROVISIONING_STATUS.FAILED;
+            provisioningError = error;
+            reservedThreads = 0;
+        }
+        // Recorded outside of the lock as the journal reads the reserved threads of every run when it is compacted
+        AutomationContext.getContext().getContextJournal().runChanged(this);
+    }
+
+    /**
+     * Sets the threads reserved by this run which have not started a session yet.  Used to restore a run from the
+     * {@link com.rmn.qa.ContextJournal journal}
+     * @param reservedThreads Number of reserved threads
+     */
+    synchronized void restoreReservedThreads(int reservedThreads) {
+        this.reservedThreads = reservedThreads;
+    }
+
     /**
      * Returns true if this run request is less than 2 minutes old, false otherwise
      * @return
@@ -182,22 +300,17 @@ public final class AutomationRunRequest {
      * @return
      */
     public boolean matchesCapabilities(Map<String,Object> capabilities) {
-        String capabilityBrowser = (String)capabilities.get(CapabilityType.BROWSER_NAME);
-        String capabilityBrowserVersion = (String)capabilities.get(CapabilityType.VERSION);
-        String capabilityOs = (String)capabilities.get(CapabilityType.PLATFORM);
-        if(!AutomationUtils.lowerCaseMatch(browser, capabilityBrowser)) {
-            return false;
-        }
-        if(browserVersion != null && !AutomationUtils.lowerCaseMatch(browserVersion,capabilityBrowserVersion))  {
-            return false;
-        }
-        if(os != null && !AutomationUtils.lowerCaseMatch(os, capabilityOs)) {
-            // If either OS has 'ANY' for the platform, that means it should be a match regardless and we don't have to count this as a non-match
-            if(!AutomationUtils.lowerCaseMatch(os,"any") && !AutomationUtils.lowerCaseMatch(capabilityOs,"any")) {
-                return false;
-            }
-        }
-        return true;
+        return capabilityKey.matches(CapabilityKey.forCapabilities(capabilities));
+    }
+
+    /**
+     * Returns true if this run request matches the capabilities of the test slot passed in.  Includes browser, browser
+     * version, and OS
+     * @param testSlot
+     * @return
+     */
+    public boolean matchesCapabilities(TestSlot testSlot) {
+        return capabilityKey.matches(CapabilityKey.register(testSlot));
     }
 
     /**
@@ -206,19 +319,7 @@ public final class AutomationRunRequest {
      * @return
      */
     public boolean matchesCapabilities(AutomationRunRequest otherRequest) {
-        if(!AutomationUtils.lowerCaseMatch(browser, otherRequest.getBrowser())) {
-            return false;
-        }
-        if(browserVersion != null && browserVersion != otherRequest.getBrowserVersion()) {
-            return false;
-        }
-        if(os != null && !AutomationUtils.lowerCaseMatch(os, otherRequest.getOs())) {
-            // If either OS has 'ANY' for the platform, that means it should be a match regardless and we don't have to count this as a non-match
-            if(!AutomationUtils.lowerCaseMatch(os,"any") && !AutomationUtils.lowerCaseMatch(otherRequest.getOs(),"any")) {
-                return false;
-            }
-        }
-        return true;
+        return capabilityKey.matches(otherRequest.capabilityKey);
     }
 
     @Override
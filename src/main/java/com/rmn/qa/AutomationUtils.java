@@ -12,6 +12,8 @@
 
 package com.rmn.qa;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -49,14 +51,28 @@ public final class AutomationUtils {
     }
 
     /**
-     * Returns true if the strings are lower case equal
+     * Returns true if the strings are lower case equal.  Two null strings are considered equal
      * @param string1 First string to compare
      * @param string2 Second string to compare
      * @return
      */
     public static boolean lowerCaseMatch(String string1, String string2) {
+        if(string1 == null || string2 == null) {
+            return string1 == string2;
+        }
         string2 = string2.toLowerCase().replace(" ","");
         return string2.equals(string1.toLowerCase().replace(" ", ""));
     }
 
+    /**
+     * Returns the host name that started nodes should register with.  Read from the IP address system property, falling
+     * back to the host name of this machine
+     * @return
+     * @throws UnknownHostException If the host name of this machine could not be determined
+     */
+    public static String getHubHostName() throws UnknownHostException {
+        String runTimeHostName = System.getProperty(AutomationConstants.IP_ADDRESS);
+        return (runTimeHostName != null) ? runTimeHostName : InetAddress.getLocalHost().getHostName();
+    }
+
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Normalized browser, browser version and OS of a run request or test slot.  Values are lower cased, stripped of spaces
+ * (see {@link com.rmn.qa.AutomationUtils#lowerCaseMatch(String, String) lowerCaseMatch}) and interned once when the
+ * key is created, so that matching two keys only compares references.
+ *
+ * <p>Keys for test slots are {@link #register(org.openqa.grid.internal.TestSlot) registered} when a node registers
+ * with the hub, or the first time the slot is matched against, so that matching against a slot does not have to
+ * normalize its capabilities again.  Slots are used as the key rather than their capabilities, as
+ * {@link org.openqa.grid.internal.TestSlot#getCapabilities() getCapabilities} returns a new view on every call.
+ *
+ * @author  mhardin
+ */
+public final class CapabilityKey {
+
+    private static final Interner<String> VALUES = Interners.newWeakInterner();
+
+    // Keyed by identity of the test slot, and weakly held so keys go away along with their slot
+    private static final ConcurrentMap<TestSlot, CapabilityKey> REGISTERED = new MapMaker().weakKeys().makeMap();
+
+    private static final String ANY = normalize("any");
+
+    private final String browser;
+    private final String browserVersion;
+    private final String os;
+
+    private CapabilityKey(final String browser, final String browserVersion, final String os) {
+        this.browser = normalize(browser);
+        this.browserVersion = normalize(browserVersion);
+        this.os = normalize(os);
+    }
+
+    /**
+     * Returns the key for the specified values.
+     *
+     * @param   browser         Browser (e.g. 'chrome', 'firefox', etc)
+     * @param   browserVersion  Version of the browser
+     * @param   os              OS (e.g. 'linux')
+     *
+     * @return
+     */
+    public static CapabilityKey of(final String browser, final String browserVersion, final String os) {
+        return new CapabilityKey(browser, browserVersion, os);
+    }
+
+    /**
+     * Returns the key for the specified capabilities.
+     *
+     * @param   capabilities  Capabilities to create the key for
+     *
+     * @return
+     */
+    public static CapabilityKey forCapabilities(final Map<String, Object> capabilities) {
+        return new CapabilityKey(asString(capabilities.get(CapabilityType.BROWSER_NAME)),
+                asString(capabilities.get(CapabilityType.VERSION)),
+                asString(capabilities.get(CapabilityType.PLATFORM)));
+    }
+
+    /**
+     * Returns the key for the capabilities of the specified test slot, registering it if this is the first time the
+     * slot has been seen.
+     *
+     * @param   testSlot  Test slot to get the key for
+     *
+     * @return
+     */
+    public static CapabilityKey register(final TestSlot testSlot) {
+        CapabilityKey key = REGISTERED.get(testSlot);
+        if (key == null) {
+            key = forCapabilities(testSlot.getCapabilities());
+
+            CapabilityKey existing = REGISTERED.putIfAbsent(testSlot, key);
+            if (existing != null) {
+                key = existing;
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * Returns true if this key, as requested by a run, can be satisfied by the other key. A null version or OS on this
+     * key matches any value, and an OS of 'any' on either key matches any OS.
+     *
+     * @param   other  Key to match against
+     *
+     * @return
+     */
+    public boolean matches(final CapabilityKey other) {
+        if (browser != other.browser) {
+            return false;
+        }
+
+        if (browserVersion != null && browserVersion != other.browserVersion) {
+            return false;
+        }
+
+        if (os != null && os != other.os) {
+
+            // If either OS has 'ANY' for the platform, that means it should be a match regardless
+            if (os != ANY && other.os != ANY) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        CapabilityKey that = (CapabilityKey) o;
+        return browser == that.browser && browserVersion == that.browserVersion && os == that.os;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = browser != null ? browser.hashCode() : 0;
+        result = 31 * result + (browserVersion != null ? browserVersion.hashCode() : 0);
+        result = 31 * result + (os != null ? os.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CapabilityKey [browser=%s, browserVersion=%s, os=%s]", browser, browserVersion, os);
+    }
+
+    // Platform may be given as a Platform enum rather than a string
+    private static String asString(final Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    private static String normalize(final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        return VALUES.intern(value.toLowerCase().replace(" ", ""));
+    }
+}
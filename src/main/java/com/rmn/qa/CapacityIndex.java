@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.TestSlot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incrementally maintained index of the slot capacity of every registered proxy.  Proxies report registration,
+ * session and unregistration events (see {@link com.rmn.qa.AutomationRemoteProxy AutomationRemoteProxy}) and only the
+ * reporting proxy is re-evaluated, so that a free slot lookup for a browser/version/OS shape does not have to walk the
+ * entire {@link org.openqa.grid.internal.ProxySet ProxySet}.
+ *
+ * <p>Shapes are added to the index the first time they are queried, at which point every tracked proxy is evaluated once
+ * for that shape.
+ *
+ * @author  mhardin
+ */
+public final class CapacityIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(CapacityIndex.class);
+
+    // Keyed by proxy identity as a re-registering node will have an equal (same id) but different proxy instance
+    private final Map<RemoteProxy, ProxyState> proxies = new IdentityHashMap<>();
+    private final Map<String, ProxyState> proxiesByInstanceId = new HashMap<>();
+
+    // Summed capacity across all tracked proxies for each shape that has been queried
+    private final Map<AutomationRunRequest, AutomationCapacity> capacityByShape = new HashMap<>();
+
+    // Summed running sessions across all tracked proxies for each test run UUID
+    private final Map<String, Integer> sessionsByRun = new HashMap<>();
+
+    // Summed running sessions across all tracked proxies, whether or not they belong to a test run
+    private int runningSessions;
+
+    /**
+     * Starts tracking the specified proxy.
+     *
+     * @param  proxy  Proxy which is registering with the hub
+     */
+    public synchronized void proxyRegistered(final RemoteProxy proxy) {
+        ProxyState state = proxies.get(proxy);
+        if (state == null) {
+            state = new ProxyState(proxy);
+            proxies.put(proxy, state);
+
+            String instanceId = getInstanceId(proxy);
+            if (instanceId != null) {
+                proxiesByInstanceId.put(instanceId, state);
+            }
+        }
+
+        refresh(state);
+    }
+
+    /**
+     * Stops tracking the specified proxy and removes its capacity from the index.
+     *
+     * @param  proxy  Proxy which is being removed from the hub
+     */
+    public synchronized void proxyUnregistered(final RemoteProxy proxy) {
+        ProxyState state = proxies.remove(proxy);
+        if (state == null) {
+            return;
+        }
+
+        String instanceId = getInstanceId(proxy);
+        if (instanceId != null && proxiesByInstanceId.get(instanceId) == state) {
+            proxiesByInstanceId.remove(instanceId);
+        }
+
+        apply(state, new HashMap<AutomationRunRequest, AutomationCapacity>(), new HashMap<String, Integer>(), 0);
+    }
+
+    /**
+     * Re-evaluates the specified proxy after one of its slots has been given a new session.
+     *
+     * @param  proxy  Proxy which started a session
+     */
+    public synchronized void sessionStarted(final RemoteProxy proxy) {
+        ProxyState state = proxies.get(proxy);
+        if (state != null) {
+            refresh(state);
+        }
+    }
+
+    /**
+     * Re-evaluates the specified proxy after a session has ended. The session may still be attached to its slot at this
+     * point, so it is remembered and ignored until the slot is released.
+     *
+     * @param  proxy    Proxy which ended a session
+     * @param  session  Session which ended
+     */
+    public synchronized void sessionEnded(final RemoteProxy proxy, final TestSession session) {
+        ProxyState state = proxies.get(proxy);
+        if (state != null) {
+            state.endedSessions.add(session);
+            refresh(state);
+        }
+    }
+
+    /**
+     * Re-evaluates the proxy for the specified dynamic node. Should be called whenever the status of a node changes as
+     * nodes which are not running do not contribute free capacity.
+     *
+     * @param  instanceId  Instance ID of the node which changed
+     */
+    public synchronized void nodeChanged(final String instanceId) {
+        ProxyState state = proxiesByInstanceId.get(instanceId);
+        if (state != null) {
+            refresh(state);
+        }
+    }
+
+    /**
+     * Returns true if every proxy in the specified set is tracked by this index, false otherwise. The index can only
+     * be trusted when this is true, as proxies which do not report events (e.g. a node registered with a different
+     * proxy implementation) are invisible to it. Proxies are checked by identity rather than count, as an untracked
+     * proxy and a tracked proxy which has left the set would otherwise cancel each other out. This is a walk over the
+     * proxies only, which is still far cheaper than matching every test slot.
+     *
+     * @param   proxySet  Set of currently registered proxies
+     *
+     * @return
+     */
+    public synchronized boolean isComplete(final ProxySet proxySet) {
+        if (proxySet == null || proxySet.size() != proxies.size()) {
+            return false;
+        }
+
+        for (RemoteProxy proxy : proxySet) {
+            if (!proxies.containsKey(proxy)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the capacity across all tracked proxies that matches the specified request. The free thread count does
+     * not account for registered runs which have not yet started their tests.
+     *
+     * @param   runRequest  Request to match against
+     *
+     * @return
+     */
+    public synchronized AutomationCapacity getCapacity(final AutomationRunRequest runRequest) {
+        AutomationCapacity capacity = capacityByShape.get(runRequest);
+        if (capacity == null) {
+            capacity = addShape(runRequest);
+        }
+
+        return capacity;
+    }
+
+    /**
+     * Returns the number of free slots across all tracked proxies that match the specified request. This does not
+     * account for registered runs which have not yet started their tests.
+     *
+     * @param   runRequest  Request to match against
+     *
+     * @return
+     */
+    public int getFreeSlots(final AutomationRunRequest runRequest) {
+        return getCapacity(runRequest).getFreeThreads();
+    }
+
+    /**
+     * Returns a copy of the number of running sessions for each test run UUID.
+     *
+     * @return
+     */
+    public synchronized Map<String, Integer> getSessionsByRun() {
+        return new HashMap<>(sessionsByRun);
+    }
+
+    /**
+     * Returns the number of sessions running across all tracked proxies.
+     *
+     * @return
+     */
+    public synchronized int getRunningSessions() {
+        return runningSessions;
+    }
+
+    /**
+     * Returns the number of proxies being tracked.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return proxies.size();
+    }
+
+    /**
+     * Evaluates every tracked proxy for a shape which has not been queried before.
+     *
+     * @param   runRequest
+     *
+     * @return
+     */
+    private AutomationCapacity addShape(final AutomationRunRequest runRequest) {
+
+        // Strip the request down to its shape so we don't hold on to run specific data
+        AutomationRunRequest shape = new AutomationRunRequest(null, null, runRequest.getBrowser(),
+                runRequest.getBrowserVersion(), runRequest.getOs());
+        log.info(String.format("Adding shape to capacity index: %s", shape));
+
+        AutomationCapacity total = AutomationCapacity.EMPTY;
+        for (ProxyState state : proxies.values()) {
+            AutomationCapacity nodeCapacity = AutomationRequestMatcher.getNodeCapacity(state.proxy, shape,
+                    state.endedSessions);
+            state.capacityByShape.put(shape, nodeCapacity);
+            total = total.add(nodeCapacity);
+        }
+
+        capacityByShape.put(shape, total);
+        return total;
+    }
+
+    /**
+     * Re-evaluates the specified proxy for every known shape and applies the difference to the totals.
+     *
+     * @param  state
+     */
+    private void refresh(final ProxyState state) {
+        purgeReleasedSessions(state);
+
+        Map<AutomationRunRequest, AutomationCapacity> shapes = new HashMap<>();
+        for (AutomationRunRequest shape : capacityByShape.keySet()) {
+            shapes.put(shape, AutomationRequestMatcher.getNodeCapacity(state.proxy, shape, state.endedSessions));
+        }
+
+        Map<String, Integer> runs = new HashMap<>();
+        AutomationRequestMatcher.countSessionsByRun(state.proxy, state.endedSessions, runs);
+
+        int sessions = 0;
+        for (TestSlot testSlot : state.proxy.getTestSlots()) {
+            TestSession session = testSlot.getSession();
+            if (session != null && !state.endedSessions.contains(session)) {
+                sessions++;
+            }
+        }
+
+        apply(state, shapes, runs, sessions);
+    }
+
+    /**
+     * Replaces the contribution of the specified proxy with the new values, adjusting the totals accordingly.
+     *
+     * @param  state
+     * @param  shapes  New capacity for the proxy
+     * @param  runs    New running session counts for the proxy
+     * @param  sessions  New total running session count for the proxy
+     */
+    private void apply(final ProxyState state, final Map<AutomationRunRequest, AutomationCapacity> shapes,
+            final Map<String, Integer> runs, final int sessions) {
+        for (Map.Entry<AutomationRunRequest, AutomationCapacity> entry : capacityByShape.entrySet()) {
+            AutomationCapacity previous = state.capacityByShape.get(entry.getKey());
+            AutomationCapacity current = shapes.get(entry.getKey());
+            AutomationCapacity total = entry.getValue();
+            if (previous != null) {
+                total = total.subtract(previous);
+            }
+
+            if (current != null) {
+                total = total.add(current);
+            }
+
+            entry.setValue(total);
+        }
+
+        for (Map.Entry<String, Integer> entry : state.sessionsByRun.entrySet()) {
+            adjustRun(entry.getKey(), -entry.getValue());
+        }
+
+        for (Map.Entry<String, Integer> entry : runs.entrySet()) {
+            adjustRun(entry.getKey(), entry.getValue());
+        }
+
+        runningSessions += sessions - state.runningSessions;
+
+        state.capacityByShape = shapes;
+        state.sessionsByRun = runs;
+        state.runningSessions = sessions;
+    }
+
+    private void adjustRun(final String uuid, final int delta) {
+        Integer existing = sessionsByRun.get(uuid);
+        int updated = (existing == null ? 0 : existing) + delta;
+        if (updated <= 0) {
+            sessionsByRun.remove(uuid);
+        } else {
+            sessionsByRun.put(uuid, updated);
+        }
+    }
+
+    /**
+     * Forgets ended sessions which are no longer attached to any slot of the proxy.
+     *
+     * @param  state
+     */
+    private void purgeReleasedSessions(final ProxyState state) {
+        if (state.endedSessions.isEmpty()) {
+            return;
+        }
+
+        Set<TestSession> attached = Collections.newSetFromMap(new IdentityHashMap<TestSession, Boolean>());
+        for (TestSlot testSlot : state.proxy.getTestSlots()) {
+            TestSession session = testSlot.getSession();
+            if (session != null) {
+                attached.add(session);
+            }
+        }
+
+        state.endedSessions.retainAll(attached);
+    }
+
+    private static String getInstanceId(final RemoteProxy proxy) {
+        Map<String, Object> config = proxy.getConfig();
+        if (config == null) {
+            return null;
+        }
+
+        return (String) config.get(AutomationConstants.INSTANCE_ID);
+    }
+
+    /**
+     * Last known contribution of a single proxy to the index.
+     */
+    private static final class ProxyState {
+        private final RemoteProxy proxy;
+        private final Set<TestSession> endedSessions = Collections.newSetFromMap(
+                new IdentityHashMap<TestSession, Boolean>());
+        private Map<AutomationRunRequest, AutomationCapacity> capacityByShape = new HashMap<>();
+        private Map<String, Integer> sessionsByRun = new HashMap<>();
+        private int runningSessions;
+
+        private ProxyState(final RemoteProxy proxy) {
+            this.proxy = proxy;
+        }
+    }
+}
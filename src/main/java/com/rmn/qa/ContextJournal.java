@@ -0,0 +1,637 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Append only journal of the registered {@link com.rmn.qa.AutomationRunRequest runs} and
+ * {@link com.rmn.qa.AutomationDynamicNode dynamic nodes} of a {@link com.rmn.qa.AutomationRunContext context}, so that
+ * a restarted hub can rebuild its context right away rather than waiting for nodes to be re-adopted, and without losing
+ * the threads reserved by runs which have not started yet.  Until the journal is {@link #open(java.io.File) opened},
+ * nothing is recorded.
+ *
+ * <p>Every change to a run or node is appended as a single tab delimited line holding the full state of the run or
+ * node, so replaying a line more than once is harmless.  Tabs, line breaks and backslashes within a field are escaped
+ * with a backslash.  Each line ends with a checksum, so a line torn by a crash is skipped when the journal is read back.
+ *
+ * <p>Lines are queued by the thread making the change and written by a single writer thread, so changes on the new
+ * session path never wait on the disk.  The writer writes every line queued so far before syncing the journal to disk
+ * once for all of them.  Once enough lines have been appended, the writer compacts the journal: the whole
+ * context is written to a new snapshot, which replaces the previous one with an atomic rename, and the journal is
+ * started over.  The snapshot and journal share a generation number, so a journal left over from before the last
+ * snapshot is never replayed on top of it.
+ *
+ * @author  mhardin
+ */
+public final class ContextJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(ContextJournal.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+
+    private static final String SNAPSHOT_FILE = "context.snapshot";
+    private static final String JOURNAL_FILE = "context.journal";
+
+    private static final String SNAPSHOT = "SNAPSHOT";
+    private static final String JOURNAL = "JOURNAL";
+    private static final String RUN = "RUN";
+    private static final String RUN_REMOVED = "RUN_REMOVED";
+    private static final String NODE = "NODE";
+    private static final String NODE_REMOVED = "NODE_REMOVED";
+
+    // Number of lines appended to the journal before it is compacted into a new snapshot
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+    // Queued when the journal is closed, so the writer stops once every line queued before it has been written
+    private static final String STOP = new String("STOP");
+
+    private final AutomationRunContext context;
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private volatile boolean recording;
+
+    // Guarded by this
+    private int compactionThreshold = ContextJournal.DEFAULT_COMPACTION_THRESHOLD;
+    private File directory;
+    private FileOutputStream journalStream;
+    private Writer writer;
+    private Thread writerThread;
+    private long generation;
+    private int linesSinceSnapshot;
+
+    /**
+     * Constructs a journal of the specified context.
+     *
+     * @param  context  Context to record
+     */
+    public ContextJournal(final AutomationRunContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Rebuilds the context from the snapshot and journal in the specified directory, compacts them into a new snapshot,
+     * and starts recording changes to the context.
+     *
+     * @param   directory  Directory to keep the snapshot and journal in
+     *
+     * @throws  IOException  If the directory could not be written to
+     */
+    public void open(final File directory) throws IOException {
+        // Closed outside of the monitor, as the writer needs it to finish the lines already queued
+        close();
+
+        synchronized (this) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Journal directory could not be created: " + directory);
+            }
+
+            long start = System.currentTimeMillis();
+            State state = new State();
+            long snapshotGeneration = read(new File(directory, ContextJournal.SNAPSHOT_FILE), ContextJournal.SNAPSHOT,
+                    -1, state);
+            read(new File(directory, ContextJournal.JOURNAL_FILE), ContextJournal.JOURNAL, snapshotGeneration, state);
+            restore(state);
+            log.info(String.format("Restored %d runs and %d nodes from journal [%s] in %d ms", state.runs.size(),
+                    state.nodes.size(), directory, System.currentTimeMillis() - start));
+
+            this.directory = directory;
+            this.generation = Math.max(snapshotGeneration, 0);
+            compact();
+
+            pending.clear();
+            recording = true;
+            writerThread = new ThreadFactoryBuilder().setNameFormat("context-journal-%d").setDaemon(true).build()
+                .newThread(new WriterTask());
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Stops recording changes to the context, once every change recorded so far has been written to disk.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (writerThread == null) {
+                return;
+            }
+
+            recording = false;
+            thread = writerThread;
+            writerThread = null;
+            pending.add(ContextJournal.STOP);
+        }
+
+        Uninterruptibles.joinUninterruptibly(thread);
+        synchronized (this) {
+            closeWriter();
+        }
+    }
+
+    /**
+     * Should be called when a run is registered or its reserved threads change.
+     *
+     * @param  runRequest  Run which changed
+     */
+    public void runChanged(final AutomationRunRequest runRequest) {
+        if (recording && runRequest.getUuid() != null && context.getRunRequest(runRequest.getUuid()) == runRequest) {
+            append(ContextJournal.formatRun(runRequest));
+        }
+    }
+
+    /**
+     * Should be called when a run is removed.
+     *
+     * @param  uuid  UUID of the removed run
+     */
+    public void runRemoved(final String uuid) {
+        if (recording) {
+            append(ContextJournal.format(ContextJournal.RUN_REMOVED, uuid));
+        }
+    }
+
+    /**
+     * Should be called when a node starts being tracked, or its status or end date changes.
+     *
+     * @param  node  Node which changed
+     */
+    public void nodeChanged(final AutomationDynamicNode node) {
+        if (recording && context.getNode(node.getInstanceId()) == node) {
+            append(ContextJournal.formatNode(node));
+        }
+    }
+
+    /**
+     * Should be called when a node stops being tracked.
+     *
+     * @param  instanceId  Instance id of the node
+     */
+    public void nodeRemoved(final String instanceId) {
+        if (recording) {
+            append(ContextJournal.format(ContextJournal.NODE_REMOVED, instanceId));
+        }
+    }
+
+    /**
+     * Sets the number of lines appended to the journal before it is compacted into a new snapshot.
+     *
+     * @param  compactionThreshold  Number of lines
+     */
+    @VisibleForTesting
+    synchronized void setCompactionThreshold(final int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Queues the line for the writer thread.
+     */
+    private void append(final String line) {
+        if (recording) {
+            pending.add(line);
+        }
+    }
+
+    /**
+     * Writes the lines to the journal and syncs it to disk once for all of them, then compacts the journal if enough
+     * lines have been written. Only called from the writer thread.
+     */
+    private synchronized void write(final List<String> lines) {
+        if (writer == null || lines.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (String line : lines) {
+                writer.write(line);
+            }
+
+            writer.flush();
+            journalStream.getFD().sync();
+            linesSinceSnapshot += lines.size();
+            if (linesSinceSnapshot >= compactionThreshold) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.error(String.format("Journal [%s] could not be written to: %s", directory, e));
+        }
+    }
+
+    /**
+     * Closes the current journal file. Must be called while holding this monitor
+     */
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error(String.format("Journal [%s] could not be closed: %s", directory, e));
+            }
+
+            writer = null;
+            journalStream = null;
+        }
+    }
+
+    /**
+     * Writes the whole context to a new snapshot and starts a new journal. Must be called while holding this monitor
+     */
+    private void compact() throws IOException {
+        closeWriter();
+
+        long nextGeneration = generation + 1;
+        File snapshot = new File(directory, ContextJournal.SNAPSHOT_FILE);
+        File temporarySnapshot = new File(directory, ContextJournal.SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporarySnapshot)) {
+            Writer snapshotWriter = new OutputStreamWriter(out, ContextJournal.UTF_8);
+            snapshotWriter.write(ContextJournal.format(ContextJournal.SNAPSHOT, String.valueOf(nextGeneration)));
+            for (String uuid : context.getRunUuids()) {
+                AutomationRunRequest runRequest = context.getRunRequest(uuid);
+                if (runRequest != null) {
+                    snapshotWriter.write(ContextJournal.formatRun(runRequest));
+                }
+            }
+
+            for (AutomationDynamicNode node : context.getNodes().values()) {
+                snapshotWriter.write(ContextJournal.formatNode(node));
+            }
+
+            snapshotWriter.flush();
+
+            // Make sure the snapshot is on disk before it replaces the previous one
+            out.getFD().sync();
+        }
+
+        Files.move(temporarySnapshot.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        generation = nextGeneration;
+
+        journalStream = new FileOutputStream(new File(directory, ContextJournal.JOURNAL_FILE), false);
+        writer = new OutputStreamWriter(journalStream, ContextJournal.UTF_8);
+        writer.write(ContextJournal.format(ContextJournal.JOURNAL, String.valueOf(generation)));
+        writer.flush();
+        linesSinceSnapshot = 0;
+    }
+
+    /**
+     * Reads the lines of the specified file into the state.
+     *
+     * @param   file                Snapshot or journal to read
+     * @param   header              Type of the first line of the file
+     * @param   expectedGeneration  Generation the file must have to be read, or -1 for any generation
+     * @param   state               State to read the lines into
+     *
+     * @return  Generation of the file, or -1 if it could not be read
+     */
+    private static long read(final File file, final String header, final long expectedGeneration, final State state) {
+        if (!file.exists()) {
+            return -1;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                            ContextJournal.UTF_8))) {
+            String[] first = ContextJournal.parse(reader.readLine());
+            if (first == null || first.length != 2 || !header.equals(first[0])) {
+                log.warn(String.format("Skipping journal file [%s] without a valid header", file));
+                return -1;
+            }
+
+            long generation = Long.parseLong(first[1]);
+            if (expectedGeneration != -1 && generation != expectedGeneration) {
+                log.warn(String.format("Skipping journal file [%s] from generation %d as the snapshot is from generation %d",
+                        file, generation, expectedGeneration));
+                return -1;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = ContextJournal.parse(line);
+                if (fields == null || !state.apply(fields)) {
+                    log.warn(String.format("Skipping malformed journal line [%s] in [%s]", line, file));
+                }
+            }
+
+            return generation;
+        } catch (IOException | NumberFormatException e) {
+            log.error(String.format("Journal file [%s] could not be read: %s", file, e));
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the runs and nodes which are not already in the context.
+     */
+    private void restore(final State state) {
+        for (String[] fields : state.runs.values()) {
+            AutomationRunRequest runRequest = new AutomationRunRequest(fields[1], Integer.valueOf(fields[2]), fields[3],
+                    ContextJournal.emptyToNull(fields[4]), ContextJournal.emptyToNull(fields[5]),
+                    new Date(Long.parseLong(fields[6])));
+            runRequest.restoreReservedThreads(Integer.parseInt(fields[7]));
+            context.addRun(runRequest);
+        }
+
+        for (String[] fields : state.nodes.values()) {
+            if (context.nodeExists(fields[1])) {
+                continue;
+            }
+
+            AutomationDynamicNode node = new AutomationDynamicNode(ContextJournal.emptyToNull(fields[2]), fields[1],
+                    ContextJournal.emptyToNull(fields[3]), ContextJournal.emptyToNull(fields[4]),
+                    new Date(Long.parseLong(fields[5])), Integer.parseInt(fields[7]));
+            node.setEndDate(new Date(Long.parseLong(fields[6])));
+            node.updateStatus(AutomationDynamicNode.STATUS.valueOf(fields[8]));
+            node.setSpotInstanceRequestId(ContextJournal.emptyToNull(fields[9]));
+            context.addNode(node);
+        }
+    }
+
+    private static String formatRun(final AutomationRunRequest runRequest) {
+        return ContextJournal.format(ContextJournal.RUN, runRequest.getUuid(),
+                String.valueOf(runRequest.getThreadCount()), runRequest.getBrowser(), runRequest.getBrowserVersion(),
+                runRequest.getOs(), String.valueOf(runRequest.getCreatedDate().getTime()),
+                String.valueOf(runRequest.getReservedThreads()));
+    }
+
+    private static String formatNode(final AutomationDynamicNode node) {
+        return ContextJournal.format(ContextJournal.NODE, node.getInstanceId(), node.getUuid(), node.getBrowser(),
+                node.getOs(), String.valueOf(node.getStartDate().getTime()),
+                String.valueOf(node.getEndDate().getTime()), String.valueOf(node.getNodeCapacity()),
+                node.getStatus().name(), node.getSpotInstanceRequestId());
+    }
+
+    /**
+     * Returns the line for the specified fields, ending with the checksum of the line.
+     */
+    @VisibleForTesting
+    static String format(final String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            ContextJournal.escape(ContextJournal.nullToEmpty(field), line);
+            line.append(ContextJournal.SEPARATOR);
+        }
+
+        return line.append(ContextJournal.checksum(line)).append('\n').toString();
+    }
+
+    /**
+     * Returns the fields of the line, or null if its checksum does not match.
+     */
+    private static String[] parse(final String line) {
+        if (line == null) {
+            return null;
+        }
+
+        int checksumStart = line.lastIndexOf(ContextJournal.SEPARATOR) + 1;
+        if (checksumStart == 0 || !ContextJournal.checksum(line.substring(0, checksumStart)).equals(line.substring(
+                            checksumStart))) {
+            return null;
+        }
+
+        // Separators within a field are escaped, so every separator left in the line is between two fields
+        String[] fields = line.substring(0, checksumStart - 1).split(ContextJournal.SEPARATOR, -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = ContextJournal.unescape(fields[i]);
+            if (fields[i] == null) {
+                return null;
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Appends the value to the line with its backslashes, tabs and line breaks escaped.
+     */
+    private static void escape(final String value, final StringBuilder line) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+
+                case '\\':
+                    line.append("\\\\");
+                    break;
+
+                case '\t':
+                    line.append("\\t");
+                    break;
+
+                case '\n':
+                    line.append("\\n");
+                    break;
+
+                case '\r':
+                    line.append("\\r");
+                    break;
+
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the value with its escapes replaced, or null if it holds an unknown escape.
+     */
+    private static String unescape(final String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+
+            if (++i == value.length()) {
+                return null;
+            }
+
+            switch (value.charAt(i)) {
+
+                case '\\':
+                    unescaped.append('\\');
+                    break;
+
+                case 't':
+                    unescaped.append('\t');
+                    break;
+
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+
+                default:
+                    return null;
+            }
+        }
+
+        return unescaped.toString();
+    }
+
+    private static String checksum(final CharSequence value) {
+        CRC32 crc = new CRC32();
+        crc.update(value.toString().getBytes(ContextJournal.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(final String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Writes queued lines until the journal is closed.
+     */
+    private final class WriterTask implements Runnable {
+
+        @Override
+        public void run() {
+            List<String> lines = new ArrayList<>();
+            boolean stopped = false;
+            while (!stopped) {
+                lines.add(Uninterruptibles.takeUninterruptibly(pending));
+                pending.drainTo(lines);
+
+                // Lines queued after the journal was closed are dropped
+                int stop = ContextJournal.indexOfStop(lines);
+                if (stop != -1) {
+                    lines.subList(stop, lines.size()).clear();
+                    stopped = true;
+                }
+
+                write(lines);
+                lines.clear();
+            }
+        }
+    }
+
+    private static int indexOfStop(final List<String> lines) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i) == ContextJournal.STOP) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Latest state of each run and node read so far, in the order they were first seen.
+     */
+    private static final class State {
+
+        private final Map<String, String[]> runs = new LinkedHashMap<>();
+        private final Map<String, String[]> nodes = new LinkedHashMap<>();
+
+        /**
+         * Applies the line to the state.
+         *
+         * @return  False if the line is malformed
+         */
+        private boolean apply(final String[] fields) {
+            switch (fields[0]) {
+
+                case ContextJournal.RUN:
+                    if (fields.length != 8 || !isNumeric(fields, 2, 6, 7)) {
+                        return false;
+                    }
+
+                    runs.put(fields[1], fields);
+                    return true;
+
+                case ContextJournal.RUN_REMOVED:
+                    if (fields.length != 2) {
+                        return false;
+                    }
+
+                    runs.remove(fields[1]);
+                    return true;
+
+                case ContextJournal.NODE:
+                    if (fields.length != 10 || !isNumeric(fields, 5, 6, 7) || !isStatus(fields[8])) {
+                        return false;
+                    }
+
+                    nodes.put(fields[1], fields);
+                    return true;
+
+                case ContextJournal.NODE_REMOVED:
+                    if (fields.length != 2) {
+                        return false;
+                    }
+
+                    nodes.remove(fields[1]);
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean isNumeric(final String[] fields, final int... indexes) {
+            for (int index : indexes) {
+                try {
+                    Long.parseLong(fields[index]);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean isStatus(final String value) {
+            for (AutomationDynamicNode.STATUS status : AutomationDynamicNode.STATUS.values()) {
+                if (status.name().equals(value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
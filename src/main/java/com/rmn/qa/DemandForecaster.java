@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forecasts the threads each browser will be asked for from the history of registered
+ * {@link com.rmn.qa.AutomationRunRequest runs}.  Run load is periodic by the week (nightly suites, merges during working
+ * hours), so every run is laid over the minutes of the week it holds its threads for, and the forecast for an hour is the
+ * peak number of threads held at once during the same hour of the week, averaged across the weeks the history covers.
+ * Runs are only recorded when they start, so each run is assumed to hold its threads for the configured run duration
+ * @author mhardin
+ */
+public final class DemandForecaster {
+
+    static final int HOURS_PER_WEEK = 7 * 24;
+    static final int MINUTES_PER_WEEK = HOURS_PER_WEEK * 60;
+    public static final int DEFAULT_RUN_DURATION_MINUTES = 30;
+    private static final long WEEK_IN_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    // Threads held during each minute of the week summed across the weeks, keyed by normalized browser
+    private final Map<String,int[]> threadsByBrowser = new HashMap<>();
+    private int runDurationInMinutes = DemandForecaster.DEFAULT_RUN_DURATION_MINUTES;
+    private long firstRequest = Long.MAX_VALUE;
+    private long lastRequest = Long.MIN_VALUE;
+
+    /**
+     * Sets how long each run is assumed to hold its threads for.  Only applies to runs recorded afterwards
+     * @param runDurationInMinutes Run duration in minutes
+     */
+    public synchronized void setRunDurationInMinutes(int runDurationInMinutes) {
+        this.runDurationInMinutes = Math.max(1, Math.min(runDurationInMinutes, DemandForecaster.MINUTES_PER_WEEK));
+    }
+
+    /**
+     * Records a registered run
+     * @param runRequest Run to record
+     */
+    public synchronized void record(AutomationRunRequest runRequest) {
+        String browser = normalize(runRequest.getBrowser());
+        int[] threads = threadsByBrowser.get(browser);
+        if(threads == null) {
+            threads = new int[MINUTES_PER_WEEK];
+            threadsByBrowser.put(browser, threads);
+        }
+        Date createdDate = runRequest.getCreatedDate();
+        int start = getMinuteOfWeek(createdDate);
+        for(int minute = 0; minute < runDurationInMinutes; minute++) {
+            // Runs late on Saturday carry over into Sunday
+            threads[(start + minute) % MINUTES_PER_WEEK] += runRequest.getThreadCount();
+        }
+        firstRequest = Math.min(firstRequest, createdDate.getTime());
+        lastRequest = Math.max(lastRequest, createdDate.getTime());
+    }
+
+    /**
+     * Records every run of a recorded history
+     * @param runRequests Runs to record
+     */
+    public void replay(Iterable<AutomationRunRequest> runRequests) {
+        for(AutomationRunRequest runRequest : runRequests) {
+            record(runRequest);
+        }
+    }
+
+    /**
+     * Returns the most threads each browser is expected to hold at once during the hour containing the specified date.
+     * Browsers which are not expected to be asked for are left out
+     * @param date Date to forecast for
+     * @return
+     */
+    public synchronized Map<String,Integer> getForecast(Date date) {
+        Map<String,Integer> forecast = new HashMap<>();
+        if(threadsByBrowser.isEmpty()) {
+            return forecast;
+        }
+        int firstMinute = getHourOfWeek(date) * 60;
+        long weeks = (lastRequest - firstRequest) / WEEK_IN_MILLIS + 1;
+        for(Map.Entry<String,int[]> entry : threadsByBrowser.entrySet()) {
+            int threads = 0;
+            for(int minute = firstMinute; minute < firstMinute + 60; minute++) {
+                threads = Math.max(threads, entry.getValue()[minute]);
+            }
+            if(threads > 0) {
+                // Round up so a browser asked for in any of the weeks is still forecast
+                forecast.put(entry.getKey(), (int) ((threads + weeks - 1) / weeks));
+            }
+        }
+        return forecast;
+    }
+
+    /**
+     * Returns the hour of the week, starting from Sunday at midnight, of the specified date
+     * @param date
+     * @return
+     */
+    static int getHourOfWeek(Date date) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        return (c.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * 24 + c.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Returns the minute of the week, starting from Sunday at midnight, of the specified date
+     * @param date
+     * @return
+     */
+    static int getMinuteOfWeek(Date date) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        return getHourOfWeek(date) * 60 + c.get(Calendar.MINUTE);
+    }
+
+    private static String normalize(String browser) {
+        return browser.toLowerCase().replace(" ", "");
+    }
+}
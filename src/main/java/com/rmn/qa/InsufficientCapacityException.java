@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+/**
+ * Thrown when nodes could not be started because AWS did not have capacity for the instance type in any of the
+ * configured subnets
+ * @author mhardin
+ */
+public class InsufficientCapacityException extends NodesCouldNotBeStartedException {
+    public InsufficientCapacityException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Dispatches the events which can change what should happen to a {@link com.rmn.qa.AutomationDynamicNode node}, so
+ * that only the affected node is evaluated rather than waiting for the next scan of every node.  Nodes are evaluated
+ * when a session ends on them, when they reach their end date, when they reach the next billing cycle after their end
+ * date, once they have been terminated long enough to stop being tracked, and when the run they were started for is
+ * removed.  Events for a node which is already waiting to be evaluated are coalesced.  Until a {@link Listener listener}
+ * is set, events are ignored.
+ *
+ * <p>The deadlines of every node are kept on a single {@link com.rmn.qa.TimerWheel timer wheel}, which is advanced
+ * every {@link #TICK_IN_MILLIS tick}.  Each node has one timer, which is moved along to the next deadline of the node
+ * when it fires or when the end date of the node changes.
+ *
+ * @author  mhardin
+ */
+public final class NodeLifecycleEvents {
+
+    private static final Logger log = LoggerFactory.getLogger(NodeLifecycleEvents.class);
+
+    // Gives the hub time to release the slot after a session ends, or to start sessions already sent to a node which
+    // was just expired, before the node is evaluated
+    @VisibleForTesting
+    static final long SETTLE_DELAY_IN_MILLIS = 1000;
+
+    // Expired nodes still in use are put back into service once they are this far into the next billing cycle
+    private static final long NEXT_BILLING_CYCLE_IN_MILLIS = TimeUnit.MINUTES.toMillis(6) + 1000;
+
+    // Terminated nodes stop being tracked once they are this far past their end date
+    private static final long RETENTION_IN_MILLIS = TimeUnit.MINUTES.toMillis(30) + 1000;
+
+    // Deadlines of a node, relative to its end date, in the order they are reached
+    private static final long[] DEADLINES_IN_MILLIS = {
+        0, NodeLifecycleEvents.NEXT_BILLING_CYCLE_IN_MILLIS, NodeLifecycleEvents.RETENTION_IN_MILLIS
+    };
+
+    // Resolution of the deadlines
+    @VisibleForTesting
+    static final long TICK_IN_MILLIS = 1000;
+
+    /**
+     * Evaluates a single node in response to an event.
+     */
+    public interface Listener {
+
+        /**
+         * Decides what should happen to the node now, e.g. whether it should be expired or terminated.
+         *
+         * @param  instanceId  Instance id of the node to evaluate
+         */
+        void evaluateNode(String instanceId);
+    }
+
+    private volatile Listener listener;
+
+    // Nodes waiting to be evaluated, so that events which arrive together only evaluate the node once
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Guarded by this
+    private final Map<String, Long> endDates = new HashMap<>();
+    private TimerWheel<String> timers;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Sets the listener which evaluates nodes, and starts dispatching events to it.
+     *
+     * @param  listener  Listener to evaluate nodes with
+     */
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Should be called when a session ends on a node.
+     *
+     * @param  instanceId  Instance id of the node
+     */
+    public void sessionEnded(final String instanceId) {
+        dispatch(instanceId, NodeLifecycleEvents.SETTLE_DELAY_IN_MILLIS);
+    }
+
+    /**
+     * Should be called when a node is expired, so it can be terminated once any session sent to it has started.
+     *
+     * @param  instanceId  Instance id of the node
+     */
+    public void nodeExpired(final String instanceId) {
+        dispatch(instanceId, NodeLifecycleEvents.SETTLE_DELAY_IN_MILLIS);
+    }
+
+    /**
+     * Should be called when the run a node was started for is removed.
+     *
+     * @param  instanceId  Instance id of the node
+     */
+    public void runRemoved(final String instanceId) {
+        dispatch(instanceId, 0);
+    }
+
+    /**
+     * Should be called when a node starts being tracked or its end date changes, so that the node is evaluated once it
+     * reaches its end date, once it reaches the next billing cycle, and once it can stop being tracked.  The timer of
+     * the node is rescheduled in place.
+     *
+     * @param  node  Node whose end date changed
+     */
+    public synchronized void endDateChanged(final AutomationDynamicNode node) {
+        if (listener == null) {
+            return;
+        }
+
+        long endDate = node.getEndDate().getTime();
+        long now = System.currentTimeMillis();
+        if (endDate < now) {
+            dispatch(node.getInstanceId(), 0);
+        }
+
+        endDates.put(node.getInstanceId(), endDate);
+        scheduleNextDeadline(node.getInstanceId(), endDate, now);
+    }
+
+    /**
+     * Should be called when a node stops being tracked.
+     *
+     * @param  instanceId  Instance id of the node
+     */
+    public synchronized void nodeRemoved(final String instanceId) {
+        endDates.remove(instanceId);
+        if (timers != null) {
+            timers.cancel(instanceId);
+        }
+    }
+
+    /**
+     * Stops dispatching events.
+     */
+    public synchronized void shutdown() {
+        listener = null;
+        endDates.clear();
+        timers = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the number of nodes which have a timer waiting on their next deadline.
+     *
+     * @return
+     */
+    @VisibleForTesting
+    synchronized int getTimerCount() {
+        return timers == null ? 0 : timers.size();
+    }
+
+    /**
+     * Fires the timers of the nodes whose deadline has passed, and moves them along to the next deadline of the node.
+     *
+     * @param  nowInMillis  Current time, in milliseconds
+     */
+    @VisibleForTesting
+    synchronized void advance(final long nowInMillis) {
+        if (timers == null) {
+            return;
+        }
+
+        for (String instanceId : timers.advance(nowInMillis)) {
+            dispatch(instanceId, 0);
+
+            Long endDate = endDates.get(instanceId);
+            if (endDate != null) {
+                scheduleNextDeadline(instanceId, endDate, nowInMillis);
+            }
+        }
+    }
+
+    private void dispatch(final String instanceId, final long delayInMillis) {
+        if (listener == null || instanceId == null) {
+            return;
+        }
+
+        // Already waiting to be evaluated
+        if (!pending.add(instanceId)) {
+            return;
+        }
+
+        synchronized (this) {
+            getExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.remove(instanceId);
+                        evaluate(instanceId);
+                    }
+                }, delayInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Schedules the timer of the node for the first of its deadlines which has not passed yet, or stops tracking the node
+     * once every deadline has passed.
+     */
+    private void scheduleNextDeadline(final String instanceId, final long endDate, final long nowInMillis) {
+        for (long deadline : NodeLifecycleEvents.DEADLINES_IN_MILLIS) {
+            if (endDate + deadline >= nowInMillis) {
+                getTimers().schedule(instanceId, endDate + deadline);
+                return;
+            }
+        }
+
+        // Already past every deadline, so evaluate the node right away
+        endDates.remove(instanceId);
+        getTimers().cancel(instanceId);
+        dispatch(instanceId, 0);
+    }
+
+    private TimerWheel<String> getTimers() {
+        if (timers == null) {
+            timers = new TimerWheel<>(NodeLifecycleEvents.TICK_IN_MILLIS, System.currentTimeMillis());
+            getExecutor().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        advance(System.currentTimeMillis());
+                    }
+                }, NodeLifecycleEvents.TICK_IN_MILLIS, NodeLifecycleEvents.TICK_IN_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        return timers;
+    }
+
+    private void evaluate(final String instanceId) {
+        Listener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.evaluateNode(instanceId);
+        } catch (RuntimeException e) {
+            log.error(String.format("Error evaluating node [%s]: %s", instanceId, e), e);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+                        "node-lifecycle-%d").setDaemon(true).build());
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.TestSlot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which expired {@link com.rmn.qa.AutomationDynamicNode nodes} can be retired while the remaining fleet still
+ * covers current demand.  The capacity of the grid is computed once for every browser the candidate nodes can run, and each
+ * node that is retired has its contribution subtracted before the next node is considered, so planning does not rescan
+ * the grid for every node
+ * @author mhardin
+ */
+public final class NodeShutdownPlanner {
+
+    private static final Logger log = LoggerFactory.getLogger(NodeShutdownPlanner.class);
+
+    private final RequestMatcher requestMatcher;
+
+    /**
+     * Constructs a planner which uses the specified request matcher to compute grid capacity
+     * @param requestMatcher Request matcher implementation
+     */
+    public NodeShutdownPlanner(RequestMatcher requestMatcher) {
+        this.requestMatcher = requestMatcher;
+    }
+
+    /**
+     * Returns the candidate nodes which can be safely shut down, in the order they were considered
+     * @param proxySet Set of current registered proxy objects
+     * @param candidates Running nodes which have reached their end date
+     * @return
+     */
+    // If free slots are greater than OR equal to our node capacity, that means we have enough wiggle room to go ahead and delete this node.
+    // We also need to check to make sure there are no registered runs that have not yet started up
+    public List<AutomationDynamicNode> planShutdown(ProxySet proxySet, Collection<AutomationDynamicNode> candidates) {
+        if(candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // If a new run is queued up, we cannot shut down nodes until it starts, so short circuit out of here
+        if(AutomationContext.getContext().isNewRunQueuedUp()) {
+            log.warn(String.format("%d nodes cannot be shutdown yet as a new run is queued up.", candidates.size()));
+            return Collections.emptyList();
+        }
+        Map<String,AutomationDynamicNode> candidatesById = new HashMap<>();
+        for(AutomationDynamicNode node : candidates) {
+            candidatesById.put(node.getInstanceId(),node);
+        }
+        // Find the proxy for every candidate and the browsers it runs with a single pass over the grid
+        Map<String,RemoteProxy> proxies = new HashMap<>();
+        Map<String,Set<AutomationRunRequest>> shapesByNode = new HashMap<>();
+        Set<AutomationRunRequest> allShapes = new LinkedHashSet<>();
+        for(RemoteProxy proxy : proxySet) {
+            Object instanceId = proxy.getConfig().get(AutomationConstants.INSTANCE_ID);
+            if(!candidatesById.containsKey(instanceId)) {
+                continue;
+            }
+            proxies.put((String)instanceId,proxy);
+            Set<AutomationRunRequest> shapes = new LinkedHashSet<>();
+            for(TestSlot testSlot : proxy.getTestSlots()) {
+                shapes.add(AutomationRunRequest.requestFromCapabilities(testSlot.getCapabilities()));
+            }
+            shapesByNode.put((String)instanceId,shapes);
+            allShapes.addAll(shapes);
+        }
+        // Compute the capacity for every browser at once so we only have to look over the grid a single time
+        Map<AutomationRunRequest,AutomationCapacity> capacities = new HashMap<>(requestMatcher.getCapacityForParameters(proxySet, allShapes));
+        List<AutomationDynamicNode> nodesToRetire = new ArrayList<>();
+        for(AutomationDynamicNode node : candidates) {
+            String instanceId = node.getInstanceId();
+            Set<AutomationRunRequest> shapes = shapesByNode.get(instanceId);
+            if(shapes == null || shapes.isEmpty()) {
+                log.error("No browsers found for node: " + instanceId);
+                nodesToRetire.add(node);
+                continue;
+            }
+            RemoteProxy proxy = proxies.get(instanceId);
+            if(canNodeShutDown(node, proxy, shapes, capacities)) {
+                nodesToRetire.add(node);
+                // Remove the free slots this node was contributing so the next node is evaluated against the remaining fleet
+                for(AutomationRunRequest shape : shapes) {
+                    AutomationCapacity capacity = capacities.get(shape);
+                    int freeThreads = Math.max(0, capacity.getFreeThreads() - getFreeThreadsRemoved(proxy, shape));
+                    capacities.put(shape, capacity.withFreeThreads(freeThreads));
+                }
+            }
+        }
+        return nodesToRetire;
+    }
+
+    /**
+     * Returns true if the specified node can be safely shut down given the remaining capacity, false otherwise
+     * @param node Node to check
+     * @param proxy Proxy which represents the node
+     * @param shapes Browsers the node can run
+     * @param capacities Remaining capacity of the grid for each browser
+     * @return
+     */
+    private boolean canNodeShutDown(AutomationDynamicNode node, RemoteProxy proxy, Set<AutomationRunRequest> shapes, Map<AutomationRunRequest,AutomationCapacity> capacities) {
+        for(AutomationRunRequest request : shapes) {
+            AutomationCapacity capacity = capacities.get(request);
+            int freeSlotsForBrowser = capacity.getFreeThreads();
+            if(freeSlotsForBrowser == 0) {
+                log.info(String.format("No free slots exist so node will not be shutdown. Node: %s Request: %s Browser: %s",node.getInstanceId(),request,request.getBrowser()));
+                return false;
+            }
+            int matchingSlots = 0;
+            // Go over the test slots and get the number of browsers this node can run
+            for(TestSlot testSlot : proxy.getTestSlots()) {
+                // If this test slot matches the browser, increment our count
+                if(request.matchesCapabilities(testSlot)) {
+                    matchingSlots ++;
+                }
+            }
+            log.info(String.format("%d matching slots were found for node %s",matchingSlots,node.getInstanceId()));
+            // Get the lesser number between the total node capacity and browser specific capacity
+            int finalNum = (matchingSlots < node.getNodeCapacity()) ? matchingSlots : node.getNodeCapacity();
+            if(freeSlotsForBrowser < finalNum) {
+                // If there are no running tests which match the browser, we don't need to honor this browser for shutdown logic
+                // as it is not currently needed
+                int inProgressTests = capacity.getRunningThreads();
+                if(inProgressTests != 0) {
+                    log.info(String.format("Current load will not allow for node to shutdown right now. Node: %s Request: %s Free Slots: %s Node Slots: %s",node.getInstanceId(),request,freeSlotsForBrowser,finalNum));
+                    return false;
+                } else {
+                    log.info(String.format("Tests are not in progress. Node: %s Request: %s Free Slots: %s Node Slots: %s",node.getInstanceId(),request,freeSlotsForBrowser,finalNum));
+                }
+            } else {
+                log.info(String.format("Load suitable for Request [%s].  Free slots [%s] Node slots [%s]",request,freeSlotsForBrowser,finalNum));
+            }
+        }
+        // If we iterated over every browser for the node and load was not heavy enough, we can safely shut this node down
+        return true;
+    }
+
+    /**
+     * Returns the number of free threads the grid loses for the browser when the node stops running.  A node which is
+     * not running no longer contributes its free slots, and its matching running sessions are subtracted instead
+     * @param proxy Proxy which represents the node
+     * @param shape Browser to compute for
+     * @return
+     */
+    private int getFreeThreadsRemoved(RemoteProxy proxy, AutomationRunRequest shape) {
+        Set<TestSession> endedSessions = Collections.emptySet();
+        int matchingRunningSessions = 0;
+        for(TestSlot testSlot : proxy.getTestSlots()) {
+            if(testSlot.getSession() != null && shape.matchesCapabilities(testSlot)) {
+                matchingRunningSessions++;
+            }
+        }
+        return AutomationRequestMatcher.getNodeCapacity(proxy, shape, endedSessions).getFreeThreads() + matchingRunningSessions;
+    }
+}
@@ -14,6 +14,9 @@ package com.rmn.qa;
 
 import org.openqa.grid.internal.ProxySet;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Interface used to determine current load
  */
@@ -35,4 +38,13 @@ public interface RequestMatcher {
      */
     int getNumInProgressTests(ProxySet proxySet, AutomationRunRequest runRequest);
 
+    /**
+     * Returns the free, capable and running thread counts for each of the requests passed in, computed together so the
+     * registered proxies only need to be examined once
+     * @param proxySet Set of current registered proxy objects
+     * @param runRequests Requests used to match against
+     * @return Map of each request to its capacity
+     */
+    Map<AutomationRunRequest,AutomationCapacity> getCapacityForParameters(ProxySet proxySet, Collection<AutomationRunRequest> runRequests);
+
 }
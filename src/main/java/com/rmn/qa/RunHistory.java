@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Append only log of the {@link com.rmn.qa.AutomationRunRequest runs} registered with the hub, so run arrival patterns
+ * survive hub restarts.  Each run is written as a single tab delimited line of created date, UUID, thread count, browser,
+ * browser version and OS, which also allows a recorded log to be replayed offline
+ * @author mhardin
+ */
+public final class RunHistory {
+
+    private static final Logger log = LoggerFactory.getLogger(RunHistory.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+
+    /**
+     * Constructs a history which is persisted to the specified file
+     * @param file File to append runs to, or null if runs should not be persisted
+     */
+    public RunHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends the run to the history file
+     * @param runRequest Run to record
+     */
+    public synchronized void record(AutomationRunRequest runRequest) {
+        if(file == null) {
+            return;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8)) {
+            writer.write(format(runRequest));
+        } catch (IOException e) {
+            log.error(String.format("Run [%s] could not be written to history file [%s]: %s", runRequest.getUuid(), file, e));
+        }
+    }
+
+    /**
+     * Returns the runs recorded in the history file
+     * @return
+     */
+    public synchronized List<AutomationRunRequest> load() {
+        if(file == null || !file.exists()) {
+            return Collections.emptyList();
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            return read(reader);
+        } catch (IOException e) {
+            log.error(String.format("History file [%s] could not be read: %s", file, e));
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads recorded runs from the specified reader.  Lines which cannot be parsed are skipped
+     * @param reader Reader of a recorded history
+     * @return
+     * @throws IOException
+     */
+    public static List<AutomationRunRequest> read(Reader reader) throws IOException {
+        List<AutomationRunRequest> runs = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while((line = lines.readLine()) != null) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if(fields.length != 6) {
+                log.warn(String.format("Skipping malformed history line [%s]", line));
+                continue;
+            }
+            try {
+                runs.add(new AutomationRunRequest(fields[1], Integer.valueOf(fields[2]), fields[3], emptyToNull(fields[4]),
+                        emptyToNull(fields[5]), new Date(Long.parseLong(fields[0]))));
+            } catch (NumberFormatException e) {
+                log.warn(String.format("Skipping malformed history line [%s]", line));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Returns the line the run is recorded as
+     * @param runRequest Run to format
+     * @return
+     */
+    static String format(AutomationRunRequest runRequest) {
+        return runRequest.getCreatedDate().getTime() + SEPARATOR + runRequest.getUuid() + SEPARATOR + runRequest.getThreadCount()
+                + SEPARATOR + runRequest.getBrowser() + SEPARATOR + nullToEmpty(runRequest.getBrowserVersion())
+                + SEPARATOR + nullToEmpty(runRequest.getOs()) + "\n";
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
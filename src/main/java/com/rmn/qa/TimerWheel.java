@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hierarchical timer wheel which tracks a deadline for each key, and returns exactly the keys whose deadline has passed
+ * as time is {@link #advance(long) advanced}.  Scheduling, rescheduling and cancelling a key take constant time, and
+ * advancing only looks at the keys which are due, rather than comparing the deadline of every key that is tracked.
+ *
+ * <p>Deadlines are rounded to the tick of the wheel, and a key is only returned once time has moved past the first tick
+ * after its deadline, so a key is never returned before its deadline.  The lowest level has a slot for each tick, and
+ * each level above it has slots which span a whole rotation of the level below.  Keys far in the future start on a
+ * higher level, and are moved down a level each time the level below wraps around, until they reach the slot for the
+ * tick they are due.  Keys further out than the top level can hold wait in its last slot, and are placed again once
+ * they reach it.
+ *
+ * @author  mhardin
+ *
+ * @param   <K>  Type of the keys tracked
+ */
+public final class TimerWheel<K> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << TimerWheel.SLOT_BITS;
+    private static final int SLOT_MASK = TimerWheel.SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    // Furthest number of ticks out a key can be placed on the wheel
+    private static final long MAX_TICKS = (1L << (TimerWheel.SLOT_BITS * TimerWheel.LEVELS)) - 1;
+
+    private final long tickInMillis;
+
+    // Sentinel of the list of keys in each slot, indexed by level then slot
+    private final Entry<K>[][] slots;
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+
+    // Next tick which has not been processed yet
+    private long nextTick;
+
+    /**
+     * Constructs a wheel which starts at the specified time.
+     *
+     * @param  tickInMillis  Resolution of the deadlines, in milliseconds
+     * @param  nowInMillis   Current time, in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(final long tickInMillis, final long nowInMillis) {
+        Preconditions.checkArgument(tickInMillis > 0, "Tick must be positive: %s", tickInMillis);
+        this.tickInMillis = tickInMillis;
+        this.nextTick = nowInMillis / tickInMillis;
+        this.slots = new Entry[TimerWheel.LEVELS][TimerWheel.SLOTS];
+        for (Entry<K>[] level : slots) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Entry<>(null);
+            }
+        }
+    }
+
+    /**
+     * Schedules the key to be returned once the deadline has passed.  If the key is already scheduled, it is moved to
+     * the new deadline in place.
+     *
+     * @param  key               Key to schedule
+     * @param  deadlineInMillis  Time the key is due, in milliseconds
+     */
+    public synchronized void schedule(final K key, final long deadlineInMillis) {
+        Preconditions.checkNotNull(key);
+
+        Entry<K> entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry<>(key);
+            entries.put(key, entry);
+        } else {
+            entry.unlink();
+        }
+
+        // First tick after the deadline, so the key is never returned early
+        entry.dueTick = (deadlineInMillis / tickInMillis) + 1;
+        place(entry);
+    }
+
+    /**
+     * Stops tracking the key.
+     *
+     * @param   key  Key to cancel
+     *
+     * @return  True if the key was scheduled, false otherwise
+     */
+    public synchronized boolean cancel(final K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+
+        entry.unlink();
+        return true;
+    }
+
+    /**
+     * Returns true if the key is scheduled, false otherwise.
+     *
+     * @param   key  Key to check
+     *
+     * @return
+     */
+    public synchronized boolean isScheduled(final K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns the number of keys which are scheduled.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Moves the wheel forward to the specified time, and returns the keys whose deadline has passed in the order they
+     * were due.  Returned keys are no longer scheduled.
+     *
+     * @param   nowInMillis  Current time, in milliseconds
+     *
+     * @return
+     */
+    public synchronized List<K> advance(final long nowInMillis) {
+        List<K> expired = new ArrayList<>();
+        long nowTick = nowInMillis / tickInMillis;
+        while (nextTick <= nowTick) {
+
+            // Each time a level wraps around, move the keys of the next slot of the level above down the wheel
+            int index = (int) (nextTick & TimerWheel.SLOT_MASK);
+            for (int level = 1; level < TimerWheel.LEVELS && index == 0; level++) {
+                index = (int) ((nextTick >>> (TimerWheel.SLOT_BITS * level)) & TimerWheel.SLOT_MASK);
+                cascade(slots[level][index]);
+            }
+
+            Entry<K> head = slots[0][(int) (nextTick & TimerWheel.SLOT_MASK)];
+            while (head.next != head) {
+                Entry<K> entry = head.next;
+                entry.unlink();
+                if (entry.dueTick > nextTick) {
+
+                    // Was beyond the reach of the wheel when it was scheduled
+                    place(entry);
+                } else {
+                    entries.remove(entry.key);
+                    expired.add(entry.key);
+                }
+            }
+
+            nextTick++;
+        }
+
+        return expired;
+    }
+
+    private void cascade(final Entry<K> head) {
+        while (head.next != head) {
+            Entry<K> entry = head.next;
+            entry.unlink();
+            place(entry);
+        }
+    }
+
+    private void place(final Entry<K> entry) {
+        long dueTick = Math.max(entry.dueTick, nextTick);
+        long ticks = Math.min(dueTick - nextTick, TimerWheel.MAX_TICKS);
+        dueTick = nextTick + ticks;
+
+        int level = 0;
+        while (level < TimerWheel.LEVELS - 1 && ticks >= (1L << (TimerWheel.SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        int index = (int) ((dueTick >>> (TimerWheel.SLOT_BITS * level)) & TimerWheel.SLOT_MASK);
+        slots[level][index].link(entry);
+    }
+
+    /**
+     * Node in the circular list of keys in a slot.
+     */
+    private static final class Entry<K> {
+
+        private final K key;
+        private long dueTick;
+        private Entry<K> previous = this;
+        private Entry<K> next = this;
+
+        private Entry(final K key) {
+            this.key = key;
+        }
+
+        private void link(final Entry<K> entry) {
+            entry.previous = previous;
+            entry.next = this;
+            previous.next = entry;
+            previous = entry;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+    }
+}
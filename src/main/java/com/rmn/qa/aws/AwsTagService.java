@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tags the instances started by the plugin.  Instances from every launch are queued and tagged by a single worker
+ * thread, which sends the ids of every queued instance in as few {@link com.amazonaws.services.ec2.model.CreateTagsRequest CreateTags}
+ * calls as possible.  Instances EC2 does not know about yet are retried with a growing delay until they show up, or
+ * are given up on after a timeout.  Calls go through the shared {@link com.rmn.qa.aws.Ec2RateLimiter rate limiter},
+ * which backs off when EC2 throttles them
+ * @author mhardin
+ */
+public class AwsTagService {
+
+    private static final Logger log = LoggerFactory.getLogger(AwsTagService.class);
+
+    // Most resource ids sent in a single CreateTags request
+    static final int MAX_BATCH_SIZE = 1000;
+    static final long DEFAULT_TIMEOUT_IN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long INITIAL_RETRY_DELAY_IN_MILLIS = 500;
+    private static final long MAX_RETRY_DELAY_IN_MILLIS = TimeUnit.SECONDS.toMillis(8);
+
+    private final AmazonEC2Client ec2Client;
+    private final Ec2RateLimiter rateLimiter;
+    private final List<Tag> tags;
+    private final ScheduledExecutorService executor;
+
+    // Ids of the instances waiting to be tagged, along with when they were queued.  Guarded by this
+    private final Map<String,Long> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    private long retryDelayInMillis = AwsTagService.INITIAL_RETRY_DELAY_IN_MILLIS;
+    private volatile long timeoutInMillis = AwsTagService.DEFAULT_TIMEOUT_IN_MILLIS;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch(RuntimeException e) {
+                log.error("Error tagging instances", e);
+            }
+        }
+    };
+
+    /**
+     * Constructs a tag service which tags instances with the tags configured in the AWS properties
+     * @param ec2Client Client to call EC2 with
+     * @param rateLimiter Rate limiter shared with the other calls to EC2
+     * @param awsProperties Properties to read the tags from
+     */
+    public AwsTagService(AmazonEC2Client ec2Client, Ec2RateLimiter rateLimiter, Properties awsProperties) {
+        this(ec2Client, rateLimiter, awsProperties, Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("instance-tagger-%d").setDaemon(true).build()));
+    }
+
+    @VisibleForTesting
+    AwsTagService(AmazonEC2Client ec2Client, Ec2RateLimiter rateLimiter, Properties awsProperties, ScheduledExecutorService executor) {
+        this.ec2Client = ec2Client;
+        this.rateLimiter = rateLimiter;
+        this.tags = AwsTagService.getTags(awsProperties);
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the specified instances to be tagged
+     * @param instances Instances to tag
+     */
+    public void tag(Collection<Instance> instances) {
+        long now = System.currentTimeMillis();
+        synchronized(this) {
+            for(Instance instance : instances) {
+                if(instance.getInstanceId() == null) {
+                    log.warn("Instance without an id cannot be tagged");
+                    continue;
+                }
+                pending.put(instance.getInstanceId(), now);
+            }
+            if(!pending.isEmpty()) {
+                scheduleFlush(0);
+            }
+        }
+    }
+
+    /**
+     * Tags every queued instance EC2 knows about, and schedules another attempt for the rest
+     */
+    @VisibleForTesting
+    void flush() {
+        List<String> instanceIds = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized(this) {
+            flushScheduled = false;
+            Iterator<Map.Entry<String,Long>> iterator = pending.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<String,Long> entry = iterator.next();
+                if(now - entry.getValue() > timeoutInMillis) {
+                    log.error(String.format("Giving up on tagging instance [%s] as EC2 never found it", entry.getKey()));
+                    iterator.remove();
+                } else {
+                    instanceIds.add(entry.getKey());
+                }
+            }
+        }
+        if(instanceIds.isEmpty()) {
+            return;
+        }
+        Set<String> tagged = new HashSet<>();
+        for(List<String> batch : Lists.partition(instanceIds, AwsTagService.MAX_BATCH_SIZE)) {
+            tagged.addAll(tagBatch(batch));
+        }
+        log.info(String.format("Tagged %d of %d queued instances", tagged.size(), instanceIds.size()));
+        synchronized(this) {
+            pending.keySet().removeAll(tagged);
+            if(pending.isEmpty()) {
+                retryDelayInMillis = AwsTagService.INITIAL_RETRY_DELAY_IN_MILLIS;
+            } else {
+                scheduleFlush(retryDelayInMillis);
+                retryDelayInMillis = Math.min(AwsTagService.MAX_RETRY_DELAY_IN_MILLIS, retryDelayInMillis * 2);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of instances waiting to be tagged
+     * @return
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @VisibleForTesting
+    void setTimeoutInMillis(long timeoutInMillis) {
+        this.timeoutInMillis = timeoutInMillis;
+    }
+
+    private synchronized void scheduleFlush(long delayInMillis) {
+        if(flushScheduled) {
+            return;
+        }
+        try {
+            executor.schedule(flushTask, delayInMillis, TimeUnit.MILLISECONDS);
+            flushScheduled = true;
+        } catch(RejectedExecutionException e) {
+            log.error("Tagging has been shut down, instances will not be tagged: " + pending.keySet());
+        }
+    }
+
+    /**
+     * Tags the specified instances, returning the ids of the instances which were tagged
+     * @param instanceIds Ids of the instances to tag
+     * @return
+     */
+    private Collection<String> tagBatch(List<String> instanceIds) {
+        try {
+            createTags(instanceIds);
+            return instanceIds;
+        } catch(AmazonClientException e) {
+            if(!AwsTagService.isInstanceNotFound(e)) {
+                log.error("Error adding tags: " + e, e);
+                return Collections.emptyList();
+            }
+        }
+        // A single instance EC2 does not know about yet fails the whole request, so only tag the ones it does know about
+        try {
+            List<String> existingIds = getExistingInstanceIds(instanceIds);
+            if(!existingIds.isEmpty()) {
+                createTags(existingIds);
+            }
+            return existingIds;
+        } catch(AmazonClientException e) {
+            log.error("Error adding tags: " + e, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void createTags(List<String> instanceIds) {
+        final CreateTagsRequest request = new CreateTagsRequest(instanceIds, tags);
+        rateLimiter.call("CreateTags", new Ec2RateLimiter.Ec2Call<Void>() {
+            @Override
+            public Void call() {
+                ec2Client.createTags(request);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the ids of the specified instances which EC2 knows about.  Filtered by id rather than asked for by id, as
+     * EC2 fails the request when asked for an instance it does not know about
+     * @param instanceIds Ids of the instances to look for
+     * @return
+     */
+    private List<String> getExistingInstanceIds(List<String> instanceIds) {
+        final DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(new Filter("instance-id", instanceIds));
+        DescribeInstancesResult result = rateLimiter.call("DescribeInstances", new Ec2RateLimiter.Ec2Call<DescribeInstancesResult>() {
+            @Override
+            public DescribeInstancesResult call() {
+                return ec2Client.describeInstances(request);
+            }
+        });
+        Set<String> requested = new HashSet<>(instanceIds);
+        List<String> existingIds = new ArrayList<>();
+        for(Reservation reservation : result.getReservations()) {
+            for(Instance instance : reservation.getInstances()) {
+                if(requested.contains(instance.getInstanceId())) {
+                    existingIds.add(instance.getInstanceId());
+                }
+            }
+        }
+        return existingIds;
+    }
+
+    private static boolean isInstanceNotFound(AmazonClientException e) {
+        return e instanceof AmazonServiceException && "InvalidInstanceID.NotFound".equals(((AmazonServiceException) e).getErrorCode());
+    }
+
+    /**
+     * Returns the tags configured in the AWS properties, skipping any which are not in 'key,value' form
+     * @param awsProperties Properties to read the tags from
+     * @return
+     */
+    private static List<Tag> getTags(Properties awsProperties) {
+        List<Tag> tags = new ArrayList<>();
+        Set<String> keys = awsProperties == null ? Collections.<String>emptySet() : awsProperties.stringPropertyNames();
+        for(String key : keys) {
+            if(key.startsWith("tag")) {
+                String[] splitValues = awsProperties.getProperty(key).split(",");
+                if(splitValues.length < 2) {
+                    log.error(String.format("Error reading tag [%s].  Please make sure your tag syntax is correct (refer to the readme)", key));
+                    continue;
+                }
+                Tag tagToAdd = new Tag(splitValues[0], splitValues[1]);
+                log.info("Adding tag: " + tagToAdd);
+                tags.add(tagToAdd);
+            }
+        }
+        // Including a hard coded tag here so we can track which resources originate from this plugin
+        Tag nodeTag = new Tag("LaunchSource","SeleniumGridScalerPlugin");
+        log.info("Adding hard-coded tag: " + nodeTag);
+        tags.add(nodeTag);
+        return tags;
+    }
+}
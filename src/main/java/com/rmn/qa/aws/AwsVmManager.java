@@ -23,6 +23,11 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -38,20 +43,35 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 
 import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.LaunchSpecification;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesResult;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.rmn.qa.AutomationConstants;
+import com.rmn.qa.AutomationContext;
 import com.rmn.qa.AutomationUtils;
+import com.rmn.qa.InsufficientCapacityException;
 import com.rmn.qa.NodesCouldNotBeStartedException;
 
 /**
@@ -70,12 +90,75 @@ public class AwsVmManager implements VmManager {
 
     private String region;
 
+    // Most subnets, including fallback subnets, nodes are started in
+    private static final int MAX_SUBNETS = 5;
+
+    // Launch outcomes of each subnet, used to skip subnets without capacity and launch in the healthiest first
+    private final SubnetHealthTracker subnetHealth;
+
+    // Budget of calls to each EC2 API, shared with everything else calling EC2
+    private final Ec2RateLimiter rateLimiter;
+
+    // Tags the started instances in batches on a single worker thread
+    private final AwsTagService tagService;
+
+    // Most instance ids EC2 accepts in a single terminate request
+    public static final int MAX_TERMINATE_BATCH_SIZE = 1000;
+
+    private static final long DEFAULT_SPOT_FULFILLMENT_TIMEOUT_IN_SECONDS = 90;
+    private long spotPollingIntervalInMillis = TimeUnit.SECONDS.toMillis(5);
+
+    // Sends the run requests for each subnet at once
+    private final ExecutorService launchExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("node-launch-%d").setDaemon(true).build());
+
     static {
 
         // Read and write dates from node config in UTC format
         NODE_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
+    /**
+     * Returns the number of threads a node started for the specified browser can run, or 0 if nodes cannot be started
+     * for the browser.
+     *
+     * @param   browser  Browser of the node
+     *
+     * @return
+     */
+    public static int getThreadCountForBrowser(final String browser) {
+        if (AutomationUtils.lowerCaseMatch(BrowserType.CHROME, browser)) {
+            return AwsVmManager.CHROME_THREAD_COUNT;
+        } else if (AutomationUtils.lowerCaseMatch(BrowserType.IE, browser)
+                || AutomationUtils.lowerCaseMatch(BrowserType.FIREFOX, browser)) {
+            return AwsVmManager.FIREFOX_IE_THREAD_COUNT;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the OS nodes will be started with for the requested OS and browser.
+     *
+     * @param   os       Requested OS, or null if none was requested
+     * @param   browser  Requested browser
+     *
+     * @return
+     */
+    public static String resolveOs(final String os, final String browser) {
+
+        // Unspecified OS will default to Linux
+        if (null == os) {
+            if (AutomationUtils.lowerCaseMatch(browser, "internet explorer")) {
+                return "windows";
+            } else {
+                return "linux";
+            }
+        }
+
+        return os;
+    }
+
     /**
      * Creates a new AwsVMManager instance using
      * the reagion from the properties file
@@ -83,6 +166,14 @@ public class AwsVmManager implements VmManager {
     public AwsVmManager() {
         awsProperties = initAWSProperties();
         this.region = awsProperties.getProperty("region");
+        this.subnetHealth = AutomationContext.getContext().getSubnetHealthTracker();
+        this.rateLimiter = AutomationContext.getContext().getEc2RateLimiter();
+        rateLimiter.configure(awsProperties);
+        String coolDown = awsProperties.getProperty("subnet_cool_down_seconds");
+        if (coolDown != null) {
+            subnetHealth.setCoolDownInMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(coolDown.trim())));
+        }
+
         /**
          * By default we use the credentials provided in the configuration files.
          * If there are none we fall back to IAM roles.
@@ -95,6 +186,7 @@ public class AwsVmManager implements VmManager {
             client = new AmazonEC2Client();
         }
         client.setEndpoint(awsProperties.getProperty(region + "_endpoint"));
+        this.tagService = new AwsTagService(client, rateLimiter, awsProperties);
     }
 
     /**
@@ -108,6 +200,10 @@ public class AwsVmManager implements VmManager {
         this.client = client;
         this.awsProperties = properties;
         this.region = region;
+        this.subnetHealth = new SubnetHealthTracker();
+        this.rateLimiter = new Ec2RateLimiter();
+        rateLimiter.configure(properties);
+        this.tagService = new AwsTagService(client, rateLimiter, properties);
     }
 
     /**
@@ -176,34 +272,470 @@ public class AwsVmManager implements VmManager {
 
     public List<Instance> launchNodes(final String amiId, final String instanceType, final int numberToStart,
             final String userData, final boolean terminateOnShutdown) throws NodesCouldNotBeStartedException {
-        RunInstancesRequest runRequest = new RunInstancesRequest();
-        runRequest.withImageId(amiId).withInstanceType(instanceType).withMinCount(numberToStart)
-                  .withMaxCount(numberToStart).withUserData(userData);
-        if (terminateOnShutdown) {
-            runRequest.withInstanceInitiatedShutdownBehavior("terminate");
+        log.info("Setting image id: " + amiId);
+        log.info("Setting instance type: " + instanceType);
+
+        // Nodes are short lived and hold no state, so start them as spot instances when a max price is configured,
+        // with anything spot could not start in time falling back on demand
+        String spotMaxPrice = awsProperties.getProperty(instanceType + "_spot_max_price");
+        if (spotMaxPrice == null) {
+            return launchOnDemandNodes(amiId, instanceType, numberToStart, userData, terminateOnShutdown);
+        }
+
+        List<Instance> instances = launchSpotNodes(amiId, instanceType, numberToStart, userData, spotMaxPrice.trim());
+        if (instances.size() < numberToStart) {
+            log.warn(String.format("%d of %d spot nodes were started, starting the rest on demand", instances.size(),
+                    numberToStart));
+            try {
+                instances.addAll(launchOnDemandNodes(amiId, instanceType, numberToStart - instances.size(), userData,
+                        terminateOnShutdown));
+            } catch (NodesCouldNotBeStartedException e) {
+                if (instances.isEmpty()) {
+                    throw e;
+                }
+
+                log.error("On demand nodes could not be started: " + e);
+            }
+        }
+
+        return instances;
+    }
+
+    /**
+     * Requests spot instances for the nodes, split across the healthy subnets, and waits for them to be fulfilled up to
+     * the configured timeout.  Every request is cancelled once the wait is over, however it ended, so no request is
+     * left open to start nodes later.  Spot errors are logged rather than thrown, so the caller can start the nodes on
+     * demand instead.
+     *
+     * @param   amiId          AMI to start
+     * @param   instanceType   Instance type of the nodes
+     * @param   numberToStart  Number of nodes to start
+     * @param   userData       User data for the nodes
+     * @param   maxPrice       Most to pay per hour for each node
+     *
+     * @return  The nodes which were started
+     */
+    private List<Instance> launchSpotNodes(final String amiId, final String instanceType, final int numberToStart,
+            final String userData, final String maxPrice) {
+        List<Instance> instances = new ArrayList<>();
+        if (client == null) {
+            throw new RuntimeException("The client is not initialized");
+        }
+
+        // Spot capacity is tracked apart from on demand capacity, as a subnet out of one may still have the other.  A
+        // request without a subnet would start the nodes outside of the configured subnets, so spot is skipped while
+        // every subnet is cooling down and the nodes are started on demand instead
+        String spotCapacityKey = getSpotCapacityKey(instanceType);
+        List<String> subnetIds = subnetHealth.getAvailableSubnets(getSubnetIds(), spotCapacityKey,
+                System.currentTimeMillis());
+        if (subnetIds.isEmpty()) {
+            log.warn(String.format("Every subnet recently ran out of spot capacity for instance type [%s]",
+                    instanceType));
+            return instances;
+        }
+
+        long timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                    awsProperties.getProperty("spot_fulfillment_timeout_seconds",
+                        String.valueOf(AwsVmManager.DEFAULT_SPOT_FULFILLMENT_TIMEOUT_IN_SECONDS)).trim()));
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        // Spot requests are sent to every healthy subnet with the nodes split evenly, like on demand launches
+        Map<String, Integer> countsBySubnet = new LinkedHashMap<>();
+        int subnetsToUse = Math.min(numberToStart, subnetIds.size());
+        for (int i = 0; i < subnetsToUse; i++) {
+            countsBySubnet.put(subnetIds.get(i),
+                (numberToStart / subnetsToUse) + (i < numberToStart % subnetsToUse ? 1 : 0));
+        }
+
+        Map<String, String> subnetsByRequestId = new LinkedHashMap<>();
+        Map<String, String> requestIdsByInstanceId = new LinkedHashMap<>();
+        boolean cutShort = false;
+        try {
+            for (Map.Entry<String, Integer> entry : countsBySubnet.entrySet()) {
+                final RequestSpotInstancesRequest spotRequest = createSpotRequest(amiId, instanceType,
+                        entry.getValue(), userData, maxPrice, entry.getKey(), deadline);
+                log.info(String.format("Requesting %d spot nodes in subnet [%s] at a max price of %s",
+                        entry.getValue(), entry.getKey(), maxPrice));
+                RequestSpotInstancesResult spotResult = rateLimiter.call("RequestSpotInstances",
+                        new Ec2RateLimiter.Ec2Call<RequestSpotInstancesResult>() {
+                            @Override
+                            public RequestSpotInstancesResult call() {
+                                return client.requestSpotInstances(spotRequest);
+                            }
+                        });
+                for (SpotInstanceRequest request : spotResult.getSpotInstanceRequests()) {
+                    subnetsByRequestId.put(request.getSpotInstanceRequestId(), entry.getKey());
+                }
+            }
+
+            while (requestIdsByInstanceId.size() < numberToStart && System.currentTimeMillis() < deadline) {
+                Thread.sleep(spotPollingIntervalInMillis);
+                if (!collectSpotInstanceIds(subnetsByRequestId.keySet(), requestIdsByInstanceId)) {
+
+                    // Every request has been closed without a node, so there is no point in waiting any longer
+                    break;
+                }
+            }
+        } catch (AmazonServiceException e) {
+            log.error("Error requesting spot nodes: " + e, e);
+            cutShort = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting on spot nodes");
+            cutShort = true;
+        } finally {
+            cancelSpotRequests(subnetsByRequestId.keySet(), requestIdsByInstanceId);
+        }
+
+        // Subnets which fulfilled every request have capacity, while those which left requests open until the
+        // deadline do not.  A wait cut short by an error says nothing about the capacity of the subnets
+        long latencyInMillis = System.currentTimeMillis() - start;
+        for (Map.Entry<String, Integer> entry : countsBySubnet.entrySet()) {
+            int fulfilled = 0;
+            for (String requestId : requestIdsByInstanceId.values()) {
+                if (Objects.equals(entry.getKey(), subnetsByRequestId.get(requestId))) {
+                    fulfilled++;
+                }
+            }
+
+            if (fulfilled >= entry.getValue()) {
+                subnetHealth.recordSuccess(entry.getKey(), spotCapacityKey, latencyInMillis);
+            } else if (!cutShort) {
+                log.warn(String.format("Only %d of %d spot nodes were fulfilled in subnet [%s]", fulfilled,
+                        entry.getValue(), entry.getKey()));
+                subnetHealth.recordCapacityFailure(entry.getKey(), spotCapacityKey, latencyInMillis);
+            }
+        }
+
+        if (!requestIdsByInstanceId.isEmpty()) {
+            instances.addAll(describeSpotInstances(requestIdsByInstanceId));
+            associateTags(instances);
+        }
+
+        return instances;
+    }
+
+    /**
+     * Returns the key spot launches of the instance type are tracked under in the subnet health.
+     *
+     * @param   instanceType  Instance type of the nodes
+     *
+     * @return
+     */
+    @VisibleForTesting
+    static String getSpotCapacityKey(final String instanceType) {
+        return instanceType + " (spot)";
+    }
+
+    /**
+     * Creates the spot request for up to the specified number of nodes in the subnet.
+     *
+     * @param   amiId          AMI to start
+     * @param   instanceType   Instance type of the nodes
+     * @param   count          Number of nodes to request
+     * @param   userData       User data for the nodes
+     * @param   maxPrice       Most to pay per hour for each node
+     * @param   subnetId       Subnet to start the nodes in, or null for the default subnet
+     * @param   deadline       Time the request is valid until
+     *
+     * @return
+     */
+    private RequestSpotInstancesRequest createSpotRequest(final String amiId, final String instanceType,
+            final int count, final String userData, final String maxPrice, final String subnetId,
+            final long deadline) {
+        LaunchSpecification launchSpecification = new LaunchSpecification();
+        launchSpecification.withImageId(amiId).withInstanceType(instanceType).withUserData(userData);
+        if (subnetId != null) {
+            launchSpecification.withSubnetId(subnetId);
+        }
+
+        List<GroupIdentifier> securityGroups = new ArrayList<>();
+        for (String securityGroupId : getSecurityGroupIds()) {
+            securityGroups.add(new GroupIdentifier().withGroupId(securityGroupId));
+        }
+
+        if (!securityGroups.isEmpty()) {
+            launchSpecification.withAllSecurityGroups(securityGroups);
+        }
+
+        String keyName = awsProperties.getProperty(region + "_key_name");
+        if (keyName != null) {
+            launchSpecification.withKeyName(keyName);
         }
 
-        log.info("Setting image id: " + runRequest.getImageId());
-        log.info("Setting instance type: " + runRequest.getInstanceType());
+        RequestSpotInstancesRequest spotRequest = new RequestSpotInstancesRequest();
+        spotRequest.withSpotPrice(maxPrice).withInstanceCount(count).withType("one-time")
+                   .withValidUntil(new Date(deadline)).withLaunchSpecification(launchSpecification);
+        return spotRequest;
+    }
+
+    /**
+     * Cancels the spot requests, then picks up any which were fulfilled while they were being cancelled.  Errors are
+     * logged, as this runs once the wait for the nodes is over whether or not it succeeded.
+     *
+     * @param  requestIds              Spot requests to cancel
+     * @param  requestIdsByInstanceId  Spot request of each instance which was started
+     */
+    private void cancelSpotRequests(final Collection<String> requestIds,
+            final Map<String, String> requestIdsByInstanceId) {
+        if (requestIds.isEmpty() || requestIdsByInstanceId.size() >= requestIds.size()) {
+            return;
+        }
+
+        try {
+            final CancelSpotInstanceRequestsRequest cancelRequest = new CancelSpotInstanceRequestsRequest()
+                    .withSpotInstanceRequestIds(requestIds);
+            rateLimiter.call("CancelSpotInstanceRequests",
+                new Ec2RateLimiter.Ec2Call<CancelSpotInstanceRequestsResult>() {
+                    @Override
+                    public CancelSpotInstanceRequestsResult call() {
+                        return client.cancelSpotInstanceRequests(cancelRequest);
+                    }
+                });
+
+            // Requests may have been fulfilled while they were being cancelled
+            collectSpotInstanceIds(requestIds, requestIdsByInstanceId);
+        } catch (AmazonServiceException e) {
+            log.error(String.format("Spot requests %s could not be cancelled: %s", requestIds, e), e);
+        }
+    }
+
+    /**
+     * Returns the instances started for fulfilled spot requests.  Instances which cannot be described are still
+     * returned by id, so they are tracked and terminated like any other node.
+     *
+     * @param   requestIdsByInstanceId  Spot request of each instance which was started
+     *
+     * @return
+     */
+    private List<Instance> describeSpotInstances(final Map<String, String> requestIdsByInstanceId) {
+        List<Instance> instances = new ArrayList<>();
+        try {
+            for (Reservation reservation : describeInstances(new DescribeInstancesRequest().withInstanceIds(
+                                requestIdsByInstanceId.keySet()))) {
+                instances.addAll(reservation.getInstances());
+            }
+        } catch (AmazonServiceException e) {
+            log.error("Error describing spot nodes: " + e, e);
+            for (Map.Entry<String, String> entry : requestIdsByInstanceId.entrySet()) {
+                instances.add(new Instance().withInstanceId(entry.getKey()).withSpotInstanceRequestId(
+                        entry.getValue()));
+            }
+        }
+
+        return instances;
+    }
+
+    /**
+     * Adds the instances of any fulfilled spot requests to the specified map.
+     *
+     * @param   requestIds              Spot requests to look up
+     * @param   requestIdsByInstanceId  Spot request of each instance which was started
+     *
+     * @return  False if every request without an instance has been closed and will never be fulfilled
+     */
+    private boolean collectSpotInstanceIds(final Collection<String> requestIds,
+            final Map<String, String> requestIdsByInstanceId) {
+        boolean pending = false;
+        DescribeSpotInstanceRequestsRequest describeRequest = new DescribeSpotInstanceRequestsRequest();
+        describeRequest.withSpotInstanceRequestIds(requestIds);
+        for (SpotInstanceRequest request : describeSpotInstanceRequests(describeRequest)) {
+            if (request.getInstanceId() != null) {
+                requestIdsByInstanceId.put(request.getInstanceId(), request.getSpotInstanceRequestId());
+            } else if ("open".equals(request.getState())) {
+                pending = true;
+            }
+        }
+
+        return pending;
+    }
 
+    /**
+     * Starts the nodes on demand, split across the configured subnets.
+     *
+     * @param   amiId                AMI to start
+     * @param   instanceType         Instance type of the nodes
+     * @param   numberToStart        Number of nodes to start
+     * @param   userData             User data for the nodes
+     * @param   terminateOnShutdown  True if the nodes should terminate when shut down
+     *
+     * @return
+     *
+     * @throws  NodesCouldNotBeStartedException
+     */
+    private List<Instance> launchOnDemandNodes(final String amiId, final String instanceType, final int numberToStart,
+            final String userData, final boolean terminateOnShutdown) throws NodesCouldNotBeStartedException {
+
+        // Subnets which have started every node asked of them so far, and so may have capacity for more.  Subnets
+        // which recently ran out of capacity for this instance type are skipped without a round trip
+        List<String> subnetIds = subnetHealth.getAvailableSubnets(getSubnetIds(), instanceType,
+                System.currentTimeMillis());
+        if (subnetIds.isEmpty()) {
+            throw new InsufficientCapacityException(String.format(
+                    "Every subnet recently ran out of capacity for instance type [%s]", instanceType));
+        }
+
+        List<Instance> instances = new ArrayList<>();
+        boolean capacityExhausted = false;
+        while (instances.size() < numberToStart && !subnetIds.isEmpty()) {
+            int remaining = numberToStart - instances.size();
+            int subnetsToUse = Math.min(remaining, subnetIds.size());
+            List<SubnetLaunch> launches = new ArrayList<>();
+            for (int i = 0; i < subnetsToUse; i++) {
+
+                // Split the nodes evenly, with the first subnets taking any that are left over
+                int count = (remaining / subnetsToUse) + (i < remaining % subnetsToUse ? 1 : 0);
+                RunInstancesRequest runRequest = createRunRequest(amiId, instanceType, count, userData,
+                        terminateOnShutdown, subnetIds.get(i));
+                launches.add(new SubnetLaunch(subnetIds.get(i), count, runRequest));
+            }
+
+            log.info(String.format("Sending run requests to AWS for %d nodes across %d subnets...", remaining,
+                    launches.size()));
+            runAll(launches);
+
+            RuntimeException error = null;
+            for (SubnetLaunch launch : launches) {
+                if (launch.error instanceof InsufficientCapacityException) {
+                    log.error(String.format("Insufficient capacity in subnet [%s]", launch.subnetId));
+                    subnetHealth.recordCapacityFailure(launch.subnetId, instanceType, launch.latencyInMillis);
+                    capacityExhausted = true;
+                    subnetIds.remove(launch.subnetId);
+                } else if (launch.error != null) {
+                    error = (RuntimeException) launch.error;
+                    subnetIds.remove(launch.subnetId);
+                } else {
+                    List<Instance> started = launch.result.getReservation().getInstances();
+                    instances.addAll(started);
+                    if (started.size() < launch.count) {
+
+                        // AWS starts as many nodes as it has capacity for, so this subnet is full
+                        log.warn(String.format("Only %d of %d nodes were started in subnet [%s]", started.size(),
+                                launch.count, launch.subnetId));
+                        subnetHealth.recordCapacityFailure(launch.subnetId, instanceType, launch.latencyInMillis);
+                        subnetIds.remove(launch.subnetId);
+                    } else {
+                        subnetHealth.recordSuccess(launch.subnetId, instanceType, launch.latencyInMillis);
+                    }
+                }
+            }
+
+            if (error != null) {
+
+                // We got an error other than insufficient capacity, and should just throw it for the caller to handle
+                // unless nodes were started elsewhere, which would otherwise be left running untracked
+                if (instances.isEmpty()) {
+                    throw error;
+                }
+
+                log.error("Error starting nodes, no more will be requested: " + error);
+                break;
+            }
+        }
+
+        if (instances.isEmpty()) {
+            if (capacityExhausted) {
+                throw new InsufficientCapacityException(
+                    "Sufficient resources were not available in any of the availability zones");
+            }
+
+            throw new NodesCouldNotBeStartedException(String.format(
+                    "Error starting up nodes -- count was zero and did not match expected count of %d", numberToStart));
+        }
+
+        if (instances.size() < numberToStart) {
+            log.warn(String.format("Only %d of %d requested nodes could be started", instances.size(),
+                    numberToStart));
+        }
+
+        log.info("Run request results returned.  Adding tags");
+
+        // Tag the instances with the standard RMN AWS data
+        associateTags(instances);
+        return instances;
+    }
+
+    /**
+     * Returns the configured subnets to start nodes in, or a single null subnet if none are configured so the default
+     * subnet is used.
+     *
+     * @return
+     */
+    private List<String> getSubnetIds() {
+        List<String> subnetIds = new ArrayList<>();
         String subnetKey = awsProperties.getProperty(region + "_subnet_id");
         if (subnetKey != null) {
-            log.info("Setting subnet: " + subnetKey);
-            runRequest.withSubnetId(subnetKey);
+            subnetIds.add(subnetKey);
+        }
+
+        // Only look at a limited number of fallback subnets to guard against a misconfigured properties file
+        for (int i = 1; i < AwsVmManager.MAX_SUBNETS; i++) {
+            String fallBackSubnetId = awsProperties.getProperty(region + "_subnet_fallback_id_" + i);
+            if (fallBackSubnetId == null) {
+                break;
+            }
+
+            if (!subnetIds.contains(fallBackSubnetId)) {
+                subnetIds.add(fallBackSubnetId);
+            }
+        }
+
+        if (subnetIds.isEmpty()) {
+            subnetIds.add(null);
         }
 
+        return subnetIds;
+    }
+
+    /**
+     * Returns the configured security groups for nodes.
+     *
+     * @return
+     */
+    private List<String> getSecurityGroupIds() {
+        List<String> securityGroupIds = new ArrayList<>();
         String securityGroupKey = awsProperties.getProperty(region + "_security_group");
         if (securityGroupKey != null) {
+            for (String securityGroupId : securityGroupKey.split(",")) {
+                log.info("Setting security group(s): " + securityGroupId);
+                securityGroupIds.add(securityGroupId);
+            }
+        }
 
-            String[] splitSecurityGroupdIds = securityGroupKey.split(",");
+        return securityGroupIds;
+    }
 
-            List securityGroupIdsAryLst = new ArrayList();
-            for (int i = 0; i < splitSecurityGroupdIds.length; i++) {
+    /**
+     * Creates the request to start up to the specified number of nodes.  A single node is enough for the request to
+     * succeed, so a subnet which is low on capacity still starts what it can.
+     *
+     * @param   amiId                AMI to start
+     * @param   instanceType         Instance type of the nodes
+     * @param   count                Most nodes to start
+     * @param   userData             User data for the nodes
+     * @param   terminateOnShutdown  True if the nodes should terminate when shut down
+     * @param   subnetId             Subnet to start the nodes in, or null for the default subnet
+     *
+     * @return
+     */
+    private RunInstancesRequest createRunRequest(final String amiId, final String instanceType, final int count,
+            final String userData, final boolean terminateOnShutdown, final String subnetId) {
+        RunInstancesRequest runRequest = new RunInstancesRequest();
+        runRequest.withImageId(amiId).withInstanceType(instanceType).withMinCount(1).withMaxCount(count)
+                  .withUserData(userData);
+        if (terminateOnShutdown) {
+            runRequest.withInstanceInitiatedShutdownBehavior("terminate");
+        }
 
-                log.info("Setting security group(s): " + splitSecurityGroupdIds[i]);
-                securityGroupIdsAryLst.add(splitSecurityGroupdIds[i]);
-            }
-            runRequest.setSecurityGroupIds(securityGroupIdsAryLst);
+        if (subnetId != null) {
+            log.info("Setting subnet: " + subnetId);
+            runRequest.withSubnetId(subnetId);
+        }
+
+        List<String> securityGroupIds = getSecurityGroupIds();
+        if (!securityGroupIds.isEmpty()) {
+            runRequest.setSecurityGroupIds(securityGroupIds);
         }
 
         String keyName = awsProperties.getProperty(region + "_key_name");
@@ -212,20 +744,37 @@ public class AwsVmManager implements VmManager {
             runRequest.withKeyName(keyName);
         }
 
-        log.info("Sending run request to AWS...");
+        return runRequest;
+    }
 
-        RunInstancesResult runInstancesResult = getResults(runRequest, 0);
-        log.info("Run request result returned.  Adding tags");
+    /**
+     * Sends the run requests for every subnet at once, and waits for all of them to return.
+     *
+     * @param  launches  Run requests to send
+     */
+    private void runAll(final List<SubnetLaunch> launches) {
+        if (launches.size() == 1) {
+            launches.get(0).run();
+            return;
+        }
 
-        // Tag the instances with the standard RMN AWS data
-        List<Instance> instances = runInstancesResult.getReservation().getInstances();
-        if (instances.size() == 0) {
-            throw new NodesCouldNotBeStartedException(String.format(
-                    "Error starting up nodes -- count was zero and did not match expected count of %d", numberToStart));
+        List<Future<?>> futures = new ArrayList<>();
+        for (SubnetLaunch launch : launches) {
+            futures.add(launchExecutor.submit(launch));
         }
 
-        associateTags(new Date().toString(), instances);
-        return instances;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while starting nodes", e);
+            } catch (ExecutionException e) {
+
+                // Errors are recorded on the launch itself
+                log.error("Unexpected error starting nodes", e);
+            }
+        }
     }
 
     /**
@@ -235,15 +784,7 @@ public class AwsVmManager implements VmManager {
     public List<Instance> launchNodes(final String uuid, String os, final String browser, final String hubHostName,
             final int nodeCount, final int maxSessions) throws NodesCouldNotBeStartedException {
 
-        // Unspecified OS will default to Linux
-        if (null == os) {
-            if (AutomationUtils.lowerCaseMatch(browser, "internet explorer")) {
-                os = "windows";
-            } else {
-                os = "linux";
-            }
-        }
-
+        os = resolveOs(os, browser);
         String userData = getUserData(uuid, hubHostName, browser, os, maxSessions);
         String amiId = awsProperties.getProperty(getAmiIdForOs(os, browser));
         String instanceType = awsProperties.getProperty("node_instance_type_" + browser);
@@ -251,69 +792,155 @@ public class AwsVmManager implements VmManager {
     }
 
     /**
-     * Attempts to run the {@link com.amazonaws.services.ec2.model.RunInstancesRequest RunInstancesRequest}, falling
-     * back on alternative subnets if capacity is full in the current region.
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Instance> launchNodes(final String uuid, String os, final String hubHostName,
+            final NodeLaunchPlanner.NodeLaunch launch) throws NodesCouldNotBeStartedException {
+
+        String browser = launch.getBrowser();
+        os = resolveOs(os, browser);
+
+        String userData = getUserData(uuid, hubHostName, browser, os, launch.getMaxSessions(),
+                launch.getMaxInstancesByBrowser());
+        String amiId = awsProperties.getProperty(getAmiIdForOs(os, browser));
+        // Nodes which could not be started as one instance type fall back on the next cheapest type they fit on
+        List<Instance> instances = new ArrayList<>();
+        InsufficientCapacityException capacityException = null;
+        for (InstanceTypeCatalog.InstanceType instanceType : launch.getInstanceTypes()) {
+            int remaining = launch.getNodeCount() - instances.size();
+            if (remaining <= 0) {
+                break;
+            }
+
+            try {
+                instances.addAll(this.launchNodes(amiId, instanceType.getName(), remaining, userData, false));
+            } catch (InsufficientCapacityException e) {
+                log.warn(String.format("No capacity for instance type [%s]: %s", instanceType.getName(),
+                        e.getMessage()));
+                capacityException = e;
+            }
+        }
+
+        if (instances.isEmpty()) {
+            if (capacityException != null) {
+                throw capacityException;
+            }
+
+            throw new NodesCouldNotBeStartedException("No instance type can start the nodes: " + launch);
+        }
+
+        if (instances.size() < launch.getNodeCount()) {
+            log.warn(String.format("Only %d of %d nodes could be started as every instance type ran out of capacity: %s",
+                    instances.size(), launch.getNodeCount(), launch));
+        }
+
+        return instances;
+    }
+
+    /**
+     * Sets how often spot requests are checked while waiting for them to be fulfilled.
+     *
+     * @param  spotPollingIntervalInMillis
+     */
+    @VisibleForTesting
+    void setSpotPollingIntervalInMillis(final long spotPollingIntervalInMillis) {
+        this.spotPollingIntervalInMillis = spotPollingIntervalInMillis;
+    }
+
+    /**
+     * Returns the launch health of each subnet.
+     *
+     * @return
+     */
+    @VisibleForTesting
+    SubnetHealthTracker getSubnetHealthTracker() {
+        return subnetHealth;
+    }
+
+    /**
+     * Returns the instance types nodes can be started as.  Read from the AWS properties on every call.
+     *
+     * @return
+     */
+    @Override
+    public InstanceTypeCatalog getInstanceTypeCatalog() {
+        return InstanceTypeCatalog.fromProperties(awsProperties);
+    }
+
+    /**
+     * Attempts to run the {@link com.amazonaws.services.ec2.model.RunInstancesRequest RunInstancesRequest}.
      *
      * @param   request
-     * @param   requestNumber
      *
      * @return
      *
-     * @throws  NodesCouldNotBeStartedException
+     * @throws  InsufficientCapacityException  If the subnet / availability zone does not have capacity for the request
      */
-    private RunInstancesResult getResults(final RunInstancesRequest request, int requestNumber)
-        throws NodesCouldNotBeStartedException {
-        RunInstancesResult runInstancesResult;
+    private RunInstancesResult getResults(final RunInstancesRequest request) throws InsufficientCapacityException {
         try {
             if(client == null){
                 throw new RuntimeException("The client is not initialized");
             }
-            runInstancesResult = client.runInstances(request);
+            return rateLimiter.call("RunInstances", new Ec2RateLimiter.Ec2Call<RunInstancesResult>() {
+                        @Override
+                        public RunInstancesResult call() {
+                            return client.runInstances(request);
+                        }
+                    });
         } catch (AmazonServiceException e) {
 
-            // If there is insufficient capacity in this subnet / availability zone, then we want to try other
-            // configured subnets
+            // If there is insufficient capacity in this subnet / availability zone, then the caller will want to try
+            // other configured subnets
             if ("InsufficientInstanceCapacity".equals(e.getErrorCode())
                     || "VolumeTypeNotAvailableInZone".equals(e.getErrorCode())) {
-                log.error(String.format("Insufficient capacity in subnet [%s]: %s", request.getSubnetId(), e));
-                requestNumber = requestNumber + 1;
-
-                String fallBackSubnetId = awsProperties.getProperty(region + "_subnet_fallback_id_" + requestNumber);
-
-                // Make sure and only try to recursively loop so as long as we have a valid fallback subnet id.  Logic
-                // to also
-                // prevent an accidental infinite loop
-                if (fallBackSubnetId != null && requestNumber < 5) {
-                    log.info("Setting fallback subnet: " + fallBackSubnetId);
+                throw new InsufficientCapacityException(String.format("Insufficient capacity in subnet [%s]: %s",
+                        request.getSubnetId(), e));
+            }
 
-                    // Modify the original request with the new subnet ID we're trying to fallback on
-                    request.withSubnetId(fallBackSubnetId);
-                } else {
-                    throw new NodesCouldNotBeStartedException(
-                        "Sufficient resources were not available in any of the availability zones");
-                }
+            throw e;
+        }
+    }
 
-                return getResults(request, requestNumber);
-            } else {
+    /**
+     * Run request for the nodes started in a single subnet, along with its outcome.
+     */
+    private final class SubnetLaunch implements Runnable {
+
+        private final String subnetId;
+        private final int count;
+        private final RunInstancesRequest request;
+        private volatile RunInstancesResult result;
+        private volatile Exception error;
+        private volatile long latencyInMillis;
+
+        SubnetLaunch(final String subnetId, final int count, final RunInstancesRequest request) {
+            this.subnetId = subnetId;
+            this.count = count;
+            this.request = request;
+        }
 
-                // We got an error other than insufficient capacity, and should just throw it for the caller to handle
-                throw e;
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                result = getResults(request);
+            } catch (InsufficientCapacityException | RuntimeException e) {
+                error = e;
+            } finally {
+                latencyInMillis = System.currentTimeMillis() - start;
             }
         }
-
-        return runInstancesResult;
     }
 
     /**
-     * Assigns the tags asynchronously to AWS.
+     * Queues the instances to have their tags assigned asynchronously.
      *
-     * @param  threadName
      * @param  instances
      */
     @VisibleForTesting
-    void associateTags(final String threadName, final Collection<Instance> instances) {
-        Thread reportThread = new AwsTagReporter(threadName, client, instances, awsProperties);
-        reportThread.start();
+    void associateTags(final Collection<Instance> instances) {
+        tagService.tag(instances);
     }
 
     /**
@@ -343,40 +970,122 @@ public class AwsVmManager implements VmManager {
      * @param  instanceId  Id of the instance to terminate
      */
     public boolean terminateInstance(final String instanceId) {
-        TerminateInstancesRequest terminateRequest = new TerminateInstancesRequest();
-        terminateRequest.withInstanceIds(instanceId);
+        InstanceStateChange stateChange = terminateBatch(Arrays.asList(instanceId)).get(instanceId);
+        if (stateChange == null) {
+            log.error("Matching terminated instance was not found for instance " + instanceId);
+            return false;
+        }
 
-        if(client == null){
-            throw new RuntimeException("The client is not initialized");
+        InstanceState currentState = stateChange.getCurrentState();
+        if (currentState.getCode() != 32 && currentState.getCode() != 48) {
+            log.error(String.format(
+                    "Machine state for id %s should be terminated (48) or shutting down (32) but was %s instead",
+                    instanceId, currentState.getCode()));
+            return false;
         }
-        TerminateInstancesResult result = client.terminateInstances(terminateRequest);
-        List<InstanceStateChange> stateChanges = result.getTerminatingInstances();
-        boolean terminatedInstance = false;
-        for (InstanceStateChange stateChange : stateChanges) {
-            if (instanceId.equals(stateChange.getInstanceId())) {
-                terminatedInstance = true;
-
-                InstanceState currentState = stateChange.getCurrentState();
-                if (currentState.getCode() != 32 && currentState.getCode() != 48) {
-                    log.error(String.format(
-                            "Machine state for id %s should be terminated (48) or shutting down (32) but was %s instead",
-                            instanceId, currentState.getCode()));
-                    return false;
-                }
+
+        return true;
+    }
+
+    /**
+     * Terminates the specified instances, up to {@link #MAX_TERMINATE_BATCH_SIZE} per request.  A request which fails
+     * is logged and does not stop the remaining requests from being sent, and its instances are left out of the
+     * returned state changes.  If a request fails because one of its instances does not exist, the request is split
+     * until the missing instances are found, so they do not stop the rest of the request from being terminated.
+     * Instances which do not exist are returned as terminated, as there is nothing left to terminate
+     *
+     * @param   instanceIds  Ids of the instances to terminate
+     *
+     * @return
+     */
+    @Override
+    public Map<String, InstanceStateChange> terminateInstances(final Collection<String> instanceIds) {
+        Map<String, InstanceStateChange> stateChanges = new LinkedHashMap<>();
+        List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(instanceIds));
+        for (List<String> batch : Lists.partition(uniqueIds, AwsVmManager.MAX_TERMINATE_BATCH_SIZE)) {
+            terminateSplittingOnMissing(batch, stateChanges);
+        }
+
+        return stateChanges;
+    }
+
+    /**
+     * Terminates the specified instances, splitting the request in half whenever EC2 reports an instance in it does not
+     * exist.
+     *
+     * @param  instanceIds   Ids of the instances to terminate, no more than {@link #MAX_TERMINATE_BATCH_SIZE}
+     * @param  stateChanges  State changes to add the terminated instances to
+     */
+    private void terminateSplittingOnMissing(final List<String> instanceIds,
+            final Map<String, InstanceStateChange> stateChanges) {
+        try {
+            stateChanges.putAll(terminateBatch(instanceIds));
+        } catch (AmazonServiceException e) {
+            if (!"InvalidInstanceID.NotFound".equals(e.getErrorCode())) {
+                log.error(String.format("Error terminating instances %s: %s", instanceIds, e), e);
+            } else if (instanceIds.size() == 1) {
+                String instanceId = instanceIds.get(0);
+                log.warn(String.format("Instance [%s] does not exist, so there is nothing to terminate", instanceId));
+                stateChanges.put(instanceId,
+                    new InstanceStateChange().withInstanceId(instanceId).withCurrentState(
+                        new InstanceState().withCode(48).withName(InstanceStateName.Terminated.toString())));
+            } else {
+                int middle = instanceIds.size() / 2;
+                terminateSplittingOnMissing(instanceIds.subList(0, middle), stateChanges);
+                terminateSplittingOnMissing(instanceIds.subList(middle, instanceIds.size()), stateChanges);
             }
         }
+    }
 
-        if (!terminatedInstance) {
-            log.error("Matching terminated instance was not found for instance " + instanceId);
-            return false;
+    /**
+     * Terminates the specified instances with a single request.
+     *
+     * @param   instanceIds  Ids of the instances to terminate, no more than {@link #MAX_TERMINATE_BATCH_SIZE}
+     *
+     * @return
+     */
+    private Map<String, InstanceStateChange> terminateBatch(final List<String> instanceIds) {
+        final TerminateInstancesRequest terminateRequest = new TerminateInstancesRequest();
+        terminateRequest.withInstanceIds(instanceIds);
+
+        if(client == null){
+            throw new RuntimeException("The client is not initialized");
+        }
+        TerminateInstancesResult result = rateLimiter.call("TerminateInstances",
+                new Ec2RateLimiter.Ec2Call<TerminateInstancesResult>() {
+                    @Override
+                    public TerminateInstancesResult call() {
+                        return client.terminateInstances(terminateRequest);
+                    }
+                });
+        Map<String, InstanceStateChange> stateChanges = new HashMap<>();
+        for (InstanceStateChange stateChange : result.getTerminatingInstances()) {
+            stateChanges.put(stateChange.getInstanceId(), stateChange);
         }
 
-        return true;
+        return stateChanges;
     }
 
     @Override
     public List<Reservation> describeInstances(final DescribeInstancesRequest describeInstancesRequest) {
-        return client.describeInstances(describeInstancesRequest).getReservations();
+        return rateLimiter.call("DescribeInstances", new Ec2RateLimiter.Ec2Call<DescribeInstancesResult>() {
+                    @Override
+                    public DescribeInstancesResult call() {
+                        return client.describeInstances(describeInstancesRequest);
+                    }
+                }).getReservations();
+    }
+
+    @Override
+    public List<SpotInstanceRequest> describeSpotInstanceRequests(
+            final DescribeSpotInstanceRequestsRequest describeSpotInstanceRequestsRequest) {
+        return rateLimiter.call("DescribeSpotInstanceRequests",
+                new Ec2RateLimiter.Ec2Call<DescribeSpotInstanceRequestsResult>() {
+                    @Override
+                    public DescribeSpotInstanceRequestsResult call() {
+                        return client.describeSpotInstanceRequests(describeSpotInstanceRequestsRequest);
+                    }
+                }).getSpotInstanceRequests();
     }
 
     /**
@@ -393,6 +1102,24 @@ public class AwsVmManager implements VmManager {
     @VisibleForTesting
     String getUserData(final String uuid, final String hubHostName, final String browser, final String os,
             final int maxSessions) {
+        return getUserData(uuid, hubHostName, browser, os, maxSessions, getDefaultMaxInstances());
+    }
+
+    /**
+     * Returns a zip file containing the necessary user data for the images we're going to spin up.
+     *
+     * @param   uuid                   UUID of the test run
+     * @param   hubHostName            Resolvable host name of the hub the node will register with
+     * @param   browser                Browser for the requested test run
+     * @param   os                     OS for the requested test run
+     * @param   maxSessions            Maximum simultaneous test sessions
+     * @param   maxInstancesByBrowser  Maximum simultaneous test sessions of each browser
+     *
+     * @return
+     */
+    @VisibleForTesting
+    String getUserData(final String uuid, final String hubHostName, final String browser, final String os,
+            final int maxSessions, final Map<String, Integer> maxInstancesByBrowser) {
         try(ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
                 ZipOutputStream zos = new ZipOutputStream(outputStream);
         ) {
@@ -401,7 +1128,8 @@ public class AwsVmManager implements VmManager {
             ZipEntry nodeConfigZipEntry = new ZipEntry("nodeConfigTemplate.json");
             zos.putNextEntry(nodeConfigZipEntry);
 
-            String nodeConfigContents = getNodeConfig(uuid, hubHostName, browser, os, maxSessions);
+            String nodeConfigContents = getNodeConfig(uuid, hubHostName, browser, os, maxSessions,
+                    maxInstancesByBrowser);
             zos.write(nodeConfigContents.getBytes());
             zos.closeEntry();
 
@@ -431,6 +1159,18 @@ public class AwsVmManager implements VmManager {
     @VisibleForTesting
     String getNodeConfig(final String uuid, final String hostName, final String browser, final String os,
             final int maxSessions) {
+        return getNodeConfig(uuid, hostName, browser, os, maxSessions, getDefaultMaxInstances());
+    }
+
+    /**
+     * Reads the hub.json file and returns its contents with the maximum sessions of each browser filled in. Browsers
+     * which are left out of the map will not be able to run on the node.
+     *
+     * @return
+     */
+    @VisibleForTesting
+    String getNodeConfig(final String uuid, final String hostName, final String browser, final String os,
+            final int maxSessions, final Map<String, Integer> maxInstancesByBrowser) {
         String resourceName;
         if (os.equals("windows")) {
             resourceName = AutomationConstants.WINDOWS_PROPERTY_NAME;
@@ -443,9 +1183,11 @@ public class AwsVmManager implements VmManager {
         String nodeConfig = getFileContents(resourceName);
         nodeConfig = nodeConfig.replaceAll("<MAX_SESSION>", String.valueOf(maxSessions));
         nodeConfig = nodeConfig.replaceAll("<MAX_SESSION_FIREFOX>",
-                String.valueOf(AwsVmManager.FIREFOX_IE_THREAD_COUNT));
-        nodeConfig = nodeConfig.replaceAll("<MAX_SESSION_IE>", String.valueOf(AwsVmManager.FIREFOX_IE_THREAD_COUNT));
-        nodeConfig = nodeConfig.replaceAll("<MAX_SESSION_CHROME>", String.valueOf(AwsVmManager.CHROME_THREAD_COUNT));
+                String.valueOf(getMaxInstances(maxInstancesByBrowser, BrowserType.FIREFOX)));
+        nodeConfig = nodeConfig.replaceAll("<MAX_SESSION_IE>",
+                String.valueOf(getMaxInstances(maxInstancesByBrowser, "internetexplorer")));
+        nodeConfig = nodeConfig.replaceAll("<MAX_SESSION_CHROME>",
+                String.valueOf(getMaxInstances(maxInstancesByBrowser, BrowserType.CHROME)));
         nodeConfig = nodeConfig.replaceAll("<UUID>", uuid);
         nodeConfig = nodeConfig.replaceAll("<CREATED_BROWSER>", browser);
         nodeConfig = nodeConfig.replaceAll("<CREATED_OS>", os);
@@ -458,6 +1200,37 @@ public class AwsVmManager implements VmManager {
         return nodeConfig;
     }
 
+    /**
+     * Returns the maximum sessions of each browser nodes have been started with when the browsers are not planned for.
+     *
+     * @return
+     */
+    private static Map<String, Integer> getDefaultMaxInstances() {
+        Map<String, Integer> maxInstancesByBrowser = new HashMap<>();
+        maxInstancesByBrowser.put(BrowserType.FIREFOX, AwsVmManager.FIREFOX_IE_THREAD_COUNT);
+        maxInstancesByBrowser.put("internetexplorer", AwsVmManager.FIREFOX_IE_THREAD_COUNT);
+        maxInstancesByBrowser.put(BrowserType.CHROME, AwsVmManager.CHROME_THREAD_COUNT);
+        return maxInstancesByBrowser;
+    }
+
+    /**
+     * Returns the maximum sessions of the browser, or 0 if the browser is not in the map.
+     *
+     * @param   maxInstancesByBrowser  Maximum sessions keyed by browser
+     * @param   browser                Browser to look up
+     *
+     * @return
+     */
+    private static int getMaxInstances(final Map<String, Integer> maxInstancesByBrowser, final String browser) {
+        for (Map.Entry<String, Integer> entry : maxInstancesByBrowser.entrySet()) {
+            if (AutomationUtils.lowerCaseMatch(browser, entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+
+        return 0;
+    }
+
     /**
      * Returns the S3 config file replaced with the appropriate AWS key/secret.
      *
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket shared by every call this plugin makes to EC2, so that bursts of launches, tagging, reaping and cleanup
+ * do not add up to more than the account is allowed.  Each API has its own budget of calls per second, as EC2 throttles
+ * its APIs separately.  Calls which are throttled anyway are retried after an exponential backoff with full jitter, so
+ * that threads which were throttled together do not retry together
+ * @author mhardin
+ */
+public final class Ec2RateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(Ec2RateLimiter.class);
+
+    // Prefix of the properties which override the calls per second of an API, e.g. ec2_rate_limit_RunInstances=2
+    public static final String RATE_LIMIT_PROPERTY_PREFIX = "ec2_rate_limit_";
+    public static final double DEFAULT_CALLS_PER_SECOND = 10;
+    private static final Map<String,Double> DEFAULT_BUDGETS = new HashMap<>();
+    private static final int MAX_RETRIES = 5;
+    private static final long DEFAULT_BASE_BACKOFF_IN_MILLIS = 200;
+    private static final long MAX_BACKOFF_IN_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    static {
+        // Mutating calls have a smaller budget than describe calls with EC2
+        DEFAULT_BUDGETS.put("RunInstances", 2.0);
+        DEFAULT_BUDGETS.put("RequestSpotInstances", 2.0);
+        DEFAULT_BUDGETS.put("TerminateInstances", 5.0);
+        DEFAULT_BUDGETS.put("CreateTags", 5.0);
+        DEFAULT_BUDGETS.put("CancelSpotInstanceRequests", 5.0);
+        DEFAULT_BUDGETS.put("DescribeInstances", 20.0);
+        DEFAULT_BUDGETS.put("DescribeSpotInstanceRequests", 20.0);
+    }
+
+    private final ConcurrentMap<String,ApiBudget> budgets = Maps.newConcurrentMap();
+    private final Random random = new Random();
+    private volatile long baseBackoffInMillis = Ec2RateLimiter.DEFAULT_BASE_BACKOFF_IN_MILLIS;
+
+    /**
+     * A call to a single EC2 API
+     * @param <T> Result of the call
+     */
+    public interface Ec2Call<T> {
+
+        /**
+         * Makes the call to EC2
+         * @return
+         */
+        T call();
+    }
+
+    /**
+     * Overrides the calls per second of each API with an {@link #RATE_LIMIT_PROPERTY_PREFIX ec2_rate_limit_} property
+     * @param properties Properties to read the budgets from
+     */
+    public void configure(Properties properties) {
+        if(properties == null) {
+            return;
+        }
+        for(String key : properties.stringPropertyNames()) {
+            if(!key.startsWith(Ec2RateLimiter.RATE_LIMIT_PROPERTY_PREFIX)) {
+                continue;
+            }
+            String api = key.substring(Ec2RateLimiter.RATE_LIMIT_PROPERTY_PREFIX.length());
+            try {
+                double callsPerSecond = Double.parseDouble(properties.getProperty(key).trim());
+                if(callsPerSecond <= 0) {
+                    throw new NumberFormatException("Rate must be positive");
+                }
+                getBudget(api).limiter.setRate(callsPerSecond);
+            } catch(NumberFormatException e) {
+                log.error(String.format("Invalid rate limit [%s] for EC2 API [%s]: %s", properties.getProperty(key), api, e));
+            }
+        }
+    }
+
+    /**
+     * Waits for a token from the budget of the API and makes the call, retrying it with a jittered backoff when EC2
+     * throttles it
+     * @param api Name of the EC2 API, e.g. 'RunInstances'
+     * @param call Call to make
+     * @param <T> Result of the call
+     * @return
+     */
+    public <T> T call(String api, Ec2Call<T> call) {
+        ApiBudget budget = getBudget(api);
+        for(int attempt = 0; ; attempt++) {
+            budget.queued.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                budget.limiter.acquire();
+            } finally {
+                budget.queued.decrementAndGet();
+                budget.waitInMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            budget.calls.incrementAndGet();
+            try {
+                return call.call();
+            } catch(AmazonServiceException e) {
+                if(!isThrottled(e)) {
+                    throw e;
+                }
+                budget.throttled.incrementAndGet();
+                if(attempt >= Ec2RateLimiter.MAX_RETRIES) {
+                    log.error(String.format("EC2 API [%s] was still throttled after %d retries", api, attempt));
+                    throw e;
+                }
+                long backoff = getBackoffInMillis(attempt);
+                log.warn(String.format("EC2 API [%s] was throttled, retrying in %d ms", api, backoff));
+                budget.retries.incrementAndGet();
+                try {
+                    Thread.sleep(backoff);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the usage of every API called so far
+     * @return
+     */
+    public List<ApiMetrics> getMetrics() {
+        List<ApiMetrics> metrics = new ArrayList<>();
+        for(Map.Entry<String,ApiBudget> entry : budgets.entrySet()) {
+            ApiBudget budget = entry.getValue();
+            metrics.add(new ApiMetrics(entry.getKey(), budget.limiter.getRate(), budget.calls.get(), budget.queued.get(),
+                    budget.waitInMillis.get(), budget.throttled.get(), budget.retries.get()));
+        }
+        Collections.sort(metrics);
+        return metrics;
+    }
+
+    @VisibleForTesting
+    void setBaseBackoffInMillis(long baseBackoffInMillis) {
+        this.baseBackoffInMillis = baseBackoffInMillis;
+    }
+
+    /**
+     * Returns a random backoff between zero and the exponential backoff for the attempt
+     * @param attempt Number of attempts which were throttled before this one
+     * @return
+     */
+    private long getBackoffInMillis(int attempt) {
+        long ceiling = Math.min(Ec2RateLimiter.MAX_BACKOFF_IN_MILLIS, baseBackoffInMillis << attempt);
+        synchronized(random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    private static boolean isThrottled(AmazonServiceException e) {
+        return "RequestLimitExceeded".equals(e.getErrorCode()) || "Throttling".equals(e.getErrorCode());
+    }
+
+    private ApiBudget getBudget(String api) {
+        ApiBudget budget = budgets.get(api);
+        if(budget == null) {
+            Double callsPerSecond = Ec2RateLimiter.DEFAULT_BUDGETS.get(api);
+            budget = new ApiBudget(callsPerSecond == null ? Ec2RateLimiter.DEFAULT_CALLS_PER_SECOND : callsPerSecond);
+            ApiBudget existing = budgets.putIfAbsent(api, budget);
+            if(existing != null) {
+                budget = existing;
+            }
+        }
+        return budget;
+    }
+
+    private static final class ApiBudget {
+
+        private final RateLimiter limiter;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong waitInMillis = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+
+        private ApiBudget(double callsPerSecond) {
+            this.limiter = RateLimiter.create(callsPerSecond);
+        }
+    }
+
+    /**
+     * Usage of a single EC2 API
+     */
+    public static final class ApiMetrics implements Comparable<ApiMetrics> {
+
+        private final String api;
+        private final double callsPerSecond;
+        private final long calls;
+        private final int queued;
+        private final long waitInMillis;
+        private final long throttled;
+        private final long retries;
+
+        ApiMetrics(String api, double callsPerSecond, long calls, int queued, long waitInMillis, long throttled, long retries) {
+            this.api = api;
+            this.callsPerSecond = callsPerSecond;
+            this.calls = calls;
+            this.queued = queued;
+            this.waitInMillis = waitInMillis;
+            this.throttled = throttled;
+            this.retries = retries;
+        }
+
+        public String getApi() {
+            return api;
+        }
+
+        /**
+         * Returns the budget of the API in calls per second
+         * @return
+         */
+        public double getCallsPerSecond() {
+            return callsPerSecond;
+        }
+
+        /**
+         * Returns the number of calls made, including retries
+         * @return
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the number of calls currently waiting for a token
+         * @return
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Returns the total time calls have spent waiting for a token
+         * @return
+         */
+        public long getWaitInMillis() {
+            return waitInMillis;
+        }
+
+        /**
+         * Returns the number of calls EC2 throttled
+         * @return
+         */
+        public long getThrottled() {
+            return throttled;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        @Override
+        public int compareTo(ApiMetrics other) {
+            return api.compareTo(other.api);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import org.openqa.selenium.remote.BrowserType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Instance types nodes can be started as, along with how many sessions of each browser a type can sustain and what it
+ * costs per hour.  The catalog is read from the AWS properties:
+ * <pre>
+ * node_instance_catalog=c3.large,t2.micro
+ * c3.large_vcpu=2
+ * c3.large_memory_gib=3.75
+ * c3.large_hourly_price=0.105
+ * c3.large_sessions_chrome=6
+ * c3.large_sessions_firefox=6
+ * </pre>
+ * If no catalog is configured, one is built from the {@code node_instance_type_<browser>} properties and the built in
+ * thread counts.  The prices of those types are not known, so they are all priced the same
+ * @author mhardin
+ */
+public final class InstanceTypeCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(InstanceTypeCatalog.class);
+
+    public static final String CATALOG_PROPERTY = "node_instance_catalog";
+    // Price given to every instance type when the catalog is not configured, so the fewest nodes are started
+    private static final double UNKNOWN_PRICE = 1;
+    // Cheapest types first, and the smaller type when two cost the same
+    private static final Comparator<InstanceType> BY_PRICE = new Comparator<InstanceType>() {
+        @Override
+        public int compare(InstanceType type1, InstanceType type2) {
+            int result = Double.compare(type1.getHourlyPrice(), type2.getHourlyPrice());
+            return result != 0 ? result : type1.getMaxSessions() - type2.getMaxSessions();
+        }
+    };
+
+    private final List<InstanceType> instanceTypes;
+
+    InstanceTypeCatalog(List<InstanceType> instanceTypes) {
+        List<InstanceType> sorted = new ArrayList<>(instanceTypes);
+        Collections.sort(sorted, InstanceTypeCatalog.BY_PRICE);
+        this.instanceTypes = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Reads the catalog from the specified properties.  Instance types which are not configured correctly are logged
+     * and left out of the catalog
+     * @param properties AWS properties
+     * @return
+     */
+    public static InstanceTypeCatalog fromProperties(Properties properties) {
+        if(properties == null) {
+            return new InstanceTypeCatalog(Collections.<InstanceType>emptyList());
+        }
+        String catalog = properties.getProperty(InstanceTypeCatalog.CATALOG_PROPERTY);
+        if(catalog == null) {
+            return fromLegacyProperties(properties);
+        }
+        List<InstanceType> instanceTypes = new ArrayList<>();
+        for(String name : catalog.split(",")) {
+            name = name.trim();
+            if(name.isEmpty()) {
+                continue;
+            }
+            try {
+                int vcpu = Integer.parseInt(getRequiredProperty(properties, name + "_vcpu"));
+                double memoryGib = Double.parseDouble(getRequiredProperty(properties, name + "_memory_gib"));
+                double hourlyPrice = Double.parseDouble(getRequiredProperty(properties, name + "_hourly_price"));
+                Map<String,Integer> sessionsByBrowser = new LinkedHashMap<>();
+                String sessionsPrefix = name + "_sessions_";
+                for(String key : properties.stringPropertyNames()) {
+                    if(key.startsWith(sessionsPrefix)) {
+                        int sessions = Integer.parseInt(properties.getProperty(key).trim());
+                        if(sessions > 0) {
+                            sessionsByBrowser.put(normalize(key.substring(sessionsPrefix.length())), sessions);
+                        }
+                    }
+                }
+                if(sessionsByBrowser.isEmpty()) {
+                    throw new IllegalArgumentException("No browser sessions configured");
+                }
+                instanceTypes.add(new InstanceType(name, vcpu, memoryGib, hourlyPrice, sessionsByBrowser));
+            } catch(IllegalArgumentException e) {
+                log.error(String.format("Instance type [%s] in the catalog is invalid and will not be used: %s", name, e.getMessage()));
+            }
+        }
+        return new InstanceTypeCatalog(instanceTypes);
+    }
+
+    /**
+     * Builds the catalog from the single instance type configured for each browser
+     * @param properties AWS properties
+     * @return
+     */
+    private static InstanceTypeCatalog fromLegacyProperties(Properties properties) {
+        Map<String,Map<String,Integer>> sessionsByType = new LinkedHashMap<>();
+        String chromeType = properties.getProperty("node_instance_type_" + BrowserType.CHROME);
+        if(chromeType != null) {
+            // Firefox threads have always been packed onto the Chrome instance type as well
+            Map<String,Integer> sessions = new LinkedHashMap<>();
+            sessions.put(BrowserType.CHROME, AwsVmManager.CHROME_THREAD_COUNT);
+            sessions.put(BrowserType.FIREFOX, AwsVmManager.CHROME_THREAD_COUNT);
+            sessionsByType.put(chromeType, sessions);
+        }
+        String firefoxType = properties.getProperty("node_instance_type_" + BrowserType.FIREFOX);
+        if(firefoxType != null && !sessionsByType.containsKey(firefoxType)) {
+            sessionsByType.put(firefoxType, Collections.singletonMap(BrowserType.FIREFOX, AwsVmManager.FIREFOX_IE_THREAD_COUNT));
+        }
+        List<InstanceType> instanceTypes = new ArrayList<>();
+        for(Map.Entry<String,Map<String,Integer>> entry : sessionsByType.entrySet()) {
+            instanceTypes.add(new InstanceType(entry.getKey(), 0, 0, InstanceTypeCatalog.UNKNOWN_PRICE, entry.getValue()));
+        }
+        return new InstanceTypeCatalog(instanceTypes);
+    }
+
+    private static String getRequiredProperty(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if(value == null) {
+            throw new IllegalArgumentException("Missing property " + key);
+        }
+        return value.trim();
+    }
+
+    private static String normalize(String browser) {
+        return browser.toLowerCase().replace(" ", "");
+    }
+
+    /**
+     * Returns every instance type in the catalog, cheapest first
+     * @return
+     */
+    public List<InstanceType> getInstanceTypes() {
+        return instanceTypes;
+    }
+
+    /**
+     * Returns the instance types a node running the specified sessions fits on, cheapest first
+     * @param maxInstancesByBrowser Sessions of each browser on the node
+     * @return
+     */
+    public List<InstanceType> getInstanceTypesFor(Map<String,Integer> maxInstancesByBrowser) {
+        List<InstanceType> fitting = new ArrayList<>();
+        for(InstanceType instanceType : instanceTypes) {
+            if(instanceType.fits(maxInstancesByBrowser)) {
+                fitting.add(instanceType);
+            }
+        }
+        return fitting;
+    }
+
+    /**
+     * Returns the fewest sessions of the browser any instance type runs, or 0 if no instance type can run the browser
+     * @param browser Browser to look up
+     * @return
+     */
+    public int getSmallestSessions(String browser) {
+        int smallest = 0;
+        for(InstanceType instanceType : instanceTypes) {
+            int sessions = instanceType.getSessions(browser);
+            if(sessions > 0 && (smallest == 0 || sessions < smallest)) {
+                smallest = sessions;
+            }
+        }
+        return smallest;
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceTypeCatalog " + instanceTypes;
+    }
+
+    /**
+     * Instance type nodes can be started as
+     */
+    public static final class InstanceType {
+
+        private final String name;
+        private final int vcpu;
+        private final double memoryGib;
+        private final double hourlyPrice;
+        private final Map<String,Integer> sessionsByBrowser;
+
+        InstanceType(String name, int vcpu, double memoryGib, double hourlyPrice, Map<String,Integer> sessionsByBrowser) {
+            this.name = name;
+            this.vcpu = vcpu;
+            this.memoryGib = memoryGib;
+            this.hourlyPrice = hourlyPrice;
+            this.sessionsByBrowser = Collections.unmodifiableMap(new LinkedHashMap<>(sessionsByBrowser));
+        }
+
+        /**
+         * Returns the AWS name of the instance type (e.g. 'c3.large')
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of vCPUs, or 0 if it is not known
+         * @return
+         */
+        public int getVcpu() {
+            return vcpu;
+        }
+
+        /**
+         * Returns the memory in GiB, or 0 if it is not known
+         * @return
+         */
+        public double getMemoryGib() {
+            return memoryGib;
+        }
+
+        /**
+         * Returns the hourly price of a node
+         * @return
+         */
+        public double getHourlyPrice() {
+            return hourlyPrice;
+        }
+
+        /**
+         * Returns the number of sessions of the browser a node can sustain when it runs only that browser, or 0 if the
+         * browser cannot run on this instance type
+         * @param browser Browser to look up
+         * @return
+         */
+        public int getSessions(String browser) {
+            Integer sessions = sessionsByBrowser.get(normalize(browser));
+            return sessions == null ? 0 : sessions;
+        }
+
+        /**
+         * Returns the most sessions of any browser a node can sustain
+         * @return
+         */
+        public int getMaxSessions() {
+            int maxSessions = 0;
+            for(int sessions : sessionsByBrowser.values()) {
+                maxSessions = Math.max(maxSessions, sessions);
+            }
+            return maxSessions;
+        }
+
+        /**
+         * Returns the most sessions a node can sustain when it runs any mix of the specified browsers, or 0 if one of
+         * the browsers cannot run on this instance type
+         * @param browsers Browsers to look up
+         * @return
+         */
+        public int getSessions(Iterable<String> browsers) {
+            int sessions = Integer.MAX_VALUE;
+            for(String browser : browsers) {
+                sessions = Math.min(sessions, getSessions(browser));
+            }
+            return sessions == Integer.MAX_VALUE ? 0 : sessions;
+        }
+
+        /**
+         * Returns true if a node of this type can sustain the specified sessions at once.  Each session takes up its
+         * share of the node for its browser, so 3 Chrome sessions on a type that runs 6 leave room for half of the
+         * sessions of any other browser
+         * @param maxInstancesByBrowser Sessions of each browser on the node
+         * @return
+         */
+        boolean fits(Map<String,Integer> maxInstancesByBrowser) {
+            double used = 0;
+            for(Map.Entry<String,Integer> entry : maxInstancesByBrowser.entrySet()) {
+                int sessions = getSessions(entry.getKey());
+                if(sessions == 0) {
+                    return false;
+                }
+                used += (double)entry.getValue() / sessions;
+            }
+            // Allow for rounding of the shares
+            return used <= 1.000001;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [vcpu=%d, memoryGib=%s, hourlyPrice=%s, sessions=%s]", name, vcpu, memoryGib, hourlyPrice, sessionsByBrowser);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the Linux nodes to start for the threads requested for several browsers at the lowest hourly price, using the
+ * instance types in the {@link com.rmn.qa.aws.InstanceTypeCatalog catalog}.  Threads of every browser are packed onto
+ * the cheapest combination of instance types which can run all of the browsers, and each node is started with a
+ * matching number of sessions for every browser.  Once packed, a node is started as the cheapest type its sessions fit
+ * on, or split up by browser when starting the browsers on their own nodes costs less
+ * @author mhardin
+ */
+public final class NodeLaunchPlanner {
+
+    // Allow for rounding when comparing prices
+    private static final double PRICE_TOLERANCE = 0.000001;
+
+    private NodeLaunchPlanner() { }
+
+    /**
+     * Returns the nodes to launch for the specified threads
+     * @param threadsByBrowser Number of threads requested for each browser
+     * @param catalog Instance types nodes can be started as
+     * @return
+     * @throws IllegalArgumentException If nodes cannot be started for one of the browsers, or no instance type can run
+     * the sessions planned for a node
+     */
+    public static List<NodeLaunch> plan(Map<String,Integer> threadsByBrowser, InstanceTypeCatalog catalog) {
+        final Map<String,Integer> smallestSessions = new LinkedHashMap<>();
+        for(String browser : threadsByBrowser.keySet()) {
+            int sessions = catalog.getSmallestSessions(browser);
+            if(sessions == 0) {
+                throw new IllegalArgumentException("Unsupported browser: " + browser);
+            }
+            smallestSessions.put(browser, sessions);
+        }
+        // Pack the browsers which can only run many sessions per node first, so a partially filled last node holds the
+        // browsers which could run on a smaller instance type
+        List<String> browsers = new ArrayList<>(threadsByBrowser.keySet());
+        Collections.sort(browsers, new Comparator<String>() {
+            @Override
+            public int compare(String browser1, String browser2) {
+                return smallestSessions.get(browser2) - smallestSessions.get(browser1);
+            }
+        });
+        List<InstanceTypeCatalog.InstanceType> candidates = new ArrayList<>();
+        for(InstanceTypeCatalog.InstanceType instanceType : catalog.getInstanceTypes()) {
+            if(instanceType.getSessions(browsers) > 0) {
+                candidates.add(instanceType);
+            }
+        }
+        // No instance type runs every browser, so each browser gets its own nodes
+        if(candidates.isEmpty()) {
+            return planSeparately(threadsByBrowser, catalog);
+        }
+        int totalThreads = 0;
+        for(int threads : threadsByBrowser.values()) {
+            totalThreads += threads;
+        }
+        List<InstanceTypeCatalog.InstanceType> nodes = getCheapestNodes(candidates, browsers, totalThreads);
+        Map<Map<String,Integer>,Integer> nodesBySessions = new LinkedHashMap<>();
+        int browserIndex = 0;
+        int remaining = browsers.isEmpty() ? 0 : threadsByBrowser.get(browsers.get(0));
+        for(InstanceTypeCatalog.InstanceType node : nodes) {
+            Map<String,Integer> sessions = new LinkedHashMap<>();
+            int free = node.getSessions(browsers);
+            while(free > 0 && browserIndex < browsers.size()) {
+                int threads = Math.min(free, remaining);
+                if(threads > 0) {
+                    sessions.put(browsers.get(browserIndex), threads);
+                }
+                free -= threads;
+                remaining -= threads;
+                if(remaining == 0 && ++browserIndex < browsers.size()) {
+                    remaining = threadsByBrowser.get(browsers.get(browserIndex));
+                }
+            }
+            if(!sessions.isEmpty()) {
+                addNodes(nodesBySessions, sessions, 1);
+            }
+        }
+        List<NodeLaunch> launches = new ArrayList<>();
+        for(Map.Entry<Map<String,Integer>,Integer> entry : nodesBySessions.entrySet()) {
+            Map<String,Integer> sessions = entry.getKey();
+            NodeLaunch launch = new NodeLaunch(catalog.getInstanceTypesFor(sessions), entry.getValue(), sessions);
+            if(browsers.size() > 1) {
+                // Browsers may be cheaper to run on their own smaller nodes than packed onto a type which runs them all
+                Map<String,Integer> threads = new LinkedHashMap<>();
+                for(Map.Entry<String,Integer> session : sessions.entrySet()) {
+                    threads.put(session.getKey(), session.getValue() * launch.getNodeCount());
+                }
+                List<NodeLaunch> separate = planSeparately(threads, catalog);
+                if(getHourlyPrice(separate) < launch.getHourlyPrice() - NodeLaunchPlanner.PRICE_TOLERANCE) {
+                    launches.addAll(separate);
+                    continue;
+                }
+            }
+            launches.add(launch);
+        }
+        return launches;
+    }
+
+    /**
+     * Returns the nodes to launch for idle nodes of a single browser, which are started as the instance type with the
+     * lowest hourly price per session of the browser and run as many sessions as that type can
+     * @param browser Browser to start the nodes for
+     * @param nodeCount Number of nodes to start
+     * @param catalog Instance types nodes can be started as
+     * @return
+     * @throws IllegalArgumentException If nodes cannot be started for the browser
+     */
+    public static NodeLaunch planNodes(String browser, int nodeCount, InstanceTypeCatalog catalog) {
+        InstanceTypeCatalog.InstanceType cheapest = null;
+        for(InstanceTypeCatalog.InstanceType instanceType : catalog.getInstanceTypes()) {
+            int sessions = instanceType.getSessions(browser);
+            if(sessions == 0) {
+                continue;
+            }
+            // Prefer the smaller type on a tie so idle nodes cost less
+            if(cheapest == null || instanceType.getHourlyPrice() / sessions < cheapest.getHourlyPrice() / cheapest.getSessions(browser) - NodeLaunchPlanner.PRICE_TOLERANCE) {
+                cheapest = instanceType;
+            }
+        }
+        if(cheapest == null) {
+            throw new IllegalArgumentException("Unsupported browser: " + browser);
+        }
+        Map<String,Integer> sessions = Collections.singletonMap(browser, cheapest.getSessions(browser));
+        return new NodeLaunch(catalog.getInstanceTypesFor(sessions), nodeCount, sessions);
+    }
+
+    /**
+     * Returns the cheapest instance types to start which together run the specified number of threads, largest first
+     * @param candidates Instance types which can run every browser
+     * @param browsers Browsers the threads are requested for
+     * @param totalThreads Number of threads to run
+     * @return
+     */
+    private static List<InstanceTypeCatalog.InstanceType> getCheapestNodes(List<InstanceTypeCatalog.InstanceType> candidates,
+                                                                          final List<String> browsers, int totalThreads) {
+        // The cheapest price to run each number of threads, preferring fewer nodes and then fewer sessions on a tie
+        double[] prices = new double[totalThreads + 1];
+        int[] nodeCounts = new int[totalThreads + 1];
+        int[] sessionCounts = new int[totalThreads + 1];
+        InstanceTypeCatalog.InstanceType[] lastNode = new InstanceTypeCatalog.InstanceType[totalThreads + 1];
+        for(int threads = 1; threads <= totalThreads; threads++) {
+            for(InstanceTypeCatalog.InstanceType candidate : candidates) {
+                int sessions = candidate.getSessions(browsers);
+                int previous = Math.max(0, threads - sessions);
+                double price = prices[previous] + candidate.getHourlyPrice();
+                int nodeCount = nodeCounts[previous] + 1;
+                int sessionCount = sessionCounts[previous] + sessions;
+                if(lastNode[threads] == null || isCheaper(price, nodeCount, sessionCount, prices[threads], nodeCounts[threads], sessionCounts[threads])) {
+                    prices[threads] = price;
+                    nodeCounts[threads] = nodeCount;
+                    sessionCounts[threads] = sessionCount;
+                    lastNode[threads] = candidate;
+                }
+            }
+        }
+        List<InstanceTypeCatalog.InstanceType> nodes = new ArrayList<>();
+        for(int threads = totalThreads; threads > 0; threads = Math.max(0, threads - lastNode[threads].getSessions(browsers))) {
+            nodes.add(lastNode[threads]);
+        }
+        Collections.sort(nodes, new Comparator<InstanceTypeCatalog.InstanceType>() {
+            @Override
+            public int compare(InstanceTypeCatalog.InstanceType type1, InstanceTypeCatalog.InstanceType type2) {
+                return type2.getSessions(browsers) - type1.getSessions(browsers);
+            }
+        });
+        return nodes;
+    }
+
+    private static boolean isCheaper(double price, int nodeCount, int sessionCount, double otherPrice, int otherNodeCount, int otherSessionCount) {
+        if(Math.abs(price - otherPrice) > NodeLaunchPlanner.PRICE_TOLERANCE) {
+            return price < otherPrice;
+        }
+        if(nodeCount != otherNodeCount) {
+            return nodeCount < otherNodeCount;
+        }
+        return sessionCount < otherSessionCount;
+    }
+
+    private static List<NodeLaunch> planSeparately(Map<String,Integer> threadsByBrowser, InstanceTypeCatalog catalog) {
+        List<NodeLaunch> launches = new ArrayList<>();
+        for(Map.Entry<String,Integer> entry : threadsByBrowser.entrySet()) {
+            launches.addAll(plan(Collections.singletonMap(entry.getKey(), entry.getValue()), catalog));
+        }
+        return launches;
+    }
+
+    private static double getHourlyPrice(List<NodeLaunch> launches) {
+        double price = 0;
+        for(NodeLaunch launch : launches) {
+            price += launch.getHourlyPrice();
+        }
+        return price;
+    }
+
+    private static void addNodes(Map<Map<String,Integer>,Integer> nodesBySessions, Map<String,Integer> sessions, int count) {
+        Integer existing = nodesBySessions.get(sessions);
+        nodesBySessions.put(sessions, existing == null ? count : existing + count);
+    }
+
+    /**
+     * Nodes with the same sessions to launch together
+     */
+    public static final class NodeLaunch {
+
+        private final List<InstanceTypeCatalog.InstanceType> instanceTypes;
+        private final int nodeCount;
+        private final Map<String,Integer> maxInstancesByBrowser;
+
+        NodeLaunch(List<InstanceTypeCatalog.InstanceType> instanceTypes, int nodeCount, Map<String,Integer> maxInstancesByBrowser) {
+            if(instanceTypes.isEmpty()) {
+                throw new IllegalArgumentException("No instance type can run sessions " + maxInstancesByBrowser);
+            }
+            this.instanceTypes = Collections.unmodifiableList(new ArrayList<>(instanceTypes));
+            this.nodeCount = nodeCount;
+            this.maxInstancesByBrowser = Collections.unmodifiableMap(maxInstancesByBrowser);
+        }
+
+        /**
+         * Returns the browser which was packed onto the nodes first, which the nodes are tracked under
+         * @return
+         */
+        public String getBrowser() {
+            return maxInstancesByBrowser.keySet().iterator().next();
+        }
+
+        /**
+         * Returns the cheapest instance type the nodes can be started as
+         * @return
+         */
+        public InstanceTypeCatalog.InstanceType getInstanceType() {
+            return instanceTypes.get(0);
+        }
+
+        /**
+         * Returns every instance type the nodes can be started as, cheapest first.  The next type is used when AWS has
+         * no capacity for the previous one
+         * @return
+         */
+        public List<InstanceTypeCatalog.InstanceType> getInstanceTypes() {
+            return instanceTypes;
+        }
+
+        /**
+         * Returns the number of nodes to start
+         * @return
+         */
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * Returns the number of sessions each browser can run on a node
+         * @return
+         */
+        public Map<String,Integer> getMaxInstancesByBrowser() {
+            return maxInstancesByBrowser;
+        }
+
+        /**
+         * Returns the total number of sessions a node can run
+         * @return
+         */
+        public int getMaxSessions() {
+            int maxSessions = 0;
+            for(int maxInstances : maxInstancesByBrowser.values()) {
+                maxSessions += maxInstances;
+            }
+            return maxSessions;
+        }
+
+        /**
+         * Returns the hourly price of all the nodes when started as the cheapest instance type
+         * @return
+         */
+        public double getHourlyPrice() {
+            return getInstanceType().getHourlyPrice() * nodeCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s nodes with sessions %s", nodeCount, getInstanceType().getName(), maxInstancesByBrowser);
+        }
+    }
+}
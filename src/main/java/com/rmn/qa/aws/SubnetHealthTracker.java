@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers how recent launches went in each subnet for each instance type, so launches go to the healthiest subnets
+ * first and skip subnets which just ran out of capacity.  A capacity failure opens the circuit for the subnet and
+ * instance type for a cool-down period, which doubles for every failure in a row up to a limit.  Once the cool-down
+ * passes, launches are let through again, and a successful launch resets the cool-down
+ * @author mhardin
+ */
+public final class SubnetHealthTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(SubnetHealthTracker.class);
+
+    public static final long DEFAULT_COOL_DOWN_IN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long MAX_COOL_DOWN_IN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    // Weight given to the latest launch in the health score and average latency
+    private static final double SMOOTHING = 0.3;
+    // Name the default subnet is tracked under when no subnets are configured
+    private static final String DEFAULT_SUBNET = "default";
+
+    private final ConcurrentMap<String,SubnetHealth> healthBySubnet = Maps.newConcurrentMap();
+    private volatile long coolDownInMillis = SubnetHealthTracker.DEFAULT_COOL_DOWN_IN_MILLIS;
+
+    /**
+     * Sets how long a circuit stays open after its first capacity failure
+     * @param coolDownInMillis Cool-down in milliseconds
+     */
+    public void setCoolDownInMillis(long coolDownInMillis) {
+        this.coolDownInMillis = coolDownInMillis;
+    }
+
+    /**
+     * Records a launch in the subnet which started every node asked of it
+     * @param subnetId Subnet of the launch, or null for the default subnet
+     * @param instanceType Instance type of the launch
+     * @param latencyInMillis How long AWS took to respond
+     */
+    public void recordSuccess(String subnetId, String instanceType, long latencyInMillis) {
+        getHealth(subnetId, instanceType).recordLaunch(true, latencyInMillis, System.currentTimeMillis(), coolDownInMillis);
+    }
+
+    /**
+     * Records a launch in the subnet which had no capacity for some or all of the nodes asked of it
+     * @param subnetId Subnet of the launch, or null for the default subnet
+     * @param instanceType Instance type of the launch
+     * @param latencyInMillis How long AWS took to respond
+     */
+    public void recordCapacityFailure(String subnetId, String instanceType, long latencyInMillis) {
+        SubnetHealth health = getHealth(subnetId, instanceType);
+        health.recordLaunch(false, latencyInMillis, System.currentTimeMillis(), coolDownInMillis);
+        log.warn(String.format("Circuit opened for subnet [%s] and instance type [%s] after %d capacity failures in a row",
+                health.getSubnetId(), instanceType, health.getConsecutiveFailures()));
+    }
+
+    /**
+     * Returns the subnets whose circuit is closed for the instance type, healthiest first.  Subnets which are equally
+     * healthy keep their configured order
+     * @param subnetIds Configured subnets, which may contain null for the default subnet
+     * @param instanceType Instance type to launch
+     * @param now Current time in milliseconds
+     * @return
+     */
+    public List<String> getAvailableSubnets(List<String> subnetIds, final String instanceType, long now) {
+        List<String> available = new ArrayList<>();
+        for(String subnetId : subnetIds) {
+            SubnetHealth health = healthBySubnet.get(getKey(subnetId, instanceType));
+            if(health == null || !health.isOpen(now)) {
+                available.add(subnetId);
+            }
+        }
+        // Sorting is stable, so subnets with no launches yet keep their configured order
+        Collections.sort(available, new Comparator<String>() {
+            @Override
+            public int compare(String subnet1, String subnet2) {
+                SubnetHealth health1 = healthBySubnet.get(getKey(subnet1, instanceType));
+                SubnetHealth health2 = healthBySubnet.get(getKey(subnet2, instanceType));
+                int result = Double.compare(getScore(health2), getScore(health1));
+                return result != 0 ? result : Double.compare(getLatency(health1), getLatency(health2));
+            }
+        });
+        return available;
+    }
+
+    /**
+     * Returns the health of every subnet and instance type launched in so far
+     * @return
+     */
+    public List<SubnetHealth> getHealth() {
+        return new ArrayList<>(healthBySubnet.values());
+    }
+
+    private SubnetHealth getHealth(String subnetId, String instanceType) {
+        String key = getKey(subnetId, instanceType);
+        SubnetHealth health = healthBySubnet.get(key);
+        if(health == null) {
+            health = new SubnetHealth(subnetId == null ? SubnetHealthTracker.DEFAULT_SUBNET : subnetId, instanceType);
+            SubnetHealth existing = healthBySubnet.putIfAbsent(key, health);
+            if(existing != null) {
+                health = existing;
+            }
+        }
+        return health;
+    }
+
+    private static String getKey(String subnetId, String instanceType) {
+        return (subnetId == null ? SubnetHealthTracker.DEFAULT_SUBNET : subnetId) + "|" + instanceType;
+    }
+
+    // Subnets which have not been launched in yet are assumed to be healthy
+    private static double getScore(SubnetHealth health) {
+        return health == null ? 1 : health.getScore();
+    }
+
+    private static double getLatency(SubnetHealth health) {
+        return health == null ? 0 : health.getAverageLatencyInMillis();
+    }
+
+    /**
+     * Health of launches of an instance type in a subnet
+     */
+    public static final class SubnetHealth {
+
+        private final String subnetId;
+        private final String instanceType;
+        private double score = 1;
+        private double averageLatencyInMillis;
+        private int successes;
+        private int capacityFailures;
+        private int consecutiveFailures;
+        private long openUntil;
+
+        SubnetHealth(String subnetId, String instanceType) {
+            this.subnetId = subnetId;
+            this.instanceType = instanceType;
+        }
+
+        synchronized void recordLaunch(boolean success, long latencyInMillis, long now, long coolDownInMillis) {
+            double outcome = success ? 1 : 0;
+            score = SubnetHealthTracker.SMOOTHING * outcome + (1 - SubnetHealthTracker.SMOOTHING) * score;
+            if(successes + capacityFailures == 0) {
+                averageLatencyInMillis = latencyInMillis;
+            } else {
+                averageLatencyInMillis = SubnetHealthTracker.SMOOTHING * latencyInMillis + (1 - SubnetHealthTracker.SMOOTHING) * averageLatencyInMillis;
+            }
+            if(success) {
+                successes++;
+                consecutiveFailures = 0;
+                openUntil = 0;
+            } else {
+                capacityFailures++;
+                consecutiveFailures++;
+                // Double the cool-down for every failure in a row, without letting the shift overflow
+                long coolDown = Math.min(SubnetHealthTracker.MAX_COOL_DOWN_IN_MILLIS, coolDownInMillis << Math.min(consecutiveFailures - 1, 10));
+                openUntil = now + coolDown;
+            }
+        }
+
+        /**
+         * Returns the subnet, or 'default' for the default subnet
+         * @return
+         */
+        public String getSubnetId() {
+            return subnetId;
+        }
+
+        /**
+         * Returns the instance type
+         * @return
+         */
+        public String getInstanceType() {
+            return instanceType;
+        }
+
+        /**
+         * Returns the health between 0 and 1, weighted towards the most recent launches
+         * @return
+         */
+        public synchronized double getScore() {
+            return score;
+        }
+
+        /**
+         * Returns how long AWS took to respond, weighted towards the most recent launches
+         * @return
+         */
+        public synchronized double getAverageLatencyInMillis() {
+            return averageLatencyInMillis;
+        }
+
+        /**
+         * Returns the number of launches which started every node asked of them
+         * @return
+         */
+        public synchronized int getSuccesses() {
+            return successes;
+        }
+
+        /**
+         * Returns the number of launches which had no capacity for some or all of the nodes
+         * @return
+         */
+        public synchronized int getCapacityFailures() {
+            return capacityFailures;
+        }
+
+        /**
+         * Returns the number of capacity failures since the last successful launch
+         * @return
+         */
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * Returns the time the circuit closes again, or 0 if it is not open
+         * @return
+         */
+        public synchronized long getOpenUntil() {
+            return openUntil;
+        }
+
+        /**
+         * Returns true if launches should skip this subnet and instance type right now
+         * @param now Current time in milliseconds
+         * @return
+         */
+        public synchronized boolean isOpen(long now) {
+            return now < openUntil;
+        }
+    }
+}
@@ -12,11 +12,16 @@
 package com.rmn.qa.aws;
 
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.rmn.qa.NodesCouldNotBeStartedException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface VmManager {
 
@@ -33,6 +38,23 @@ public interface VmManager {
     // TODO Refactor into AutomationRunRequest
     List<Instance> launchNodes(String uuid, String os, String browser, String hubHostName, int nodeCount, int maxSessions) throws NodesCouldNotBeStartedException;
 
+    /**
+     * Launches the specified instances with a planned number of sessions for each browser.  The instance types of the
+     * launch are tried in order until one has capacity
+     * @param uuid UUID of the requesting test run
+     * @param os OS of the requesting test run
+     * @param hubHostName Hub host name for the nodes to register with
+     * @param launch Nodes to be started
+     * @return
+     */
+    List<Instance> launchNodes(String uuid, String os, String hubHostName, NodeLaunchPlanner.NodeLaunch launch) throws NodesCouldNotBeStartedException;
+
+    /**
+     * Returns the instance types nodes can be started as
+     * @return
+     */
+    InstanceTypeCatalog getInstanceTypeCatalog();
+
     /**
      * Terminates the specified instance
      * @param instanceId
@@ -40,10 +62,25 @@ public interface VmManager {
     // TODO Rename to be node or instance in the name
     boolean terminateInstance(String instanceId);
 
+    /**
+     * Terminates the specified instances, sending as few requests as EC2 allows
+     * @param instanceIds Ids of the instances to terminate
+     * @return State change of each instance EC2 reported as terminating, keyed by instance id.  Instances missing from
+     * the map could not be terminated
+     */
+    Map<String,InstanceStateChange> terminateInstances(Collection<String> instanceIds);
+
     /**
      * Returns a list of reservations as defined in the {@link com.amazonaws.services.ec2.model.DescribeInstancesRequest DescribeInstancesRequest}
      * @param describeInstancesRequest
      * @return
      */
     List<Reservation> describeInstances(DescribeInstancesRequest describeInstancesRequest);
+
+    /**
+     * Returns a list of spot requests as defined in the {@link com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest DescribeSpotInstanceRequestsRequest}
+     * @param describeSpotInstanceRequestsRequest
+     * @return
+     */
+    List<SpotInstanceRequest> describeSpotInstanceRequests(DescribeSpotInstanceRequestsRequest describeSpotInstanceRequestsRequest);
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.aws.Ec2RateLimiter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Servlet which returns how each EC2 API has been used against its budget in the shared
+ * {@link com.rmn.qa.aws.Ec2RateLimiter rate limiter}
+ * @author mhardin
+ */
+public class AutomationEc2ApiServlet extends RegistryBasedServlet {
+
+    private static final long serialVersionUID = 4410395813560268375L;
+
+    /**
+     * Constructs a default EC2 API servlet
+     */
+    public AutomationEc2ApiServlet() {
+        this(null);
+    }
+
+    /**
+     * Constructs an EC2 API servlet with the specified {@link org.openqa.grid.internal.Registry registry}
+     * @param registry
+     */
+    public AutomationEc2ApiServlet(Registry registry) {
+        super(registry);
+    }
+
+    /**
+     * Returns the budget of each EC2 API as JSON, along with the number of calls queued for a token and throttled by EC2
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        JSONArray apis = new JSONArray();
+        JSONObject body = new JSONObject();
+        try {
+            for(Ec2RateLimiter.ApiMetrics metrics : AutomationContext.getContext().getEc2RateLimiter().getMetrics()) {
+                JSONObject api = new JSONObject();
+                api.put("api", metrics.getApi());
+                api.put("callsPerSecond", metrics.getCallsPerSecond());
+                api.put("calls", metrics.getCalls());
+                api.put("queued", metrics.getQueued());
+                api.put("waitMillis", metrics.getWaitInMillis());
+                api.put("throttled", metrics.getThrottled());
+                api.put("retries", metrics.getRetries());
+                apis.put(api);
+            }
+            body.put("apis", apis);
+        } catch (JSONException e) {
+            throw new ServletException("Error building EC2 API metrics", e);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (InputStream in = new ByteArrayInputStream(body.toString().getBytes("UTF-8"))) {
+            ByteStreams.copy(in, response.getOutputStream());
+        } finally {
+            response.flushBuffer();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.DemandForecaster;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Servlet which returns the threads each browser is forecast to be asked for over the coming hours, as computed by the
+ * {@link com.rmn.qa.DemandForecaster demand forecaster}
+ * @author mhardin
+ */
+public class AutomationForecastServlet extends RegistryBasedServlet {
+
+    private static final long serialVersionUID = 4207158373385616829L;
+    private static final int DEFAULT_HOURS = 24;
+    private static final int MAX_HOURS = 7 * 24;
+
+    /**
+     * Constructs a default forecast servlet
+     */
+    public AutomationForecastServlet() {
+        this(null);
+    }
+
+    /**
+     * Constructs a forecast servlet with the specified {@link org.openqa.grid.internal.Registry registry}
+     * @param registry
+     */
+    public AutomationForecastServlet(Registry registry) {
+        super(registry);
+    }
+
+    /**
+     * Returns the forecast for each hour starting with the current one as JSON.  The optional 'hours' parameter sets
+     * how many hours are returned, up to a week
+     * Returns a 400 if the hours parameter is not a valid number
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        int hours = AutomationForecastServlet.DEFAULT_HOURS;
+        String hoursParameter = request.getParameter("hours");
+        if(hoursParameter != null) {
+            try {
+                hours = Integer.parseInt(hoursParameter);
+            } catch (NumberFormatException e) {
+                hours = -1;
+            }
+            if(hours < 1 || hours > AutomationForecastServlet.MAX_HOURS) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Parameter 'hours' must be a number between 1 and %d", AutomationForecastServlet.MAX_HOURS));
+                return;
+            }
+        }
+        DemandForecaster forecaster = AutomationContext.getContext().getDemandForecaster();
+        Calendar hour = Calendar.getInstance();
+        hour.set(Calendar.MINUTE, 0);
+        hour.set(Calendar.SECOND, 0);
+        hour.set(Calendar.MILLISECOND, 0);
+        JSONArray forecast = new JSONArray();
+        JSONObject body = new JSONObject();
+        try {
+            for(int i=0;i<hours;i++) {
+                Date start = hour.getTime();
+                JSONObject threads = new JSONObject();
+                for(Map.Entry<String,Integer> entry : forecaster.getForecast(start).entrySet()) {
+                    threads.put(entry.getKey(), entry.getValue());
+                }
+                JSONObject forecastHour = new JSONObject();
+                forecastHour.put("start", start.getTime());
+                forecastHour.put("threads", threads);
+                forecast.put(forecastHour);
+                hour.add(Calendar.HOUR_OF_DAY, 1);
+            }
+            body.put("forecast", forecast);
+        } catch (JSONException e) {
+            throw new ServletException("Error building forecast", e);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (InputStream in = new ByteArrayInputStream(body.toString().getBytes("UTF-8"))) {
+            ByteStreams.copy(in, response.getOutputStream());
+        } finally {
+            response.flushBuffer();
+        }
+    }
+}
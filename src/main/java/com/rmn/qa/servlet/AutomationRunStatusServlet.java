@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.rmn.qa.AutomationConstants;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationRunRequest;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Servlet which returns the status of starting nodes for a registered {@link com.rmn.qa.AutomationRunRequest run}.  Runs
+ * that need nodes have them started in the background by the {@link com.rmn.qa.servlet.AutomationTestRunServlet test run servlet},
+ * so clients poll this servlet to find out if their nodes were started
+ * @author mhardin
+ */
+public class AutomationRunStatusServlet extends RegistryBasedServlet {
+
+    private static final long serialVersionUID = -3101924452196429331L;
+    private static final Logger log = LoggerFactory.getLogger(AutomationRunStatusServlet.class);
+
+    /**
+     * Constructs a default run status servlet
+     */
+    public AutomationRunStatusServlet() {
+        this(null);
+    }
+
+    /**
+     * Constructs a run status servlet with the specified {@link org.openqa.grid.internal.Registry registry}
+     * @param registry
+     */
+    public AutomationRunStatusServlet(Registry registry) {
+        super(registry);
+    }
+
+    /**
+     * Returns the path of this servlet on the hub for the specified run
+     * @param uuid UUID of the run
+     * @return
+     */
+    public static String getStatusPath(String uuid) {
+        try {
+            return "/grid/admin/" + AutomationRunStatusServlet.class.getSimpleName() + "?" + AutomationConstants.UUID + "=" + URLEncoder.encode(uuid, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Returns the provisioning status of the run as JSON
+     * Returns a 400 if the uuid parameter is not passed in
+     * Returns a 404 if no run is registered for the uuid
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        String uuid = request.getParameter(AutomationConstants.UUID);
+        if (uuid == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter 'uuid' must be passed in as a query string parameter");
+            return;
+        }
+        AutomationRunRequest runRequest = AutomationContext.getContext().getRunRequest(uuid);
+        if (runRequest == null) {
+            log.warn(String.format("Status requested for unknown run [%s]", uuid));
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No run is registered with the UUID.");
+            return;
+        }
+        JSONObject status = new JSONObject();
+        try {
+            status.put(AutomationConstants.UUID, uuid);
+            status.put("provisioningStatus", runRequest.getProvisioningStatus().name());
+            status.put("error", runRequest.getProvisioningError());
+        } catch (JSONException e) {
+            throw new ServletException("Error building run status", e);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (InputStream in = new ByteArrayInputStream(status.toString().getBytes("UTF-8"))) {
+            ByteStreams.copy(in, response.getOutputStream());
+        } finally {
+            response.flushBuffer();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.aws.SubnetHealthTracker;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Servlet which returns the launch health of each subnet and instance type nodes have been started as, as tracked by
+ * the {@link com.rmn.qa.aws.SubnetHealthTracker subnet health tracker}
+ * @author mhardin
+ */
+public class AutomationSubnetHealthServlet extends RegistryBasedServlet {
+
+    private static final long serialVersionUID = -6385217466893092218L;
+
+    /**
+     * Constructs a default subnet health servlet
+     */
+    public AutomationSubnetHealthServlet() {
+        this(null);
+    }
+
+    /**
+     * Constructs a subnet health servlet with the specified {@link org.openqa.grid.internal.Registry registry}
+     * @param registry
+     */
+    public AutomationSubnetHealthServlet(Registry registry) {
+        super(registry);
+    }
+
+    /**
+     * Returns the health of each subnet and instance type as JSON, along with whether its circuit is open and launches
+     * are skipping it
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        long now = System.currentTimeMillis();
+        JSONArray subnets = new JSONArray();
+        JSONObject body = new JSONObject();
+        try {
+            for(SubnetHealthTracker.SubnetHealth health : AutomationContext.getContext().getSubnetHealthTracker().getHealth()) {
+                JSONObject subnet = new JSONObject();
+                subnet.put("subnetId", health.getSubnetId());
+                subnet.put("instanceType", health.getInstanceType());
+                subnet.put("circuitOpen", health.isOpen(now));
+                subnet.put("openUntil", health.getOpenUntil());
+                subnet.put("score", health.getScore());
+                subnet.put("averageLatencyMillis", Math.round(health.getAverageLatencyInMillis()));
+                subnet.put("successes", health.getSuccesses());
+                subnet.put("capacityFailures", health.getCapacityFailures());
+                subnets.put(subnet);
+            }
+            body.put("subnets", subnets);
+        } catch (JSONException e) {
+            throw new ServletException("Error building subnet health", e);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (InputStream in = new ByteArrayInputStream(body.toString().getBytes("UTF-8"))) {
+            ByteStreams.copy(in, response.getOutputStream());
+        } finally {
+            response.flushBuffer();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.task.AutomationTaskScheduler;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Servlet which returns the run statistics of every hub task, as measured by the
+ * {@link com.rmn.qa.task.AutomationTaskScheduler task scheduler}
+ * @author mhardin
+ */
+public class AutomationTaskServlet extends RegistryBasedServlet {
+
+    private static final long serialVersionUID = -2381840736218346619L;
+
+    /**
+     * Constructs a default task servlet
+     */
+    public AutomationTaskServlet() {
+        this(null);
+    }
+
+    /**
+     * Constructs a task servlet with the specified {@link org.openqa.grid.internal.Registry registry}
+     * @param registry
+     */
+    public AutomationTaskServlet(Registry registry) {
+        super(registry);
+    }
+
+    /**
+     * Returns how long each task takes to run as JSON, along with how often it has fallen behind its interval
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        JSONArray tasks = new JSONArray();
+        JSONObject body = new JSONObject();
+        try {
+            for(AutomationTaskScheduler.TaskStatistics statistics : AutomationContext.getContext().getTaskScheduler().getStatistics()) {
+                JSONObject task = new JSONObject();
+                task.put("name", statistics.getName());
+                task.put("intervalMillis", statistics.getIntervalInMillis());
+                task.put("runs", statistics.getRuns());
+                task.put("failures", statistics.getFailures());
+                task.put("overruns", statistics.getOverruns());
+                task.put("missedRuns", statistics.getMissedTicks());
+                task.put("averageMillis", statistics.getAverageTimeInMillis());
+                task.put("maxMillis", statistics.getMaxTimeInMillis());
+                task.put("lastMillis", statistics.getLastTimeInMillis());
+                task.put("lastStart", statistics.getLastStart());
+                JSONObject histogram = new JSONObject();
+                long[] buckets = AutomationTaskScheduler.getHistogramBucketsInMillis();
+                long[] counts = statistics.getHistogram();
+                for(int i = 0; i < counts.length; i++) {
+                    String bucket = i < buckets.length ? "<" + buckets[i] + "ms" : ">=" + buckets[i - 1] + "ms";
+                    histogram.put(bucket, counts[i]);
+                }
+                task.put("histogram", histogram);
+                tasks.put(task);
+            }
+            body.put("tasks", tasks);
+        } catch (JSONException e) {
+            throw new ServletException("Error building task statistics", e);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (InputStream in = new ByteArrayInputStream(body.toString().getBytes("UTF-8"))) {
+            ByteStreams.copy(in, response.getOutputStream());
+        } finally {
+            response.flushBuffer();
+        }
+    }
+}
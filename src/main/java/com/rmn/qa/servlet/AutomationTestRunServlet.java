@@ -12,22 +12,29 @@
 package com.rmn.qa.servlet;
 
 import com.amazonaws.services.ec2.model.Instance;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.rmn.qa.AutomationConstants;
 import com.rmn.qa.AutomationContext;
 import com.rmn.qa.AutomationDynamicNode;
 import com.rmn.qa.AutomationRequestMatcher;
 import com.rmn.qa.AutomationRunRequest;
 import com.rmn.qa.AutomationUtils;
+import com.rmn.qa.DemandForecaster;
 import com.rmn.qa.RequestMatcher;
 import com.rmn.qa.RegistryRetriever;
+import com.rmn.qa.RunHistory;
 import com.rmn.qa.NodesCouldNotBeStartedException;
 import com.rmn.qa.aws.AwsVmManager;
+import com.rmn.qa.aws.NodeLaunchPlanner;
 import com.rmn.qa.aws.VmManager;
 import com.rmn.qa.task.AutomationHubCleanupTask;
 import com.rmn.qa.task.AutomationNodeCleanupTask;
 import com.rmn.qa.task.AutomationNodeRegistryTask;
 import com.rmn.qa.task.AutomationReaperTask;
 import com.rmn.qa.task.AutomationRunCleanupTask;
+import com.rmn.qa.task.AutomationSpotInterruptionTask;
+import com.rmn.qa.task.AutomationTaskScheduler;
+import com.rmn.qa.task.AutomationWarmPoolTask;
 import org.openqa.grid.internal.ProxySet;
 import org.openqa.grid.internal.Registry;
 import org.openqa.grid.selenium.GridLauncher;
@@ -39,12 +46,19 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -58,16 +72,28 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
     private static final Logger log = LoggerFactory.getLogger(AutomationTestRunServlet.class);
     // Start times
     private static final long START_DELAY_IN_SECONDS = 60L; // 60 start delay for run and node cleanup tasks
-    private static final long EXPIRED_POLLING_TIME_IN_SECONDS = 15L; // Look for nodes to clean up every 15 seconds
+    private static final long EXPIRED_POLLING_TIME_IN_SECONDS = 60L; // Look over every node for missed lifecycle events every 60 seconds
     private static final long HUB_TERMINATE_START_DELAY_IN_MINUTES= 5L; // Delay 5 minutes to start trying to shutdown the hub
     // Polling times
     private static final long HUB_TERMINATION_POLLING_TIME_IN_MINUTES = 1L; // Look every minute to shutdown the hub
     private static final long NODE_REGISTRATION_POLLING_TIME_IN_MINUTES = 15L; // Look every 15 minutes for new unregistered nodes
     private static final long TEST_RUN_CLEANUP_POLLING_TIME_IN_SECONDS = 60L; // Look for runs to clean up every 60 seconds
 
+    private static final long WARM_POOL_POLLING_TIME_IN_SECONDS = 60L; // Top up the warm pool every 60 seconds
+    private static final long SPOT_INTERRUPTION_POLLING_TIME_IN_SECONDS = 30L; // Look for reclaimed spot nodes every 30 seconds, well within the 2 minute notice
+    private static final long DEFAULT_WARM_POOL_IDLE_MINUTES = 60L;
+    private static final long TASK_SHUTDOWN_TIMEOUT_IN_SECONDS = 30L; // Wait up to 30 seconds for running tasks on shutdown
+
+    private static final int DEFAULT_PROVISIONING_THREADS = 4;
+    private static final int DEFAULT_PROVISIONING_QUEUE_SIZE = 100;
+    private static final long DEFAULT_LAUNCH_COALESCING_WINDOW_MILLIS = 0L; // Launches are only coalesced when a window is configured
+
     // We override these for unit testing
     private VmManager ec2;
     private RequestMatcher requestMatcher;
+    private ExecutorService provisioningExecutor;
+    private NodeLaunchCoalescer launchCoalescer;
+    private RunHistory runHistory;
 
     /**
      * Constructs a test run servlet with default values
@@ -87,27 +113,64 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
         super(registry);
         setManageEc2(ec2);
         setRequestMatcher(requestMatcher);
+        setProvisioningExecutor(createProvisioningExecutor());
+        setLaunchCoalescingWindow(Long.getLong(AutomationConstants.LAUNCH_COALESCING_WINDOW_MILLIS, AutomationTestRunServlet.DEFAULT_LAUNCH_COALESCING_WINDOW_MILLIS));
+        AutomationContext.getContext().getDemandForecaster().setRunDurationInMinutes(Integer.getInteger(AutomationConstants.FORECAST_RUN_DURATION_MINUTES, DemandForecaster.DEFAULT_RUN_DURATION_MINUTES));
+        String runHistoryFile = System.getProperty(AutomationConstants.RUN_HISTORY_FILE);
+        setRunHistory(new RunHistory(runHistoryFile != null ? new File(runHistoryFile) : null));
         // Start up our cleanup thread that will cleanup unused runs
         if(initThreads) {
             this.initCleanupThreads();
         }
+        // Restored once the cleanup threads are listening for node events, so restored nodes are evaluated on time
+        String contextJournalDir = System.getProperty(AutomationConstants.CONTEXT_JOURNAL_DIR);
+        if(contextJournalDir != null) {
+            openContextJournal(new File(contextJournalDir));
+        }
+    }
+
+    /**
+     * Rebuilds the context from the journal in the specified directory, and starts recording runs and nodes to it
+     * @param directory Directory the journal is kept in
+     */
+    private void openContextJournal(File directory) {
+        try {
+            AutomationContext.getContext().getContextJournal().open(directory);
+        } catch (IOException e) {
+            log.error(String.format("Context journal [%s] could not be opened, runs and nodes will not survive a restart: %s", directory, e));
+        }
     }
 
     private void initCleanupThreads() {
+        AutomationTaskScheduler scheduler = AutomationContext.getContext().getTaskScheduler();
         // Wrapper to lazily fetch the Registry object as this is not populated at instantiation time
-        // Spin up a scheduled thread to poll for unused test runs and clean up them
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new AutomationRunCleanupTask(this),
+        // Schedule a task to poll for unused test runs and clean up them
+        scheduler.schedule(new AutomationRunCleanupTask(this),
                 AutomationTestRunServlet.START_DELAY_IN_SECONDS, AutomationTestRunServlet.TEST_RUN_CLEANUP_POLLING_TIME_IN_SECONDS, TimeUnit.SECONDS);
-        // Spin up a scheduled thread to clean up and terminate nodes that were spun up
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new AutomationNodeCleanupTask(this,ec2,requestMatcher),
+        // Nodes are cleaned up and terminated as events happen to them, with a scheduled task as a safety net for missed events
+        AutomationNodeCleanupTask nodeCleanupTask = new AutomationNodeCleanupTask(this,ec2,requestMatcher);
+        AutomationContext.getContext().getNodeLifecycleEvents().setListener(nodeCleanupTask);
+        scheduler.schedule(nodeCleanupTask,
                 AutomationTestRunServlet.START_DELAY_IN_SECONDS,AutomationTestRunServlet.EXPIRED_POLLING_TIME_IN_SECONDS, TimeUnit.SECONDS);
-        // Spin up a scheduled thread to register unregistered dynamic nodes (will happen if hub gets shut down)
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new AutomationNodeRegistryTask(this),
+        // Schedule a task to register unregistered dynamic nodes (will happen if hub gets shut down)
+        scheduler.schedule(new AutomationNodeRegistryTask(this),
                 AutomationTestRunServlet.HUB_TERMINATE_START_DELAY_IN_MINUTES,AutomationTestRunServlet.NODE_REGISTRATION_POLLING_TIME_IN_MINUTES, TimeUnit.MINUTES);
+        // Schedule a task to stop sending sessions to spot nodes AWS is reclaiming
+        scheduler.schedule(new AutomationSpotInterruptionTask(this,ec2),
+                AutomationTestRunServlet.START_DELAY_IN_SECONDS,AutomationTestRunServlet.SPOT_INTERRUPTION_POLLING_TIME_IN_SECONDS, TimeUnit.SECONDS);
+        Map<AutomationRunRequest,Integer> warmPoolTargets = AutomationWarmPoolTask.parseTargets(System.getProperty(AutomationConstants.WARM_POOL));
+        // Nodes are also started ahead of forecast demand once run history is being recorded
+        if(!warmPoolTargets.isEmpty() || System.getProperty(AutomationConstants.RUN_HISTORY_FILE) != null) {
+            long idleBudget = TimeUnit.MINUTES.toMillis(Long.getLong(AutomationConstants.WARM_POOL_IDLE_MINUTES, AutomationTestRunServlet.DEFAULT_WARM_POOL_IDLE_MINUTES));
+            log.info(String.format("Warm pool will be kept for %d browsers", warmPoolTargets.size()));
+            // Schedule a task to keep idle nodes ready for new runs, which starts them on the same executor as new runs
+            scheduler.schedule(new AutomationWarmPoolTask(this,ec2,warmPoolTargets,idleBudget,provisioningExecutor),
+                    AutomationTestRunServlet.START_DELAY_IN_SECONDS,AutomationTestRunServlet.WARM_POOL_POLLING_TIME_IN_SECONDS, TimeUnit.SECONDS);
+        }
         String instanceId = System.getProperty(AutomationConstants.INSTANCE_ID);
         if(instanceId != null && instanceId.length() > 0) {
             log.info("Instance ID detected.  Hub termination thread will be started.");
-            Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new AutomationHubCleanupTask(this,ec2,instanceId),
+            scheduler.schedule(new AutomationHubCleanupTask(this,ec2,instanceId),
                  AutomationTestRunServlet.HUB_TERMINATE_START_DELAY_IN_MINUTES,AutomationTestRunServlet.HUB_TERMINATION_POLLING_TIME_IN_MINUTES, TimeUnit.MINUTES);
         } else {
             log.info("Hub is not a dynamic hub -- termination logic will not be started");
@@ -115,14 +178,69 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
         String runReaperThread = System.getProperty(AutomationConstants.REAPER_THREAD_CONFIG);
         // Reaper thread defaults to on unless specified not to run
         if(!"false".equalsIgnoreCase(runReaperThread)) {
-            // Spin up a scheduled thread to terminate orphaned instances
-            Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new AutomationReaperTask(this,ec2),
+            // Schedule a task to terminate orphaned instances
+            scheduler.schedule(new AutomationReaperTask(this,ec2),
                     AutomationTestRunServlet.HUB_TERMINATE_START_DELAY_IN_MINUTES,AutomationTestRunServlet.NODE_REGISTRATION_POLLING_TIME_IN_MINUTES, TimeUnit.MINUTES);
         } else {
             log.info("Reaper thread not running due to config flag.");
         }
     }
 
+    /**
+     * Stops dispatching node lifecycle events and stops the hub tasks, waiting for any which are running to finish, then
+     * stops recording to the context journal
+     */
+    @Override
+    public void destroy() {
+        AutomationContext.getContext().getNodeLifecycleEvents().shutdown();
+        AutomationContext.getContext().getTaskScheduler().shutdown(AutomationTestRunServlet.TASK_SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        AutomationContext.getContext().getContextJournal().close();
+        super.destroy();
+    }
+
+    /**
+     * Creates the bounded executor which starts nodes in the background so slow EC2 calls do not hold on to request threads
+     * @return
+     */
+    private static ExecutorService createProvisioningExecutor() {
+        int threads = Integer.getInteger(AutomationConstants.PROVISIONING_THREADS, AutomationTestRunServlet.DEFAULT_PROVISIONING_THREADS);
+        int queueSize = Integer.getInteger(AutomationConstants.PROVISIONING_QUEUE_SIZE, AutomationTestRunServlet.DEFAULT_PROVISIONING_QUEUE_SIZE);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("node-provisioning-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    void setProvisioningExecutor(ExecutorService provisioningExecutor) {
+        this.provisioningExecutor = provisioningExecutor;
+    }
+
+    /**
+     * Sets how long node demand from new runs is held so runs registered close together can share a launch
+     * @param windowInMillis Window to hold demand for, or 0 to launch nodes for each run on its own
+     */
+    void setLaunchCoalescingWindow(long windowInMillis) {
+        ScheduledExecutorService scheduler = null;
+        if(windowInMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("node-launch-coalescer-%d").setDaemon(true).build());
+        }
+        this.launchCoalescer = new NodeLaunchCoalescer(windowInMillis, scheduler, new NodeLaunchCoalescer.Launcher() {
+            @Override
+            public void launch(List<AutomationRunRequest> runRequests, Map<String,Integer> threadsByBrowser) {
+                provisioningExecutor.execute(new ProvisionNodesTask(runRequests, threadsByBrowser));
+            }
+        });
+    }
+
+    /**
+     * Sets the history runs are recorded to, and replays the runs it already holds into the demand forecast
+     * @param runHistory
+     */
+    void setRunHistory(RunHistory runHistory) {
+        this.runHistory = runHistory;
+        AutomationContext.getContext().getDemandForecaster().replay(runHistory.load());
+    }
+
     void setManageEc2(VmManager ec2) {
         this.ec2 = ec2;
     }
@@ -146,10 +264,13 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
 
     /**
      * Attempts to register a new run request with the server.
-     * Returns a 201 if the request can be fulfilled but AMIs must be started
+     * Returns a 201 if the request can be fulfilled but AMIs must be started.  AMIs are started in the background, and the
+     * Location header points to the {@link com.rmn.qa.servlet.AutomationRunStatusServlet status} of the run
      * Returns a 202 if the request can be fulfilled
      * Returns a 400 if the required parameters are not passed in.
      * Returns a 409 if the server is at full node capacity
+     * Returns a 503 if too many runs are already waiting on AMIs to start.  When runs are held in the launch coalescing
+     * window, this is instead recorded against the run once the window has passed
      */
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -187,6 +308,13 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
         boolean amisNeeded;
         int amiThreadsToStart=0;
         int currentlyAvailableNodes;
+        // A run whose nodes could not be started may be registered again under the same UUID
+        AutomationRunRequest existingRun = AutomationContext.getContext().getRunRequest(uuid);
+        if(existingRun != null && existingRun.getProvisioningStatus() == AutomationRunRequest.PROVISIONING_STATUS.FAILED) {
+            log.info(String.format("Replacing run whose nodes could not be started - Request UUID [%s]", uuid));
+            AutomationContext.getContext().deleteRun(uuid);
+        }
+        AutomationRunRequest newRunRequest;
         // Synchronize this block until we've added the run to our context for other potential threads to see
         synchronized (AutomationTestRunServlet.class) {
             int remainingNodesAvailable = AutomationContext.getContext().getTotalThreadsAvailable(getProxySet());
@@ -210,28 +338,35 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
                 return;
             }
             // Add the run to our context so we can track it
-            AutomationRunRequest newRunRequest = new AutomationRunRequest(uuid, threadCountRequested, browserRequested, browserVersion, osRequested);
+            newRunRequest = new AutomationRunRequest(uuid, threadCountRequested, browserRequested, browserVersion, osRequested);
+            if(amisNeeded) {
+                newRunRequest.provisioningStarted();
+            }
             boolean addSuccessful = AutomationContext.getContext().addRun(newRunRequest);
             if(!addSuccessful) {
                 log.warn(String.format("Test run already exists for the same UUID [%s]", uuid));
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Test run already exists with the same UUID.");
                 return;
             }
+            // Record the run so the demand forecast reflects it, even if its nodes end up not starting
+            AutomationContext.getContext().getDemandForecaster().record(newRunRequest);
         }
+        // Persist the run outside of the lock so file I/O does not hold up other registrations
+        runHistory.record(newRunRequest);
         if (amisNeeded) {
             // Start up AMIs as that will be required
             log.warn(String.format("Insufficient nodes to fulfill request. New AMIs will be queued up. Requested [%s] - Available [%s] - Request UUID [%s]", threadCountRequested, currentlyAvailableNodes, uuid));
             try{
-                startNodes(uuid,amiThreadsToStart,browserRequested,osRequested);
-            } catch(NodesCouldNotBeStartedException e) {
-                // Make sure and de-register the run if the AMI startup was not successful
+                launchCoalescer.submit(newRunRequest, amiThreadsToStart);
+            } catch(RejectedExecutionException e) {
+                // Make sure and de-register the run if the AMI startup could not be queued
                 AutomationContext.getContext().deleteRun(uuid);
-                String throwableMessage = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
-                String msg = "Nodes could not be started: " + throwableMessage;
-                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,msg);
+                log.error(String.format("Node provisioning queue is full.  Run will not be started - Request UUID [%s]", uuid));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Nodes could not be started: too many runs are waiting on nodes.");
                 return;
             }
             // Return a 201 to let the caller know AMIs will be started
+            response.setHeader("Location", AutomationRunStatusServlet.getStatusPath(uuid));
             response.setStatus(HttpServletResponse.SC_CREATED);
             return;
         } else {
@@ -242,60 +377,139 @@ public class AutomationTestRunServlet extends RegistryBasedServlet implements Re
     }
 
     /**
-     * Starts up AMIs
-     * @param threadCountRequested
-     * @return
+     * Starts nodes for a group of runs in the background and records the outcome against each run.  The nodes are
+     * tracked under the UUID of the first run in the group, and remember every run of the group they were started for
+     */
+    private class ProvisionNodesTask implements Runnable {
+
+        private final List<AutomationRunRequest> runRequests;
+        private final Map<String,Integer> threadsByBrowser;
+
+        ProvisionNodesTask(List<AutomationRunRequest> runRequests, Map<String,Integer> threadsByBrowser) {
+            this.runRequests = runRequests;
+            this.threadsByBrowser = threadsByBrowser;
+        }
+
+        @Override
+        public void run() {
+            AutomationRunRequest firstRequest = runRequests.get(0);
+            List<String> uuids = new ArrayList<>();
+            for(AutomationRunRequest runRequest : runRequests) {
+                uuids.add(runRequest.getUuid());
+            }
+            try{
+                int nodesNotStarted = startNodes(uuids,threadsByBrowser,firstRequest.getOs());
+                for(AutomationRunRequest runRequest : runRequests) {
+                    if(nodesNotStarted > 0) {
+                        String msg = String.format("%d nodes could not be started as AWS ran out of capacity", nodesNotStarted);
+                        log.warn(String.format("%s - Request UUID [%s]", msg, runRequest.getUuid()));
+                        runRequest.provisioningPartial(msg);
+                    } else {
+                        runRequest.provisioningComplete();
+                    }
+                    AutomationContext.getContext().provisioningEnded(runRequest);
+                }
+            } catch(NodesCouldNotBeStartedException e) {
+                String throwableMessage = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                String msg = "Nodes could not be started: " + throwableMessage;
+                for(AutomationRunRequest runRequest : runRequests) {
+                    log.error(String.format("%s - Request UUID [%s]", msg, runRequest.getUuid()));
+                    runRequest.provisioningFailed(msg);
+                    AutomationContext.getContext().provisioningEnded(runRequest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts up AMIs.  Threads for several browsers are only requested together for Linux, and are packed onto the
+     * cheapest shared nodes by the {@link com.rmn.qa.aws.NodeLaunchPlanner planner}
+     * @param uuids UUIDs of the runs the nodes are started for.  The nodes are tracked under the first of them
+     * @param threadsByBrowser Number of threads requested for each browser
+     * @param os Requested OS
+     * @return Number of planned nodes which could not be started
      */
-    private void startNodes(String uuid,int threadCountRequested, String browser, String os) throws NodesCouldNotBeStartedException {
-        log.info(String.format("%d threads requested",threadCountRequested));
+    private int startNodes(List<String> uuids,Map<String,Integer> threadsByBrowser, String os) throws NodesCouldNotBeStartedException {
+        String uuid = uuids.get(0);
+        log.info(String.format("%s threads requested",threadsByBrowser));
         try{
             String localhostname;
-            // Try and get the IP address from the system property
-            String runTimeHostName = System.getProperty(AutomationConstants.IP_ADDRESS);
             try{
-                if(runTimeHostName == null) {
+                if(System.getProperty(AutomationConstants.IP_ADDRESS) == null) {
                     log.warn("Host name could not be determined from system property.");
                 }
-                localhostname = (runTimeHostName != null ) ? runTimeHostName : InetAddress.getLocalHost().getHostName();
+                localhostname = AutomationUtils.getHubHostName();
             } catch (UnknownHostException e) {
                 log.error("Error parsing out host name",e);
                 throw new NodesCouldNotBeStartedException("Host name could not be determined", e);
             }
-            // TODO Make matching logic better
-            int numThreadsPerMachine;
-            if(AutomationUtils.lowerCaseMatch(BrowserType.CHROME,browser)) {
-                numThreadsPerMachine = AwsVmManager.CHROME_THREAD_COUNT;
-                //TODO Browser Enum replacement here
-            } else if (AutomationUtils.lowerCaseMatch(BrowserType.IE,browser) || AutomationUtils.lowerCaseMatch(BrowserType.FIREFOX,browser)) {
-                numThreadsPerMachine= AwsVmManager.FIREFOX_IE_THREAD_COUNT;
-            } else {
-                log.warn("Unsupported browser: " + browser);
-                throw new NodesCouldNotBeStartedException("Unsupported browser: " + browser);
-            }
-            int leftOver = threadCountRequested % numThreadsPerMachine;
-            int machinesNeeded = (threadCountRequested / numThreadsPerMachine);
-            if(leftOver != 0) {
-                // Add the remainder
-                machinesNeeded++;
+            String firstBrowser = threadsByBrowser.keySet().iterator().next();
+            if("linux".equalsIgnoreCase(AwsVmManager.resolveOs(os, firstBrowser))) {
+                List<NodeLaunchPlanner.NodeLaunch> launches;
+                try {
+                    launches = NodeLaunchPlanner.plan(threadsByBrowser, ec2.getInstanceTypeCatalog());
+                } catch(IllegalArgumentException e) {
+                    log.warn(e.getMessage());
+                    throw new NodesCouldNotBeStartedException(e.getMessage());
+                }
+                int nodesNotStarted = 0;
+                for(NodeLaunchPlanner.NodeLaunch launch : launches) {
+                    log.info(String.format("%s will be started for run [%s]",launch,uuid));
+                    List<Instance> instances = ec2.launchNodes(uuid, "linux", localhostname, launch);
+                    addNodes(uuids, instances, launch.getBrowser(), "linux", launch.getMaxSessions());
+                    nodesNotStarted += Math.max(0, launch.getNodeCount() - instances.size());
+                }
+                return nodesNotStarted;
             }
-            log.info(String.format("%s nodes will be started for run [%s]",machinesNeeded,uuid));
-            List<Instance> instances = ec2.launchNodes(uuid, os, browser, localhostname,
-                                                       machinesNeeded, numThreadsPerMachine);
-            log.info(String.format("%d instances started", instances.size()));
-            // Reuse the start date since all the nodes were created within the same request
-            Date startDate = new Date();
-            for(Instance instance : instances) {
-                log.info("Node instance id: " + instance.getInstanceId());
-                AutomationContext.getContext().addNode(
-                    new AutomationDynamicNode(uuid, instance.getInstanceId(), browser, os, startDate,
-                                              numThreadsPerMachine));
+            int nodesNotStarted = 0;
+            for(Map.Entry<String,Integer> entry : threadsByBrowser.entrySet()) {
+                String browser = entry.getKey();
+                int threadCountRequested = entry.getValue();
+                int numThreadsPerMachine = AwsVmManager.getThreadCountForBrowser(browser);
+                if(numThreadsPerMachine == 0) {
+                    log.warn("Unsupported browser: " + browser);
+                    throw new NodesCouldNotBeStartedException("Unsupported browser: " + browser);
+                }
+                int leftOver = threadCountRequested % numThreadsPerMachine;
+                int machinesNeeded = (threadCountRequested / numThreadsPerMachine);
+                if(leftOver != 0) {
+                    // Add the remainder
+                    machinesNeeded++;
+                }
+                log.info(String.format("%s nodes will be started for run [%s]",machinesNeeded,uuid));
+                List<Instance> instances = ec2.launchNodes(uuid, os, browser, localhostname,
+                                                           machinesNeeded, numThreadsPerMachine);
+                addNodes(uuids, instances, browser, os, numThreadsPerMachine);
+                nodesNotStarted += Math.max(0, machinesNeeded - instances.size());
             }
+            return nodesNotStarted;
         } catch(Exception e) {
             log.error("Error trying to start nodes: " + e);
             throw new NodesCouldNotBeStartedException("Error trying to start nodes",e);
         }
     }
 
+    /**
+     * Tracks the started instances as dynamic nodes
+     * @param uuids UUIDs of the runs the nodes were started for.  The nodes are tracked under the first of them
+     * @param instances Started instances
+     * @param browser Browser whose instance type the nodes were started as
+     * @param os OS of the nodes
+     * @param nodeCapacity Number of sessions each node can run
+     */
+    private void addNodes(List<String> uuids, List<Instance> instances, String browser, String os, int nodeCapacity) {
+        log.info(String.format("%d instances started", instances.size()));
+        // Reuse the start date since all the nodes were created within the same request
+        Date startDate = new Date();
+        for(Instance instance : instances) {
+            log.info("Node instance id: " + instance.getInstanceId());
+            AutomationDynamicNode node = new AutomationDynamicNode(uuids.get(0), instance.getInstanceId(), browser, os, startDate, nodeCapacity);
+            node.setSpotInstanceRequestId(instance.getSpotInstanceRequestId());
+            node.setRunUuids(uuids);
+            AutomationContext.getContext().addNode(node);
+        }
+    }
+
     /**
      * Returns true if the requested browser can be used within AMIs, and false otherwise
      * @param browser
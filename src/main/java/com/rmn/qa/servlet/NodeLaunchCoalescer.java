@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationRunRequest;
+import com.rmn.qa.aws.AwsVmManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the node demand of runs registered within a short window of each other, so runs which need the same AMI are
+ * started with a single launch.  Linux nodes run several browsers, so demand for every browser on Linux is merged and
+ * can be packed onto the same nodes, while demand on other OSes is merged per browser.  Threads are summed across the
+ * runs before being rounded up to whole nodes, so partially used nodes are shared between runs instead of being rounded
+ * up for each one
+ * @author mhardin
+ */
+final class NodeLaunchCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(NodeLaunchCoalescer.class);
+
+    /**
+     * Launches nodes for a group of runs
+     */
+    interface Launcher {
+
+        /**
+         * Launches enough nodes for the specified threads
+         * @param runRequests Runs the nodes are started for, in the order they were registered
+         * @param threadsByBrowser Total number of threads to start nodes for, keyed by browser
+         * @throws RejectedExecutionException If the launch could not be queued up
+         */
+        void launch(List<AutomationRunRequest> runRequests, Map<String,Integer> threadsByBrowser);
+    }
+
+    private final long windowInMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Launcher launcher;
+    private final Map<String,PendingLaunch> pending = new HashMap<>();
+
+    /**
+     * Constructs a coalescer with the specified window
+     * @param windowInMillis Time to wait for other runs to merge with before launching, or 0 to launch right away
+     * @param scheduler Scheduler used to launch once the window has passed.  Not used when the window is 0
+     * @param launcher Launcher to start nodes with
+     */
+    NodeLaunchCoalescer(long windowInMillis, ScheduledExecutorService scheduler, Launcher launcher) {
+        this.windowInMillis = windowInMillis;
+        this.scheduler = scheduler;
+        this.launcher = launcher;
+    }
+
+    /**
+     * Adds the node demand for the run.  If there is no window the launch happens right away, and any
+     * {@link java.util.concurrent.RejectedExecutionException rejection} is thrown to the caller.  Otherwise a rejected
+     * launch is recorded as a provisioning failure on each of the runs
+     * @param runRequest Run which needs nodes
+     * @param threadCount Number of threads to start nodes for
+     */
+    void submit(AutomationRunRequest runRequest, int threadCount) {
+        if(windowInMillis <= 0) {
+            PendingLaunch launch = new PendingLaunch();
+            launch.add(runRequest, threadCount);
+            launcher.launch(launch.runRequests, launch.threadsByBrowser);
+            return;
+        }
+        final String key = getLaunchKey(runRequest);
+        synchronized (pending) {
+            PendingLaunch launch = pending.get(key);
+            if(launch == null) {
+                launch = new PendingLaunch();
+                pending.put(key, launch);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(key);
+                    }
+                }, windowInMillis, TimeUnit.MILLISECONDS);
+            }
+            launch.add(runRequest, threadCount);
+        }
+    }
+
+    /**
+     * Launches the pending demand for the specified key
+     * @param key Key of the AMI and instance type to launch
+     */
+    private void flush(String key) {
+        PendingLaunch launch;
+        synchronized (pending) {
+            launch = pending.remove(key);
+        }
+        if(launch == null) {
+            return;
+        }
+        log.info(String.format("Launching nodes for threads %s across %d runs", launch.threadsByBrowser, launch.runRequests.size()));
+        try {
+            launcher.launch(launch.runRequests, launch.threadsByBrowser);
+        } catch(RejectedExecutionException e) {
+            log.error(String.format("Node provisioning queue is full.  Nodes will not be started for %d runs", launch.runRequests.size()));
+            for(AutomationRunRequest runRequest : launch.runRequests) {
+                runRequest.provisioningFailed("Nodes could not be started: too many runs are waiting on nodes.");
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the launch the run can be merged into
+     * @param runRequest
+     * @return
+     */
+    private static String getLaunchKey(AutomationRunRequest runRequest) {
+        String os = AwsVmManager.resolveOs(runRequest.getOs(), runRequest.getBrowser()).toLowerCase();
+        if("linux".equals(os)) {
+            return os;
+        }
+        return normalize(runRequest.getBrowser()) + ":" + os;
+    }
+
+    private static String normalize(String browser) {
+        return browser.toLowerCase().replace(" ", "");
+    }
+
+    /**
+     * Demand which is waiting on the window to pass
+     */
+    private static final class PendingLaunch {
+        private final List<AutomationRunRequest> runRequests = new ArrayList<>();
+        private final Map<String,Integer> threadsByBrowser = new LinkedHashMap<>();
+
+        private void add(AutomationRunRequest runRequest, int threadCount) {
+            runRequests.add(runRequest);
+            String browser = normalize(runRequest.getBrowser());
+            Integer threads = threadsByBrowser.get(browser);
+            threadsByBrowser.put(browser, threads == null ? threadCount : threads + threadCount);
+        }
+    }
+}
@@ -106,9 +106,13 @@ public class StatusServlet extends RegistryBasedServlet {
         builder.append("<H1>Grid Hub ");
         builder.append(coreVersion).append(coreRevision);
         builder.append("</H1>");
-        int chromeThreads = requestMatcher.getNumFreeThreadsForParameters(getRegistry().getAllProxies(),new AutomationRunRequest(StatusServlet.class.getSimpleName(),null, BrowserType.CHROME));
-        int firefoxThreads = requestMatcher.getNumFreeThreadsForParameters(getRegistry().getAllProxies(),new AutomationRunRequest(StatusServlet.class.getSimpleName(),null,BrowserType.FIREFOX));
-        int ieThreads = requestMatcher.getNumFreeThreadsForParameters(getRegistry().getAllProxies(),new AutomationRunRequest(StatusServlet.class.getSimpleName(),null,"internetexplorer"));
+        AutomationRunRequest chromeRequest = new AutomationRunRequest(StatusServlet.class.getSimpleName(),null, BrowserType.CHROME);
+        AutomationRunRequest firefoxRequest = new AutomationRunRequest(StatusServlet.class.getSimpleName(),null,BrowserType.FIREFOX);
+        AutomationRunRequest ieRequest = new AutomationRunRequest(StatusServlet.class.getSimpleName(),null,"internetexplorer");
+        Map<AutomationRunRequest,AutomationCapacity> capacities = requestMatcher.getCapacityForParameters(getRegistry().getAllProxies(),Arrays.asList(chromeRequest,firefoxRequest,ieRequest));
+        int chromeThreads = capacities.get(chromeRequest).getFreeThreads();
+        int firefoxThreads = capacities.get(firefoxRequest).getFreeThreads();
+        int ieThreads = capacities.get(ieRequest).getFreeThreads();
         builder.append("<H2>Free Threads - Chrome: ").append(chromeThreads).append(" Firefox: ").append(firefoxThreads).append(" IE: ").append(ieThreads).append("</H2>");
 
         for (RemoteProxy proxy : getRegistry().getAllProxies()) {
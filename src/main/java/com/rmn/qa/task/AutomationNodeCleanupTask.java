@@ -11,6 +11,7 @@
  */
 package com.rmn.qa.task;
 
+import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.google.common.annotations.VisibleForTesting;
 import com.rmn.qa.*;
 import com.rmn.qa.aws.VmManager;
@@ -24,15 +25,17 @@ import java.util.*;
 
 /**
  * Cleanup task which moves {@link com.rmn.qa.AutomationDynamicNode nodes} into the correct status depending on their lifecycle.  The purpose of this
- * task is to terminate nodes once current load is sufficient to allow for the node to be safely shutdown
+ * task is to terminate nodes once current load is sufficient to allow for the node to be safely shutdown.  Registered as the
+ * {@link com.rmn.qa.NodeLifecycleEvents.Listener listener} for node lifecycle events, so single nodes are evaluated as events
+ * happen to them, and regularly runs over every node in case an event was missed
  * @author mhardin
  */
-public class AutomationNodeCleanupTask extends AbstractAutomationCleanupTask {
+public class AutomationNodeCleanupTask extends AbstractAutomationCleanupTask implements NodeLifecycleEvents.Listener {
 
     private static final Logger log = LoggerFactory.getLogger(AutomationNodeCleanupTask.class);
 
     private VmManager ec2;
-    private RequestMatcher requestMatcher;
+    private NodeShutdownPlanner shutdownPlanner;
     @VisibleForTesting
     static final String NAME = "Node Cleanup Task";
 
@@ -45,7 +48,7 @@ public class AutomationNodeCleanupTask extends AbstractAutomationCleanupTask {
     public AutomationNodeCleanupTask(RegistryRetriever registryRetriever,VmManager ec2,RequestMatcher requestMatcher) {
         super(registryRetriever);
         this.ec2 = ec2;
-        this.requestMatcher = requestMatcher;
+        this.shutdownPlanner = new NodeShutdownPlanner(requestMatcher);
     }
 
     @Override
@@ -64,121 +67,152 @@ public class AutomationNodeCleanupTask extends AbstractAutomationCleanupTask {
 
     // We're going to continuously iterate over registered nodes with the hub.  If they're expired, we're going to mark them for removal.
     // If nodes marked for removal are used into the next billing cycle, then we're going to move their end date back again and put them back
-    // into the running queue
+    // into the running queue.  Nodes are also evaluated one at a time as events happen to them, so this pass is a safety net for missed events
     @Override
     public void doWork() {
         log.info("Performing cleanup on nodes.");
         AutomationRunContext context = AutomationContext.getContext();
         Map<String,AutomationDynamicNode> nodes = context.getNodes();
+        // Terminated after the lock is released, so other threads are not held up waiting on EC2
+        List<String> instancesToTerminate = new ArrayList<>();
         synchronized (nodes) {
-            Iterator<String> iterator = nodes.keySet().iterator();
             Date nowDate = new Date();
+            // Plan which expired nodes can be retired up front so the grid only has to be looked over once per pass
+            List<AutomationDynamicNode> expiredNodes = new ArrayList<>();
+            for(AutomationDynamicNode node : nodes.values()) {
+                if(isPastEndDate(node, nowDate)) {
+                    expiredNodes.add(node);
+                }
+            }
+            Set<AutomationDynamicNode> nodesToRetire = new HashSet<>(shutdownPlanner.planShutdown(getProxySet(), expiredNodes));
+            Iterator<String> iterator = nodes.keySet().iterator();
             while(iterator.hasNext()) {
                 String instanceId = iterator.next();
                 AutomationDynamicNode node = nodes.get(instanceId);
-                AutomationDynamicNode.STATUS nodeStatus = node.getStatus();
-                // If the current time is after the scheduled end time for this node and the node is still running, go ahead and queue it to be removed
-                if(nodeStatus == AutomationDynamicNode.STATUS.RUNNING && nowDate.after(node.getEndDate())) {
-                    if(canNodeShutDown(node)) {
-                        log.info(String.format("Updating node %s to 'EXPIRED' status.  Start date [%s] End date [%s]",instanceId,node.getStartDate(),node.getEndDate()));
-                        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
-                    }
-                } else if(nodeStatus == AutomationDynamicNode.STATUS.EXPIRED) {
-                    // See if we're in the next billing cycle (create + 55 + 6, which should equal 61 minutes and would safely be in the next billing cycle)
-                    if(AutomationUtils.isCurrentTimeAfterDate(node.getEndDate(), 6,Calendar.MINUTE)) {
-                        node.incrementEndDateByOneHour();
-                        log.info(String.format("Node [%s] was still running after initial allotted time.  Resetting status and increasing end date to %s.",instanceId, node.getEndDate()));
-                        node.updateStatus(AutomationDynamicNode.STATUS.RUNNING);
-                    } else if(isNodeCurrentlyEmpty(instanceId)) {
-                        log.info(String.format("Terminating node %s and updating status to 'TERMINATED'",instanceId));
-                        // Delete node
-                        ec2.terminateInstance(instanceId);
-                        node.updateStatus(AutomationDynamicNode.STATUS.TERMINATED);
-                    }
-                } else if(nodeStatus == AutomationDynamicNode.STATUS.TERMINATED) {
-                    // If the current time is more than 30 minutes after the node end date, we should remove it from being tracked
-                    if(System.currentTimeMillis()  > node.getEndDate().getTime() + (30 * 60 * 1000) ) {
-                        // Remove it, and this will remove from tracking since we're referencing the collection
-                        log.info(String.format("Removing node [%s] from internal tracking set",instanceId));
-                        iterator.remove();
-                    }
+                if(evaluate(context, node, nowDate, nodesToRetire.contains(node), instancesToTerminate)) {
+                    // Remove it, and this will remove from tracking since we're referencing the collection
+                    iterator.remove();
+                    context.getNodeLifecycleEvents().nodeRemoved(instanceId);
+                    context.getContextJournal().nodeRemoved(instanceId);
                 }
             }
         }
+        if(!instancesToTerminate.isEmpty()) {
+            terminateNodes(instancesToTerminate);
+        }
     }
 
     /**
-     * Returns true if the specified node can be safely shut down, false otherwise
-     * @param node
-     * @return
+     * Evaluates a single node in response to an event, without looking at any other node
+     * @param instanceId Instance id of the node to evaluate
      */
-    // If free slots are greater than OR equal to our node capacity, that means we have enough wiggle room to go ahead and delete this node.
-    // We also need to check to make sure there are no registered runs that have not yet started up
-    private boolean canNodeShutDown(AutomationDynamicNode node) {
-        // If a new run is queued up, we cannot shut down nodes until it starts, so short circuit out of here
-        if(AutomationContext.getContext().isNewRunQueuedUp()) {
-            log.warn(String.format("Node %s cannot be shutdown yet as a new run is queued up.", node.getInstanceId()));
-            return false;
-        }
-        ProxySet proxySet = getProxySet();
-        // Iterate over our set of proxies until we find the proxy which represents the node we're trying to shut down
-        Set<AutomationRunRequest> existingSlots = new HashSet<>();
-        Map<String,RemoteProxy> proxies = new HashMap<>();
-        for(RemoteProxy proxy : proxySet) {
-            Object instanceId = proxy.getConfig().get(AutomationConstants.INSTANCE_ID);
-            if(node.getInstanceId().equals(instanceId)) {
-                // Associate this proxy with the instance id for use later
-                proxies.put((String)instanceId,proxy);
-                // Once we've found our target proxy, go ahead and compile a list of browsers this node uses
-                for(TestSlot testSlot : proxy.getTestSlots()) {
-                    AutomationRunRequest requestRepresentation = AutomationRunRequest.requestFromCapabilities(testSlot.getCapabilities());
-                    existingSlots.add(requestRepresentation);
-                }
+    @Override
+    public void evaluateNode(String instanceId) {
+        AutomationRunContext context = AutomationContext.getContext();
+        Map<String,AutomationDynamicNode> nodes = context.getNodes();
+        List<String> instancesToTerminate = new ArrayList<>();
+        synchronized (nodes) {
+            AutomationDynamicNode node = nodes.get(instanceId);
+            if(node == null) {
+                return;
+            }
+            Date nowDate = new Date();
+            boolean canRetire = isPastEndDate(node, nowDate)
+                    && !shutdownPlanner.planShutdown(getProxySet(), Collections.singletonList(node)).isEmpty();
+            if(evaluate(context, node, nowDate, canRetire, instancesToTerminate)) {
+                nodes.remove(instanceId);
+                context.getNodeLifecycleEvents().nodeRemoved(instanceId);
+                context.getContextJournal().nodeRemoved(instanceId);
             }
         }
-        if(existingSlots.size() == 0) {
-            log.error("No browsers found for node: " + node.getInstanceId());
+        if(!instancesToTerminate.isEmpty()) {
+            terminateNodes(instancesToTerminate);
         }
-        for(AutomationRunRequest request : existingSlots) {
-            int freeSlotsForBrowser = requestMatcher.getNumFreeThreadsForParameters(getProxySet(), request);
-            if(freeSlotsForBrowser == 0) {
-                log.info(String.format("No free slots exist so node will not be shutdown. Node: %s Request: %s Browser: %s",node.getInstanceId(),request,request.getBrowser()));
-                return false;
+    }
+
+    /**
+     * Moves the node into the correct status for its lifecycle.  Must be called while holding the nodes monitor
+     * @param context Context the node is tracked in
+     * @param node Node to evaluate
+     * @param nowDate Current date
+     * @param canRetire True if the remaining nodes can cover current load without this node
+     * @param instancesToTerminate Instance ids of the nodes to terminate once the monitor is released
+     * @return True if the node should no longer be tracked, false otherwise
+     */
+    private boolean evaluate(AutomationRunContext context, AutomationDynamicNode node, Date nowDate, boolean canRetire, List<String> instancesToTerminate) {
+        String instanceId = node.getInstanceId();
+        AutomationDynamicNode.STATUS nodeStatus = node.getStatus();
+        // If the current time is after the scheduled end time for this node and the node is still running, go ahead and queue it to be removed
+        if(isPastEndDate(node, nowDate)) {
+            if(canRetire) {
+                log.info(String.format("Updating node %s to 'EXPIRED' status.  Start date [%s] End date [%s]",instanceId,node.getStartDate(),node.getEndDate()));
+                node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+                context.getNodeLifecycleEvents().nodeExpired(instanceId);
             }
-            // Once we find at least one browser that does not have enough capacity to shut this node down
-            // we can return false to say we cannot shut this node down.
-            RemoteProxy proxy = proxies.get(node.getInstanceId());
-            if(proxy == null) {
-                log.error(String.format("Proxy was not found for node %s", node.getInstanceId()));
-                return false;
+        } else if(nodeStatus == AutomationDynamicNode.STATUS.EXPIRED) {
+            // See if we're in the next billing cycle (create + 55 + 6, which should equal 61 minutes and would safely be in the next billing cycle)
+            if(AutomationUtils.isCurrentTimeAfterDate(node.getEndDate(), 6,Calendar.MINUTE)) {
+                node.incrementEndDateByOneHour();
+                log.info(String.format("Node [%s] was still running after initial allotted time.  Resetting status and increasing end date to %s.",instanceId, node.getEndDate()));
+                node.updateStatus(AutomationDynamicNode.STATUS.RUNNING);
+            } else if(isNodeCurrentlyEmpty(instanceId)) {
+                log.info(String.format("Terminating node %s and updating status to 'TERMINATED'",instanceId));
+                // Delete node.  Marked up front so no other pass terminates it too, and put back if EC2 does not terminate it
+                instancesToTerminate.add(instanceId);
+                node.updateStatus(AutomationDynamicNode.STATUS.TERMINATED);
             }
-            int matchingSlots = 0;
-            // Go over the test slots and get the number of browsers this node can run
-            for(TestSlot testSlot : proxy.getTestSlots()) {
-                // If this test slot matches the browser, increment our count
-                if(request.matchesCapabilities(testSlot.getCapabilities())) {
-                    matchingSlots ++;
-                }
+        } else if(nodeStatus == AutomationDynamicNode.STATUS.TERMINATED) {
+            // If the current time is more than 30 minutes after the node end date, we should remove it from being tracked
+            if(System.currentTimeMillis()  > node.getEndDate().getTime() + (30 * 60 * 1000) ) {
+                log.info(String.format("Removing node [%s] from internal tracking set",instanceId));
+                return true;
             }
-            log.info(String.format("%d matching slots were found for node %s",matchingSlots,node.getInstanceId()));
-            // Get the lesser number between the total node capacity and browser specific capacity
-            int finalNum = (matchingSlots < node.getNodeCapacity()) ? matchingSlots : node.getNodeCapacity();
-            if(freeSlotsForBrowser < finalNum) {
-                // If there are no running tests which match the browser, we don't need to honor this browser for shutdown logic
-                // as it is not currently needed
-                int inProgressTests = requestMatcher.getNumInProgressTests(getProxySet(),request);
-                if(inProgressTests != 0) {
-                    log.info(String.format("Current load will not allow for node to shutdown right now. Node: %s Request: %s Free Slots: %s Node Slots: %s",node.getInstanceId(),request,freeSlotsForBrowser,finalNum));
-                    return false;
-                } else {
-                    log.info(String.format("Tests are not in progress. Node: %s Request: %s Free Slots: %s Node Slots: %s",node.getInstanceId(),request,freeSlotsForBrowser,finalNum));
+        }
+        return false;
+    }
+
+    private static boolean isPastEndDate(AutomationDynamicNode node, Date nowDate) {
+        return node.getStatus() == AutomationDynamicNode.STATUS.RUNNING && nowDate.after(node.getEndDate());
+    }
+
+    /**
+     * Terminates the specified nodes with as few calls to EC2 as possible.  Any node EC2 did not report as shutting down
+     * or terminated is put back to 'EXPIRED' so the next pass tries to terminate it again
+     * @param instanceIds Instance ids of the nodes to terminate
+     */
+    private void terminateNodes(List<String> instanceIds) {
+        log.info(String.format("Terminating %d nodes", instanceIds.size()));
+        Map<String,InstanceStateChange> stateChanges;
+        try {
+            stateChanges = ec2.terminateInstances(instanceIds);
+        } catch (RuntimeException e) {
+            log.error(String.format("Error terminating nodes %s: %s", instanceIds, e), e);
+            stateChanges = Collections.emptyMap();
+        }
+        Map<String,AutomationDynamicNode> nodes = AutomationContext.getContext().getNodes();
+        for(String instanceId : instanceIds) {
+            InstanceStateChange stateChange = stateChanges.get(instanceId);
+            if(isTerminating(stateChange)) {
+                log.info(String.format("Node [%s] is now %s", instanceId, stateChange.getCurrentState().getName()));
+                continue;
+            }
+            log.error("Node could not be terminated and will be retried: " + instanceId);
+            synchronized (nodes) {
+                AutomationDynamicNode node = nodes.get(instanceId);
+                if(node != null && node.getStatus() == AutomationDynamicNode.STATUS.TERMINATED) {
+                    node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
                 }
-            } else {
-                log.info(String.format("Load suitable for Request [%s].  Free slots [%s] Node slots [%s]",request,freeSlotsForBrowser,finalNum));
             }
         }
-        // If we iterated over every browser for the node and load was not heavy enough, we can safely shut this node down
-        return true;
+    }
+
+    private static boolean isTerminating(InstanceStateChange stateChange) {
+        if(stateChange == null || stateChange.getCurrentState() == null || stateChange.getCurrentState().getCode() == null) {
+            return false;
+        }
+        int code = stateChange.getCurrentState().getCode();
+        // Shutting down (32) or terminated (48)
+        return code == 32 || code == 48;
     }
 
     /**
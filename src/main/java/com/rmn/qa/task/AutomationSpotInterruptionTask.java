@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.task;
+
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceStatus;
+import com.google.common.annotations.VisibleForTesting;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationDynamicNode;
+import com.rmn.qa.AutomationRunContext;
+import com.rmn.qa.RegistryRetriever;
+import com.rmn.qa.aws.VmManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Task which looks for spot nodes AWS is about to reclaim, and marks them as {@link com.rmn.qa.AutomationDynamicNode.STATUS#EXPIRED expired}
+ * so that the {@link com.rmn.qa.AutomationCapabilityMatcher capability matcher} stops sending new sessions to them
+ * @author mhardin
+ */
+public class AutomationSpotInterruptionTask extends AbstractAutomationCleanupTask {
+
+    private static final Logger log = LoggerFactory.getLogger(AutomationSpotInterruptionTask.class);
+    @VisibleForTesting static final String NAME = "Spot Interruption Task";
+    // Status of a spot request whose instance has been given its two minute termination notice
+    private static final String MARKED_FOR_TERMINATION = "marked-for-termination";
+    // Prefix of the status of a spot request whose instance has already been reclaimed
+    private static final String TERMINATED_PREFIX = "instance-terminated-";
+
+    private VmManager ec2;
+
+    /**
+     * Constructs a spot interruption task with the specified context retrieval mechanism
+     * @param registryRetriever Represents the retrieval mechanism you wish to use
+     * @param ec2 EC2 implementation to look up spot requests with
+     */
+    public AutomationSpotInterruptionTask(RegistryRetriever registryRetriever, VmManager ec2) {
+        super(registryRetriever);
+        this.ec2 = ec2;
+    }
+
+    @Override
+    public void doWork() {
+        AutomationRunContext context = AutomationContext.getContext();
+        Map<String,AutomationDynamicNode> nodes = context.getNodes();
+        Map<String,AutomationDynamicNode> nodesBySpotRequest = new HashMap<>();
+        synchronized (nodes) {
+            for(AutomationDynamicNode node : nodes.values()) {
+                if(node.getSpotInstanceRequestId() != null && node.getStatus() == AutomationDynamicNode.STATUS.RUNNING) {
+                    nodesBySpotRequest.put(node.getSpotInstanceRequestId(), node);
+                }
+            }
+        }
+        // Nothing to look up unless spot nodes are running
+        if(nodesBySpotRequest.isEmpty()) {
+            return;
+        }
+        log.info(String.format("Running %s for %d spot nodes", AutomationSpotInterruptionTask.NAME, nodesBySpotRequest.size()));
+        DescribeSpotInstanceRequestsRequest request = new DescribeSpotInstanceRequestsRequest();
+        request.withSpotInstanceRequestIds(nodesBySpotRequest.keySet());
+        // Looked up outside of the lock, so other threads are not held up waiting on EC2
+        List<SpotInstanceRequest> spotRequests = ec2.describeSpotInstanceRequests(request);
+        synchronized (nodes) {
+            for(SpotInstanceRequest spotRequest : spotRequests) {
+                AutomationDynamicNode node = nodesBySpotRequest.get(spotRequest.getSpotInstanceRequestId());
+                // The node may have been expired or terminated by another task while EC2 was being called
+                if(node == null || !isInterrupted(spotRequest.getStatus()) || node.getStatus() != AutomationDynamicNode.STATUS.RUNNING) {
+                    continue;
+                }
+                String instanceId = node.getInstanceId();
+                log.warn(String.format("Spot node [%s] is being reclaimed by AWS (%s), marking it expired", instanceId, spotRequest.getStatus().getCode()));
+                node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+                context.getNodeLifecycleEvents().nodeExpired(instanceId);
+            }
+        }
+    }
+
+    private static boolean isInterrupted(SpotInstanceStatus status) {
+        if(status == null || status.getCode() == null) {
+            return false;
+        }
+        return AutomationSpotInterruptionTask.MARKED_FOR_TERMINATION.equals(status.getCode()) || status.getCode().startsWith(AutomationSpotInterruptionTask.TERMINATED_PREFIX);
+    }
+
+    @Override
+    public String getDescription() {
+        return AutomationSpotInterruptionTask.NAME;
+    }
+}
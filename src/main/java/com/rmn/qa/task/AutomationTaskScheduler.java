@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.task;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rmn.qa.AutomationConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every {@link com.rmn.qa.task.AbstractAutomationCleanupTask task} of the hub on a single pool of named threads, and
+ * measures each run.  Tasks are started with a random jitter so they do not all hit the grid and EC2 at once, and are
+ * rescheduled after each run.  A run which takes longer than the interval of its task is counted as an overrun along with
+ * the ticks it missed, rather than having the missed ticks run back to back
+ * @author mhardin
+ */
+public final class AutomationTaskScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(AutomationTaskScheduler.class);
+
+    public static final int DEFAULT_THREADS = 2;
+    // Upper bounds of the run time histogram buckets, with a final bucket for anything slower
+    private static final long[] HISTOGRAM_BUCKETS_IN_MILLIS = { 10, 100, 1000, 10000, 60000 };
+    // Fraction of the interval a task's first run may be delayed by
+    private static final double MAX_JITTER = 0.1;
+
+    private final int threads;
+    private final List<ScheduledTask> tasks = new CopyOnWriteArrayList<>();
+    private final Random random = new Random();
+    private ScheduledThreadPoolExecutor executor;
+    private volatile boolean shutdown;
+
+    /**
+     * Constructs a scheduler with the specified number of threads.  Threads are not started until a task is scheduled
+     * @param threads Number of tasks which can run at the same time
+     */
+    public AutomationTaskScheduler(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Schedules the task to run repeatedly
+     * @param task Task to run
+     * @param initialDelay Delay before the first run, before jitter
+     * @param interval Time between the start of each run, unless configured for the task
+     * @param unit Unit of the delay and interval
+     */
+    public void schedule(AbstractAutomationCleanupTask task, long initialDelay, long interval, TimeUnit unit) {
+        // Intervals can be overridden per task, e.g. -DtaskIntervalSeconds.AutomationNodeCleanupTask=30
+        Long configuredInterval = Long.getLong(AutomationConstants.TASK_INTERVAL_SECONDS + "." + task.getClass().getSimpleName());
+        long intervalInMillis = configuredInterval != null ? TimeUnit.SECONDS.toMillis(configuredInterval) : unit.toMillis(interval);
+        long jitterInMillis;
+        synchronized(random) {
+            jitterInMillis = (long) (random.nextDouble() * intervalInMillis * AutomationTaskScheduler.MAX_JITTER);
+        }
+        ScheduledTask scheduledTask = new ScheduledTask(task, intervalInMillis);
+        tasks.add(scheduledTask);
+        log.info(String.format("Scheduling task [%s] every %d ms", task.getDescription(), intervalInMillis));
+        scheduledTask.scheduleAt(System.currentTimeMillis() + unit.toMillis(initialDelay) + jitterInMillis);
+    }
+
+    /**
+     * Returns the upper bounds of the run time histogram buckets.  Runs slower than the last bound are counted in a
+     * final bucket
+     * @return
+     */
+    public static long[] getHistogramBucketsInMillis() {
+        return AutomationTaskScheduler.HISTOGRAM_BUCKETS_IN_MILLIS.clone();
+    }
+
+    /**
+     * Returns the run statistics of every scheduled task
+     * @return
+     */
+    public List<TaskStatistics> getStatistics() {
+        List<TaskStatistics> statistics = new ArrayList<>();
+        for(ScheduledTask task : tasks) {
+            statistics.add(task.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Stops scheduling tasks and waits for any running task to finish
+     * @param timeout Longest time to wait for running tasks
+     * @param unit Unit of the timeout
+     * @return True if every running task finished in time, false otherwise
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        ScheduledThreadPoolExecutor executor;
+        synchronized(this) {
+            shutdown = true;
+            executor = this.executor;
+        }
+        if(executor == null) {
+            return true;
+        }
+        log.info("Shutting down task scheduler");
+        executor.shutdown();
+        try {
+            if(executor.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.warn("Tasks did not finish in time, interrupting them");
+        executor.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Runs the task after the delay, starting the threads if this is the first task
+     * @return False if the scheduler has been shut down
+     */
+    private synchronized boolean submit(Runnable task, long delayInMillis) {
+        if(shutdown) {
+            return false;
+        }
+        if(executor == null) {
+            executor = new ScheduledThreadPoolExecutor(threads,
+                    new ThreadFactoryBuilder().setNameFormat("automation-task-%d").setDaemon(true).build());
+            // Tasks waiting for their next run are dropped on shutdown, only running tasks are waited on
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        executor.schedule(task, delayInMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Task along with the statistics of its runs
+     */
+    private final class ScheduledTask implements Runnable {
+
+        private final AbstractAutomationCleanupTask task;
+        private final long intervalInMillis;
+        private final long[] histogram = new long[AutomationTaskScheduler.HISTOGRAM_BUCKETS_IN_MILLIS.length + 1];
+        // Time the current run was due to start at
+        private long scheduledTime;
+        private long runs;
+        private long failures;
+        private long overruns;
+        private long missedTicks;
+        private long totalTimeInMillis;
+        private long maxTimeInMillis;
+        private long lastTimeInMillis;
+        private long lastStart;
+
+        private ScheduledTask(AbstractAutomationCleanupTask task, long intervalInMillis) {
+            this.task = task;
+            this.intervalInMillis = intervalInMillis;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            Throwable previousError = task.getThrowable();
+            task.run();
+            long end = System.currentTimeMillis();
+            recordRun(start, end, task.getThrowable() != previousError);
+        }
+
+        private synchronized void recordRun(long start, long end, boolean failed) {
+            long timeInMillis = end - start;
+            runs++;
+            if(failed) {
+                failures++;
+            }
+            totalTimeInMillis += timeInMillis;
+            maxTimeInMillis = Math.max(maxTimeInMillis, timeInMillis);
+            lastTimeInMillis = timeInMillis;
+            lastStart = start;
+            int bucket = 0;
+            while(bucket < AutomationTaskScheduler.HISTOGRAM_BUCKETS_IN_MILLIS.length && timeInMillis >= AutomationTaskScheduler.HISTOGRAM_BUCKETS_IN_MILLIS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+            long nextTime = scheduledTime + intervalInMillis;
+            if(end > nextTime) {
+                // Skip the ticks which passed while this run was going, and start the next run right away
+                long missed = (end - scheduledTime) / intervalInMillis;
+                overruns++;
+                missedTicks += missed;
+                log.warn(String.format("Task [%s] took %d ms, longer than its %d ms interval.  %d runs were skipped",
+                        task.getDescription(), timeInMillis, intervalInMillis, missed));
+                nextTime = end;
+            }
+            scheduleAt(nextTime);
+        }
+
+        private synchronized void scheduleAt(long time) {
+            scheduledTime = time;
+            if(!submit(this, Math.max(0, time - System.currentTimeMillis()))) {
+                log.info(String.format("Task [%s] will not run again as the scheduler is shut down", task.getDescription()));
+            }
+        }
+
+        private synchronized TaskStatistics getStatistics() {
+            return new TaskStatistics(task.getDescription(), intervalInMillis, runs, failures, overruns, missedTicks,
+                    runs == 0 ? 0 : totalTimeInMillis / runs, maxTimeInMillis, lastTimeInMillis, lastStart, histogram.clone());
+        }
+    }
+
+    /**
+     * Run statistics of a single task
+     */
+    public static final class TaskStatistics {
+
+        private final String name;
+        private final long intervalInMillis;
+        private final long runs;
+        private final long failures;
+        private final long overruns;
+        private final long missedTicks;
+        private final long averageTimeInMillis;
+        private final long maxTimeInMillis;
+        private final long lastTimeInMillis;
+        private final long lastStart;
+        private final long[] histogram;
+
+        TaskStatistics(String name, long intervalInMillis, long runs, long failures, long overruns, long missedTicks,
+                       long averageTimeInMillis, long maxTimeInMillis, long lastTimeInMillis, long lastStart, long[] histogram) {
+            this.name = name;
+            this.intervalInMillis = intervalInMillis;
+            this.runs = runs;
+            this.failures = failures;
+            this.overruns = overruns;
+            this.missedTicks = missedTicks;
+            this.averageTimeInMillis = averageTimeInMillis;
+            this.maxTimeInMillis = maxTimeInMillis;
+            this.lastTimeInMillis = lastTimeInMillis;
+            this.lastStart = lastStart;
+            this.histogram = histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getIntervalInMillis() {
+            return intervalInMillis;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        /**
+         * Returns the number of runs which ended with an error
+         * @return
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Returns the number of runs which took longer than the interval
+         * @return
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * Returns the number of runs skipped because an earlier run took too long
+         * @return
+         */
+        public long getMissedTicks() {
+            return missedTicks;
+        }
+
+        public long getAverageTimeInMillis() {
+            return averageTimeInMillis;
+        }
+
+        public long getMaxTimeInMillis() {
+            return maxTimeInMillis;
+        }
+
+        public long getLastTimeInMillis() {
+            return lastTimeInMillis;
+        }
+
+        /**
+         * Returns when the last run started, or 0 if the task has not run yet
+         * @return
+         */
+        public long getLastStart() {
+            return lastStart;
+        }
+
+        /**
+         * Returns the number of runs in each bucket of {@link AutomationTaskScheduler#getHistogramBucketsInMillis()},
+         * followed by the number of runs slower than the last bucket
+         * @return
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+    }
+}
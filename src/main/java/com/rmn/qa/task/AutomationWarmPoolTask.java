@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.task;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rmn.qa.AutomationConstants;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationDynamicNode;
+import com.rmn.qa.AutomationRunContext;
+import com.rmn.qa.AutomationRunRequest;
+import com.rmn.qa.AutomationUtils;
+import com.rmn.qa.NodesCouldNotBeStartedException;
+import com.rmn.qa.RegistryRetriever;
+import com.rmn.qa.aws.AwsVmManager;
+import com.rmn.qa.aws.NodeLaunchPlanner;
+import com.rmn.qa.aws.VmManager;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.TestSlot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.UnknownHostException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a target number of idle nodes running for each configured browser and OS, so new runs can start on nodes which
+ * are already registered instead of waiting on new nodes to boot.  Idle warm nodes count towards the free capacity of the
+ * hub, so runs are handed warm nodes before any new nodes are started.  Warm nodes are kept past their end date while the
+ * pool is in use, and once a browser has gone unused for longer than the idle budget its pool stops being topped up and
+ * its nodes are left to the {@link com.rmn.qa.task.AutomationNodeCleanupTask node cleanup task}.
+ *
+ * <p>Pools are also raised ahead of the demand forecast by the {@link com.rmn.qa.DemandForecaster forecaster}, so nodes
+ * for predicted peaks are registered by the time the runs arrive
+ * @author mhardin
+ */
+public class AutomationWarmPoolTask extends AbstractAutomationCleanupTask {
+
+    private static final Logger log = LoggerFactory.getLogger(AutomationWarmPoolTask.class);
+
+    @VisibleForTesting
+    static final String NAME = "Warm Pool Task";
+    // Warm nodes this close to their end date are kept for another hour if the pool still needs them
+    private static final int KEEP_ALIVE_MINUTES = 3;
+    // Nodes are started for forecast demand this far ahead so they have registered by the time it arrives
+    private static final int PRE_SCALE_LEAD_MINUTES = 15;
+
+    private final VmManager ec2;
+    private final Map<AutomationRunRequest,Integer> targets;
+    private final long idleBudgetInMillis;
+    private final Map<AutomationRunRequest,Long> lastUsed = new HashMap<>();
+    private final Map<String,AutomationRunRequest> forecastShapes = new HashMap<>();
+    private final Executor launchExecutor;
+    // Pools with a launch queued or in progress, which are not topped up again until their nodes have been added
+    private final Set<AutomationRunRequest> launching = Collections.newSetFromMap(new ConcurrentHashMap<AutomationRunRequest,Boolean>());
+
+    /**
+     * Constructs a warm pool task with the specified options, which starts nodes on the thread running the task
+     * @param registryRetriever Context retrieval mechanism
+     * @param ec2 EC2 implementation
+     * @param targets Number of idle nodes to keep for each browser and OS
+     * @param idleBudgetInMillis Time a pool may go unused before it stops being topped up
+     */
+    public AutomationWarmPoolTask(RegistryRetriever registryRetriever, VmManager ec2, Map<AutomationRunRequest,Integer> targets, long idleBudgetInMillis) {
+        this(registryRetriever, ec2, targets, idleBudgetInMillis, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Constructs a warm pool task with the specified options
+     * @param registryRetriever Context retrieval mechanism
+     * @param ec2 EC2 implementation
+     * @param targets Number of idle nodes to keep for each browser and OS
+     * @param idleBudgetInMillis Time a pool may go unused before it stops being topped up
+     * @param launchExecutor Executor nodes are started on, so slow EC2 calls do not hold up the other hub tasks
+     */
+    public AutomationWarmPoolTask(RegistryRetriever registryRetriever, VmManager ec2, Map<AutomationRunRequest,Integer> targets, long idleBudgetInMillis, Executor launchExecutor) {
+        super(registryRetriever);
+        this.ec2 = ec2;
+        this.launchExecutor = launchExecutor;
+        this.targets = targets;
+        this.idleBudgetInMillis = idleBudgetInMillis;
+        // Pools start out in use so they are filled when the hub starts
+        long now = System.currentTimeMillis();
+        for(AutomationRunRequest shape : targets.keySet()) {
+            lastUsed.put(shape, now);
+        }
+    }
+
+    /**
+     * Parses the warm pool targets from a comma delimited list of 'browser:os=count' entries.  The OS may be left off
+     * and entries for browsers nodes cannot be started for are ignored
+     * @param config Warm pool configuration (e.g. 'chrome:linux=2,firefox:linux=1')
+     * @return
+     */
+    public static Map<AutomationRunRequest,Integer> parseTargets(String config) {
+        Map<AutomationRunRequest,Integer> targets = new LinkedHashMap<>();
+        if(config == null) {
+            return targets;
+        }
+        for(String entry : config.split(",")) {
+            entry = entry.trim();
+            if(entry.isEmpty()) {
+                continue;
+            }
+            String[] shapeAndCount = entry.split("=");
+            String[] browserAndOs = shapeAndCount[0].trim().split(":");
+            String browser = browserAndOs[0].trim();
+            String os = browserAndOs.length > 1 ? browserAndOs[1].trim() : null;
+            int count;
+            try {
+                count = shapeAndCount.length == 2 ? Integer.parseInt(shapeAndCount[1].trim()) : -1;
+            } catch(NumberFormatException e) {
+                count = -1;
+            }
+            if(count < 0 || AwsVmManager.getThreadCountForBrowser(browser) == 0) {
+                log.error(String.format("Ignoring invalid warm pool entry [%s]", entry));
+                continue;
+            }
+            targets.put(new AutomationRunRequest(AutomationConstants.WARM_POOL_UUID, null, browser, null, os), count);
+        }
+        return targets;
+    }
+
+    @Override
+    public String getDescription() {
+        return AutomationWarmPoolTask.NAME;
+    }
+
+    /**
+     * Returns the ProxySet to be used for warm pool purposes.
+     * @return
+     */
+    @VisibleForTesting
+    protected ProxySet getProxySet() {
+        return registryRetriever.retrieveRegistry().getAllProxies();
+    }
+
+    @Override
+    public void doWork() {
+        AutomationRunContext context = AutomationContext.getContext();
+        Map<String,AutomationDynamicNode> nodes = context.getNodes();
+        Map<String,RemoteProxy> proxies = getProxiesByInstanceId();
+        long now = System.currentTimeMillis();
+        Map<AutomationRunRequest,Integer> forecastTargets = getForecastTargets(now, proxies);
+        Map<AutomationRunRequest,Integer> currentTargets = new LinkedHashMap<>(targets);
+        for(Map.Entry<AutomationRunRequest,Integer> entry : forecastTargets.entrySet()) {
+            Integer target = currentTargets.get(entry.getKey());
+            currentTargets.put(entry.getKey(), target == null ? entry.getValue() : Math.max(target, entry.getValue()));
+        }
+        Map<AutomationRunRequest,Integer> nodesToStart = new LinkedHashMap<>();
+        synchronized (nodes) {
+            for(Map.Entry<AutomationRunRequest,Integer> entry : currentTargets.entrySet()) {
+                AutomationRunRequest shape = entry.getKey();
+                // Demand which is forecast to arrive shortly counts as use so the pool is ready for it
+                if(forecastTargets.containsKey(shape) || isShapeInUse(shape, proxies.values())) {
+                    lastUsed.put(shape, now);
+                } else if(now - lastUsed.get(shape) >= idleBudgetInMillis) {
+                    log.info(String.format("Warm pool for [%s] has not been used in the last %d minutes and will not be topped up", shape.getBrowser(), idleBudgetInMillis / 60000));
+                    continue;
+                }
+                int idleNodes = 0;
+                for(AutomationDynamicNode node : nodes.values()) {
+                    if(!isIdleWarmNode(node, shape, proxies)) {
+                        continue;
+                    }
+                    if(idleNodes < entry.getValue()) {
+                        keepAlive(node);
+                    }
+                    idleNodes++;
+                }
+                if(idleNodes < entry.getValue() && !launching.contains(shape)) {
+                    nodesToStart.put(shape, entry.getValue() - idleNodes);
+                }
+            }
+        }
+        // Start nodes outside of the lock as starting them can take a while
+        for(Map.Entry<AutomationRunRequest,Integer> entry : nodesToStart.entrySet()) {
+            submitLaunch(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Queues nodes to be started for the pool on the launch executor.  The pool is not topped up again until the launch
+     * has finished, as its nodes are not tracked until then
+     * @param shape Browser and OS of the pool
+     * @param nodeCount Number of nodes to start
+     */
+    private void submitLaunch(final AutomationRunRequest shape, final int nodeCount) {
+        if(!launching.add(shape)) {
+            return;
+        }
+        try {
+            launchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startNodes(shape, nodeCount);
+                    } finally {
+                        launching.remove(shape);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            launching.remove(shape);
+            log.warn(String.format("Node provisioning queue is full.  Warm pool for [%s] will be topped up on the next pass", shape.getBrowser()));
+        }
+    }
+
+    /**
+     * Returns the number of nodes each browser needs for the threads forecast to be asked for shortly, beyond the free
+     * threads the hub already has for it.  Browsers which already have a configured pool use that pool, and the forecast
+     * is capped at the node capacity of the hub
+     * @param now Current time
+     * @param proxies Registered proxies keyed by instance id
+     * @return
+     */
+    private Map<AutomationRunRequest,Integer> getForecastTargets(long now, Map<String,RemoteProxy> proxies) {
+        AutomationRunContext context = AutomationContext.getContext();
+        Map<String,Integer> forecast = context.getDemandForecaster().getForecast(new Date(now + TimeUnit.MINUTES.toMillis(AutomationWarmPoolTask.PRE_SCALE_LEAD_MINUTES)));
+        Map<AutomationRunRequest,Integer> forecastTargets = new LinkedHashMap<>();
+        for(Map.Entry<String,Integer> entry : forecast.entrySet()) {
+            AutomationRunRequest shape = getShapeForBrowser(entry.getKey());
+            int threadsPerNode = getThreadsPerNode(shape);
+            if(threadsPerNode == 0) {
+                continue;
+            }
+            int threads = Math.max(0, Math.min(entry.getValue(), context.getTotalNodeCount()) - getFreeThreads(shape, proxies));
+            int nodeCount = (threads + threadsPerNode - 1) / threadsPerNode;
+            if(nodeCount > 0) {
+                forecastTargets.put(shape, nodeCount);
+            }
+        }
+        if(!forecastTargets.isEmpty()) {
+            log.info(String.format("Nodes forecast to be needed shortly: %s", forecast));
+        }
+        return forecastTargets;
+    }
+
+    /**
+     * Returns the number of tests the registered nodes could start for the pool's browser right now.  Idle nodes of the
+     * pool are left out, as they already count towards its target
+     * @param shape Browser and OS of the pool
+     * @param proxies Registered proxies keyed by instance id
+     * @return
+     */
+    private int getFreeThreads(AutomationRunRequest shape, Map<String,RemoteProxy> proxies) {
+        ProxySet proxySet = getProxySet();
+        if(proxySet == null) {
+            return 0;
+        }
+        Map<String,AutomationDynamicNode> nodes = AutomationContext.getContext().getNodes();
+        int freeThreads = 0;
+        for(RemoteProxy proxy : proxySet) {
+            Object instanceId = proxy.getConfig().get(AutomationConstants.INSTANCE_ID);
+            AutomationDynamicNode node = instanceId instanceof String ? nodes.get(instanceId) : null;
+            if(node != null && isIdleWarmNode(node, shape, proxies)) {
+                continue;
+            }
+            int freeSlots = 0;
+            for(TestSlot testSlot : proxy.getTestSlots()) {
+                if(testSlot.getSession() == null && shape.matchesCapabilities(testSlot)) {
+                    freeSlots++;
+                }
+            }
+            // Nodes may have more slots than they can run sessions at once
+            freeThreads += Math.max(0, Math.min(freeSlots, proxy.getMaxNumberOfConcurrentTestSessions() - proxy.getTotalUsed()));
+        }
+        return freeThreads;
+    }
+
+    /**
+     * Returns the number of sessions each node of the pool runs.  Linux nodes are sized from the instance type
+     * {@link com.rmn.qa.aws.InstanceTypeCatalog catalog}, which only describes Linux instance types
+     * @param shape Browser and OS of the pool
+     * @return Sessions per node, or 0 if nodes cannot be started for the browser
+     */
+    private int getThreadsPerNode(AutomationRunRequest shape) {
+        if(!isLinux(shape)) {
+            return AwsVmManager.getThreadCountForBrowser(shape.getBrowser());
+        }
+        try {
+            return NodeLaunchPlanner.planNodes(shape.getBrowser(), 1, ec2.getInstanceTypeCatalog()).getMaxSessions();
+        } catch(IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isLinux(AutomationRunRequest shape) {
+        return "linux".equalsIgnoreCase(AwsVmManager.resolveOs(shape.getOs(), shape.getBrowser()));
+    }
+
+    /**
+     * Returns the configured pool for the browser, or a pool for the browser on any OS if none was configured
+     * @param browser Browser to get the pool for
+     * @return
+     */
+    private AutomationRunRequest getShapeForBrowser(String browser) {
+        for(AutomationRunRequest shape : targets.keySet()) {
+            if(AutomationUtils.lowerCaseMatch(browser, shape.getBrowser())) {
+                return shape;
+            }
+        }
+        AutomationRunRequest shape = forecastShapes.get(browser);
+        if(shape == null) {
+            shape = new AutomationRunRequest(AutomationConstants.WARM_POOL_UUID, null, browser, null, null);
+            forecastShapes.put(browser, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * Returns the registered proxies keyed by the instance id of their node
+     * @return
+     */
+    private Map<String,RemoteProxy> getProxiesByInstanceId() {
+        ProxySet proxySet = getProxySet();
+        if(proxySet == null) {
+            return Collections.emptyMap();
+        }
+        Map<String,RemoteProxy> proxies = new HashMap<>();
+        for(RemoteProxy proxy : proxySet) {
+            Object instanceId = proxy.getConfig().get(AutomationConstants.INSTANCE_ID);
+            if(instanceId instanceof String) {
+                proxies.put((String)instanceId, proxy);
+            }
+        }
+        return proxies;
+    }
+
+    /**
+     * Returns true if a test is running on the browser, or a registered run has asked for it
+     * @param shape Browser and OS of the pool
+     * @param proxies Registered proxies
+     * @return
+     */
+    private boolean isShapeInUse(AutomationRunRequest shape, Iterable<RemoteProxy> proxies) {
+        AutomationRunContext context = AutomationContext.getContext();
+        for(String uuid : context.getRunUuids()) {
+            AutomationRunRequest runRequest = context.getRunRequest(uuid);
+            if(runRequest != null && runRequest.matchesCapabilities(shape)) {
+                return true;
+            }
+        }
+        for(RemoteProxy proxy : proxies) {
+            for(TestSlot testSlot : proxy.getTestSlots()) {
+                if(testSlot.getSession() != null && shape.matchesCapabilities(testSlot)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the node was started for the pool and is either still booting or registered with no tests running
+     * @param node Node to check
+     * @param shape Browser and OS of the pool
+     * @param proxies Registered proxies keyed by instance id
+     * @return
+     */
+    private boolean isIdleWarmNode(AutomationDynamicNode node, AutomationRunRequest shape, Map<String,RemoteProxy> proxies) {
+        if(!AutomationConstants.WARM_POOL_UUID.equals(node.getUuid()) || node.getStatus() != AutomationDynamicNode.STATUS.RUNNING
+                || !AutomationUtils.lowerCaseMatch(shape.getBrowser(), node.getBrowser()) || !AutomationUtils.lowerCaseMatch(shape.getOs(), node.getOs())) {
+            return false;
+        }
+        RemoteProxy proxy = proxies.get(node.getInstanceId());
+        // Nodes which have not registered yet are still booting and will join the pool shortly
+        if(proxy == null) {
+            return true;
+        }
+        for(TestSlot testSlot : proxy.getTestSlots()) {
+            if(testSlot.getSession() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the end date of the node into the next billing cycle if it is about to expire so it stays in the pool
+     * @param node Node to keep
+     */
+    private void keepAlive(AutomationDynamicNode node) {
+        if(AutomationUtils.isCurrentTimeAfterDate(node.getEndDate(), -AutomationWarmPoolTask.KEEP_ALIVE_MINUTES, Calendar.MINUTE)) {
+            node.incrementEndDateByOneHour();
+            log.info(String.format("Keeping warm node [%s] in the pool until %s", node.getInstanceId(), node.getEndDate()));
+        }
+    }
+
+    /**
+     * Starts nodes for the pool.  Linux nodes are started as the instance type with the lowest price per session planned
+     * by the {@link com.rmn.qa.aws.NodeLaunchPlanner planner}
+     * @param shape Browser and OS of the pool
+     * @param nodeCount Number of nodes to start
+     */
+    private void startNodes(AutomationRunRequest shape, int nodeCount) {
+        log.info(String.format("Starting %d nodes to top up the warm pool for [%s]", nodeCount, shape.getBrowser()));
+        try {
+            List<Instance> instances;
+            int threadsPerNode;
+            if(isLinux(shape)) {
+                NodeLaunchPlanner.NodeLaunch launch = NodeLaunchPlanner.planNodes(shape.getBrowser(), nodeCount, ec2.getInstanceTypeCatalog());
+                instances = ec2.launchNodes(AutomationConstants.WARM_POOL_UUID, "linux", AutomationUtils.getHubHostName(), launch);
+                threadsPerNode = launch.getMaxSessions();
+            } else {
+                threadsPerNode = AwsVmManager.getThreadCountForBrowser(shape.getBrowser());
+                instances = ec2.launchNodes(AutomationConstants.WARM_POOL_UUID, shape.getOs(), shape.getBrowser(),
+                        AutomationUtils.getHubHostName(), nodeCount, threadsPerNode);
+            }
+            Date startDate = new Date();
+            for(Instance instance : instances) {
+                AutomationDynamicNode node = new AutomationDynamicNode(AutomationConstants.WARM_POOL_UUID,
+                        instance.getInstanceId(), shape.getBrowser(), shape.getOs(), startDate, threadsPerNode);
+                node.setSpotInstanceRequestId(instance.getSpotInstanceRequestId());
+                AutomationContext.getContext().addNode(node);
+            }
+        } catch(NodesCouldNotBeStartedException | UnknownHostException | IllegalArgumentException e) {
+            log.error(String.format("Warm pool nodes could not be started for [%s]: %s", shape.getBrowser(), e), e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures matching a requested session against every slot of a {@link com.rmn.qa.SyntheticGrid synthetic grid}, which
+ * is what the hub does when assigning a new session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AutomationCapabilityMatcherBenchmark {
+
+    @Param({ "10", "100", "500", "2000" })
+    private int proxyCount;
+
+    private List<Map<String,Object>> slotCapabilities;
+    private AutomationCapabilityMatcher matcher;
+    private Map<String,Object> requestedCapabilities;
+
+    @Setup
+    public void setUp() {
+        ProxySet proxySet = SyntheticGrid.build(proxyCount);
+        // The registry matches against the same capabilities instance of each slot every time, so hold on to them
+        slotCapabilities = new ArrayList<>();
+        for(RemoteProxy proxy : proxySet) {
+            slotCapabilities.add(proxy.getTestSlots().get(0).getCapabilities());
+        }
+        matcher = new AutomationCapabilityMatcher();
+        requestedCapabilities = new HashMap<>();
+        requestedCapabilities.put(CapabilityType.BROWSER_NAME, "chrome");
+        requestedCapabilities.put(AutomationConstants.UUID, "benchmarkUuid");
+    }
+
+    @Benchmark
+    public int matches() {
+        int matches = 0;
+        for(Map<String,Object> capabilities : slotCapabilities) {
+            if(matcher.matches(capabilities, requestedCapabilities)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -127,6 +127,49 @@ public class AutomationCapabilityMatcherTest {
         Assert.assertTrue("Capabilities should not match due to override",matcher.matches(nodeCapability,requestedCapability));
     }
 
+    @Test
+    public void testDecisionCached() {
+        final int[] computed = new int[1];
+        AutomationCapabilityMatcher matcher = new AutomationCapabilityMatcher() {
+            @Override
+            boolean capabilitiesMatch(Map<String, Object> nodeCapability, Map<String, Object> requestedCapability) {
+                computed[0]++;
+                return super.capabilitiesMatch(nodeCapability, requestedCapability);
+            }
+        };
+        Map<String,Object> nodeCapability = new HashMap<String,Object>();
+        nodeCapability.put(CapabilityType.BROWSER_NAME,"firefox");
+        Map<String,Object> firstRun = new HashMap<String,Object>();
+        firstRun.put(CapabilityType.BROWSER_NAME,"firefox");
+        firstRun.put(AutomationConstants.UUID,"firstUuid");
+        Map<String,Object> secondRun = new HashMap<String,Object>();
+        secondRun.put(CapabilityType.BROWSER_NAME,"firefox");
+        secondRun.put(AutomationConstants.UUID,"secondUuid");
+        Map<String,Object> chrome = ImmutableMap.of(CapabilityType.BROWSER_NAME, (Object)"chrome");
+        Assert.assertTrue("Capabilities should match", matcher.matches(nodeCapability, firstRun));
+        Assert.assertTrue("Capabilities should match", matcher.matches(nodeCapability, secondRun));
+        Assert.assertEquals("Requests differing only by UUID should share a decision", 1, computed[0]);
+        Assert.assertFalse("Capabilities should not match", matcher.matches(nodeCapability, chrome));
+        Assert.assertFalse("Capabilities should not match", matcher.matches(nodeCapability, chrome));
+        Assert.assertEquals("Different browser should be computed once", 2, computed[0]);
+    }
+
+    @Test
+    public void testCachedDecisionHonorsStatusChange() {
+        AutomationCapabilityMatcher matcher = new AutomationCapabilityMatcher();
+        Map<String,Object> nodeCapability = new HashMap<String,Object>();
+        nodeCapability.put(CapabilityType.BROWSER_NAME,"firefox");
+        nodeCapability.put(AutomationConstants.INSTANCE_ID,"cachedId");
+        Map<String,Object> testCapability = ImmutableMap.of(CapabilityType.BROWSER_NAME, (Object)"firefox");
+        AutomationDynamicNode node = new AutomationDynamicNode("uuid","cachedId","browser","os", new Date(),10);
+        AutomationContext.getContext().addNode(node);
+        Assert.assertTrue("Capabilities should match as node is running", matcher.matches(nodeCapability, testCapability));
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        Assert.assertFalse("Capabilities should not match once node has expired", matcher.matches(nodeCapability, testCapability));
+        node.updateStatus(AutomationDynamicNode.STATUS.RUNNING);
+        Assert.assertTrue("Capabilities should match once node is running again", matcher.matches(nodeCapability, testCapability));
+    }
+
     @After
     public void clearSystemProperty() {
         System.clearProperty(AutomationConstants.EXTRA_CAPABILITIES_PROPERTY_NAME);
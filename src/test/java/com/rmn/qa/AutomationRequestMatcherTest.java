@@ -391,6 +391,9 @@ public class AutomationRequestMatcherTest {
         // Assign a session to the test slot
         testSlot.getNewSession(capabilities);
         proxy.setMultipleTestSlots(testSlot,5);
+        for(int i=0;i<5;i++) {
+            AutomationContext.getContext().sessionStarted(capabilities);
+        }
         Map<String,Object> capabilities2 = new HashMap<String,Object>();
         capabilities2.put(CapabilityType.BROWSER_NAME,"firefox");
         TestSlot testSlot2 = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities2);
@@ -402,7 +405,7 @@ public class AutomationRequestMatcherTest {
     }
 
     @Test
-    // Test to make sure that an old run that never started is not subtracted from the free node count
+    // Test to make sure that a run which has started all of its threads only has its in progress tests subtracted from the free node count
     public void testRequestOldRunInProgress() throws IOException, ServletException{
         String browser = "firefox";
         String nodeId = "nodeId";
@@ -426,6 +429,10 @@ public class AutomationRequestMatcherTest {
         // Assign a session to the test slot
         testSlot.getNewSession(capabilities);
         proxy.setMultipleTestSlots(testSlot, 5);
+        // All 10 threads started, half of them have since finished
+        for(int i=0;i<10;i++) {
+            AutomationContext.getContext().sessionStarted(capabilities);
+        }
         Map<String,Object> capabilities2 = new HashMap<String,Object>();
         capabilities2.put(CapabilityType.BROWSER_NAME,"firefox");
         TestSlot testSlot2 = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities2);
@@ -433,11 +440,11 @@ public class AutomationRequestMatcherTest {
         proxySet.add(proxy);
         AutomationContext.getContext().setTotalNodeCount(50);
         int freeThreads = new AutomationRequestMatcher().getNumFreeThreadsForParameters(proxySet,new AutomationRunRequest(browser));
-        Assert.assertEquals("Nodes should be considered free since run is considered old at this point ",5,freeThreads);
+        Assert.assertEquals("Nodes should be considered free since all of the run's threads have started",5,freeThreads);
     }
 
     @Test
-    // Tests when a run is considered old that the threads are not considered in use
+    // Tests that an old run which never started keeps its threads reserved until the run is removed
     public void testRequestOldRunFinished() throws IOException, ServletException{
         String browser = "firefox";
         String nodeId = "nodeId";
@@ -461,7 +468,10 @@ public class AutomationRequestMatcherTest {
         proxySet.add(proxy);
         AutomationContext.getContext().setTotalNodeCount(50);
         int freeThreads = new AutomationRequestMatcher().getNumFreeThreadsForParameters(proxySet,new AutomationRunRequest(browser));
-        Assert.assertEquals("Free nodes should be correct since the run has finished at this point",10,freeThreads);
+        Assert.assertEquals("No nodes should be free while the run still has threads reserved",0,freeThreads);
+        AutomationContext.getContext().deleteRun(runId);
+        freeThreads = new AutomationRequestMatcher().getNumFreeThreadsForParameters(proxySet,new AutomationRunRequest(browser));
+        Assert.assertEquals("Free nodes should be correct since the run has been removed",10,freeThreads);
     }
 
     @Test
@@ -550,4 +560,41 @@ public class AutomationRequestMatcherTest {
         int freeThreads = new AutomationRequestMatcher().getNumFreeThreadsForParameters(proxySet,new AutomationRunRequest(browser));
         Assert.assertEquals("Free nodes should be correct since the node max has not been reached",1,freeThreads);
     }
+
+    @Test
+    // Tests that a batched capacity query returns the same values as querying each request individually
+    public void testBatchedCapacityMatchesIndividualRequests() {
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setMaxNumberOfConcurrentTestSessions(10);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> config = new HashMap<String, Object>();
+        config.put(AutomationConstants.INSTANCE_ID,"nodeId");
+        proxy.setConfig(config);
+        Map<String,Object> firefoxCapabilities = new HashMap<String,Object>();
+        firefoxCapabilities.put(CapabilityType.BROWSER_NAME, "firefox");
+        TestSlot firefoxSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,firefoxCapabilities);
+        firefoxSlot.getNewSession(firefoxCapabilities);
+        proxy.setMultipleTestSlots(firefoxSlot, 1);
+        proxy.setMultipleTestSlots(new TestSlot(proxy, SeleniumProtocol.WebDriver,null,firefoxCapabilities), 3);
+        Map<String,Object> chromeCapabilities = new HashMap<String,Object>();
+        chromeCapabilities.put(CapabilityType.BROWSER_NAME, "chrome");
+        proxy.setMultipleTestSlots(new TestSlot(proxy, SeleniumProtocol.WebDriver,null,chromeCapabilities), 2);
+        proxySet.add(proxy);
+        AutomationContext.getContext().setTotalNodeCount(50);
+
+        AutomationRequestMatcher requestMatcher = new AutomationRequestMatcher();
+        AutomationRunRequest firefox = new AutomationRunRequest("firefox");
+        AutomationRunRequest chrome = new AutomationRunRequest("chrome");
+        Map<AutomationRunRequest,AutomationCapacity> capacity = requestMatcher.getCapacityForParameters(proxySet, Arrays.asList(firefox, chrome));
+        Assert.assertEquals("Firefox free threads should match individual query",
+                requestMatcher.getNumFreeThreadsForParameters(proxySet, firefox), capacity.get(firefox).getFreeThreads());
+        Assert.assertEquals("Chrome free threads should match individual query",
+                requestMatcher.getNumFreeThreadsForParameters(proxySet, chrome), capacity.get(chrome).getFreeThreads());
+        Assert.assertEquals("Firefox free threads should be correct", 3, capacity.get(firefox).getFreeThreads());
+        Assert.assertEquals("Firefox capable threads should be correct", 4, capacity.get(firefox).getCapableThreads());
+        Assert.assertEquals("Firefox running threads should be correct", 1, capacity.get(firefox).getRunningThreads());
+        Assert.assertEquals("Chrome free threads should be correct", 2, capacity.get(chrome).getFreeThreads());
+        Assert.assertEquals("Chrome running threads should be correct", 0, capacity.get(chrome).getRunningThreads());
+    }
 }
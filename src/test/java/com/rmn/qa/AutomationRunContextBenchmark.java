@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.internal.ProxySet;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hub wide capacity and run cleanup computations of the {@link com.rmn.qa.AutomationRunContext context}
+ * against a {@link com.rmn.qa.SyntheticGrid synthetic grid}.  Every registered run still has running sessions, so
+ * cleanup analyzes every run without removing any of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AutomationRunContextBenchmark {
+
+    @Param({ "10", "100", "500", "2000" })
+    private int proxyCount;
+
+    private ProxySet proxySet;
+    private AutomationRunContext context;
+
+    @Setup
+    public void setUp() {
+        proxySet = SyntheticGrid.build(proxyCount);
+        context = AutomationContext.getContext();
+    }
+
+    @Benchmark
+    public int getTotalThreadsAvailable() {
+        return context.getTotalThreadsAvailable(proxySet);
+    }
+
+    @Benchmark
+    public void cleanUpRunRequests() {
+        context.cleanUpRunRequests(proxySet);
+    }
+}
@@ -19,6 +19,7 @@ import org.junit.After;
 import org.junit.Test;
 import org.openqa.grid.common.SeleniumProtocol;
 import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSession;
 import org.openqa.grid.internal.TestSlot;
 import org.openqa.grid.internal.utils.CapabilityMatcher;
 import org.openqa.selenium.remote.CapabilityType;
@@ -54,6 +55,38 @@ public class AutomationRunContextTest {
         Assert.assertFalse("Run request should no longer exist as it should have been removed", context.hasRun(oldRequest.getUuid()));
     }
 
+    @Test
+    // Tests that an old run is not cleaned up while its nodes are still being started
+    public void testOldRunProvisioningPending() {
+        AutomationRunRequest oldRequest = new AutomationRunRequest("uuid",10,"firefox","10","linux",AutomationUtils.modifyDate(new Date(),-5, Calendar.MINUTE));
+        oldRequest.provisioningStarted();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.addRun(oldRequest);
+        ProxySet proxySet = new ProxySet(false);
+        proxySet.add(new MockRemoteProxy());
+        context.cleanUpRunRequests(proxySet);
+        Assert.assertTrue("Run request should still exist as its nodes are still being started", context.hasRun(oldRequest.getUuid()));
+        oldRequest.provisioningComplete();
+        context.provisioningEnded(oldRequest);
+        context.cleanUpRunRequests(proxySet);
+        Assert.assertTrue("Run request should still exist as its age restarted once its nodes were started", context.hasRun(oldRequest.getUuid()));
+    }
+
+    @Test
+    // Tests that an old run whose nodes could not be started is kept so its status can still be read
+    public void testOldRunProvisioningFailed() {
+        AutomationRunRequest oldRequest = new AutomationRunRequest("uuid",10,"firefox","10","linux",AutomationUtils.modifyDate(new Date(),-5, Calendar.MINUTE));
+        oldRequest.provisioningStarted();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.addRun(oldRequest);
+        oldRequest.provisioningFailed("No capacity");
+        context.provisioningEnded(oldRequest);
+        ProxySet proxySet = new ProxySet(false);
+        proxySet.add(new MockRemoteProxy());
+        context.cleanUpRunRequests(proxySet);
+        Assert.assertTrue("Failed run should be kept so its status can be read", context.hasRun(oldRequest.getUuid()));
+    }
+
     @Test
     // Tests that a new run does not get cleaned up (removed)
     public void testNewRun() {
@@ -151,6 +184,32 @@ public class AutomationRunContextTest {
         Assert.assertFalse("Run request should not exist as there were no active sessions", context.hasRun(request.getUuid()));
     }
 
+    @Test
+    // Tests that run cleanup uses the capacity index once every proxy is tracked by it
+    public void testCleanUpFromCapacityIndex() {
+        String uuid = "uuid";
+        AutomationRunRequest request = new AutomationRunRequest(uuid,10,"firefox","10","linux",AutomationUtils.modifyDate(new Date(),-1, Calendar.HOUR));
+        AutomationRunContext context = AutomationContext.getContext();
+        context.addRun(request);
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"firefox");
+        capabilities.put(AutomationConstants.UUID,uuid);
+        TestSlot testSlot = new TestSlot(proxy,SeleniumProtocol.WebDriver,null,capabilities);
+        proxy.setMultipleTestSlots(testSlot,1);
+        TestSession session = testSlot.getNewSession(capabilities);
+        proxySet.add(proxy);
+        context.getCapacityIndex().proxyRegistered(proxy);
+        context.cleanUpRunRequests(proxySet);
+        Assert.assertTrue("Run request should still exist as the index has an active session", context.hasRun(uuid));
+        // The session is still attached to the slot, so only the index knows it has ended
+        context.getCapacityIndex().sessionEnded(proxy, session);
+        context.cleanUpRunRequests(proxySet);
+        Assert.assertFalse("Run request should not exist as the index has no active sessions", context.hasRun(uuid));
+    }
+
     @Test
     // Tests that a newly created run is considered a 'new' run
     public void testIsNewRun() {
@@ -232,13 +291,16 @@ public class AutomationRunContextTest {
         TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
         testSlot.getNewSession(capabilities);
         proxy.setMultipleTestSlots(testSlot,5);
+        for(int i=0;i<5;i++) {
+            runContext.sessionStarted(capabilities);
+        }
         proxySet.add(proxy);
         int freeThreads = runContext.getTotalThreadsAvailable(proxySet);
         Assert.assertEquals(0,freeThreads);
     }
 
     @Test
-    // Tests that for an old run, the in progress tests are counted
+    // Tests that once a run has started all of its threads, only the in progress tests are counted
     public void testOldRunInProgress() {
         String uuid = "testUuid";
         AutomationRunContext runContext = new AutomationRunContext();
@@ -256,8 +318,61 @@ public class AutomationRunContextTest {
         testSlot.getNewSession(capabilities);
         int inProgressTests = 5;
         proxy.setMultipleTestSlots(testSlot,inProgressTests);
+        // All 10 threads started, half of them have since finished
+        for(int i=0;i<request.getThreadCount();i++) {
+            runContext.sessionStarted(capabilities);
+        }
         proxySet.add(proxy);
         int freeThreads = runContext.getTotalThreadsAvailable(proxySet);
         Assert.assertEquals("Free threads should reflect in progress test count",inProgressTests,freeThreads);
     }
+
+    @Test
+    // Tests that the run cleanup releases the reservations of running sessions whose start was never reported
+    public void testReservedThreadsReconciledFromSessions() {
+        String uuid = "testUuid";
+        AutomationRunContext runContext = new AutomationRunContext();
+        runContext.setTotalNodeCount(20);
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"chrome");
+        capabilities.put(AutomationConstants.UUID,uuid);
+        AutomationRunRequest request = new AutomationRunRequest(uuid,10,"chrome");
+        runContext.addRun(request);
+        TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
+        testSlot.getNewSession(capabilities);
+        proxy.setMultipleTestSlots(testSlot,4);
+        proxySet.add(proxy);
+        Assert.assertEquals("Unreported sessions should still count against the reservation", 6, runContext.getTotalThreadsAvailable(proxySet));
+        runContext.cleanUpRunRequests(proxySet);
+        Assert.assertEquals("Reservation should only cover threads which are not running", 6, request.getReservedThreads());
+        Assert.assertEquals("Running sessions should no longer be counted twice", 10, runContext.getTotalThreadsAvailable(proxySet));
+    }
+
+    @Test
+    // Tests that threads of a registered run are released as its sessions start
+    public void testReservedThreadsReleasedBySessions() {
+        String uuid = "testUuid";
+        AutomationRunContext runContext = new AutomationRunContext();
+        runContext.addRun(new AutomationRunRequest(uuid,3,"chrome"));
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"chrome");
+        capabilities.put(AutomationConstants.UUID,uuid);
+        Assert.assertEquals("All threads should be reserved",3,runContext.getReservedThreads());
+        runContext.sessionStarted(capabilities);
+        Assert.assertEquals("Started session should release a thread",2,runContext.getReservedThreads());
+        Map<String,Object> untrackedCapabilities = new HashMap<>();
+        untrackedCapabilities.put(CapabilityType.BROWSER_NAME,"chrome");
+        runContext.sessionStarted(untrackedCapabilities);
+        Assert.assertEquals("Session without a UUID should not release a thread",2,runContext.getReservedThreads());
+        for(int i=0;i<5;i++) {
+            runContext.sessionStarted(capabilities);
+        }
+        Assert.assertEquals("Reserved threads should not go below zero",0,runContext.getReservedThreads());
+        runContext.addRun(new AutomationRunRequest("otherUuid",4,"chrome"));
+        runContext.deleteRun("otherUuid");
+        Assert.assertEquals("Deleted run should no longer reserve threads",0,runContext.getReservedThreads());
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures matching a run request against a registered test slot.  Compares {@link com.rmn.qa.CapabilityKey
+ * capability keys} against the previous behavior of lower casing and stripping both strings on every comparison.  Run
+ * with <code>-prof gc</code> to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CapabilityKeyBenchmark {
+
+    private AutomationRunRequest request;
+    private TestSlot testSlot;
+
+    @Setup
+    public void setUp() {
+        request = new AutomationRunRequest("uuid", 10, "Internet Explorer", "11", "Windows");
+        Map<String,Object> slotCapabilities = new HashMap<>();
+        slotCapabilities.put(CapabilityType.BROWSER_NAME, "internet explorer");
+        slotCapabilities.put(CapabilityType.VERSION, "11");
+        slotCapabilities.put(CapabilityType.PLATFORM, "WINDOWS");
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver, null, slotCapabilities);
+        CapabilityKey.register(testSlot);
+    }
+
+    @Benchmark
+    public boolean interned() {
+        return request.matchesCapabilities(testSlot);
+    }
+
+    @Benchmark
+    public boolean lowerCase() {
+        Map<String,Object> slotCapabilities = testSlot.getCapabilities();
+        String capabilityBrowser = (String)slotCapabilities.get(CapabilityType.BROWSER_NAME);
+        String capabilityBrowserVersion = (String)slotCapabilities.get(CapabilityType.VERSION);
+        String capabilityOs = (String)slotCapabilities.get(CapabilityType.PLATFORM);
+        if(!AutomationUtils.lowerCaseMatch(request.getBrowser(), capabilityBrowser)) {
+            return false;
+        }
+        if(request.getBrowserVersion() != null && !AutomationUtils.lowerCaseMatch(request.getBrowserVersion(),capabilityBrowserVersion))  {
+            return false;
+        }
+        if(request.getOs() != null && !AutomationUtils.lowerCaseMatch(request.getOs(), capabilityOs)) {
+            if(!AutomationUtils.lowerCaseMatch(request.getOs(),"any") && !AutomationUtils.lowerCaseMatch(capabilityOs,"any")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CapabilityKeyTest {
+
+    @Test
+    // Tests that values are normalized the same way as lowerCaseMatch
+    public void testNormalizedMatch() {
+        CapabilityKey request = CapabilityKey.of("Internet Explorer", "11", "Windows");
+        Assert.assertTrue("Keys should match regardless of case and spaces", request.matches(CapabilityKey.of("internetexplorer", "11", "WINDOWS")));
+        Assert.assertEquals("Keys should be equal regardless of case and spaces", request, CapabilityKey.of("internetexplorer", "11", "WINDOWS"));
+        Assert.assertFalse("Different versions should not match", request.matches(CapabilityKey.of("internetexplorer", "10", "windows")));
+    }
+
+    @Test
+    // Tests that null values on the requesting key and 'any' platforms match
+    public void testWildcards() {
+        Assert.assertTrue("Null version and OS should match anything", CapabilityKey.of("firefox", null, null).matches(CapabilityKey.of("firefox", "27", "linux")));
+        Assert.assertTrue("Requested 'any' OS should match", CapabilityKey.of("firefox", null, "ANY").matches(CapabilityKey.of("firefox", null, "linux")));
+        Assert.assertTrue("Slot 'any' OS should match", CapabilityKey.of("firefox", null, "linux").matches(CapabilityKey.of("firefox", null, "any")));
+        Assert.assertFalse("Missing slot OS should not match", CapabilityKey.of("firefox", null, "linux").matches(CapabilityKey.of("firefox", null, null)));
+    }
+
+    @Test
+    // Tests that the key registered for a test slot is reused
+    public void testRegisteredTestSlot() {
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME, "chrome");
+        capabilities.put(CapabilityType.PLATFORM, Platform.LINUX);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver, null, capabilities);
+        CapabilityKey key = CapabilityKey.register(testSlot);
+        Assert.assertSame("Registering again should keep the existing key", key, CapabilityKey.register(testSlot));
+        Assert.assertEquals("Platform should be normalized", CapabilityKey.of("chrome", null, "linux"), key);
+    }
+}
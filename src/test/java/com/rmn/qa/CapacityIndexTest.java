@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CapacityIndexTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the index is only complete when every proxy in the set has registered with it
+    public void testIndexComplete() {
+        CapacityIndex index = new CapacityIndex();
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = createProxy("instanceId", "firefox", 5);
+        proxySet.add(proxy);
+        Assert.assertFalse("Index should not be complete as the proxy has not registered", index.isComplete(proxySet));
+        index.proxyRegistered(proxy);
+        Assert.assertTrue("Index should be complete once the proxy has registered", index.isComplete(proxySet));
+        index.proxyUnregistered(proxy);
+        Assert.assertEquals("Proxy should no longer be tracked", 0, index.size());
+    }
+
+    @Test
+    // Tests that the index is not complete when an untracked proxy is in the set, even if the proxy counts match
+    public void testIndexIncompleteWithUntrackedProxy() {
+        CapacityIndex index = new CapacityIndex();
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy trackedProxy = createProxy("tracked", "firefox", 5);
+        MockRemoteProxy untrackedProxy = createProxy("untracked", "firefox", 5);
+        index.proxyRegistered(trackedProxy);
+        proxySet.add(untrackedProxy);
+        Assert.assertFalse("Index should not be complete as the proxy in the set is not tracked", index.isComplete(proxySet));
+    }
+
+    @Test
+    // Tests that free slots are tracked as proxies register and unregister
+    public void testProxyRegistration() {
+        CapacityIndex index = new CapacityIndex();
+        AutomationRunRequest request = new AutomationRunRequest("firefox");
+        Assert.assertEquals("No slots should be free with no proxies", 0, index.getFreeSlots(request));
+        MockRemoteProxy firstProxy = createProxy("first", "firefox", 5);
+        MockRemoteProxy secondProxy = createProxy("second", "firefox", 3);
+        index.proxyRegistered(firstProxy);
+        index.proxyRegistered(secondProxy);
+        Assert.assertEquals("Slots from both proxies should be free", 8, index.getFreeSlots(request));
+        index.proxyUnregistered(firstProxy);
+        Assert.assertEquals("Only slots from the remaining proxy should be free", 3, index.getFreeSlots(request));
+    }
+
+    @Test
+    // Tests that a shape queried for the first time is computed from already registered proxies
+    public void testShapeAddedAfterRegistration() {
+        CapacityIndex index = new CapacityIndex();
+        index.proxyRegistered(createProxy("first", "firefox", 5));
+        index.proxyRegistered(createProxy("second", "chrome", 3));
+        Assert.assertEquals("Chrome slots should be free", 3, index.getFreeSlots(new AutomationRunRequest("chrome")));
+        Assert.assertEquals("Firefox slots should be free", 5, index.getFreeSlots(new AutomationRunRequest("firefox")));
+    }
+
+    @Test
+    // Tests that starting and ending sessions updates the free slot count
+    public void testSessionStartedAndEnded() {
+        CapacityIndex index = new CapacityIndex();
+        AutomationRunRequest request = new AutomationRunRequest("firefox");
+        MockRemoteProxy proxy = createProxy("instanceId", "firefox", 5);
+        index.proxyRegistered(proxy);
+        Assert.assertEquals("All slots should be free", 5, index.getFreeSlots(request));
+        TestSlot testSlot = proxy.getTestSlots().get(0);
+        Map<String,Object> requestedCapabilities = new HashMap<>();
+        requestedCapabilities.put(CapabilityType.BROWSER_NAME, "firefox");
+        requestedCapabilities.put(AutomationConstants.UUID, "runUuid");
+        TestSession session = testSlot.getNewSession(requestedCapabilities);
+        index.sessionStarted(proxy);
+        Assert.assertEquals("Running session should not be free", 4, index.getFreeSlots(request));
+        Assert.assertEquals("Session should be counted against its run", Integer.valueOf(1),
+                index.getSessionsByRun().get("runUuid"));
+        // The session is still attached to the slot when the end event fires
+        index.sessionEnded(proxy, session);
+        Assert.assertEquals("Ended session should be free again", 5, index.getFreeSlots(request));
+        Assert.assertFalse("Run should no longer have sessions", index.getSessionsByRun().containsKey("runUuid"));
+        testSlot.doFinishRelease();
+        index.sessionStarted(proxy);
+        Assert.assertEquals("Released slot should still be free", 5, index.getFreeSlots(request));
+    }
+
+    @Test
+    // Tests that a node which is no longer running stops contributing free slots
+    public void testNodeStatusChanged() {
+        AutomationDynamicNode node = new AutomationDynamicNode("testUuid", "instanceId", null, null, new Date(), 5);
+        AutomationContext.getContext().addNode(node);
+        CapacityIndex index = AutomationContext.getContext().getCapacityIndex();
+        AutomationRunRequest request = new AutomationRunRequest("firefox");
+        index.proxyRegistered(createProxy("instanceId", "firefox", 5));
+        Assert.assertEquals("All slots should be free", 5, index.getFreeSlots(request));
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        Assert.assertEquals("Expired node should not have free slots", 0, index.getFreeSlots(request));
+    }
+
+    @Test
+    // Tests that the index and a full scan agree on the free slot count
+    public void testIndexMatchesScan() {
+        AutomationContext.getContext().addRun(new AutomationRunRequest("runUuid", 7, "firefox"));
+        CapacityIndex index = AutomationContext.getContext().getCapacityIndex();
+        ProxySet proxySet = new ProxySet(false);
+        for (int i = 0; i < 10; i++) {
+            MockRemoteProxy proxy = createProxy("instance" + i, i % 2 == 0 ? "firefox" : "chrome", 4);
+            if (i % 3 == 0) {
+                Map<String,Object> requestedCapabilities = new HashMap<>();
+                requestedCapabilities.put(AutomationConstants.UUID, "runUuid");
+                proxy.getTestSlots().get(0).getNewSession(requestedCapabilities);
+                AutomationContext.getContext().sessionStarted(requestedCapabilities);
+            }
+            proxySet.add(proxy);
+            index.proxyRegistered(proxy);
+        }
+        AutomationRunRequest request = new AutomationRunRequest("firefox");
+        int indexed = new AutomationRequestMatcher(AutomationRequestMatcher.MODE.INDEX).getNumFreeThreadsForParameters(proxySet, request);
+        int scanned = new AutomationRequestMatcher(AutomationRequestMatcher.MODE.SCAN).getNumFreeThreadsForParameters(proxySet, request);
+        Assert.assertEquals("Index and scan should agree", scanned, indexed);
+        Assert.assertEquals("Free slots should be correct", 15, indexed);
+    }
+
+    private MockRemoteProxy createProxy(String instanceId, String browser, int slots) {
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setMaxNumberOfConcurrentTestSessions(slots);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> config = new HashMap<>();
+        config.put(AutomationConstants.INSTANCE_ID, instanceId);
+        proxy.setConfig(config);
+        for (int i = 0; i < slots; i++) {
+            Map<String,Object> capabilities = new HashMap<>();
+            capabilities.put(CapabilityType.BROWSER_NAME, browser);
+            proxy.getTestSlots().add(new TestSlot(proxy, SeleniumProtocol.WebDriver, null, capabilities));
+        }
+        return proxy;
+    }
+}
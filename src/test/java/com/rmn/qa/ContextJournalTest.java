@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+
+public class ContextJournalTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.getContext().getContextJournal().close();
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that runs, their reserved threads, nodes and their transitions are restored after a restart
+    public void testRestore() throws IOException {
+        File directory = createDirectory();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.getContextJournal().open(directory);
+        Date created = new Date(1000000L);
+        context.addRun(new AutomationRunRequest("run", 5, "chrome", "35", "linux", created));
+        context.addRun(new AutomationRunRequest("removedRun", 1, "firefox"));
+        context.sessionStarted(Collections.<String,Object>singletonMap(AutomationConstants.UUID, "run"));
+        Assert.assertTrue(context.deleteRun("removedRun"));
+        AutomationDynamicNode node = new AutomationDynamicNode("run","instance","chrome","linux",AutomationUtils.modifyDate(new Date(),-56,Calendar.MINUTE),5);
+        node.setSpotInstanceRequestId("sir-1");
+        context.addNode(node);
+        context.addNode(new AutomationDynamicNode("run","removedInstance","chrome","linux",new Date(),5));
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        node.incrementEndDateByOneHour();
+        context.getNodes().remove("removedInstance");
+        context.getContextJournal().nodeRemoved("removedInstance");
+        context.getContextJournal().close();
+
+        // Restart the hub
+        AutomationContext.refreshContext();
+        AutomationRunContext restored = AutomationContext.getContext();
+        restored.getContextJournal().open(directory);
+        Assert.assertEquals(Collections.singleton("run"), restored.getRunUuids());
+        AutomationRunRequest run = restored.getRunRequest("run");
+        Assert.assertEquals(new AutomationRunRequest("run", 5, "chrome", "35", "linux", created), run);
+        Assert.assertEquals(created, run.getCreatedDate());
+        Assert.assertEquals("Reserved threads should survive a restart", 4, run.getReservedThreads());
+        Assert.assertEquals(1, restored.getNodes().size());
+        AutomationDynamicNode restoredNode = restored.getNode("instance");
+        Assert.assertEquals(AutomationDynamicNode.STATUS.EXPIRED, restoredNode.getStatus());
+        Assert.assertEquals(node.getStartDate(), restoredNode.getStartDate());
+        Assert.assertEquals(node.getEndDate(), restoredNode.getEndDate());
+        Assert.assertEquals(5, restoredNode.getNodeCapacity());
+        Assert.assertEquals("sir-1", restoredNode.getSpotInstanceRequestId());
+        Assert.assertEquals("linux", restoredNode.getOs());
+    }
+
+    @Test
+    // Tests that the journal is compacted into a snapshot once enough changes are recorded
+    public void testCompaction() throws IOException {
+        File directory = createDirectory();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.getContextJournal().setCompactionThreshold(10);
+        context.getContextJournal().open(directory);
+        AutomationDynamicNode node = new AutomationDynamicNode("run","instance","chrome","linux",new Date(),5);
+        context.addNode(node);
+        for (int i = 0; i < 25; i++) {
+            node.incrementEndDateByOneHour();
+        }
+        // Closing waits for the writer to finish the queued lines
+        context.getContextJournal().close();
+        Assert.assertTrue("Journal should have been started over", Files.readAllLines(new File(directory, "context.journal").toPath(), Charset.forName("UTF-8")).size() < 10);
+        AutomationContext.refreshContext();
+        AutomationContext.getContext().getContextJournal().open(directory);
+        Assert.assertEquals(node.getEndDate(), AutomationContext.getContext().getNode("instance").getEndDate());
+    }
+
+    @Test
+    // Tests that tabs, line breaks and backslashes passed in by clients survive a restart
+    public void testDelimitersEscaped() throws IOException {
+        File directory = createDirectory();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.getContextJournal().open(directory);
+        context.addRun(new AutomationRunRequest("run\tone\nline", 5, "chrome\\", "35\r", "linux"));
+        context.getContextJournal().close();
+        AutomationContext.refreshContext();
+        AutomationContext.getContext().getContextJournal().open(directory);
+        AutomationRunRequest run = AutomationContext.getContext().getRunRequest("run\tone\nline");
+        Assert.assertNotNull("Run should be restored under its original UUID", run);
+        Assert.assertEquals("chrome\\", run.getBrowser());
+        Assert.assertEquals("35\r", run.getBrowserVersion());
+    }
+
+    @Test
+    // Tests that lines torn or corrupted by a crash are skipped, and a journal older than the snapshot is not replayed
+    public void testCorruptedLinesSkipped() throws IOException {
+        File directory = createDirectory();
+        write(new File(directory, "context.snapshot"), ContextJournal.format("SNAPSHOT", "3")
+                + ContextJournal.format("RUN", "run", "5", "chrome", "", "", "1000", "5"));
+        String removed = ContextJournal.format("RUN_REMOVED", "run");
+        write(new File(directory, "context.journal"), ContextJournal.format("JOURNAL", "3")
+                + ContextJournal.format("RUN", "other", "2", "firefox", "", "", "1000", "2").replace("firefox", "chrome")
+                + removed.substring(0, removed.length() - 3));
+        AutomationContext.getContext().getContextJournal().open(directory);
+        Assert.assertEquals("Only the run from the snapshot should be restored", Collections.singleton("run"), AutomationContext.getContext().getRunUuids());
+        AutomationContext.getContext().getContextJournal().close();
+
+        write(new File(directory, "context.journal"), ContextJournal.format("JOURNAL", "1") + removed);
+        AutomationContext.refreshContext();
+        AutomationContext.getContext().getContextJournal().open(directory);
+        Assert.assertTrue("Journal from an older generation should not be replayed", AutomationContext.getContext().hasRun("run"));
+    }
+
+    private File createDirectory() throws IOException {
+        File directory = Files.createTempDirectory("contextJournal").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private void write(File file, String contents) throws IOException {
+        file.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            writer.write(contents);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public class DemandForecasterTest {
+
+    @Test
+    // Tests that a recorded history can be replayed offline to forecast a nightly suite
+    public void testReplayRecordedHistory() throws Exception {
+        File file = File.createTempFile("runHistory", ".log");
+        file.deleteOnExit();
+        RunHistory history = new RunHistory(file);
+        // Two weeks of a nightly chrome suite at 2 AM, which asks for more threads the second week
+        for(int day=0;day<14;day++) {
+            history.record(new AutomationRunRequest("nightly" + day, day < 7 ? 10 : 20, "chrome", null, "linux", dateAt(day, 2)));
+        }
+        // A single IE run at 10 AM on the first day
+        history.record(new AutomationRunRequest("merge", 3, "internet explorer", null, null, dateAt(0, 10)));
+        DemandForecaster forecaster = new DemandForecaster();
+        forecaster.replay(new RunHistory(file).load());
+        Map<String,Integer> nightly = forecaster.getForecast(dateAt(21, 2));
+        Assert.assertEquals("Only chrome should be forecast for the nightly suite", 1, nightly.size());
+        Assert.assertEquals("Forecast should average the weeks of history", 15, nightly.get("chrome").intValue());
+        Map<String,Integer> morning = forecaster.getForecast(dateAt(7, 10));
+        Assert.assertEquals("Forecast should round up", 2, morning.get("internetexplorer").intValue());
+        Assert.assertTrue("Nothing should be forecast for a quiet hour", forecaster.getForecast(dateAt(21, 4)).isEmpty());
+    }
+
+    @Test
+    // Tests that the forecast is the peak of the threads held at once, so runs which follow each other are not added together
+    public void testForecastPeakConcurrentThreads() {
+        DemandForecaster forecaster = new DemandForecaster();
+        forecaster.setRunDurationInMinutes(20);
+        // Two runs back to back at 2 AM, and two overlapping runs at 6 AM
+        forecaster.record(new AutomationRunRequest("first", 10, "chrome", null, null, dateAt(0, 2, 0)));
+        forecaster.record(new AutomationRunRequest("second", 10, "chrome", null, null, dateAt(0, 2, 30)));
+        forecaster.record(new AutomationRunRequest("third", 10, "chrome", null, null, dateAt(0, 6, 0)));
+        forecaster.record(new AutomationRunRequest("fourth", 5, "chrome", null, null, dateAt(0, 6, 10)));
+        Assert.assertEquals("Runs which follow each other should not be added together", 10, forecaster.getForecast(dateAt(7, 2, 0)).get("chrome").intValue());
+        Assert.assertEquals("Overlapping runs should be added together", 15, forecaster.getForecast(dateAt(7, 6, 0)).get("chrome").intValue());
+    }
+
+    @Test
+    // Tests that a run is forecast for the following hour while it still holds its threads
+    public void testRunHeldIntoNextHour() {
+        DemandForecaster forecaster = new DemandForecaster();
+        forecaster.setRunDurationInMinutes(90);
+        forecaster.record(new AutomationRunRequest("long", 8, "firefox", null, null, dateAt(0, 2, 45)));
+        Assert.assertEquals(8, forecaster.getForecast(dateAt(7, 3, 0)).get("firefox").intValue());
+        Assert.assertEquals(8, forecaster.getForecast(dateAt(7, 4, 0)).get("firefox").intValue());
+        Assert.assertTrue("Run should be over by 5 AM", forecaster.getForecast(dateAt(7, 5, 0)).isEmpty());
+    }
+
+    @Test
+    // Tests that malformed history lines are skipped
+    public void testMalformedHistorySkipped() throws Exception {
+        List<AutomationRunRequest> expected = new ArrayList<>();
+        expected.add(new AutomationRunRequest("uuid", 5, "firefox", "30", null, new Date(1000L)));
+        String recorded = RunHistory.format(expected.get(0)) + "not a run\n1000\tuuid\tmany\tfirefox\t\t\n";
+        List<AutomationRunRequest> runs = RunHistory.read(new StringReader(recorded));
+        Assert.assertEquals("Only the valid line should be read", expected, runs);
+        Assert.assertEquals("uuid", runs.get(0).getUuid());
+        Assert.assertEquals(5, runs.get(0).getThreadCount());
+        Assert.assertEquals(1000L, runs.get(0).getCreatedDate().getTime());
+    }
+
+    private Date dateAt(int day, int hourOfDay) {
+        return dateAt(day, hourOfDay, 30);
+    }
+
+    private Date dateAt(int day, int hourOfDay, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(2015, Calendar.JANUARY, 4, hourOfDay, minute);
+        c.add(Calendar.DAY_OF_MONTH, day);
+        return c.getTime();
+    }
+}
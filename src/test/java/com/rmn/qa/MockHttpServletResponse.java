@@ -15,9 +15,12 @@ package com.rmn.qa;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Created by mhardin on 2/6/14.
@@ -27,6 +30,8 @@ public class MockHttpServletResponse implements HttpServletResponse {
     private int errorCode;
     private String errorMessage;
     private int statusCode;
+    private Map<String,String> headers = new HashMap<String,String>();
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
 
     @Override
     public void addCookie(Cookie cookie) {
@@ -94,7 +99,11 @@ public class MockHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
 
+    public String getHeader(String name) {
+        return headers.get(name);
     }
 
     @Override
@@ -138,7 +147,16 @@ public class MockHttpServletResponse implements HttpServletResponse {
 
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
-        return null;
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+        };
+    }
+
+    public String getOutput() throws IOException {
+        return output.toString("UTF-8");
     }
 
     @Override
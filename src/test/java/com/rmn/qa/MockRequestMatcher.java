@@ -14,6 +14,7 @@ package com.rmn.qa;
 
 import org.openqa.grid.internal.ProxySet;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,6 +38,15 @@ public class MockRequestMatcher implements RequestMatcher {
         return (returnValue == null) ? 0 : returnValue;
     }
 
+    @Override
+    public Map<AutomationRunRequest, AutomationCapacity> getCapacityForParameters(ProxySet proxySet, Collection<AutomationRunRequest> requests) {
+        Map<AutomationRunRequest,AutomationCapacity> capacities = new HashMap<AutomationRunRequest, AutomationCapacity>();
+        for(AutomationRunRequest request : requests) {
+            capacities.put(request,new AutomationCapacity(threadsToReturn,threadsToReturn,getNumInProgressTests(proxySet,request)));
+        }
+        return capacities;
+    }
+
     public void setInProgressTests(String browser, int inProgressTests) {
         this.inProgressTests.put(browser,inProgressTests);
     }
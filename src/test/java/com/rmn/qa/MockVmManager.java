@@ -13,12 +13,24 @@
 package com.rmn.qa;
 
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.rmn.qa.aws.InstanceTypeCatalog;
+import com.rmn.qa.aws.NodeLaunchPlanner;
 import com.rmn.qa.aws.VmManager;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 public class MockVmManager implements VmManager {
 
@@ -27,7 +39,13 @@ public class MockVmManager implements VmManager {
     private String browser;
     private boolean throwException = false;
     private boolean terminated = false;
+    private boolean failTerminate = false;
+    private Integer nodesToStart;
     private List<Reservation> reservations;
+    private List<SpotInstanceRequest> spotInstanceRequests = new ArrayList<>();
+    private List<Map<String,Integer>> maxInstancesByBrowser = new ArrayList<>();
+    private List<String> instanceTypes = new ArrayList<>();
+    private List<List<String>> terminateCalls = new ArrayList<>();
 
 
     @Override
@@ -36,26 +54,72 @@ public class MockVmManager implements VmManager {
             throw new RuntimeException("Can't start nodes");
         }
         this.nodesLaunched = true;
-        this.numberLaunched = nodeCount;
+        this.numberLaunched += nodeCount;
         this.browser = browser;
-        Instance instance = new Instance();
-        instance.setInstanceId("instanceId");
         List<Instance> instances = new ArrayList<Instance>();
-        instances.add(instance);
+        int started = nodesToStart == null ? nodeCount : Math.min(nodeCount, nodesToStart);
+        for(int i = 0; i < started; i++) {
+            Instance instance = new Instance();
+            instance.setInstanceId(i == 0 ? "instanceId" : "instanceId" + i);
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    @Override
+    public List<Instance> launchNodes(String uuid, String os, String hubHostName, NodeLaunchPlanner.NodeLaunch launch) {
+        List<Instance> instances = launchNodes(uuid, os, launch.getBrowser(), hubHostName, launch.getNodeCount(), 0);
+        this.maxInstancesByBrowser.add(launch.getMaxInstancesByBrowser());
+        this.instanceTypes.add(launch.getInstanceType().getName());
         return instances;
     }
 
+    @Override
+    public InstanceTypeCatalog getInstanceTypeCatalog() {
+        Properties properties = new Properties();
+        try(InputStream stream = getClass().getClassLoader().getResourceAsStream(AutomationConstants.AWS_DEFAULT_RESOURCE_NAME)) {
+            properties.load(stream);
+        } catch(IOException e) {
+            throw new RuntimeException("Could not load default aws properties", e);
+        }
+        return InstanceTypeCatalog.fromProperties(properties);
+    }
+
     @Override
     public boolean terminateInstance(String instanceId) {
         terminated = true;
         return true;
     }
 
+    @Override
+    public Map<String,InstanceStateChange> terminateInstances(Collection<String> instanceIds) {
+        terminated = true;
+        terminateCalls.add(new ArrayList<>(instanceIds));
+        Map<String,InstanceStateChange> stateChanges = new HashMap<>();
+        if(failTerminate) {
+            return stateChanges;
+        }
+        for(String instanceId : instanceIds) {
+            stateChanges.put(instanceId, new InstanceStateChange().withInstanceId(instanceId)
+                    .withCurrentState(new InstanceState().withCode(32).withName("shutting-down")));
+        }
+        return stateChanges;
+    }
+
     @Override
     public List<Reservation> describeInstances(DescribeInstancesRequest describeInstancesRequest) {
         return reservations;
     }
 
+    @Override
+    public List<SpotInstanceRequest> describeSpotInstanceRequests(DescribeSpotInstanceRequestsRequest describeSpotInstanceRequestsRequest) {
+        return spotInstanceRequests;
+    }
+
+    public void setSpotInstanceRequests(List<SpotInstanceRequest> spotInstanceRequests) {
+        this.spotInstanceRequests = spotInstanceRequests;
+    }
+
     public boolean isNodesLaunched() {
         return nodesLaunched;
     }
@@ -68,10 +132,30 @@ public class MockVmManager implements VmManager {
         return numberLaunched;
     }
 
+    public List<Map<String,Integer>> getMaxInstancesByBrowser() {
+        return maxInstancesByBrowser;
+    }
+
+    public List<String> getInstanceTypes() {
+        return instanceTypes;
+    }
+
     public void setThrowException() {
         throwException = true;
     }
 
+    public void setNodesToStart(int nodesToStart) {
+        this.nodesToStart = nodesToStart;
+    }
+
+    public void setFailTerminate() {
+        failTerminate = true;
+    }
+
+    public List<List<String>> getTerminateCalls() {
+        return terminateCalls;
+    }
+
     public boolean isTerminated() {
         return terminated;
     }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class NodeLifecycleEventsTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.getContext().getNodeLifecycleEvents().shutdown();
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that events are ignored until a listener is set
+    public void testNoListener() {
+        NodeLifecycleEvents events = AutomationContext.getContext().getNodeLifecycleEvents();
+        AutomationContext.getContext().addNode(new AutomationDynamicNode("uuid","instance",null,null,new Date(),1));
+        Assert.assertEquals("No timers should be started without a listener", 0, events.getTimerCount());
+    }
+
+    @Test
+    // Tests that events which arrive together only evaluate the node once
+    public void testEventsCoalesced() throws InterruptedException {
+        NodeLifecycleEvents events = AutomationContext.getContext().getNodeLifecycleEvents();
+        RecordingListener listener = new RecordingListener(1);
+        events.setListener(listener);
+        events.sessionEnded("instance");
+        events.sessionEnded("instance");
+        Assert.assertTrue("Node should be evaluated", listener.latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(Collections.singletonList("instance"), listener.getEvaluated());
+    }
+
+    @Test
+    // Tests that a node is evaluated once it reaches its end date, and its timers are dropped once it is removed
+    public void testEndDateReached() throws InterruptedException {
+        NodeLifecycleEvents events = AutomationContext.getContext().getNodeLifecycleEvents();
+        RecordingListener listener = new RecordingListener(1);
+        events.setListener(listener);
+        AutomationContext.getContext().addNode(new AutomationDynamicNode("uuid","instance",null,null,AutomationUtils.modifyDate(new Date(),-56,Calendar.MINUTE),1));
+        Assert.assertTrue("Node past its end date should be evaluated", listener.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, events.getTimerCount());
+        events.nodeRemoved("instance");
+        Assert.assertEquals("Timers should be dropped along with the node", 0, events.getTimerCount());
+    }
+
+    @Test
+    // Tests that extending the end date of a node moves its timer rather than adding another one
+    public void testEndDateExtended() {
+        NodeLifecycleEvents events = AutomationContext.getContext().getNodeLifecycleEvents();
+        RecordingListener listener = new RecordingListener(1);
+        events.setListener(listener);
+        AutomationDynamicNode node = new AutomationDynamicNode("uuid","instance",null,null,new Date(),1);
+        AutomationContext.getContext().addNode(node);
+        node.incrementEndDateByOneHour();
+        Assert.assertEquals(1, events.getTimerCount());
+        events.advance(node.getEndDate().getTime() - NodeLifecycleEvents.TICK_IN_MILLIS);
+        Assert.assertTrue("Node should not be evaluated before its new end date", listener.getEvaluated().isEmpty());
+        Assert.assertEquals(1, events.getTimerCount());
+    }
+
+    @Test
+    // Tests that only the nodes started for a removed run are evaluated
+    public void testRunRemoved() throws InterruptedException {
+        AutomationRunContext context = AutomationContext.getContext();
+        context.addNode(new AutomationDynamicNode("removedRun","instance1",null,null,new Date(),1));
+        context.addNode(new AutomationDynamicNode("otherRun","instance2",null,null,new Date(),1));
+        context.addRun(new AutomationRunRequest("removedRun",1,"chrome"));
+        RecordingListener listener = new RecordingListener(1);
+        context.getNodeLifecycleEvents().setListener(listener);
+        Assert.assertTrue(context.deleteRun("removedRun"));
+        Assert.assertTrue("Node of the removed run should be evaluated", listener.latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(Collections.singletonList("instance1"), listener.getEvaluated());
+    }
+
+    @Test
+    // Tests that a node started for a coalesced group of runs is evaluated when a run other than the first is removed
+    public void testCoalescedRunRemoved() throws InterruptedException {
+        AutomationRunContext context = AutomationContext.getContext();
+        AutomationDynamicNode node = new AutomationDynamicNode("firstRun","instance1",null,null,new Date(),1);
+        node.setRunUuids(Arrays.asList("firstRun","secondRun"));
+        context.addNode(node);
+        context.addRun(new AutomationRunRequest("firstRun",1,"chrome"));
+        context.addRun(new AutomationRunRequest("secondRun",1,"chrome"));
+        RecordingListener listener = new RecordingListener(1);
+        context.getNodeLifecycleEvents().setListener(listener);
+        Assert.assertTrue(context.deleteRun("secondRun"));
+        Assert.assertTrue("Node started for the group should be evaluated", listener.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("instance1"), listener.getEvaluated());
+    }
+
+    private static final class RecordingListener implements NodeLifecycleEvents.Listener {
+
+        private final List<String> evaluated = new ArrayList<>();
+        private final CountDownLatch latch;
+
+        private RecordingListener(int evaluations) {
+            this.latch = new CountDownLatch(evaluations);
+        }
+
+        @Override
+        public synchronized void evaluateNode(String instanceId) {
+            evaluated.add(instanceId);
+            latch.countDown();
+        }
+
+        private synchronized List<String> getEvaluated() {
+            return new ArrayList<>(evaluated);
+        }
+    }
+}
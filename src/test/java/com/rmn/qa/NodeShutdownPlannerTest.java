@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NodeShutdownPlannerTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that retired nodes are removed from the capacity snapshot before the next node is considered
+    public void testRetiredNodesReduceCapacity() {
+        ProxySet proxySet = new ProxySet(false);
+        List<AutomationDynamicNode> nodes = new ArrayList<>();
+        for(int i=0;i<3;i++) {
+            nodes.add(addNode(proxySet, "dummyId" + i, 1));
+        }
+        final int[] snapshots = new int[1];
+        NodeShutdownPlanner planner = new NodeShutdownPlanner(new AutomationRequestMatcher() {
+            @Override
+            public Map<AutomationRunRequest,AutomationCapacity> getCapacityForParameters(ProxySet proxySet, Collection<AutomationRunRequest> runRequests) {
+                snapshots[0]++;
+                return super.getCapacityForParameters(proxySet, runRequests);
+            }
+        });
+        List<AutomationDynamicNode> nodesToRetire = planner.planShutdown(proxySet, nodes);
+        Assert.assertEquals("Grid capacity should only be computed once", 1, snapshots[0]);
+        Assert.assertEquals("Remaining capacity should only allow two nodes to be retired", 2, nodesToRetire.size());
+        Assert.assertEquals("Nodes should be retired in order", nodes.subList(0, 2), nodesToRetire);
+    }
+
+    @Test
+    // Tests that every node can be retired when no tests are running
+    public void testIdleNodesRetired() {
+        ProxySet proxySet = new ProxySet(false);
+        List<AutomationDynamicNode> nodes = new ArrayList<>();
+        for(int i=0;i<3;i++) {
+            nodes.add(addNode(proxySet, "dummyId" + i, 0));
+        }
+        NodeShutdownPlanner planner = new NodeShutdownPlanner(new AutomationRequestMatcher());
+        Assert.assertEquals("All idle nodes should be retired", nodes, planner.planShutdown(proxySet, nodes));
+    }
+
+    @Test
+    // Tests that no nodes are retired while a new run is queued up
+    public void testNewRunQueuedUp() {
+        ProxySet proxySet = new ProxySet(false);
+        List<AutomationDynamicNode> nodes = new ArrayList<>();
+        nodes.add(addNode(proxySet, "dummyId", 0));
+        AutomationContext.getContext().addRun(new AutomationRunRequest("runUuid", 5, "firefox"));
+        NodeShutdownPlanner planner = new NodeShutdownPlanner(new AutomationRequestMatcher());
+        Assert.assertTrue("No nodes should be retired", planner.planShutdown(proxySet, nodes).isEmpty());
+    }
+
+    private AutomationDynamicNode addNode(ProxySet proxySet, String instanceId, int sessions) {
+        AutomationDynamicNode node = new AutomationDynamicNode("dummyUuid",instanceId,null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationContext.getContext().addNode(node);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        Map<String,Object> config = new HashMap<>();
+        config.put(AutomationConstants.INSTANCE_ID,instanceId);
+        proxy.setConfig(config);
+        proxy.setMaxNumberOfConcurrentTestSessions(4);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"firefox");
+        TestSlot testSlotUsed = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
+        TestSlot testSlotNotUsed = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
+        if(sessions > 0) {
+            // Assign a session to the test slot
+            testSlotUsed.getNewSession(capabilities);
+            proxy.setMultipleTestSlots(testSlotUsed, sessions);
+        }
+        proxy.setMultipleTestSlots(testSlotNotUsed, 4 - sessions);
+        proxySet.add(proxy);
+        return node;
+    }
+}
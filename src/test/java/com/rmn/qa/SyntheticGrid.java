@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds a synthetic grid of {@link com.rmn.qa.MockRemoteProxy proxies} for benchmarks.  Every proxy is a running
+ * dynamic node with 10 slots for one browser, half of which are running sessions for a registered run that is old
+ * enough to be analyzed by cleanup.  Proxies are registered with the {@link com.rmn.qa.CapacityIndex CapacityIndex} of
+ * the current context.
+ */
+public final class SyntheticGrid {
+
+    public static final String[] BROWSERS = { "firefox", "chrome", "internetexplorer" };
+    public static final int SLOTS_PER_PROXY = 10;
+    public static final int PROXIES_PER_RUN = 10;
+
+    private SyntheticGrid() {
+    }
+
+    /**
+     * Refreshes the context and builds a grid of the specified size
+     * @param proxyCount Number of proxies in the grid
+     * @return
+     */
+    public static ProxySet build(int proxyCount) {
+        // Keep console logging out of the measurements
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        AutomationContext.refreshContext();
+        AutomationRunContext context = AutomationContext.getContext();
+        context.setTotalNodeCount(proxyCount * SLOTS_PER_PROXY);
+        Date runCreated = AutomationUtils.modifyDate(new Date(), -30, Calendar.MINUTE);
+        ProxySet proxySet = new ProxySet(false);
+        for(int i=0;i<proxyCount;i++) {
+            String browser = BROWSERS[i % BROWSERS.length];
+            String instanceId = "instance" + i;
+            String runUuid = "run" + (i / PROXIES_PER_RUN);
+            if(context.getRunRequest(runUuid) == null) {
+                context.addRun(new AutomationRunRequest(runUuid, PROXIES_PER_RUN * SLOTS_PER_PROXY / 2, browser, null, null, runCreated));
+            }
+            context.addNode(new AutomationDynamicNode(runUuid, instanceId, browser, "linux", new Date(), SLOTS_PER_PROXY));
+
+            MockRemoteProxy proxy = new MockRemoteProxy();
+            proxy.setMaxNumberOfConcurrentTestSessions(SLOTS_PER_PROXY);
+            proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+            Map<String,Object> config = new HashMap<>();
+            config.put(AutomationConstants.INSTANCE_ID, instanceId);
+            proxy.setConfig(config);
+            Map<String,Object> capabilities = new HashMap<>();
+            capabilities.put(CapabilityType.BROWSER_NAME, browser);
+            capabilities.put(CapabilityType.PLATFORM, "LINUX");
+            capabilities.put(AutomationConstants.INSTANCE_ID, instanceId);
+            Map<String,Object> requestedCapabilities = new HashMap<>(capabilities);
+            requestedCapabilities.put(AutomationConstants.UUID, runUuid);
+            for(int slot=0;slot<SLOTS_PER_PROXY;slot++) {
+                TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver, null, capabilities);
+                if(slot % 2 == 0) {
+                    testSlot.getNewSession(requestedCapabilities);
+                    context.sessionStarted(requestedCapabilities);
+                }
+                CapabilityKey.register(testSlot);
+                proxy.setMultipleTestSlots(testSlot, 1);
+            }
+            proxySet.add(proxy);
+            context.getCapacityIndex().proxyRegistered(proxy);
+        }
+        return proxySet;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class TimerWheelTest {
+
+    @Test
+    // Tests that only the keys whose deadline has passed are returned, and only once
+    public void testAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<>(1000, 0);
+        wheel.schedule("first", 5000);
+        wheel.schedule("second", 9000);
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(5999));
+        Assert.assertEquals(Collections.singletonList("first"), wheel.advance(6000));
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(7000));
+        Assert.assertEquals(1, wheel.size());
+        Assert.assertEquals(Collections.singletonList("second"), wheel.advance(20000));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    // Tests that rescheduling a key moves it rather than adding it again, and that cancelled keys are never returned
+    public void testRescheduleAndCancel() {
+        TimerWheel<String> wheel = new TimerWheel<>(1000, 0);
+        wheel.schedule("node", 5000);
+        wheel.schedule("node", 3600000);
+        wheel.schedule("cancelled", 2000);
+        Assert.assertEquals(2, wheel.size());
+        Assert.assertTrue(wheel.cancel("cancelled"));
+        Assert.assertFalse("Key should only be cancelled once", wheel.cancel("cancelled"));
+        Assert.assertEquals("Key should not fire at its old deadline", Collections.emptyList(), wheel.advance(3600000));
+        Assert.assertTrue(wheel.isScheduled("node"));
+        Assert.assertEquals(Collections.singletonList("node"), wheel.advance(3601000));
+    }
+
+    @Test
+    // Tests that keys on every level of the wheel, and beyond it, are returned on the first tick after their deadline
+    public void testDeadlinesAcrossLevels() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(1, 0);
+        Random random = new Random(7);
+        long[] deadlines = new long[500];
+        for (int i = 0; i < deadlines.length; i++) {
+            // Spread the deadlines from a few ticks out to past the furthest the wheel can hold
+            deadlines[i] = (long) Math.pow(2, random.nextDouble() * 26);
+            wheel.schedule(i, deadlines[i]);
+        }
+        long[] sorted = deadlines.clone();
+        Arrays.sort(sorted);
+        Set<Integer> expired = new HashSet<>();
+        for (long deadline : sorted) {
+            Assert.assertTrue("No key should be returned on its deadline", wheel.advance(deadline).isEmpty());
+            for (Integer key : wheel.advance(deadline + 1)) {
+                Assert.assertEquals("Key returned on the wrong tick: " + key, deadline, deadlines[key]);
+                Assert.assertTrue("Key returned more than once: " + key, expired.add(key));
+            }
+        }
+        Assert.assertEquals("Every key should be returned", deadlines.length, expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+}
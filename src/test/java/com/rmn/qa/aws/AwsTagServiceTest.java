@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class AwsTagServiceTest {
+
+    @Test
+    // Tests that instances queued by separate launches are tagged with a single call
+    public void testTagsBatched() {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        Properties properties = new Properties();
+        properties.setProperty("tagAccounting","key,value");
+        properties.setProperty("tagInvalid","key");
+        AwsTagService service = new AwsTagService(client, new Ec2RateLimiter(), properties, getStoppedExecutor());
+        service.tag(Arrays.asList(new Instance().withInstanceId("i-1")));
+        service.tag(Arrays.asList(new Instance().withInstanceId("i-2"), new Instance()));
+        Assert.assertEquals("Instance without an id should not be queued", 2, service.getPendingCount());
+        service.flush();
+        Assert.assertEquals("Instances should be tagged with one call", 1, client.getCreateTagsRequests().size());
+        Assert.assertEquals(Arrays.asList("i-1", "i-2"), client.getCreateTagsRequests().get(0).getResources());
+        Assert.assertEquals("Invalid tag should be skipped", Arrays.asList(new Tag("key","value"), new Tag("LaunchSource","SeleniumGridScalerPlugin")),
+                client.getCreateTagsRequests().get(0).getTags());
+        Assert.assertEquals(0, service.getPendingCount());
+    }
+
+    @Test
+    // Tests that instances EC2 does not know about yet do not hold up the others, and are tagged once they show up
+    public void testUnknownInstanceRetried() {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setUnknownInstanceIds("i-2");
+        DescribeInstancesResult describeInstancesResult = new DescribeInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-1")));
+        describeInstancesResult.setReservations(Arrays.asList(reservation));
+        client.setDescribeInstances(describeInstancesResult);
+        AwsTagService service = new AwsTagService(client, new Ec2RateLimiter(), new Properties(), getStoppedExecutor());
+        service.tag(Arrays.asList(new Instance().withInstanceId("i-1"), new Instance().withInstanceId("i-2")));
+        service.flush();
+        Assert.assertEquals(Arrays.asList("i-1"), client.getCreateTagsRequests().get(0).getResources());
+        Assert.assertEquals("Unknown instance should still be queued", 1, service.getPendingCount());
+        client.setUnknownInstanceIds();
+        service.flush();
+        Assert.assertEquals(Arrays.asList("i-2"), client.getCreateTagsRequests().get(1).getResources());
+        Assert.assertEquals(0, service.getPendingCount());
+    }
+
+    @Test
+    // Tests that instances EC2 never finds are given up on after the timeout
+    public void testGivesUpAfterTimeout() throws InterruptedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        AwsTagService service = new AwsTagService(client, new Ec2RateLimiter(), new Properties(), getStoppedExecutor());
+        service.setTimeoutInMillis(1);
+        service.tag(Arrays.asList(new Instance().withInstanceId("i-1")));
+        Thread.sleep(10);
+        service.flush();
+        Assert.assertEquals("Instance should no longer be queued", 0, service.getPendingCount());
+        Assert.assertTrue("No tags should be created", client.getCreateTagsRequests().isEmpty());
+    }
+
+    @Test
+    // Tests that the worker tags queued instances on its own
+    public void testWorkerTags() throws InterruptedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        AwsTagService service = new AwsTagService(client, new Ec2RateLimiter(), new Properties());
+        service.tag(Arrays.asList(new Instance().withInstanceId("i-1")));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(service.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Instance should have been tagged", 0, service.getPendingCount());
+        Assert.assertEquals(Arrays.asList("i-1"), client.getCreateTagsRequests().get(0).getResources());
+    }
+
+    // Executor which does not run anything, so tests can flush the queue themselves
+    private static ScheduledExecutorService getStoppedExecutor() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.shutdown();
+        return executor;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import com.amazonaws.AmazonServiceException;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Ec2RateLimiterTest {
+
+    @Test
+    // Tests that a throttled call is retried until it succeeds, and that the throttling is recorded
+    public void testThrottledCallRetried() {
+        Ec2RateLimiter rateLimiter = new Ec2RateLimiter();
+        rateLimiter.setBaseBackoffInMillis(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        String result = rateLimiter.call("DescribeInstances", new Ec2RateLimiter.Ec2Call<String>() {
+            @Override
+            public String call() {
+                if(attempts.incrementAndGet() < 3) {
+                    AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+                    e.setErrorCode("RequestLimitExceeded");
+                    throw e;
+                }
+                return "done";
+            }
+        });
+        Assert.assertEquals("done", result);
+        List<Ec2RateLimiter.ApiMetrics> metrics = rateLimiter.getMetrics();
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals("DescribeInstances", metrics.get(0).getApi());
+        Assert.assertEquals("Every attempt should be counted", 3, metrics.get(0).getCalls());
+        Assert.assertEquals(2, metrics.get(0).getThrottled());
+        Assert.assertEquals(2, metrics.get(0).getRetries());
+        Assert.assertEquals("No calls should still be queued", 0, metrics.get(0).getQueued());
+    }
+
+    @Test
+    // Tests that errors other than throttling are not retried
+    public void testOtherErrorNotRetried() {
+        Ec2RateLimiter rateLimiter = new Ec2RateLimiter();
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            rateLimiter.call("RunInstances", new Ec2RateLimiter.Ec2Call<String>() {
+                @Override
+                public String call() {
+                    attempts.incrementAndGet();
+                    AmazonServiceException e = new AmazonServiceException("Invalid AMI");
+                    e.setErrorCode("InvalidAMIID.NotFound");
+                    throw e;
+                }
+            });
+        } catch(AmazonServiceException e) {
+            Assert.assertEquals("Call should not be retried", 1, attempts.get());
+            Assert.assertEquals(0, rateLimiter.getMetrics().get(0).getThrottled());
+            return;
+        }
+        Assert.fail("Exception should have been rethrown");
+    }
+
+    @Test
+    // Tests that API budgets can be overridden from the properties, ignoring invalid ones
+    public void testConfigure() {
+        Ec2RateLimiter rateLimiter = new Ec2RateLimiter();
+        Properties properties = new Properties();
+        properties.setProperty("ec2_rate_limit_RunInstances", "4");
+        properties.setProperty("ec2_rate_limit_CreateTags", "-1");
+        rateLimiter.configure(properties);
+        List<Ec2RateLimiter.ApiMetrics> metrics = rateLimiter.getMetrics();
+        Assert.assertEquals("Invalid rate should be ignored", 1, metrics.size());
+        Assert.assertEquals("RunInstances", metrics.get(0).getApi());
+        Assert.assertEquals(4.0, metrics.get(0).getCallsPerSecond(), 0.001);
+    }
+}
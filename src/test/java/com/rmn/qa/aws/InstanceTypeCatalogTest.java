@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class InstanceTypeCatalogTest {
+
+    @Test
+    // Tests that the catalog is read from the properties and sorted by price
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(InstanceTypeCatalog.CATALOG_PROPERTY, "c3.large, t2.micro");
+        properties.setProperty("c3.large_vcpu", "2");
+        properties.setProperty("c3.large_memory_gib", "3.75");
+        properties.setProperty("c3.large_hourly_price", "0.105");
+        properties.setProperty("c3.large_sessions_chrome", "6");
+        properties.setProperty("t2.micro_vcpu", "1");
+        properties.setProperty("t2.micro_memory_gib", "1");
+        properties.setProperty("t2.micro_hourly_price", "0.013");
+        properties.setProperty("t2.micro_sessions_firefox", "1");
+        InstanceTypeCatalog catalog = InstanceTypeCatalog.fromProperties(properties);
+        Assert.assertEquals(2, catalog.getInstanceTypes().size());
+        InstanceTypeCatalog.InstanceType cheapest = catalog.getInstanceTypes().get(0);
+        Assert.assertEquals("Cheapest type should be first", "t2.micro", cheapest.getName());
+        Assert.assertEquals(1, cheapest.getVcpu());
+        Assert.assertEquals(0.013, cheapest.getHourlyPrice());
+        Assert.assertEquals(1, cheapest.getSessions("firefox"));
+        Assert.assertEquals("Type should not run browsers it has no sessions for", 0, cheapest.getSessions("chrome"));
+        Assert.assertEquals(6, catalog.getSmallestSessions("chrome"));
+        Assert.assertEquals(0, catalog.getSmallestSessions("opera"));
+    }
+
+    @Test
+    // Tests that instance types which are not configured correctly are left out of the catalog
+    public void testInvalidInstanceTypeIgnored() {
+        Properties properties = new Properties();
+        properties.setProperty(InstanceTypeCatalog.CATALOG_PROPERTY, "c3.large,m3.medium");
+        properties.setProperty("c3.large_vcpu", "2");
+        properties.setProperty("c3.large_memory_gib", "3.75");
+        properties.setProperty("c3.large_hourly_price", "0.105");
+        properties.setProperty("c3.large_sessions_chrome", "6");
+        properties.setProperty("m3.medium_vcpu", "1");
+        properties.setProperty("m3.medium_memory_gib", "3.75");
+        properties.setProperty("m3.medium_hourly_price", "cheap");
+        properties.setProperty("m3.medium_sessions_chrome", "2");
+        InstanceTypeCatalog catalog = InstanceTypeCatalog.fromProperties(properties);
+        Assert.assertEquals(1, catalog.getInstanceTypes().size());
+        Assert.assertEquals("c3.large", catalog.getInstanceTypes().get(0).getName());
+    }
+
+    @Test
+    // Tests that sessions of several browsers fit on a type as long as their shares of the node add up to one
+    public void testInstanceTypesFor() {
+        Map<String,Integer> sessions = new HashMap<>();
+        sessions.put("chrome", 6);
+        sessions.put("firefox", 3);
+        InstanceTypeCatalog.InstanceType instanceType = new InstanceTypeCatalog.InstanceType("c3.xlarge", 4, 7.5, 0.21, sessions);
+        InstanceTypeCatalog catalog = new InstanceTypeCatalog(Collections.singletonList(instanceType));
+        Map<String,Integer> node = new HashMap<>();
+        node.put("chrome", 4);
+        node.put("firefox", 1);
+        Assert.assertEquals("Two thirds of the node for chrome and a third for firefox should fit", 1, catalog.getInstanceTypesFor(node).size());
+        node.put("firefox", 2);
+        Assert.assertTrue("More than the whole node should not fit", catalog.getInstanceTypesFor(node).isEmpty());
+        node.put("opera", 1);
+        node.put("firefox", 1);
+        Assert.assertTrue("Browsers the type cannot run should not fit", catalog.getInstanceTypesFor(node).isEmpty());
+    }
+}
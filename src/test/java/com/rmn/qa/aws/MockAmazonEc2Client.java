@@ -16,25 +16,54 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesResult;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class MockAmazonEc2Client extends AmazonEC2Client {
 
     private DescribeInstancesResult describeInstancesResult;
     private RunInstancesResult runInstancesResult;
     private RunInstancesRequest runInstancesRequest;
+    private List<RunInstancesRequest> runInstancesRequests = new ArrayList<>();
+    private Set<String> insufficientCapacitySubnets = Collections.emptySet();
+    private List<SpotInstanceRequest> spotInstanceRequests = new ArrayList<>();
+    private Map<String,List<SpotInstanceRequest>> spotInstanceRequestsBySubnet = new HashMap<>();
+    private RequestSpotInstancesRequest requestSpotInstancesRequest;
+    private List<RequestSpotInstancesRequest> requestSpotInstancesRequests = new ArrayList<>();
+    private boolean throwDescribeSpotInstanceRequestsError = false;
+    private CancelSpotInstanceRequestsRequest cancelSpotInstanceRequestsRequest;
     private boolean throwDescribeInstancesError = false;
     private AmazonClientException throwRunInstancesError;
     private boolean throwExceptionsInRunInstancesIndefinitely = false;
     private CreateTagsRequest tagsCreated;
+    private List<CreateTagsRequest> createTagsRequests = new ArrayList<>();
+    private Set<String> unknownInstanceIds = Collections.emptySet();
     private TerminateInstancesResult terminateInstancesResult;
     private TerminateInstancesRequest terminateInstancesRequest;
+    private List<TerminateInstancesRequest> terminateInstancesRequests = new ArrayList<>();
 
     public MockAmazonEc2Client(AWSCredentials credentials) {
         super(credentials);
@@ -62,11 +91,33 @@ public class MockAmazonEc2Client extends AmazonEC2Client {
 
     @Override
     public void createTags(CreateTagsRequest createTagsRequest) throws AmazonClientException {
+        for(String resource : createTagsRequest.getResources()) {
+            if(unknownInstanceIds.contains(resource)) {
+                AmazonServiceException e = new AmazonServiceException("The instance ID '" + resource + "' does not exist");
+                e.setErrorCode("InvalidInstanceID.NotFound");
+                throw e;
+            }
+        }
         this.tagsCreated = createTagsRequest;
+        createTagsRequests.add(createTagsRequest);
+    }
+
+    public List<CreateTagsRequest> getCreateTagsRequests() {
+        return createTagsRequests;
+    }
+
+    public void setUnknownInstanceIds(String... instanceIds) {
+        unknownInstanceIds = new HashSet<>(Arrays.asList(instanceIds));
     }
 
     @Override
-    public RunInstancesResult runInstances(RunInstancesRequest runInstancesRequest) throws AmazonServiceException, AmazonClientException {
+    public synchronized RunInstancesResult runInstances(RunInstancesRequest runInstancesRequest) throws AmazonServiceException, AmazonClientException {
+        runInstancesRequests.add(runInstancesRequest);
+        if(insufficientCapacitySubnets.contains(runInstancesRequest.getSubnetId())) {
+            AmazonServiceException exception = new AmazonServiceException("No capacity");
+            exception.setErrorCode("InsufficientInstanceCapacity");
+            throw exception;
+        }
         if(throwRunInstancesError != null) {
             AmazonClientException exceptionToThrow = throwRunInstancesError;
             if(!throwExceptionsInRunInstancesIndefinitely) {
@@ -86,9 +137,33 @@ public class MockAmazonEc2Client extends AmazonEC2Client {
         return runInstancesRequest;
     }
 
+    public synchronized List<RunInstancesRequest> getRunInstancesRequests() {
+        return new ArrayList<>(runInstancesRequests);
+    }
+
+    public void setInsufficientCapacitySubnets(String... subnetIds) {
+        insufficientCapacitySubnets = new HashSet<>(Arrays.asList(subnetIds));
+    }
+
     @Override
     public TerminateInstancesResult terminateInstances(TerminateInstancesRequest terminateInstancesRequest) throws AmazonServiceException, AmazonClientException {
         this.terminateInstancesRequest = terminateInstancesRequest;
+        terminateInstancesRequests.add(terminateInstancesRequest);
+        for(String instanceId : terminateInstancesRequest.getInstanceIds()) {
+            if(unknownInstanceIds.contains(instanceId)) {
+                AmazonServiceException e = new AmazonServiceException("The instance ID '" + instanceId + "' does not exist");
+                e.setErrorCode("InvalidInstanceID.NotFound");
+                throw e;
+            }
+        }
+        if(terminateInstancesResult == null) {
+            // Report every requested instance as shutting down
+            List<InstanceStateChange> stateChanges = new ArrayList<>();
+            for(String instanceId : terminateInstancesRequest.getInstanceIds()) {
+                stateChanges.add(new InstanceStateChange().withInstanceId(instanceId).withCurrentState(new InstanceState().withCode(32).withName("shutting-down")));
+            }
+            return new TerminateInstancesResult().withTerminatingInstances(stateChanges);
+        }
         return terminateInstancesResult;
     }
 
@@ -100,10 +175,64 @@ public class MockAmazonEc2Client extends AmazonEC2Client {
         return terminateInstancesRequest;
     }
 
+    public List<TerminateInstancesRequest> getTerminateInstancesRequests() {
+        return terminateInstancesRequests;
+    }
+
     public void setThrowDescribeInstancesError(AmazonClientException t) {
         this.throwRunInstancesError = t;
     }
 
+    @Override
+    public RequestSpotInstancesResult requestSpotInstances(RequestSpotInstancesRequest requestSpotInstancesRequest) throws AmazonServiceException, AmazonClientException {
+        this.requestSpotInstancesRequest = requestSpotInstancesRequest;
+        requestSpotInstancesRequests.add(requestSpotInstancesRequest);
+        List<SpotInstanceRequest> requests = spotInstanceRequestsBySubnet.get(requestSpotInstancesRequest.getLaunchSpecification().getSubnetId());
+        return new RequestSpotInstancesResult().withSpotInstanceRequests(requests == null ? spotInstanceRequests : requests);
+    }
+
+    @Override
+    public DescribeSpotInstanceRequestsResult describeSpotInstanceRequests(DescribeSpotInstanceRequestsRequest describeSpotInstanceRequestsRequest) throws AmazonServiceException, AmazonClientException {
+        if(throwDescribeSpotInstanceRequestsError) {
+            throw new AmazonServiceException("testError");
+        }
+        List<SpotInstanceRequest> requests = new ArrayList<>(spotInstanceRequests);
+        for(List<SpotInstanceRequest> subnetRequests : spotInstanceRequestsBySubnet.values()) {
+            requests.addAll(subnetRequests);
+        }
+        return new DescribeSpotInstanceRequestsResult().withSpotInstanceRequests(requests);
+    }
+
+    @Override
+    public CancelSpotInstanceRequestsResult cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest cancelSpotInstanceRequestsRequest) throws AmazonServiceException, AmazonClientException {
+        this.cancelSpotInstanceRequestsRequest = cancelSpotInstanceRequestsRequest;
+        return new CancelSpotInstanceRequestsResult();
+    }
+
+    public void setSpotInstanceRequests(List<SpotInstanceRequest> spotInstanceRequests) {
+        this.spotInstanceRequests = spotInstanceRequests;
+    }
+
+    public void setSpotInstanceRequests(String subnetId, List<SpotInstanceRequest> spotInstanceRequests) {
+        this.spotInstanceRequestsBySubnet.put(subnetId, spotInstanceRequests);
+    }
+
+    public void setDescribeSpotInstanceRequestsToThrowError() {
+        throwDescribeSpotInstanceRequestsError = true;
+    }
+
+    public List<RequestSpotInstancesRequest> getRequestSpotInstancesRequests() {
+        return requestSpotInstancesRequests;
+    }
+
+    public RequestSpotInstancesRequest getRequestSpotInstancesRequest() {
+        return requestSpotInstancesRequest;
+    }
+
+    public CancelSpotInstanceRequestsRequest getCancelSpotInstanceRequestsRequest() {
+        return cancelSpotInstanceRequestsRequest;
+    }
+
     public void setThrowExceptionsInRunInstancesIndefinitely() {
         throwExceptionsInRunInstancesIndefinitely = true;
     }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class NodeLaunchPlannerTest {
+
+    @Test
+    // Tests that threads for several browsers are packed onto the cheapest nodes
+    public void testMixedBrowsersPacked() {
+        Map<String,Integer> threadsByBrowser = new LinkedHashMap<>();
+        threadsByBrowser.put("firefox", 3);
+        threadsByBrowser.put("chrome", 5);
+        List<NodeLaunchPlanner.NodeLaunch> launches = NodeLaunchPlanner.plan(threadsByBrowser, getCatalog());
+        Assert.assertEquals(2, launches.size());
+        Map<String,Integer> shared = new HashMap<>();
+        shared.put("chrome", 5);
+        shared.put("firefox", 1);
+        Assert.assertEquals("c3.large", launches.get(0).getInstanceType().getName());
+        Assert.assertEquals(1, launches.get(0).getNodeCount());
+        Assert.assertEquals("Chrome should be packed first and share its node with firefox", shared, launches.get(0).getMaxInstancesByBrowser());
+        Assert.assertEquals(6, launches.get(0).getMaxSessions());
+        Assert.assertEquals("Remaining firefox threads are cheaper on their own nodes", "t2.micro", launches.get(1).getInstanceType().getName());
+        Assert.assertEquals(2, launches.get(1).getNodeCount());
+        Assert.assertEquals(1, launches.get(1).getMaxSessions());
+    }
+
+    @Test
+    // Tests that idle nodes are started as the instance type with the lowest price per session of the browser
+    public void testPlanNodesCheapestPerSession() {
+        NodeLaunchPlanner.NodeLaunch launch = NodeLaunchPlanner.planNodes("firefox", 3, getCatalog());
+        Assert.assertEquals("t2.micro", launch.getInstanceType().getName());
+        Assert.assertEquals(3, launch.getNodeCount());
+        Assert.assertEquals(Collections.singletonMap("firefox", 1), launch.getMaxInstancesByBrowser());
+        launch = NodeLaunchPlanner.planNodes("chrome", 2, getCatalog());
+        Assert.assertEquals("c3.large", launch.getInstanceType().getName());
+        Assert.assertEquals(6, launch.getMaxSessions());
+    }
+
+    @Test
+    // Tests that a launch without an instance type to start its nodes as is rejected
+    public void testLaunchWithoutInstanceTypeRejected() {
+        try {
+            new NodeLaunchPlanner.NodeLaunch(Collections.<InstanceTypeCatalog.InstanceType>emptyList(), 1, Collections.singletonMap("chrome", 6));
+            Assert.fail("Launch without an instance type should be rejected");
+        } catch(IllegalArgumentException e) {
+            Assert.assertEquals("No instance type can run sessions {chrome=6}", e.getMessage());
+        }
+    }
+
+    @Test
+    // Tests that whole nodes are grouped together, and a node small enough for a cheaper instance type uses it
+    public void testWholeNodesAndSmallerInstanceType() {
+        Map<String,Integer> threadsByBrowser = new LinkedHashMap<>();
+        threadsByBrowser.put("chrome", 12);
+        threadsByBrowser.put("firefox", 1);
+        List<NodeLaunchPlanner.NodeLaunch> launches = NodeLaunchPlanner.plan(threadsByBrowser, getCatalog());
+        Assert.assertEquals(2, launches.size());
+        Assert.assertEquals("Whole chrome nodes should be launched together", 2, launches.get(0).getNodeCount());
+        Assert.assertEquals(6, launches.get(0).getMaxInstancesByBrowser().get("chrome").intValue());
+        Assert.assertEquals("A single firefox thread should use the cheaper instance type", "t2.micro", launches.get(1).getInstanceType().getName());
+        Assert.assertEquals("firefox", launches.get(1).getBrowser());
+        Assert.assertEquals(1, launches.get(1).getMaxSessions());
+    }
+
+    @Test
+    // Tests that the cheapest combination of instance types is picked, with the other types that fit to fall back on
+    public void testCheapestCombination() {
+        Properties properties = getProperties();
+        properties.setProperty(InstanceTypeCatalog.CATALOG_PROPERTY, "c3.large,t2.micro,c3.xlarge");
+        properties.setProperty("c3.xlarge_vcpu", "4");
+        properties.setProperty("c3.xlarge_memory_gib", "7.5");
+        properties.setProperty("c3.xlarge_hourly_price", "0.18");
+        properties.setProperty("c3.xlarge_sessions_chrome", "12");
+        List<NodeLaunchPlanner.NodeLaunch> launches = NodeLaunchPlanner.plan(Collections.singletonMap("chrome", 18), InstanceTypeCatalog.fromProperties(properties));
+        Assert.assertEquals("Bigger nodes should be used when they cost less per session", 2, launches.size());
+        Assert.assertEquals("c3.xlarge", launches.get(0).getInstanceType().getName());
+        Assert.assertEquals(12, launches.get(0).getMaxSessions());
+        Assert.assertEquals("c3.large", launches.get(1).getInstanceType().getName());
+        Assert.assertEquals("The larger type should be fallen back on for the smaller node", 2, launches.get(1).getInstanceTypes().size());
+        Assert.assertEquals("c3.xlarge", launches.get(1).getInstanceTypes().get(1).getName());
+    }
+
+    @Test
+    // Tests that without a catalog the instance type of each browser is used and threads are packed onto the fewest nodes
+    public void testLegacyInstanceTypes() {
+        Properties properties = new Properties();
+        properties.setProperty("node_instance_type_chrome", "c3.large");
+        properties.setProperty("node_instance_type_firefox", "t2.micro");
+        InstanceTypeCatalog catalog = InstanceTypeCatalog.fromProperties(properties);
+        List<NodeLaunchPlanner.NodeLaunch> launches = NodeLaunchPlanner.plan(Collections.singletonMap("firefox", 3), catalog);
+        Assert.assertEquals(1, launches.size());
+        Assert.assertEquals("Firefox threads should share a node", "c3.large", launches.get(0).getInstanceType().getName());
+        Assert.assertEquals(3, launches.get(0).getMaxSessions());
+        launches = NodeLaunchPlanner.plan(Collections.singletonMap("firefox", 1), catalog);
+        Assert.assertEquals("A single firefox thread should use the firefox instance type", "t2.micro", launches.get(0).getInstanceType().getName());
+    }
+
+    @Test
+    // Tests that browsers nodes cannot be started for are rejected
+    public void testUnsupportedBrowser() {
+        Map<String,Integer> threadsByBrowser = new HashMap<>();
+        threadsByBrowser.put("opera", 1);
+        try {
+            NodeLaunchPlanner.plan(threadsByBrowser, getCatalog());
+        } catch(IllegalArgumentException e) {
+            Assert.assertTrue("Browser should be in the message", e.getMessage().contains("opera"));
+            return;
+        }
+        Assert.fail("Unsupported browser should not be planned");
+    }
+
+    private static InstanceTypeCatalog getCatalog() {
+        return InstanceTypeCatalog.fromProperties(getProperties());
+    }
+
+    private static Properties getProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(InstanceTypeCatalog.CATALOG_PROPERTY, "c3.large,t2.micro");
+        properties.setProperty("c3.large_vcpu", "2");
+        properties.setProperty("c3.large_memory_gib", "3.75");
+        properties.setProperty("c3.large_hourly_price", "0.105");
+        properties.setProperty("c3.large_sessions_chrome", "6");
+        properties.setProperty("c3.large_sessions_firefox", "6");
+        properties.setProperty("t2.micro_vcpu", "1");
+        properties.setProperty("t2.micro_memory_gib", "1");
+        properties.setProperty("t2.micro_hourly_price", "0.013");
+        properties.setProperty("t2.micro_sessions_firefox", "1");
+        return properties;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.aws;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SubnetHealthTrackerTest {
+
+    @Test
+    // Tests that a capacity failure opens the circuit until the cool-down passes, and a failure in a row doubles it
+    public void testCircuitOpensAndCoolsDown() {
+        SubnetHealthTracker tracker = new SubnetHealthTracker();
+        tracker.setCoolDownInMillis(1000);
+        List<String> subnets = Arrays.asList("subnet1", "subnet2");
+        long start = System.currentTimeMillis();
+        tracker.recordCapacityFailure("subnet1", "c3.large", 10);
+        Assert.assertEquals("Subnet should be skipped while its circuit is open", Arrays.asList("subnet2"), tracker.getAvailableSubnets(subnets, "c3.large", start));
+        Assert.assertEquals("Circuit should only be open for the instance type which failed", subnets, tracker.getAvailableSubnets(subnets, "t2.micro", start));
+        long openUntil = tracker.getHealth().get(0).getOpenUntil();
+        Assert.assertEquals("Subnet should be tried again after the cool-down", 2, tracker.getAvailableSubnets(subnets, "c3.large", openUntil).size());
+        tracker.recordCapacityFailure("subnet1", "c3.large", 10);
+        SubnetHealthTracker.SubnetHealth health = tracker.getHealth().get(0);
+        Assert.assertTrue("Cool-down should double for a failure in a row", health.getOpenUntil() - System.currentTimeMillis() > 1000);
+        tracker.recordSuccess("subnet1", "c3.large", 10);
+        Assert.assertFalse("Success should close the circuit", health.isOpen(System.currentTimeMillis()));
+        Assert.assertEquals(0, health.getConsecutiveFailures());
+        Assert.assertEquals(2, health.getCapacityFailures());
+    }
+
+    @Test
+    // Tests that the healthiest and then fastest subnets are launched in first
+    public void testHealthiestSubnetFirst() {
+        SubnetHealthTracker tracker = new SubnetHealthTracker();
+        tracker.setCoolDownInMillis(0);
+        tracker.recordCapacityFailure("subnet1", "c3.large", 10);
+        tracker.recordSuccess("subnet2", "c3.large", 500);
+        tracker.recordSuccess("subnet3", "c3.large", 100);
+        List<String> available = tracker.getAvailableSubnets(Arrays.asList("subnet1", "subnet2", "subnet3", null), "c3.large", System.currentTimeMillis());
+        Assert.assertEquals("Subnets should be ordered by health and then latency", Arrays.asList(null, "subnet3", "subnet2", "subnet1"), available);
+    }
+}
@@ -14,15 +14,19 @@ package com.rmn.qa.aws;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.rmn.qa.AutomationConstants;
+import com.rmn.qa.InsufficientCapacityException;
 import com.rmn.qa.NodesCouldNotBeStartedException;
 import junit.framework.Assert;
 import org.apache.commons.collections.CollectionUtils;
@@ -35,7 +39,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class VmManagerTest {
@@ -132,7 +139,7 @@ public class VmManagerTest {
         manageEC2.setUserData(userData);
         List<Instance> instances = manageEC2.launchNodes(uuid,os,browser,null,threadCount,maxSessions);
         RunInstancesRequest request = client.getRunInstancesRequest();
-        Assert.assertEquals("Min count should match thread count requested", threadCount, request.getMinCount());
+        Assert.assertEquals("Min count should allow a subnet to start as many nodes as it has capacity for", 1, request.getMinCount().intValue());
         Assert.assertEquals("Max count should match thread count requested", threadCount, request.getMaxCount());
         Assert.assertEquals("User data should match", userData, request.getUserData());
         Assert.assertTrue("No security group should be set", request.getSecurityGroupIds().isEmpty());
@@ -162,7 +169,7 @@ public class VmManagerTest {
         manageEC2.setUserData(userData);
         manageEC2.launchNodes(uuid,os,browser,null,threadCount,maxSessions);
         RunInstancesRequest request = client.getRunInstancesRequest();
-        Assert.assertEquals("Min count should match thread count requested",threadCount,request.getMinCount());
+        Assert.assertEquals("Min count should allow a subnet to start as many nodes as it has capacity for", 1, request.getMinCount().intValue());
         Assert.assertEquals("Max count should match thread count requested",threadCount,request.getMaxCount());
         Assert.assertEquals("User data should match",userData,request.getUserData());
         Assert.assertEquals("Image id should match",linuxImage,request.getImageId());
@@ -237,7 +244,7 @@ public class VmManagerTest {
         manageEC2.setUserData(userData);
         manageEC2.launchNodes(uuid,os,browser,null,threadCount,maxSessions);
         RunInstancesRequest request = client.getRunInstancesRequest();
-        Assert.assertEquals("Min count should match thread count requested",threadCount,request.getMinCount());
+        Assert.assertEquals("Min count should allow a subnet to start as many nodes as it has capacity for", 1, request.getMinCount().intValue());
         Assert.assertEquals("Max count should match thread count requested",threadCount,request.getMaxCount());
         Assert.assertEquals("User data should match",userData,request.getUserData());
         Assert.assertEquals("Image id should match",windowsImage,request.getImageId());
@@ -299,6 +306,44 @@ public class VmManagerTest {
         Assert.assertTrue("Termination call should have been successful", success);
     }
 
+    @Test
+    // Tests that terminating more instances than EC2 accepts at once is split across requests
+    public void testTerminateInstancesBatched() {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        TerminateInstancesResult terminateInstancesResult = new TerminateInstancesResult();
+        InstanceStateChange stateChange = new InstanceStateChange();
+        stateChange.withInstanceId("i-0");
+        stateChange.setCurrentState(new InstanceState().withCode(32));
+        terminateInstancesResult.setTerminatingInstances(Arrays.asList(stateChange));
+        client.setTerminateInstancesResult(terminateInstancesResult);
+        MockManageVm manageEC2 = new MockManageVm(client,new Properties(),"east");
+        List<String> instanceIds = new ArrayList<>();
+        for(int i = 0; i < 1500; i++) {
+            instanceIds.add("i-" + i);
+        }
+        Map<String,InstanceStateChange> stateChanges = manageEC2.terminateInstances(instanceIds);
+        List<TerminateInstancesRequest> requests = client.getTerminateInstancesRequests();
+        Assert.assertEquals("Instances should be split across 2 requests", 2, requests.size());
+        Assert.assertEquals(AwsVmManager.MAX_TERMINATE_BATCH_SIZE, requests.get(0).getInstanceIds().size());
+        Assert.assertEquals(500, requests.get(1).getInstanceIds().size());
+        Assert.assertEquals("Reported state changes should be returned", 32, stateChanges.get("i-0").getCurrentState().getCode().intValue());
+    }
+
+    @Test
+    // Tests that an instance which does not exist does not stop the rest of its batch from being terminated
+    public void testTerminateInstancesSplitOnMissingInstance() {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setUnknownInstanceIds("i-2");
+        MockManageVm manageEC2 = new MockManageVm(client,new Properties(),"east");
+        Map<String,InstanceStateChange> stateChanges = manageEC2.terminateInstances(Arrays.asList("i-0", "i-1", "i-2", "i-3"));
+        Assert.assertEquals("Every instance should be reported", 4, stateChanges.size());
+        for(String instanceId : Arrays.asList("i-0", "i-1", "i-3")) {
+            Assert.assertEquals(32, stateChanges.get(instanceId).getCurrentState().getCode().intValue());
+        }
+        Assert.assertEquals("Missing instance should be reported as terminated", 48, stateChanges.get("i-2").getCurrentState().getCode().intValue());
+        Assert.assertTrue("Batch should have been split", client.getTerminateInstancesRequests().size() > 1);
+    }
+
     @Test
     // Tests terminating an invalid instance is handled correctly
     public void testTerminateInstanceInvalidRunningCode() {
@@ -455,6 +500,17 @@ public class VmManagerTest {
         Assert.assertTrue("IE thread count should have been passed in", nodeConfig.contains(String.valueOf(AwsVmManager.CHROME_THREAD_COUNT)));
     }
 
+    @Test
+    // Test that planned sessions for each browser are passed into the node config
+    public void testGetNodeConfigPlannedSessions() {
+        MockManageVm manageEC2 = new MockManageVm(null,null,null);
+        Map<String,Integer> maxInstancesByBrowser = new HashMap<>();
+        maxInstancesByBrowser.put("chrome", 4);
+        String nodeConfig = manageEC2.getNodeConfig("uuid","hostName","chrome","linux",4,maxInstancesByBrowser);
+        Assert.assertTrue("Chrome sessions should have been passed in", nodeConfig.matches("(?s).*\"chrome\",\\s*\"maxInstances\": 4,.*"));
+        Assert.assertTrue("Firefox should not run on the node", nodeConfig.matches("(?s).*\"firefox\",\\s*\"maxInstances\": 0,.*"));
+    }
+
     @Test
     // Test that the correct exception is throw when you specified a bad OS for the node config
     public void testGetNodeConfigBadOs() {
@@ -600,6 +656,220 @@ public class VmManagerTest {
         Assert.fail("Call should fail due to insufficient resources");
     }
 
+    @Test
+    // Tests that if no subnet has capacity for the cheapest instance type, nodes are started as the next instance type
+    public void testInstanceTypeFallsBackOnInsufficientCapacity() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        AmazonServiceException exception = new AmazonServiceException("message");
+        exception.setErrorCode("InsufficientInstanceCapacity");
+        client.setThrowDescribeInstancesError(exception);
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance()));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        String region = "east";
+        properties.setProperty(region + "_linux_node_ami", "linuxImage");
+        properties.setProperty(InstanceTypeCatalog.CATALOG_PROPERTY, "c3.large,c4.large");
+        for(String instanceType : Arrays.asList("c3.large", "c4.large")) {
+            properties.setProperty(instanceType + "_vcpu", "2");
+            properties.setProperty(instanceType + "_memory_gib", "3.75");
+            properties.setProperty(instanceType + "_sessions_chrome", "6");
+        }
+        properties.setProperty("c3.large_hourly_price", "0.105");
+        properties.setProperty("c4.large_hourly_price", "0.11");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,region);
+        List<NodeLaunchPlanner.NodeLaunch> launches = NodeLaunchPlanner.plan(Collections.singletonMap("chrome", 6), manageEC2.getInstanceTypeCatalog());
+        Assert.assertEquals("c3.large", launches.get(0).getInstanceType().getName());
+        List<Instance> instances = manageEC2.launchNodes("uuid", "linux", "hostName", launches.get(0));
+        Assert.assertEquals(1, instances.size());
+        Assert.assertEquals("Next cheapest instance type should have been started", "c4.large", client.getRunInstancesRequest().getInstanceType());
+    }
+
+    @Test
+    // Tests that nodes are split across the subnets at once, and nodes a subnet has no capacity for are started in the others
+    public void testLaunchSplitAcrossSubnets() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setInsufficientCapacitySubnets("subnet1");
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance()));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        String region = "east";
+        properties.setProperty(region + "_subnet_id", "subnet1");
+        properties.setProperty(region + "_subnet_fallback_id_1", "subnet2");
+        properties.setProperty(region + "_subnet_fallback_id_2", "subnet3");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,region);
+        List<Instance> instances = manageEC2.launchNodes("ami", "c3.large", 4, "userData", false);
+        Assert.assertEquals("Nodes the first subnet had no capacity for should be started in the others", 4, instances.size());
+        Map<String,Integer> maxCountBySubnet = new HashMap<>();
+        for(RunInstancesRequest request : client.getRunInstancesRequests()) {
+            Integer maxCount = maxCountBySubnet.get(request.getSubnetId());
+            maxCountBySubnet.put(request.getSubnetId(), (maxCount == null ? 0 : maxCount) + request.getMaxCount());
+        }
+        Assert.assertEquals("Nodes should have been split across the subnets", 2, maxCountBySubnet.get("subnet1").intValue());
+        Assert.assertEquals("Subnet without capacity should not be retried", 1, Collections.frequency(getSubnetIds(client), "subnet1"));
+        Assert.assertEquals(2, maxCountBySubnet.get("subnet2").intValue());
+        Assert.assertEquals(2, maxCountBySubnet.get("subnet3").intValue());
+    }
+
+    @Test
+    // Tests that a subnet which just ran out of capacity is skipped by the next launch without a round trip
+    public void testSubnetWithoutCapacitySkipped() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setInsufficientCapacitySubnets("subnet1");
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance()));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        String region = "east";
+        properties.setProperty(region + "_subnet_id", "subnet1");
+        properties.setProperty(region + "_subnet_fallback_id_1", "subnet2");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,region);
+        manageEC2.launchNodes("ami", "c3.large", 2, "userData", false);
+        manageEC2.launchNodes("ami", "c3.large", 1, "userData", false);
+        List<String> subnetIds = getSubnetIds(client);
+        Assert.assertEquals("Subnet without capacity should only have been tried once", 1, Collections.frequency(subnetIds, "subnet1"));
+        Assert.assertEquals("Second launch should go straight to the healthy subnet", "subnet2", subnetIds.get(subnetIds.size() - 1));
+        Assert.assertTrue("Circuit should be open for the subnet without capacity", manageEC2.getSubnetHealthTracker().getAvailableSubnets(Arrays.asList("subnet1"), "c3.large", System.currentTimeMillis()).isEmpty());
+        client.setInsufficientCapacitySubnets("subnet2");
+        for(int i = 0; i < 2; i++) {
+            try {
+                manageEC2.launchNodes("ami", "c3.large", 1, "userData", false);
+                Assert.fail("Launch should fail once every subnet is out of capacity");
+            } catch(InsufficientCapacityException e) {
+                // Expected
+            }
+        }
+        Assert.assertEquals("Open circuits should fail the launch without a round trip", subnetIds.size() + 1, client.getRunInstancesRequests().size());
+    }
+
+    @Test
+    // Tests that spot nodes which are not fulfilled in time are cancelled and started on demand instead
+    public void testSpotFallsBackOnDemand() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        SpotInstanceRequest fulfilled = new SpotInstanceRequest().withSpotInstanceRequestId("sir-1").withState("active").withInstanceId("i-spot");
+        SpotInstanceRequest open = new SpotInstanceRequest().withSpotInstanceRequestId("sir-2").withState("open");
+        client.setSpotInstanceRequests(Arrays.asList(fulfilled, open));
+        DescribeInstancesResult describeInstancesResult = new DescribeInstancesResult();
+        Reservation spotReservation = new Reservation();
+        spotReservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-spot").withSpotInstanceRequestId("sir-1")));
+        describeInstancesResult.setReservations(Arrays.asList(spotReservation));
+        client.setDescribeInstances(describeInstancesResult);
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-onDemand")));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        properties.setProperty("c3.large_spot_max_price", "0.03");
+        properties.setProperty("spot_fulfillment_timeout_seconds", "0");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,"east");
+        manageEC2.setSpotPollingIntervalInMillis(1);
+        List<Instance> instances = manageEC2.launchNodes("ami", "c3.large", 2, "userData", false);
+        Assert.assertEquals("Max price should be requested", "0.03", client.getRequestSpotInstancesRequest().getSpotPrice());
+        Assert.assertEquals(2, client.getRequestSpotInstancesRequest().getInstanceCount().intValue());
+        Assert.assertEquals("Unfulfilled spot requests should be cancelled", Arrays.asList("sir-1", "sir-2"), client.getCancelSpotInstanceRequestsRequest().getSpotInstanceRequestIds());
+        Assert.assertEquals(2, instances.size());
+        Assert.assertEquals("sir-1", instances.get(0).getSpotInstanceRequestId());
+        Assert.assertEquals("Remaining node should be started on demand", 1, client.getRunInstancesRequest().getMaxCount().intValue());
+        Assert.assertEquals("i-onDemand", instances.get(1).getInstanceId());
+    }
+
+    @Test
+    // Tests that spot requests are cancelled when polling them fails, and the nodes are started on demand with the requested shutdown behavior
+    public void testSpotCancelledOnError() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setSpotInstanceRequests(Arrays.asList(new SpotInstanceRequest().withSpotInstanceRequestId("sir-1").withState("open")));
+        client.setDescribeSpotInstanceRequestsToThrowError();
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-onDemand")));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        properties.setProperty("c3.large_spot_max_price", "0.03");
+        properties.setProperty("spot_fulfillment_timeout_seconds", "60");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,"east");
+        manageEC2.setSpotPollingIntervalInMillis(1);
+        List<Instance> instances = manageEC2.launchNodes("ami", "c3.large", 1, "userData", true);
+        Assert.assertEquals("Spot requests should be cancelled after an error", Arrays.asList("sir-1"), client.getCancelSpotInstanceRequestsRequest().getSpotInstanceRequestIds());
+        Assert.assertEquals("i-onDemand", instances.get(0).getInstanceId());
+        Assert.assertEquals("On demand nodes should keep the requested shutdown behavior", "terminate", client.getRunInstancesRequest().getInstanceInitiatedShutdownBehavior());
+        Assert.assertFalse("An error says nothing about the spot capacity of the subnet", manageEC2.getSubnetHealthTracker().getAvailableSubnets(Collections.<String>singletonList(null), AwsVmManager.getSpotCapacityKey("c3.large"), System.currentTimeMillis()).isEmpty());
+    }
+
+    @Test
+    // Tests that spot nodes are split across the healthy subnets, and subnets which leave requests unfulfilled are recorded as out of capacity
+    public void testSpotSplitAcrossSubnets() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        client.setSpotInstanceRequests("subnet1", Arrays.asList(new SpotInstanceRequest().withSpotInstanceRequestId("sir-1").withState("active").withInstanceId("i-spot")));
+        client.setSpotInstanceRequests("subnet2", Arrays.asList(new SpotInstanceRequest().withSpotInstanceRequestId("sir-2").withState("open")));
+        DescribeInstancesResult describeInstancesResult = new DescribeInstancesResult();
+        Reservation spotReservation = new Reservation();
+        spotReservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-spot").withSpotInstanceRequestId("sir-1")));
+        describeInstancesResult.setReservations(Arrays.asList(spotReservation));
+        client.setDescribeInstances(describeInstancesResult);
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-onDemand")));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        String region = "east";
+        properties.setProperty(region + "_subnet_id", "subnet1");
+        properties.setProperty(region + "_subnet_fallback_id_1", "subnet2");
+        properties.setProperty("c3.large_spot_max_price", "0.03");
+        properties.setProperty("spot_fulfillment_timeout_seconds", "0");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,region);
+        manageEC2.setSpotPollingIntervalInMillis(1);
+        List<Instance> instances = manageEC2.launchNodes("ami", "c3.large", 2, "userData", false);
+        Assert.assertEquals("A spot request should be sent to each subnet", 2, client.getRequestSpotInstancesRequests().size());
+        for(RequestSpotInstancesRequest request : client.getRequestSpotInstancesRequests()) {
+            Assert.assertEquals("Nodes should be split across the subnets", 1, request.getInstanceCount().intValue());
+        }
+        Assert.assertEquals("subnet1", client.getRequestSpotInstancesRequests().get(0).getLaunchSpecification().getSubnetId());
+        Assert.assertEquals("subnet2", client.getRequestSpotInstancesRequests().get(1).getLaunchSpecification().getSubnetId());
+        Assert.assertEquals(2, instances.size());
+        Assert.assertEquals("Remaining node should be started on demand in the subnet with capacity", "subnet1", client.getRunInstancesRequest().getSubnetId());
+        List<String> available = manageEC2.getSubnetHealthTracker().getAvailableSubnets(Arrays.asList("subnet1", "subnet2"), AwsVmManager.getSpotCapacityKey("c3.large"), System.currentTimeMillis());
+        Assert.assertEquals("Subnet which left its spot request open should be out of spot capacity", Arrays.asList("subnet1"), available);
+    }
+
+    @Test
+    // Tests that no spot request is sent while every subnet is out of spot capacity, rather than sending one without a subnet
+    public void testSpotSkippedWhenEverySubnetCoolingDown() throws NodesCouldNotBeStartedException {
+        MockAmazonEc2Client client = new MockAmazonEc2Client(null);
+        RunInstancesResult runInstancesResult = new RunInstancesResult();
+        Reservation reservation = new Reservation();
+        reservation.setInstances(Arrays.asList(new Instance().withInstanceId("i-onDemand")));
+        runInstancesResult.setReservation(reservation);
+        client.setRunInstances(runInstancesResult);
+        Properties properties = new Properties();
+        String region = "east";
+        properties.setProperty(region + "_subnet_id", "subnet1");
+        properties.setProperty("c3.large_spot_max_price", "0.03");
+        MockManageVm manageEC2 = new MockManageVm(client,properties,region);
+        manageEC2.getSubnetHealthTracker().recordCapacityFailure("subnet1", AwsVmManager.getSpotCapacityKey("c3.large"), 0);
+        List<Instance> instances = manageEC2.launchNodes("ami", "c3.large", 1, "userData", false);
+        Assert.assertTrue("No spot request should have been sent", client.getRequestSpotInstancesRequests().isEmpty());
+        Assert.assertEquals("Node should be started on demand instead", "i-onDemand", instances.get(0).getInstanceId());
+        Assert.assertEquals("subnet1", client.getRunInstancesRequest().getSubnetId());
+    }
+
+    private static List<String> getSubnetIds(MockAmazonEc2Client client) {
+        List<String> subnetIds = new ArrayList<>();
+        for(RunInstancesRequest request : client.getRunInstancesRequests()) {
+            subnetIds.add(request.getSubnetId());
+        }
+        return subnetIds;
+    }
+
     @Test
     //Tests that the client is initialized and exception is not thrown
     public void testClientInitialized(){
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import com.rmn.qa.aws.Ec2RateLimiter;
+import junit.framework.Assert;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class AutomationEc2ApiServletTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the usage of each EC2 API is returned
+    public void testApiMetrics() throws Exception {
+        AutomationContext.getContext().getEc2RateLimiter().call("TerminateInstances", new Ec2RateLimiter.Ec2Call<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+        AutomationEc2ApiServlet servlet = new AutomationEc2ApiServlet();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(new MockHttpServletRequest(), response);
+        Assert.assertEquals("EC2 API metrics should be returned", HttpServletResponse.SC_OK, response.getStatusCode());
+        JSONArray apis = new JSONObject(response.getOutput()).getJSONArray("apis");
+        Assert.assertEquals(1, apis.length());
+        JSONObject api = apis.getJSONObject(0);
+        Assert.assertEquals("TerminateInstances", api.getString("api"));
+        Assert.assertEquals(1, api.getInt("calls"));
+        Assert.assertEquals(0, api.getInt("throttled"));
+    }
+}
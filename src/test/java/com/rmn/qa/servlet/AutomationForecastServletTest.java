@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationRunRequest;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import junit.framework.Assert;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Date;
+
+public class AutomationForecastServletTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that an invalid number of hours is rejected
+    public void testInvalidHours() throws Exception {
+        AutomationForecastServlet servlet = new AutomationForecastServlet();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("hours","abc");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Invalid hours should be a bad request", HttpServletResponse.SC_BAD_REQUEST, response.getErrorCode());
+    }
+
+    @Test
+    // Tests that the forecast for the current hour includes runs registered during it
+    public void testForecast() throws Exception {
+        AutomationContext.getContext().getDemandForecaster().record(new AutomationRunRequest("uuid", 12, "chrome", null, null, new Date()));
+        AutomationForecastServlet servlet = new AutomationForecastServlet();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("hours","2");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Forecast should be returned", HttpServletResponse.SC_OK, response.getStatusCode());
+        JSONArray forecast = new JSONObject(response.getOutput()).getJSONArray("forecast");
+        Assert.assertEquals("An entry should be returned for each hour", 2, forecast.length());
+        Assert.assertEquals(12, forecast.getJSONObject(0).getJSONObject("threads").getInt("chrome"));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationRunRequest;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import junit.framework.Assert;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class AutomationRunStatusServletTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Makes sure that the query string parameter 'uuid' is required
+    public void testUuidRequired() throws Exception {
+        AutomationRunStatusServlet servlet = new AutomationRunStatusServlet();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(new MockHttpServletRequest(), response);
+        Assert.assertEquals("Missing uuid should be a bad request", HttpServletResponse.SC_BAD_REQUEST, response.getErrorCode());
+    }
+
+    @Test
+    // Tests that an unknown run is not found
+    public void testUnknownRun() throws Exception {
+        AutomationRunStatusServlet servlet = new AutomationRunStatusServlet();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("uuid","testUuid");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Unknown run should not be found", HttpServletResponse.SC_NOT_FOUND, response.getErrorCode());
+    }
+
+    @Test
+    // Tests that a failure to start nodes is returned for the run
+    public void testFailedRunStatus() throws Exception {
+        AutomationRunRequest runRequest = new AutomationRunRequest("testUuid", 10, "firefox");
+        runRequest.provisioningStarted();
+        runRequest.provisioningFailed("Nodes could not be started: Can't start nodes");
+        AutomationContext.getContext().addRun(runRequest);
+        AutomationRunStatusServlet servlet = new AutomationRunStatusServlet();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("uuid","testUuid");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Status should be returned for the run", HttpServletResponse.SC_OK, response.getStatusCode());
+        JSONObject status = new JSONObject(response.getOutput());
+        Assert.assertEquals("testUuid", status.getString("uuid"));
+        Assert.assertEquals("FAILED", status.getString("provisioningStatus"));
+        Assert.assertEquals("Nodes could not be started: Can't start nodes", status.getString("error"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import junit.framework.Assert;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class AutomationSubnetHealthServletTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the health of each subnet is returned along with the state of its circuit
+    public void testSubnetHealth() throws Exception {
+        AutomationContext.getContext().getSubnetHealthTracker().recordCapacityFailure("subnet1", "c3.large", 10);
+        AutomationSubnetHealthServlet servlet = new AutomationSubnetHealthServlet();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(new MockHttpServletRequest(), response);
+        Assert.assertEquals("Subnet health should be returned", HttpServletResponse.SC_OK, response.getStatusCode());
+        JSONArray subnets = new JSONObject(response.getOutput()).getJSONArray("subnets");
+        Assert.assertEquals(1, subnets.length());
+        JSONObject subnet = subnets.getJSONObject(0);
+        Assert.assertEquals("subnet1", subnet.getString("subnetId"));
+        Assert.assertEquals("c3.large", subnet.getString("instanceType"));
+        Assert.assertTrue("Circuit should be open after a capacity failure", subnet.getBoolean("circuitOpen"));
+        Assert.assertEquals(1, subnet.getInt("capacityFailures"));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import com.rmn.qa.task.AutomationRunCleanupTask;
+import junit.framework.Assert;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+public class AutomationTaskServletTest {
+
+    @After
+    public void cleanUp() {
+        AutomationContext.getContext().getTaskScheduler().shutdown(1, TimeUnit.SECONDS);
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the statistics of each scheduled task are returned
+    public void testTaskStatistics() throws Exception {
+        AutomationContext.getContext().getTaskScheduler().schedule(new AutomationRunCleanupTask(null), 1, 1, TimeUnit.HOURS);
+        AutomationTaskServlet servlet = new AutomationTaskServlet();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(new MockHttpServletRequest(), response);
+        Assert.assertEquals("Task statistics should be returned", HttpServletResponse.SC_OK, response.getStatusCode());
+        JSONArray tasks = new JSONObject(response.getOutput()).getJSONArray("tasks");
+        Assert.assertEquals(1, tasks.length());
+        JSONObject task = tasks.getJSONObject(0);
+        Assert.assertEquals(new AutomationRunCleanupTask(null).getDescription(), task.getString("name"));
+        Assert.assertEquals(TimeUnit.HOURS.toMillis(1), task.getLong("intervalMillis"));
+        Assert.assertEquals("Task should not have run yet", 0, task.getInt("runs"));
+        Assert.assertEquals(0, task.getJSONObject("histogram").getInt(">=60000ms"));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.rmn.qa.AutomationCapabilityMatcher;
+import com.rmn.qa.AutomationConstants;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationRequestMatcher;
+import com.rmn.qa.MockHttpServletRequest;
+import com.rmn.qa.MockHttpServletResponse;
+import com.rmn.qa.MockRemoteProxy;
+import com.rmn.qa.MockVmManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures run registration throughput with 64 concurrent callers, which are admitted one at a time under the hub wide
+ * lock.  Each registered run is deleted right away so the hub stays in a steady state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(64)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AutomationTestRunServletBenchmark {
+
+    private static final AtomicLong RUN_COUNTER = new AtomicLong();
+
+    @Param({ "50", "500" })
+    private int proxyCount;
+
+    private MockAutomationTestRunServlet servlet;
+
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void setUp() {
+        // Keep console logging from serializing the benchmark threads
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        AutomationContext.refreshContext();
+        AutomationContext.getContext().setTotalNodeCount(Integer.MAX_VALUE);
+        ProxySet proxySet = new ProxySet(false);
+        for (int i = 0; i < proxyCount; i++) {
+            MockRemoteProxy proxy = new MockRemoteProxy();
+            proxy.setMaxNumberOfConcurrentTestSessions(10);
+            proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+            Map<String,Object> config = new HashMap<>();
+            config.put(AutomationConstants.INSTANCE_ID, "instance" + i);
+            proxy.setConfig(config);
+            Map<String,Object> capabilities = new HashMap<>();
+            capabilities.put(CapabilityType.BROWSER_NAME, i % 2 == 0 ? "firefox" : "chrome");
+            proxy.setMultipleTestSlots(new TestSlot(proxy, SeleniumProtocol.WebDriver, null, capabilities), 10);
+            proxySet.add(proxy);
+        }
+        servlet = new MockAutomationTestRunServlet(null, false, new MockVmManager(), new AutomationRequestMatcher(AutomationRequestMatcher.MODE.SCAN));
+        servlet.setProxySet(proxySet);
+    }
+
+    @Benchmark
+    public int register() throws Exception {
+        long run = RUN_COUNTER.incrementAndGet();
+        String uuid = "run" + run;
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter(AutomationConstants.UUID, uuid);
+        request.setParameter("browser", run % 2 == 0 ? "firefox" : "chrome");
+        request.setParameter("threadCount", "1");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doPost(request, response);
+        AutomationContext.getContext().deleteRun(uuid);
+        return response.getStatusCode();
+    }
+}
@@ -25,6 +25,12 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AutomationTestRunServletTest {
 
@@ -225,6 +231,10 @@ public class AutomationTestRunServletTest {
         servlet.doGet(request, response);
         Assert.assertEquals("Hub should be able to fulfill request",
                 HttpServletResponse.SC_CREATED,response.getStatusCode());
+        Assert.assertEquals("Status URL should be returned for the run",
+                AutomationRunStatusServlet.getStatusPath("testUuid"),response.getHeader("Location"));
+        Assert.assertEquals("Nodes should have been started for the run", AutomationRunRequest.PROVISIONING_STATUS.COMPLETE,
+                AutomationContext.getContext().getRunRequest("testUuid").getProvisioningStatus());
     }
 
     @Test
@@ -437,9 +447,145 @@ public class AutomationTestRunServletTest {
         AutomationContext.getContext().setTotalNodeCount(50);
         MockHttpServletResponse response = new MockHttpServletResponse();
         servlet.doGet(request, response);
-        Assert.assertEquals("Hub should be able to fulfill request",
-                HttpServletResponse.SC_INTERNAL_SERVER_ERROR,response.getErrorCode());
-        Assert.assertEquals("Error message should return if nodes can't be started","Nodes could not be started: Can't start nodes",response.getErrorMessage());
+        Assert.assertEquals("Run should be accepted while nodes are started in the background",
+                HttpServletResponse.SC_CREATED,response.getStatusCode());
+        AutomationRunRequest runRequest = AutomationContext.getContext().getRunRequest("testUuid");
+        Assert.assertEquals("Failure should be recorded against the run", AutomationRunRequest.PROVISIONING_STATUS.FAILED, runRequest.getProvisioningStatus());
+        Assert.assertEquals("Error message should be recorded if nodes can't be started","Nodes could not be started: Can't start nodes",runRequest.getProvisioningError());
+        Assert.assertEquals("Failed run should not hold on to its threads", 0, runRequest.getReservedThreads());
     }
 
-}
\ No newline at end of file
+    @Test
+    // Tests that a run is marked as partially provisioned when only some of its nodes could be started
+    public void testRequestStartNodesPartial() throws IOException, ServletException{
+        MockVmManager manageEc2 = new MockVmManager();
+        manageEc2.setNodesToStart(1);
+        MockRequestMatcher matcher = new MockRequestMatcher();
+        matcher.setThreadsToReturn(0);
+        MockAutomationTestRunServlet servlet = new MockAutomationTestRunServlet(null,false, manageEc2,matcher);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("uuid","testUuid");
+        request.setParameter("browser","firefox");
+        request.setParameter("threadCount","10");
+        String nodeId = "nodeId";
+        // Add a node that is not running to make sure its not included in the available calculation
+        AutomationDynamicNode node = new AutomationDynamicNode("testUuid",nodeId,null,null,new Date(),50);
+        AutomationContext.getContext().addNode(node);
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        proxy.setMaxNumberOfConcurrentTestSessions(50);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> config = new HashMap<String, Object>();
+        config.put(AutomationConstants.INSTANCE_ID,nodeId);
+        proxy.setConfig(config);
+        Map<String,Object> capabilities = new HashMap<String,Object>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"firefox");
+        TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
+        proxy.setMultipleTestSlots(testSlot, 10);
+        proxySet.add(proxy);
+        servlet.setProxySet(proxySet);
+        AutomationContext.getContext().setTotalNodeCount(50);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Run should be accepted while nodes are started in the background",
+                HttpServletResponse.SC_CREATED,response.getStatusCode());
+        AutomationRunRequest runRequest = AutomationContext.getContext().getRunRequest("testUuid");
+        Assert.assertEquals("Shortfall should be recorded against the run", AutomationRunRequest.PROVISIONING_STATUS.PARTIAL, runRequest.getProvisioningStatus());
+        Assert.assertEquals("9 nodes could not be started as AWS ran out of capacity", runRequest.getProvisioningError());
+        Assert.assertEquals("Run should keep its threads for the nodes which were started", 10, runRequest.getReservedThreads());
+    }
+
+    @Test
+    // Tests that runs registered within the coalescing window share the nodes started for them
+    public void testRequestsCoalescedIntoOneLaunch() throws Exception {
+        MockVmManager manageEc2 = new MockVmManager();
+        MockRequestMatcher matcher = new MockRequestMatcher();
+        matcher.setThreadsToReturn(0);
+        MockAutomationTestRunServlet servlet = new MockAutomationTestRunServlet(null,false, manageEc2,matcher);
+        servlet.setLaunchCoalescingWindow(200);
+        servlet.setProxySet(new ProxySet(false));
+        AutomationContext.getContext().setTotalNodeCount(50);
+        for(int i=0;i<3;i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setParameter("uuid","testUuid" + i);
+            request.setParameter("browser","chrome");
+            request.setParameter("threadCount","2");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            servlet.doGet(request, response);
+            Assert.assertEquals("Run should be accepted", HttpServletResponse.SC_CREATED,response.getStatusCode());
+        }
+        AutomationRunRequest lastRun = AutomationContext.getContext().getRunRequest("testUuid2");
+        long giveUp = System.currentTimeMillis() + 5000;
+        while(lastRun.getProvisioningStatus() == AutomationRunRequest.PROVISIONING_STATUS.PENDING && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("Nodes should have been started for the last run", AutomationRunRequest.PROVISIONING_STATUS.COMPLETE, lastRun.getProvisioningStatus());
+        Assert.assertEquals("Threads of all runs should fit on a single chrome node", 1, manageEc2.getNumberLaunched());
+        Assert.assertEquals("Nodes should have been started for the first run", AutomationRunRequest.PROVISIONING_STATUS.COMPLETE,
+                AutomationContext.getContext().getRunRequest("testUuid0").getProvisioningStatus());
+        Assert.assertEquals("Node should remember every run it was started for", Arrays.asList("testUuid0","testUuid1","testUuid2"),
+                AutomationContext.getContext().getNode("instanceId").getRunUuids());
+    }
+
+    @Test
+    // Tests that a run is rejected when too many runs are already waiting on nodes
+    public void testRequestProvisioningQueueFull() throws IOException, ServletException{
+        MockRequestMatcher matcher = new MockRequestMatcher();
+        matcher.setThreadsToReturn(0);
+        MockAutomationTestRunServlet servlet = new MockAutomationTestRunServlet(null,false, new MockVmManager(),matcher);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        servlet.setProvisioningExecutor(executor);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setParameter("uuid","testUuid");
+        request.setParameter("browser","firefox");
+        request.setParameter("threadCount","10");
+        servlet.setProxySet(new ProxySet(false));
+        AutomationContext.getContext().setTotalNodeCount(50);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        Assert.assertEquals("Run should be rejected when nodes cannot be queued to start",
+                HttpServletResponse.SC_SERVICE_UNAVAILABLE,response.getErrorCode());
+        Assert.assertFalse("Run should not be registered", AutomationContext.getContext().hasRun("testUuid"));
+    }
+
+    @Test
+    // Tests that concurrent run registrations never commit more threads than the hub supports
+    public void testConcurrentRequestsDoNotExceedHubLimit() throws Exception {
+        final int requestCount = 64, threadsPerRequest = 5, hubLimit = 100;
+        MockRequestMatcher matcher = new MockRequestMatcher();
+        matcher.setThreadsToReturn(hubLimit);
+        final MockAutomationTestRunServlet servlet = new MockAutomationTestRunServlet(null,false, new MockVmManager(), matcher);
+        AutomationContext.getContext().setTotalNodeCount(hubLimit);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicInteger accepted = new AtomicInteger(), rejected = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(requestCount);
+        for(int i=0;i<requestCount;i++) {
+            final MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setParameter("uuid","uuid" + i);
+            request.setParameter("browser",i % 2 == 0 ? "firefox" : "chrome");
+            request.setParameter("threadCount",String.valueOf(threadsPerRequest));
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startLatch.await();
+                    MockHttpServletResponse response = new MockHttpServletResponse();
+                    servlet.doGet(request, response);
+                    if(response.getStatusCode() == HttpServletResponse.SC_ACCEPTED) {
+                        accepted.incrementAndGet();
+                    } else if(response.getErrorCode() == HttpServletResponse.SC_CONFLICT) {
+                        rejected.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        startLatch.countDown();
+        executor.shutdown();
+        Assert.assertTrue("All requests should complete", executor.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Every request should be accepted or rejected", requestCount, accepted.get() + rejected.get());
+        Assert.assertTrue("At least one request should be accepted", accepted.get() > 0);
+        Assert.assertTrue("Accepted runs should not exceed the hub limit", accepted.get() * threadsPerRequest <= hubLimit);
+        Assert.assertEquals("Every accepted run should be registered", accepted.get(), AutomationContext.getContext().getRunUuids().size());
+    }
+}
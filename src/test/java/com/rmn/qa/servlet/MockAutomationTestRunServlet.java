@@ -12,6 +12,7 @@
 
 package com.rmn.qa.servlet;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.rmn.qa.RequestMatcher;
 import com.rmn.qa.aws.VmManager;
 import org.openqa.grid.internal.ProxySet;
@@ -23,6 +24,9 @@ public class MockAutomationTestRunServlet extends AutomationTestRunServlet {
 
     public MockAutomationTestRunServlet(Registry registry, boolean initThreads, VmManager ec2,RequestMatcher requestMatcher){
         super(registry,initThreads,ec2,requestMatcher);
+        // Start nodes on the calling thread so tests can check the outcome right away
+        setProvisioningExecutor(MoreExecutors.sameThreadExecutor());
+        setLaunchCoalescingWindow(0);
     }
 
     @Override
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.servlet;
+
+import com.rmn.qa.AutomationRunRequest;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class NodeLaunchCoalescerTest {
+
+    @Test
+    // Tests that demand for the same AMI is merged into a single launch, with every browser on Linux sharing it
+    public void testDemandMergedPerLaunchKey() throws Exception {
+        final List<List<AutomationRunRequest>> launchedRuns = new ArrayList<>();
+        final List<Map<String,Integer>> launchedThreads = new ArrayList<>();
+        final CountDownLatch launches = new CountDownLatch(2);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        NodeLaunchCoalescer coalescer = new NodeLaunchCoalescer(100, scheduler, new NodeLaunchCoalescer.Launcher() {
+            @Override
+            public void launch(List<AutomationRunRequest> runRequests, Map<String,Integer> threadsByBrowser) {
+                synchronized (launchedRuns) {
+                    launchedRuns.add(runRequests);
+                    launchedThreads.add(threadsByBrowser);
+                }
+                launches.countDown();
+            }
+        });
+        AutomationRunRequest first = new AutomationRunRequest("first", 2, "chrome");
+        AutomationRunRequest second = new AutomationRunRequest("second", 3, "chrome", null, "linux");
+        AutomationRunRequest firefox = new AutomationRunRequest("firefox", 1, "firefox");
+        AutomationRunRequest ie = new AutomationRunRequest("ie", 1, "internet explorer");
+        coalescer.submit(first, 2);
+        coalescer.submit(firefox, 1);
+        coalescer.submit(ie, 1);
+        coalescer.submit(second, 3);
+        Assert.assertTrue("Both launches should have happened", launches.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        synchronized (launchedRuns) {
+            int linux = launchedRuns.get(0).contains(first) ? 0 : 1;
+            Assert.assertEquals("Linux runs should share a launch", 3, launchedRuns.get(linux).size());
+            Assert.assertEquals("Runs should be launched in the order they were registered", "first", launchedRuns.get(linux).get(0).getUuid());
+            Assert.assertEquals("Threads should be summed across the runs", 5, launchedThreads.get(linux).get("chrome").intValue());
+            Assert.assertEquals(1, launchedThreads.get(linux).get("firefox").intValue());
+            Assert.assertEquals("IE should be launched on its own", 1, launchedThreads.get(1 - linux).get("internetexplorer").intValue());
+        }
+    }
+
+    @Test
+    // Tests that a launch which cannot be queued up is recorded against every run in it
+    public void testRejectedLaunchRecordedOnRuns() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        NodeLaunchCoalescer coalescer = new NodeLaunchCoalescer(10, scheduler, new NodeLaunchCoalescer.Launcher() {
+            @Override
+            public void launch(List<AutomationRunRequest> runRequests, Map<String,Integer> threadsByBrowser) {
+                throw new RejectedExecutionException();
+            }
+        });
+        AutomationRunRequest first = new AutomationRunRequest("first", 2, "chrome");
+        AutomationRunRequest second = new AutomationRunRequest("second", 3, "chrome");
+        coalescer.submit(first, 2);
+        coalescer.submit(second, 3);
+        scheduler.shutdown();
+        Assert.assertTrue("Launch should have run", scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(AutomationRunRequest.PROVISIONING_STATUS.FAILED, first.getProvisioningStatus());
+        Assert.assertEquals(AutomationRunRequest.PROVISIONING_STATUS.FAILED, second.getProvisioningStatus());
+    }
+}
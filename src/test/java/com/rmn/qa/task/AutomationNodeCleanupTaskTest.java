@@ -154,6 +154,62 @@ public class AutomationNodeCleanupTaskTest {
         Assert.assertEquals("Node should be terminated as it was empty", AutomationDynamicNode.STATUS.TERMINATED, node.getStatus());
     }
 
+    @Test
+    // Tests that evaluating a single node leaves every other node alone
+    public void testEvaluateNode() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationNodeCleanupTask task = new MockAutomationNodeCleanupTask(null,ec2,new MockRequestMatcher());
+        ProxySet proxySet = new ProxySet(false);
+        task.setProxySet(proxySet);
+        AutomationDynamicNode node = new AutomationDynamicNode("testUuid","dummyId",null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationDynamicNode node2 = new AutomationDynamicNode("testUuid","dummyId2",null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationContext.getContext().addNode(node);
+        AutomationContext.getContext().addNode(node2);
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        node2.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        task.evaluateNode("dummyId");
+        Assert.assertEquals("Evaluated node should be terminated as it was empty", AutomationDynamicNode.STATUS.TERMINATED, node.getStatus());
+        Assert.assertEquals("Other node should not be touched", AutomationDynamicNode.STATUS.EXPIRED, node2.getStatus());
+        Assert.assertEquals(Collections.singletonList("dummyId"), new ArrayList<>(ec2.getTerminateCalls().get(0)));
+    }
+
+    @Test
+    // Tests that a node EC2 did not terminate is put back to expired so it is terminated on the next pass
+    public void testNodeNotTerminatedRetried() {
+        MockVmManager ec2 = new MockVmManager();
+        ec2.setFailTerminate();
+        MockAutomationNodeCleanupTask task = new MockAutomationNodeCleanupTask(null,ec2,new MockRequestMatcher());
+        ProxySet proxySet = new ProxySet(false);
+        task.setProxySet(proxySet);
+        AutomationDynamicNode node = new AutomationDynamicNode("testUuid","dummyId",null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationContext.getContext().addNode(node);
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        task.run();
+        Assert.assertEquals("Node should still be expired as it was not terminated", AutomationDynamicNode.STATUS.EXPIRED, node.getStatus());
+        task.run();
+        Assert.assertEquals("Node should be terminated again on the next pass", 2, ec2.getTerminateCalls().size());
+    }
+
+    @Test
+    // Tests that every empty expired node is terminated with a single call to EC2
+    public void testEmptyNodesTerminatedTogether() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationNodeCleanupTask task = new MockAutomationNodeCleanupTask(null,ec2,new MockRequestMatcher());
+        ProxySet proxySet = new ProxySet(false);
+        task.setProxySet(proxySet);
+        AutomationDynamicNode node = new AutomationDynamicNode("testUuid","dummyId",null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationDynamicNode node2 = new AutomationDynamicNode("testUuid","dummyId2",null,null,AutomationUtils.modifyDate(new Date(),-56, Calendar.MINUTE),10);
+        AutomationContext.getContext().addNode(node);
+        AutomationContext.getContext().addNode(node2);
+        node.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        node2.updateStatus(AutomationDynamicNode.STATUS.EXPIRED);
+        task.run();
+        Assert.assertEquals("Both nodes should be terminated in one call", 1, ec2.getTerminateCalls().size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("dummyId","dummyId2")), new HashSet<>(ec2.getTerminateCalls().get(0)));
+        Assert.assertEquals(AutomationDynamicNode.STATUS.TERMINATED, node.getStatus());
+        Assert.assertEquals(AutomationDynamicNode.STATUS.TERMINATED, node2.getStatus());
+    }
+
     @Test
     // Tests that if a node still has tests running against it will only get set to expired and not terminated
     public void testNodeNotSetToTerminatedNotEmpty() {
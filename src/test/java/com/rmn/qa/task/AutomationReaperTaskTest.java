@@ -7,6 +7,7 @@ import com.rmn.qa.AutomationDynamicNode;
 import com.rmn.qa.AutomationUtils;
 import com.rmn.qa.MockVmManager;
 import junit.framework.Assert;
+import org.junit.After;
 import org.junit.Test;
 
 import java.util.Arrays;
@@ -15,6 +16,11 @@ import java.util.Date;
 
 public class AutomationReaperTaskTest {
 
+    @After
+    public void cleanUp() {
+        AutomationContext.refreshContext();
+    }
+
     @Test
     public void testShutdown() {
         MockVmManager ec2 = new MockVmManager();
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+
+package com.rmn.qa.task;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotInstanceStatus;
+import com.rmn.qa.AutomationContext;
+import com.rmn.qa.AutomationDynamicNode;
+import com.rmn.qa.MockVmManager;
+import com.rmn.qa.NodeLifecycleEvents;
+
+public class AutomationSpotInterruptionTaskTest {
+
+    @After
+    public void tearDown() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the hard coded name of the task is correct
+    public void testTaskName() {
+        AutomationSpotInterruptionTask task = new AutomationSpotInterruptionTask(null,null);
+        Assert.assertEquals("Name should be the same",AutomationSpotInterruptionTask.NAME, task.getDescription());
+    }
+
+    @Test
+    // Tests that only the spot node AWS is reclaiming is marked expired
+    public void testInterruptedNodeExpired() {
+        MockVmManager ec2 = new MockVmManager();
+        AutomationDynamicNode interrupted = new AutomationDynamicNode("uuid","interrupted","chrome","linux",new Date(),6);
+        interrupted.setSpotInstanceRequestId("sir-1");
+        AutomationDynamicNode healthy = new AutomationDynamicNode("uuid","healthy","chrome","linux",new Date(),6);
+        healthy.setSpotInstanceRequestId("sir-2");
+        AutomationContext.getContext().addNode(interrupted);
+        AutomationContext.getContext().addNode(healthy);
+        ec2.setSpotInstanceRequests(Arrays.asList(
+                new SpotInstanceRequest().withSpotInstanceRequestId("sir-1").withStatus(new SpotInstanceStatus().withCode("marked-for-termination")),
+                new SpotInstanceRequest().withSpotInstanceRequestId("sir-2").withStatus(new SpotInstanceStatus().withCode("fulfilled"))));
+        AutomationSpotInterruptionTask task = new AutomationSpotInterruptionTask(null,ec2);
+        task.run();
+        Assert.assertEquals("Reclaimed node should be expired", AutomationDynamicNode.STATUS.EXPIRED, interrupted.getStatus());
+        Assert.assertEquals("Healthy node should still be running", AutomationDynamicNode.STATUS.RUNNING, healthy.getStatus());
+    }
+
+    @Test
+    // Tests that expiring a reclaimed spot node raises a lifecycle event so the node is evaluated
+    public void testInterruptedNodeEvaluated() throws InterruptedException {
+        MockVmManager ec2 = new MockVmManager();
+        AutomationDynamicNode interrupted = new AutomationDynamicNode("uuid","interrupted","chrome","linux",new Date(),6);
+        interrupted.setSpotInstanceRequestId("sir-1");
+        AutomationContext.getContext().addNode(interrupted);
+        final CountDownLatch evaluated = new CountDownLatch(1);
+        AutomationContext.getContext().getNodeLifecycleEvents().setListener(new NodeLifecycleEvents.Listener() {
+            @Override
+            public void evaluateNode(String instanceId) {
+                if("interrupted".equals(instanceId)) {
+                    evaluated.countDown();
+                }
+            }
+        });
+        ec2.setSpotInstanceRequests(Arrays.asList(
+                new SpotInstanceRequest().withSpotInstanceRequestId("sir-1").withStatus(new SpotInstanceStatus().withCode("instance-terminated-no-capacity"))));
+        AutomationSpotInterruptionTask task = new AutomationSpotInterruptionTask(null,ec2);
+        task.run();
+        Assert.assertTrue("Reclaimed node should have been evaluated", evaluated.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+
+package com.rmn.qa.task;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AutomationTaskSchedulerTest {
+
+    @Test
+    // Tests that a scheduled task runs repeatedly and stops once the scheduler is shut down
+    public void testTaskRunsUntilShutdown() throws InterruptedException {
+        AutomationTaskScheduler scheduler = new AutomationTaskScheduler(1);
+        CountingTask task = new CountingTask(3, 0, false);
+        scheduler.schedule(task, 0, 10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue("Task should have run 3 times", task.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Scheduler should shut down in time", scheduler.shutdown(5, TimeUnit.SECONDS));
+        AutomationTaskScheduler.TaskStatistics statistics = scheduler.getStatistics().get(0);
+        long runs = statistics.getRuns();
+        Assert.assertTrue("Task should have run at least 3 times", runs >= 3);
+        Assert.assertEquals(CountingTask.NAME, statistics.getName());
+        Assert.assertEquals(0, statistics.getFailures());
+        Thread.sleep(50);
+        Assert.assertEquals("Task should not run after shutdown", runs, scheduler.getStatistics().get(0).getRuns());
+    }
+
+    @Test
+    // Tests that runs longer than the interval are counted as overruns, and failed runs are counted
+    public void testOverrunsAndFailuresCounted() throws InterruptedException {
+        AutomationTaskScheduler scheduler = new AutomationTaskScheduler(1);
+        CountingTask task = new CountingTask(2, 30, true);
+        scheduler.schedule(task, 0, 10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue("Task should have run twice", task.latch.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown(5, TimeUnit.SECONDS);
+        AutomationTaskScheduler.TaskStatistics statistics = scheduler.getStatistics().get(0);
+        Assert.assertTrue("Slow runs should be counted as overruns", statistics.getOverruns() >= 2);
+        Assert.assertTrue("Skipped runs should be counted", statistics.getMissedTicks() >= statistics.getOverruns());
+        Assert.assertEquals("Every run should have failed", statistics.getRuns(), statistics.getFailures());
+        Assert.assertTrue(statistics.getMaxTimeInMillis() >= 30);
+        long[] histogram = statistics.getHistogram();
+        Assert.assertEquals("Runs should be in the 10-100ms bucket", statistics.getRuns(), histogram[1]);
+    }
+
+    @Test
+    // Tests that the interval of a task can be overridden with a system property
+    public void testConfiguredInterval() {
+        System.setProperty("taskIntervalSeconds.CountingTask", "60");
+        try {
+            AutomationTaskScheduler scheduler = new AutomationTaskScheduler(1);
+            scheduler.schedule(new CountingTask(1, 0, false), 1, 1, TimeUnit.MINUTES);
+            Assert.assertEquals(TimeUnit.SECONDS.toMillis(60), scheduler.getStatistics().get(0).getIntervalInMillis());
+            scheduler.shutdown(1, TimeUnit.SECONDS);
+        } finally {
+            System.clearProperty("taskIntervalSeconds.CountingTask");
+        }
+    }
+
+    private static final class CountingTask extends AbstractAutomationCleanupTask {
+
+        private static final String NAME = "Counting Task";
+        private final CountDownLatch latch;
+        private final long sleepInMillis;
+        private final boolean fail;
+
+        private CountingTask(int runs, long sleepInMillis, boolean fail) {
+            super(null);
+            this.latch = new CountDownLatch(runs);
+            this.sleepInMillis = sleepInMillis;
+            this.fail = fail;
+        }
+
+        @Override
+        public void doWork() {
+            try {
+                Thread.sleep(sleepInMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latch.countDown();
+            if(fail) {
+                throw new RuntimeException("Task failed");
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return CountingTask.NAME;
+        }
+    }
+}
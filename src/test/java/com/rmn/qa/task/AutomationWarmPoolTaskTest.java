@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.task;
+
+import com.rmn.qa.*;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+import org.openqa.grid.common.SeleniumProtocol;
+import org.openqa.grid.internal.ProxySet;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+public class AutomationWarmPoolTaskTest {
+
+    private static final long ONE_HOUR = 60 * 60 * 1000L;
+
+    @After
+    public void tearDown() {
+        AutomationContext.refreshContext();
+    }
+
+    @Test
+    // Tests that the hard coded name of the task is correct
+    public void testTaskName() {
+        AutomationWarmPoolTask task = new AutomationWarmPoolTask(null,null,new HashMap<AutomationRunRequest, Integer>(),ONE_HOUR);
+        Assert.assertEquals("Name should be the same",AutomationWarmPoolTask.NAME, task.getDescription());
+    }
+
+    @Test
+    // Tests that the warm pool configuration is parsed and invalid entries are ignored
+    public void testParseTargets() {
+        Map<AutomationRunRequest,Integer> targets = AutomationWarmPoolTask.parseTargets("chrome:linux=2, firefox=1,opera:linux=1,chrome:windows=x");
+        Assert.assertEquals("Only valid entries should be parsed", 2, targets.size());
+        Iterator<Map.Entry<AutomationRunRequest,Integer>> iterator = targets.entrySet().iterator();
+        Map.Entry<AutomationRunRequest,Integer> chrome = iterator.next();
+        Assert.assertEquals("chrome", chrome.getKey().getBrowser());
+        Assert.assertEquals("linux", chrome.getKey().getOs());
+        Assert.assertEquals(2, chrome.getValue().intValue());
+        Map.Entry<AutomationRunRequest,Integer> firefox = iterator.next();
+        Assert.assertEquals("firefox", firefox.getKey().getBrowser());
+        Assert.assertNull("OS should be optional", firefox.getKey().getOs());
+        Assert.assertEquals(1, firefox.getValue().intValue());
+    }
+
+    @Test
+    // Tests that nodes are started to fill an empty pool
+    public void testPoolToppedUp() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=2"),ONE_HOUR);
+        task.setProxySet(new ProxySet(false));
+        task.run();
+        Assert.assertNull("Task should not have failed", task.getThrowable());
+        Assert.assertTrue("Nodes should have been started", ec2.isNodesLaunched());
+        Assert.assertEquals("Pool should have been filled", 2, ec2.getNumberLaunched());
+        Assert.assertEquals("Pool should have been filled with chrome nodes", "chrome", ec2.getBrowser());
+        Assert.assertEquals("Linux nodes should be started as the cheapest type from the catalog", Collections.singletonList("c3.large"), ec2.getInstanceTypes());
+        AutomationDynamicNode node = AutomationContext.getContext().getNode("instanceId");
+        Assert.assertEquals("Started node should belong to the pool", AutomationConstants.WARM_POOL_UUID, node.getUuid());
+        Assert.assertEquals("Node should run as many sessions as its instance type can", 6, node.getNodeCapacity());
+    }
+
+    @Test
+    // Tests that registered idle nodes in the pool are counted, and kept into the next billing cycle when about to expire
+    public void testIdleWarmNodeKept() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=1"),ONE_HOUR);
+        ProxySet proxySet = new ProxySet(false);
+        AutomationDynamicNode node = addWarmNode(proxySet, false);
+        Date endDate = node.getEndDate();
+        task.setProxySet(proxySet);
+        task.run();
+        Assert.assertFalse("Pool is already full so no nodes should be started", ec2.isNodesLaunched());
+        Assert.assertTrue("Node should be kept in the pool", node.getEndDate().after(endDate));
+    }
+
+    @Test
+    // Tests that a warm node which is running tests no longer counts towards the pool
+    public void testBusyWarmNodeReplaced() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=1"),ONE_HOUR);
+        ProxySet proxySet = new ProxySet(false);
+        addWarmNode(proxySet, true);
+        task.setProxySet(proxySet);
+        task.run();
+        Assert.assertEquals("A replacement node should be started", 1, ec2.getNumberLaunched());
+    }
+
+    @Test
+    // Tests that nodes are started on the launch executor, and a pool is not topped up again while its launch is queued
+    public void testPoolToppedUpOnLaunchExecutor() {
+        MockVmManager ec2 = new MockVmManager();
+        final List<Runnable> launches = new ArrayList<>();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=2"),ONE_HOUR,new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                launches.add(command);
+            }
+        });
+        task.setProxySet(new ProxySet(false));
+        task.run();
+        task.run();
+        Assert.assertFalse("Nodes should not be started on the task thread", ec2.isNodesLaunched());
+        Assert.assertEquals("Pool should only be topped up once while its launch is queued", 1, launches.size());
+        launches.get(0).run();
+        Assert.assertEquals("Pool should have been filled", 2, ec2.getNumberLaunched());
+    }
+
+    @Test
+    // Tests that a pool which has gone unused past its idle budget is no longer topped up or kept
+    public void testUnusedPoolShrinks() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=2"),0);
+        ProxySet proxySet = new ProxySet(false);
+        AutomationDynamicNode node = addWarmNode(proxySet, false);
+        Date endDate = node.getEndDate();
+        task.setProxySet(proxySet);
+        task.run();
+        Assert.assertFalse("Unused pool should not be topped up", ec2.isNodesLaunched());
+        Assert.assertEquals("Unused warm node should be left to expire", endDate, node.getEndDate());
+    }
+
+    @Test
+    // Tests that a registered run for the browser keeps the pool in use
+    public void testRunKeepsPoolInUse() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,AutomationWarmPoolTask.parseTargets("chrome:linux=1"),0);
+        task.setProxySet(new ProxySet(false));
+        AutomationContext.getContext().addRun(new AutomationRunRequest("runUuid", 6, "chrome"));
+        task.run();
+        Assert.assertTrue("Pool in use should be topped up", ec2.isNodesLaunched());
+    }
+
+    @Test
+    // Tests that nodes are started ahead of forecast demand when no pool is configured for the browser
+    public void testForecastDemandStartsNodes() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,new HashMap<AutomationRunRequest, Integer>(),ONE_HOUR);
+        task.setProxySet(new ProxySet(false));
+        AutomationContext.getContext().setTotalNodeCount(50);
+        // Last week's run at the same time should be forecast to happen again
+        Date lastWeek = AutomationUtils.modifyDate(new Date(),-7,Calendar.DAY_OF_MONTH);
+        AutomationContext.getContext().getDemandForecaster().record(new AutomationRunRequest("runUuid", 60, "chrome", null, null, AutomationUtils.modifyDate(lastWeek,15,Calendar.MINUTE)));
+        task.run();
+        Assert.assertNull("Task should not have failed", task.getThrowable());
+        Assert.assertEquals("Forecast should be capped at the node capacity of the hub", 9, ec2.getNumberLaunched());
+        Assert.assertEquals("chrome", ec2.getBrowser());
+    }
+
+    @Test
+    // Tests that free threads the hub already has for the browser are not started again for forecast demand
+    public void testForecastDemandCountsFreeThreads() {
+        MockVmManager ec2 = new MockVmManager();
+        MockAutomationWarmPoolTask task = new MockAutomationWarmPoolTask(null,ec2,new HashMap<AutomationRunRequest, Integer>(),ONE_HOUR);
+        ProxySet proxySet = new ProxySet(false);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        Map<String,Object> config = new HashMap<>();
+        config.put(AutomationConstants.INSTANCE_ID,"runNodeId");
+        proxy.setConfig(config);
+        proxy.setMaxNumberOfConcurrentTestSessions(12);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"chrome");
+        proxy.setMultipleTestSlots(new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities), 12);
+        proxySet.add(proxy);
+        task.setProxySet(proxySet);
+        AutomationContext.getContext().setTotalNodeCount(50);
+        Date lastWeek = AutomationUtils.modifyDate(new Date(),-7,Calendar.DAY_OF_MONTH);
+        AutomationContext.getContext().getDemandForecaster().record(new AutomationRunRequest("runUuid", 60, "chrome", null, null, AutomationUtils.modifyDate(lastWeek,15,Calendar.MINUTE)));
+        task.run();
+        Assert.assertNull("Task should not have failed", task.getThrowable());
+        Assert.assertEquals("Only the forecast threads beyond the free ones should be started", 7, ec2.getNumberLaunched());
+    }
+
+    private AutomationDynamicNode addWarmNode(ProxySet proxySet, boolean busy) {
+        String instanceId = "warmId";
+        AutomationDynamicNode node = new AutomationDynamicNode(AutomationConstants.WARM_POOL_UUID,instanceId,"chrome","linux",AutomationUtils.modifyDate(new Date(),-54,Calendar.MINUTE),6);
+        AutomationContext.getContext().addNode(node);
+        MockRemoteProxy proxy = new MockRemoteProxy();
+        Map<String,Object> config = new HashMap<>();
+        config.put(AutomationConstants.INSTANCE_ID,instanceId);
+        proxy.setConfig(config);
+        proxy.setMaxNumberOfConcurrentTestSessions(6);
+        proxy.setCapabilityMatcher(new AutomationCapabilityMatcher());
+        Map<String,Object> capabilities = new HashMap<>();
+        capabilities.put(CapabilityType.BROWSER_NAME,"chrome");
+        capabilities.put(CapabilityType.PLATFORM,"LINUX");
+        TestSlot testSlot = new TestSlot(proxy, SeleniumProtocol.WebDriver,null,capabilities);
+        if(busy) {
+            testSlot.getNewSession(capabilities);
+        }
+        proxy.setMultipleTestSlots(testSlot, 6);
+        proxySet.add(proxy);
+        return node;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 RetailMeNot, Inc.
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ */
+package com.rmn.qa.task;
+
+import com.rmn.qa.AutomationRunRequest;
+import com.rmn.qa.RegistryRetriever;
+import com.rmn.qa.aws.VmManager;
+import org.openqa.grid.internal.ProxySet;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class MockAutomationWarmPoolTask extends AutomationWarmPoolTask {
+
+    private ProxySet proxySet;
+
+    public MockAutomationWarmPoolTask(RegistryRetriever retrieveContext, VmManager ec2, Map<AutomationRunRequest,Integer> targets, long idleBudgetInMillis) {
+        super(retrieveContext, ec2, targets, idleBudgetInMillis);
+    }
+
+    public MockAutomationWarmPoolTask(RegistryRetriever retrieveContext, VmManager ec2, Map<AutomationRunRequest,Integer> targets, long idleBudgetInMillis, Executor launchExecutor) {
+        super(retrieveContext, ec2, targets, idleBudgetInMillis, launchExecutor);
+    }
+
+    @Override
+    protected ProxySet getProxySet() {
+        return proxySet;
+    }
+
+    public void setProxySet(ProxySet proxySet) {
+        this.proxySet = proxySet;
+    }
+}